@@ -24,6 +24,7 @@ import static com.spotify.apollo.StatusType.Family.SUCCESSFUL;
 import static com.spotify.styx.api.Api.Version.V3;
 import static com.spotify.styx.api.Middlewares.authedEntity;
 import static com.spotify.styx.serialization.Json.serialize;
+import static com.spotify.styx.state.RunState.State.DONE;
 import static com.spotify.styx.util.CloserUtil.register;
 import static com.spotify.styx.util.ParameterUtil.toParameter;
 import static com.spotify.styx.util.TimeUtil.instantsInRange;
@@ -57,6 +58,7 @@ import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.serialization.Json;
+import com.spotify.styx.state.BackfillProgress;
 import com.spotify.styx.state.RunState;
 import com.spotify.styx.state.StateData;
 import com.spotify.styx.storage.Storage;
@@ -81,6 +83,7 @@ import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import okio.ByteString;
 import org.slf4j.Logger;
@@ -434,27 +437,33 @@ public final class BackfillResource implements Closeable {
     final List<RunStateData> waitingStates;
 
     final Map<WorkflowInstance, RunState> activeWorkflowInstances;
+    final BackfillProgress progress;
     try {
       // this is weakly consistent and is tolerable in this case because no critical action
       // depends on this
       activeWorkflowInstances = storage.readActiveStatesByTriggerId(backfill.id());
+      progress = storage.backfillProgress(backfill.id())
+          .orElseGet(() -> BackfillProgress.create(backfill.id()));
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
 
     final List<Instant> processedInstants;
+    final int firstProcessedPartition;
     if (backfill.reverse()) {
       final Instant firstInstant = nextInstant(backfill.nextTrigger(), backfill.schedule());
       processedInstants = instantsInRange(firstInstant, backfill.end(), backfill.schedule());
+      firstProcessedPartition = BackfillProgress.partition(backfill, firstInstant);
     } else {
       processedInstants = instantsInRange(backfill.start(), backfill.nextTrigger(), backfill.schedule());
+      firstProcessedPartition = 0;
     }
-    processedStates = processedInstants.stream()
-        .map(instant -> forkJoinPool.submit(() ->
-            getRunStateData(backfill, activeWorkflowInstances, instant)))
+    processedStates = IntStream.range(0, processedInstants.size())
+        .mapToObj(i -> getRunStateData(backfill, activeWorkflowInstances, progress,
+            firstProcessedPartition + i, processedInstants.get(i)))
         .collect(toList())
         .stream()
-        .map(ForkJoinTask::join)
+        .map(CompletableFuture::join)
         .collect(toList());
 
     final List<Instant> waitingInstants;
@@ -477,23 +486,31 @@ public final class BackfillResource implements Closeable {
         : Stream.concat(processedStates.stream(), waitingStates.stream()).collect(toList());
   }
 
-  private RunStateData getRunStateData(Backfill backfill,
-      Map<WorkflowInstance, RunState> activeWorkflowInstances, Instant instant) {
+  private CompletableFuture<RunStateData> getRunStateData(Backfill backfill,
+      Map<WorkflowInstance, RunState> activeWorkflowInstances, BackfillProgress progress, int partition,
+      Instant instant) {
 
     final WorkflowInstance wfi = WorkflowInstance
         .create(backfill.workflowId(), toParameter(backfill.schedule(), instant));
 
     if (activeWorkflowInstances.containsKey(wfi)) {
       final RunState state = activeWorkflowInstances.get(wfi);
-      return RunStateData.newBuilder()
+      return CompletableFuture.completedFuture(RunStateData.newBuilder()
           .workflowInstance(state.workflowInstance())
           .state(state.state().name())
           .stateData(state.data())
           .latestTimestamp(state.timestamp())
-          .build();
+          .build());
+    }
+
+    // The progress only records the terminal state, which is all there is to show for a successful partition.
+    // Failed partitions are replayed to show their execution id, tries and error message.
+    if (progress.terminalState(partition).filter(DONE::equals).isPresent()) {
+      return CompletableFuture.completedFuture(RunStateData.create(wfi, DONE.name(), StateData.zero()));
     }
 
-    return ReplayEvents.getBackfillRunStateData(wfi, storage, backfill.id())
-        .orElse(RunStateData.create(wfi, UNKNOWN, StateData.zero()));
+    // Failed partitions and partitions that completed before their progress was recorded
+    return CompletableFuture.supplyAsync(() -> ReplayEvents.getBackfillRunStateData(wfi, storage, backfill.id())
+        .orElse(RunStateData.create(wfi, UNKNOWN, StateData.zero())), forkJoinPool);
   }
 }
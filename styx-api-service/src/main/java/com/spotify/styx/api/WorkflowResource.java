@@ -65,6 +65,9 @@ public final class WorkflowResource {
   private static final String BASE = "/workflows";
   private static final int DEFAULT_PAGE_LIMIT = 24 * 7;
 
+  // The offset of the next page of instances, if there is one
+  static final String NEXT_OFFSET_HEADER = "X-Styx-Next-Offset";
+
   private static final Logger LOG = LoggerFactory.getLogger(WorkflowResource.class);
 
   private final WorkflowValidator workflowValidator;
@@ -286,6 +289,7 @@ public final class WorkflowResource {
     final boolean tail = Boolean.parseBoolean(request.parameter("tail").orElse(""));
 
     final List<WorkflowInstanceExecutionData> data;
+    Optional<String> nextOffset = Optional.empty();
     try {
       if (tail) {
         final Optional<Workflow> workflow = storage.workflow(workflowId);
@@ -301,17 +305,30 @@ public final class WorkflowResource {
         final Instant startInstant = TimeUtil.offsetInstant(nextNaturalTrigger, schedule, -limit);
         final String tailStart = ParameterUtil.toParameter(schedule, startInstant);
         final String tailStop = ParameterUtil.toParameter(schedule, nextNaturalTrigger);
-        data = storage.executionData(workflowId, tailStart, tailStop);
-      } else if (start.isEmpty()) {
-        data = storage.executionData(workflowId, offset, limit);
+        data = storage.executionData(workflowId, tailStart, tailStop, limit);
       } else {
-        data = storage.executionData(workflowId, start, stop);
+        // Read one more instance than requested to know where the next page starts
+        final int readLimit = limit < Integer.MAX_VALUE ? limit + 1 : limit;
+        final List<WorkflowInstanceExecutionData> page;
+        if (start.isEmpty()) {
+          page = storage.executionData(workflowId, offset, readLimit);
+        } else {
+          // The offset continues a range from where the previous page ended
+          page = storage.executionData(workflowId, offset.isEmpty() ? start : offset, stop, readLimit);
+        }
+        if (page.size() > limit) {
+          nextOffset = Optional.of(page.get(limit).workflowInstance().parameter());
+          data = page.subList(0, limit);
+        } else {
+          data = page;
+        }
       }
     } catch (IOException e) {
       return Response.forStatus(
           Status.INTERNAL_SERVER_ERROR.withReasonPhrase("Couldn't fetch execution info."));
     }
-    return Response.forPayload(data);
+    final Response<List<WorkflowInstanceExecutionData>> response = Response.forPayload(data);
+    return nextOffset.map(next -> response.withHeader(NEXT_OFFSET_HEADER, next)).orElse(response);
   }
 
   private Response<WorkflowInstanceExecutionData> instance(
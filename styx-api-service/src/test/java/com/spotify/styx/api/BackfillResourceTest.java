@@ -66,6 +66,7 @@ import com.spotify.styx.model.WorkflowConfiguration;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.serialization.Json;
+import com.spotify.styx.state.BackfillProgress;
 import com.spotify.styx.state.RunState;
 import com.spotify.styx.state.RunState.State;
 import com.spotify.styx.state.StateData;
@@ -513,6 +514,38 @@ public class BackfillResourceTest extends VersionedApiTest {
     assertJson(response, "statuses.active_states", hasSize(6));
   }
 
+  @Test
+  public void shouldGetFinishedBackfillFromProgress() throws Exception {
+    sinceVersion(Api.Version.V3);
+
+    storage.storeBackfill(BACKFILL_5.builder().nextTrigger(Instant.parse("2016-12-31T23:00:00Z")).allTriggered(true).build());
+    final BackfillProgress progress = BackfillProgress.create(BACKFILL_5.id())
+        .withTerminalState(0, State.DONE)
+        .withTerminalState(1, State.DONE)
+        .withTerminalState(2, State.DONE)
+        .withTerminalState(3, State.DONE)
+        .withTerminalState(4, State.DONE)
+        .withTerminalState(5, State.ERROR);
+    storage.runInTransaction(tx -> tx.store(progress));
+    final WorkflowInstance failed = WorkflowInstance.create(BACKFILL_5.workflowId(), "2017-01-01T05");
+    storeFailedInstance(failed, BACKFILL_5.id());
+
+    Response<ByteString> response =
+        awaitResponse(serviceHelper.request("GET", path("/" + BACKFILL_5.id())));
+
+    assertThat(response, hasStatus(belongsToFamily(StatusType.Family.SUCCESSFUL)));
+    assertJson(response, "statuses.active_states[0].workflow_instance.parameter", equalTo("2017-01-01T00"));
+    assertJson(response, "statuses.active_states[0].state", equalTo("DONE"));
+    assertJson(response, "statuses.active_states[4].state", equalTo("DONE"));
+    assertJson(response, "statuses.active_states[5].workflow_instance.parameter", equalTo("2017-01-01T05"));
+    assertJson(response, "statuses.active_states[5].state", equalTo("ERROR"));
+    assertJson(response, "statuses.active_states[5].state_data.execution_id", equalTo("exec-1"));
+    assertJson(response, "statuses.active_states", hasSize(6));
+
+    verify(storage, never()).readEvents(WorkflowInstance.create(BACKFILL_5.workflowId(), "2017-01-01T00"));
+    verify(storage).readEvents(failed);
+  }
+
   private void storeSucessfulInstance(WorkflowInstance wfi, String backfillId) throws IOException {
     storage.writeEvent(SequenceEvent.create(
         Event.triggerExecution(wfi, Trigger.backfill(backfillId), TRIGGER_PARAMETERS),          1L, 1L));
@@ -524,6 +557,17 @@ public class BackfillResourceTest extends VersionedApiTest {
     storage.writeEvent(SequenceEvent.create(Event.success(wfi),                                 7L, 7L));
   }
 
+  private void storeFailedInstance(WorkflowInstance wfi, String backfillId) throws IOException {
+    storage.writeEvent(SequenceEvent.create(
+        Event.triggerExecution(wfi, Trigger.backfill(backfillId), TRIGGER_PARAMETERS),          1L, 1L));
+    storage.writeEvent(SequenceEvent.create(Event.dequeue(wfi, RESOURCE_IDS),                   2L, 2L));
+    storage.writeEvent(SequenceEvent.create(Event.submit(wfi, EXECUTION_DESCRIPTION, "exec-1"), 3L, 3L));
+    storage.writeEvent(SequenceEvent.create(Event.submitted(wfi, "exec-1"),                     4L, 4L));
+    storage.writeEvent(SequenceEvent.create(Event.started(wfi),                                 5L, 5L));
+    storage.writeEvent(SequenceEvent.create(Event.terminate(wfi, Optional.of(1)),               6L, 6L));
+    storage.writeEvent(SequenceEvent.create(Event.stop(wfi),                                    7L, 7L));
+  }
+
   @Test
   public void shouldGetBackfillWithoutStatus() throws Exception {
     sinceVersion(Api.Version.V3);
@@ -224,6 +224,7 @@ public class ResourceResourceTest extends VersionedApiTest {
     assertThat(storage.resource(RESOURCE_1.id()), hasValue(Resource.create(RESOURCE_1.id(), 21)));
     verify(storage).storeResource(Resource.create(RESOURCE_1.id(), 21L));
     assertThat(storage.getLimitForCounter(RESOURCE_1.id()), is(21L));
+    assertThat(storage.counterLimit(RESOURCE_1.id()).shards(), is(21));
   }
 
   @Test
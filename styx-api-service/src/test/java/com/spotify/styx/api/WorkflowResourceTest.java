@@ -506,6 +506,53 @@ public class WorkflowResourceTest extends VersionedApiTest {
 
     assertJson(response, "[*]", hasSize(1));
     assertJson(response, "[0].workflow_instance.parameter", is("2016-08-12"));
+    assertThat(response.headers().get(WorkflowResource.NEXT_OFFSET_HEADER), is("2016-08-13"));
+  }
+
+  @Test
+  public void shouldNotReturnNextOffsetForLastPageOfWorkflowInstancesData() throws Exception {
+    sinceVersion(Api.Version.V3);
+
+    WorkflowInstance wfi1 = WorkflowInstance.create(WORKFLOW.id(), "2016-08-11");
+    WorkflowInstance wfi2 = WorkflowInstance.create(WORKFLOW.id(), "2016-08-12");
+    storage.writeEvent(create(Event.triggerExecution(wfi1, NATURAL_TRIGGER, TRIGGER_PARAMETERS), 0L, ms("07:00:00")));
+    storage.writeEvent(create(Event.triggerExecution(wfi2, NATURAL_TRIGGER, TRIGGER_PARAMETERS), 0L, ms("07:00:00")));
+
+    Response<ByteString> response = awaitResponse(
+        serviceHelper.request("GET", path("/foo/bar/instances?offset=2016-08-11&limit=2")));
+
+    assertThat(response, hasStatus(withCode(Status.OK)));
+
+    assertJson(response, "[*]", hasSize(2));
+    assertThat(response.headers().containsKey(WorkflowResource.NEXT_OFFSET_HEADER), is(false));
+  }
+
+  @Test
+  public void shouldPaginateWorkflowRangeOfInstancesData() throws Exception {
+    sinceVersion(Api.Version.V3);
+
+    WorkflowInstance wfi1 = WorkflowInstance.create(WORKFLOW.id(), "2016-08-11");
+    WorkflowInstance wfi2 = WorkflowInstance.create(WORKFLOW.id(), "2016-08-12");
+    WorkflowInstance wfi3 = WorkflowInstance.create(WORKFLOW.id(), "2016-08-13");
+    storage.writeEvent(create(Event.triggerExecution(wfi1, NATURAL_TRIGGER, TRIGGER_PARAMETERS), 0L, ms("07:00:00")));
+    storage.writeEvent(create(Event.triggerExecution(wfi2, NATURAL_TRIGGER, TRIGGER_PARAMETERS), 0L, ms("07:00:00")));
+    storage.writeEvent(create(Event.triggerExecution(wfi3, NATURAL_TRIGGER, TRIGGER_PARAMETERS), 0L, ms("07:00:00")));
+
+    Response<ByteString> firstPage = awaitResponse(
+        serviceHelper.request("GET", path("/foo/bar/instances?start=2016-08-11&stop=2016-08-13&limit=1")));
+
+    assertThat(firstPage, hasStatus(withCode(Status.OK)));
+    assertJson(firstPage, "[*]", hasSize(1));
+    assertJson(firstPage, "[0].workflow_instance.parameter", is("2016-08-11"));
+    assertThat(firstPage.headers().get(WorkflowResource.NEXT_OFFSET_HEADER), is("2016-08-12"));
+
+    Response<ByteString> lastPage = awaitResponse(serviceHelper.request("GET",
+        path("/foo/bar/instances?start=2016-08-11&stop=2016-08-13&offset=2016-08-12&limit=1")));
+
+    assertThat(lastPage, hasStatus(withCode(Status.OK)));
+    assertJson(lastPage, "[*]", hasSize(1));
+    assertJson(lastPage, "[0].workflow_instance.parameter", is("2016-08-12"));
+    assertThat(lastPage.headers().containsKey(WorkflowResource.NEXT_OFFSET_HEADER), is(false));
   }
 
   @Test
@@ -0,0 +1,233 @@
+/*-
+ * -\-\-
+ * Spotify Styx Benchmarks
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.RateLimiter;
+import com.spotify.styx.model.Event;
+import com.spotify.styx.model.Resource;
+import com.spotify.styx.model.Schedule;
+import com.spotify.styx.model.TriggerParameters;
+import com.spotify.styx.model.Workflow;
+import com.spotify.styx.model.WorkflowConfiguration;
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.monitoring.Stats;
+import com.spotify.styx.state.RunState;
+import com.spotify.styx.state.StateData;
+import com.spotify.styx.state.StateDataBuilder;
+import com.spotify.styx.state.StateManager;
+import com.spotify.styx.state.Trigger;
+import com.spotify.styx.storage.InMemStorage;
+import com.spotify.styx.util.CounterSnapshots;
+import com.spotify.styx.util.ShardedCounter;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a full {@link Scheduler#tick()} over synthetic active instances stored in {@link InMemStorage}.
+ *
+ * <p>The state manager serves the stored active states and drops the events the scheduler sends, so every tick
+ * sees the same states: a fifth of the instances are running and hold one unit of the shared resource each, the
+ * rest are queued and compete for the remaining capacity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SchedulerBenchmark {
+
+  private static final Instant NOW = Instant.parse("2019-01-01T12:00:00Z");
+  private static final String SHARED_RESOURCE = "shared";
+  private static final int WORKFLOWS = 1000;
+
+  @Param({"10000", "100000", "500000"})
+  public int activeInstances;
+
+  @Param({"1000"})
+  public long resourceLimit;
+
+  private ExecutorService executor;
+  private Scheduler scheduler;
+  private DroppingStateManager stateManager;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    final InMemStorage storage = new InMemStorage();
+    storage.storeResource(Resource.create(SHARED_RESOURCE, resourceLimit));
+
+    for (int i = 0; i < WORKFLOWS; i++) {
+      storage.storeWorkflow(workflow(i));
+    }
+
+    long running = 0;
+    for (int i = 0; i < activeInstances; i++) {
+      final WorkflowId workflowId = workflowId(i % WORKFLOWS);
+      final WorkflowInstance instance = WorkflowInstance.create(workflowId, "instance-" + i / WORKFLOWS);
+      final boolean isRunning = i % 5 == 0 && running < resourceLimit;
+      if (isRunning) {
+        running++;
+      }
+      storage.writeActiveState(instance, runState(instance, isRunning));
+    }
+
+    final long usage = running;
+    final ShardedCounter shardedCounter = new ShardedCounter(Stats.NOOP,
+        counterId -> CounterSnapshots.snapshot(counterId, resourceLimit, usage));
+
+    executor = Executors.newFixedThreadPool(32);
+    stateManager = new DroppingStateManager(storage.readActiveStates());
+    scheduler = new Scheduler(() -> NOW, stateManager, storage,
+        new WorkflowCache(storage, Duration.ofMinutes(1), () -> NOW), WorkflowResourceDecorator.NOOP, Stats.NOOP,
+        RateLimiter.create(Double.MAX_VALUE), WorkflowExecutionGate.NOOP, shardedCounter, executor);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    executor.shutdownNow();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  @Benchmark
+  public long tick() {
+    scheduler.tick();
+    return stateManager.received.sumThenReset();
+  }
+
+  private static WorkflowId workflowId(int i) {
+    return WorkflowId.create("component-" + i % 10, "workflow-" + i);
+  }
+
+  private static Workflow workflow(int i) {
+    final WorkflowId workflowId = workflowId(i);
+    return Workflow.create(workflowId.componentId(), WorkflowConfiguration.builder()
+        .id(workflowId.id())
+        .schedule(Schedule.HOURS)
+        .dockerImage("busybox:1.1")
+        .resources(SHARED_RESOURCE)
+        .build());
+  }
+
+  private static RunState runState(WorkflowInstance instance, boolean running) {
+    final StateDataBuilder data = StateData.newBuilder()
+        .trigger(Trigger.natural())
+        .triggerParameters(TriggerParameters.zero());
+    if (running) {
+      return RunState.create(instance, RunState.State.RUNNING,
+          data.tries(1).executionId("styx-run-" + instance.parameter())
+              .resourceIds(ImmutableSet.of(SHARED_RESOURCE)).build(),
+          NOW.minusSeconds(600), 3L);
+    } else {
+      return RunState.create(instance, RunState.State.QUEUED, data.build(), NOW.minusSeconds(600), 1L);
+    }
+  }
+
+  /**
+   * Serves a fixed set of active states and counts and drops all events.
+   */
+  private static class DroppingStateManager implements StateManager {
+
+    private final Map<WorkflowInstance, RunState> activeStates;
+    private final LongAdder received = new LongAdder();
+
+    DroppingStateManager(Map<WorkflowInstance, RunState> activeStates) {
+      this.activeStates = Map.copyOf(activeStates);
+    }
+
+    @Override
+    public void tick() {
+    }
+
+    @Override
+    public void trigger(WorkflowInstance workflowInstance, Trigger trigger, TriggerParameters parameters) {
+      received.increment();
+    }
+
+    @Override
+    public void receive(Event event) {
+      received.increment();
+    }
+
+    @Override
+    public void receive(Event event, long counter) {
+      received.increment();
+    }
+
+    @Override
+    public void receiveAll(List<Event> events, long counter) {
+      received.add(events.size());
+    }
+
+    @Override
+    public Map<WorkflowInstance, Exception> receiveBatch(List<Event> events, Map<WorkflowInstance, Long> counters) {
+      received.add(events.size());
+      return Map.of();
+    }
+
+    @Override
+    public Map<WorkflowInstance, RunState> getActiveStatesByTriggerId(String triggerId) {
+      return Map.of();
+    }
+
+    @Override
+    public Set<WorkflowInstance> listActiveInstances() {
+      return activeStates.keySet();
+    }
+
+    @Override
+    public Map<WorkflowInstance, RunState> getActiveStates() {
+      return activeStates;
+    }
+
+    @Override
+    public Optional<RunState> getActiveState(WorkflowInstance workflowInstance) {
+      return Optional.ofNullable(activeStates.get(workflowInstance));
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*-
+ * -\-\-
+ * Spotify Styx Benchmarks
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks with the regular JMH command line options, but stores the results as JSON in
+ * {@value #DEFAULT_RESULT_FILE} unless another result format or file is given. Results of different releases can
+ * then be compared to track regressions.
+ */
+public final class BenchmarkMain {
+
+  static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+  private BenchmarkMain() {
+    throw new UnsupportedOperationException();
+  }
+
+  public static void main(String[] args) throws Exception {
+    final CommandLineOptions cmdOptions = new CommandLineOptions(args);
+
+    if (cmdOptions.shouldHelp()) {
+      cmdOptions.showHelp();
+      return;
+    }
+
+    final ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions);
+    if (!cmdOptions.getResultFormat().hasValue()) {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+    if (!cmdOptions.getResult().hasValue()) {
+      options.result(DEFAULT_RESULT_FILE);
+    }
+
+    final Runner runner = new Runner(options.build());
+    if (cmdOptions.shouldList()) {
+      runner.list();
+    } else {
+      runner.run();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*-
+ * -\-\-
+ * Spotify Styx Benchmarks
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.serialization;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.spotify.styx.model.Event;
+import com.spotify.styx.model.ExecutionDescription;
+import com.spotify.styx.model.TriggerParameters;
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.state.Message;
+import com.spotify.styx.state.Trigger;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the (de)serialization of events through {@link PersistentEvent} with {@link Json}, as done when
+ * storing and replaying the event log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistentEventBenchmark {
+
+  private static final WorkflowInstance INSTANCE =
+      WorkflowInstance.create(WorkflowId.create("component", "workflow"), "2019-01-01T00");
+
+  private static final Map<String, Event> EVENTS = ImmutableMap.<String, Event>builder()
+      .put("triggerExecution", Event.triggerExecution(INSTANCE, Trigger.backfill("backfill-4711"),
+          TriggerParameters.builder().env("FOO", "foo", "BAR", "bar").build()))
+      .put("info", Event.info(INSTANCE, Message.info("Resource limit reached for: [r1]")))
+      .put("dequeue", Event.dequeue(INSTANCE, ImmutableSet.of("r1", "r2")))
+      .put("submit", Event.submit(INSTANCE, ExecutionDescription.builder()
+          .dockerImage("busybox:1.1")
+          .dockerArgs("echo", "foo", "bar")
+          .commitSha("2d2bfa926b94508de5aab47b5f305659ead2274a")
+          .build(), "styx-run-4711"))
+      .put("terminate", Event.terminate(INSTANCE, Optional.of(20)))
+      .put("retryAfter", Event.retryAfter(INSTANCE, 60_000L))
+      .build();
+
+  @Param({"triggerExecution", "info", "dequeue", "submit", "terminate", "retryAfter"})
+  public String event;
+
+  private Event value;
+  private ByteString json;
+
+  @Setup
+  public void setUp() throws IOException {
+    value = EVENTS.get(event);
+    if (value == null) {
+      throw new IllegalArgumentException("Unknown event: " + event);
+    }
+    json = Json.serialize(value);
+  }
+
+  @Benchmark
+  public ByteString serialize() throws IOException {
+    return Json.serialize(value);
+  }
+
+  @Benchmark
+  public Event deserialize() throws IOException {
+    return Json.deserializeEvent(json);
+  }
+}
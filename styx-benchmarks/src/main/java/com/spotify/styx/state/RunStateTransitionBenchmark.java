@@ -0,0 +1,114 @@
+/*-
+ * -\-\-
+ * Spotify Styx Benchmarks
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.state;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.spotify.styx.model.Event;
+import com.spotify.styx.model.ExecutionDescription;
+import com.spotify.styx.model.TriggerParameters;
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.util.Time;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link RunState#transition(Event, Time)} for every non-deprecated event type, each applied to a state
+ * that accepts it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunStateTransitionBenchmark {
+
+  private static final WorkflowInstance INSTANCE =
+      WorkflowInstance.create(WorkflowId.create("component", "workflow"), "2019-01-01T00");
+  private static final Instant NOW = Instant.parse("2019-01-01T01:00:00Z");
+  private static final Time TIME = () -> NOW;
+
+  private static final StateData DATA = StateData.newBuilder()
+      .tries(1)
+      .trigger(Trigger.natural())
+      .triggerId("natural-trigger")
+      .triggerParameters(TriggerParameters.zero())
+      .executionId("styx-run-4711")
+      .executionDescription(ExecutionDescription.forImage("busybox:1.1"))
+      .resourceIds(ImmutableSet.of("r1", "r2"))
+      .build();
+
+  private static final Map<String, Map.Entry<RunState.State, Event>> TRANSITIONS =
+      ImmutableMap.<String, Map.Entry<RunState.State, Event>>builder()
+          .put("triggerExecution", Map.entry(RunState.State.NEW,
+              Event.triggerExecution(INSTANCE, Trigger.natural(), TriggerParameters.zero())))
+          .put("info", Map.entry(RunState.State.QUEUED, Event.info(INSTANCE, Message.info("waiting"))))
+          .put("dequeue", Map.entry(RunState.State.QUEUED, Event.dequeue(INSTANCE, ImmutableSet.of("r1", "r2"))))
+          .put("submit", Map.entry(RunState.State.PREPARE,
+              Event.submit(INSTANCE, ExecutionDescription.forImage("busybox:1.1"), "styx-run-4711")))
+          .put("submitted", Map.entry(RunState.State.SUBMITTING, Event.submitted(INSTANCE, "styx-run-4711")))
+          .put("started", Map.entry(RunState.State.SUBMITTED, Event.started(INSTANCE)))
+          .put("terminate", Map.entry(RunState.State.RUNNING, Event.terminate(INSTANCE, Optional.of(1))))
+          .put("runError", Map.entry(RunState.State.RUNNING, Event.runError(INSTANCE, "failed")))
+          .put("success", Map.entry(RunState.State.TERMINATED, Event.success(INSTANCE)))
+          .put("retryAfter", Map.entry(RunState.State.FAILED, Event.retryAfter(INSTANCE, 60_000L)))
+          .put("stop", Map.entry(RunState.State.FAILED, Event.stop(INSTANCE)))
+          .put("timeout", Map.entry(RunState.State.RUNNING, Event.timeout(INSTANCE)))
+          .put("halt", Map.entry(RunState.State.RUNNING, Event.halt(INSTANCE)))
+          .build();
+
+  @Param({"triggerExecution", "info", "dequeue", "submit", "submitted", "started", "terminate", "runError",
+          "success", "retryAfter", "stop", "timeout", "halt"})
+  public String event;
+
+  private RunState runState;
+  private Event transition;
+
+  @Setup
+  public void setUp() {
+    final Map.Entry<RunState.State, Event> t = TRANSITIONS.get(event);
+    if (t == null) {
+      throw new IllegalArgumentException("Unknown event: " + event);
+    }
+    runState = RunState.create(INSTANCE, t.getKey(), DATA, NOW, 17L);
+    transition = t.getValue();
+  }
+
+  @Benchmark
+  public RunState transition() {
+    return runState.transition(transition, TIME);
+  }
+}
@@ -0,0 +1,146 @@
+/*-
+ * -\-\-
+ * Spotify Styx Benchmarks
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.storage;
+
+import com.google.cloud.datastore.BlobValue;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.Value;
+import com.google.common.collect.ImmutableSet;
+import com.spotify.styx.model.ExecutionDescription;
+import com.spotify.styx.model.TriggerParameters;
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.state.Message;
+import com.spotify.styx.state.RunState;
+import com.spotify.styx.state.StateData;
+import com.spotify.styx.state.Trigger;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the mapping of active states to and from Datastore entities, which is done for every active state
+ * read and every state transition, with the state data stored either as JSON properties or as a single binary
+ * blob. The approximate size of the entity in each encoding is reported as the {@code bytes} counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatastoreStorageBenchmark {
+
+  private static final WorkflowInstance INSTANCE =
+      WorkflowInstance.create(WorkflowId.create("component", "workflow"), "2019-01-01T00");
+
+  private static final RunState RUN_STATE = RunState.create(INSTANCE, RunState.State.RUNNING,
+      StateData.newBuilder()
+          .tries(3)
+          .consecutiveFailures(2)
+          .retryCost(2.1)
+          .retryDelayMillis(60_000L)
+          .lastExit(20)
+          .trigger(Trigger.backfill("backfill-4711"))
+          .triggerParameters(TriggerParameters.builder()
+              .env("FOO", "foo", "BAR", "bar")
+              .build())
+          .executionId("styx-run-4711")
+          .executionDescription(ExecutionDescription.builder()
+              .dockerImage("busybox:1.1")
+              .dockerArgs("echo", "foo", "bar")
+              .commitSha("2d2bfa926b94508de5aab47b5f305659ead2274a")
+              .build())
+          .resourceIds(ImmutableSet.of("r1", "r2"))
+          .addMessage(Message.info("Exit code: 20"))
+          .addMessage(Message.warning("Exit code: 20"))
+          .build(),
+      Instant.parse("2019-01-01T01:00:00Z"), 17L);
+
+  @Param({"json", "binary"})
+  public String encoding;
+
+  private boolean binary;
+  private KeyFactory keyFactory;
+  private Entity entity;
+
+  @Setup
+  public void setUp() throws IOException {
+    binary = encoding.equals("binary");
+    keyFactory = new KeyFactory("styx-benchmark");
+    entity = DatastoreStorage.runStateToEntity(keyFactory, INSTANCE, RUN_STATE, binary);
+  }
+
+  @Benchmark
+  public Entity runStateToEntity(EntitySize entitySize) throws IOException {
+    return DatastoreStorage.runStateToEntity(keyFactory, INSTANCE, RUN_STATE, binary);
+  }
+
+  @Benchmark
+  public RunState entityToRunState(EntitySize entitySize) throws IOException {
+    return DatastoreStorage.entityToRunState(entity, INSTANCE);
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class EntitySize {
+
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void setUp(DatastoreStorageBenchmark benchmark) {
+      bytes = size(benchmark.entity);
+    }
+  }
+
+  // Approximates the stored size by the property names and string, blob and 8 byte scalar values
+  private static int size(Entity entity) {
+    int size = 0;
+    for (String name : entity.getNames()) {
+      final Value<?> value = entity.getValue(name);
+      size += name.length();
+      if (value instanceof StringValue) {
+        size += ((StringValue) value).get().getBytes(StandardCharsets.UTF_8).length;
+      } else if (value instanceof BlobValue) {
+        size += ((BlobValue) value).get().toByteArray().length;
+      } else {
+        size += 8;
+      }
+    }
+    return size;
+  }
+}
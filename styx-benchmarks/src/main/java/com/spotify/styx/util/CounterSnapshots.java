@@ -0,0 +1,46 @@
+/*-
+ * -\-\-
+ * Spotify Styx Benchmarks
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates {@link ShardedCounter.Snapshot}s without a backing storage, for benchmarks outside of this package.
+ */
+public final class CounterSnapshots {
+
+  private CounterSnapshots() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * A snapshot of a counter with the given limit, with the usage spread as evenly as possible across its shards.
+   */
+  public static CounterSnapshot snapshot(String counterId, long limit, long usage) {
+    final int shardCount = ShardedCounter.shardCount(limit);
+    final Map<Integer, Long> shards = new HashMap<>();
+    for (int i = 0; i < shardCount; i++) {
+      shards.put(i, usage / shardCount + (i < usage % shardCount ? 1 : 0));
+    }
+    return new ShardedCounter.Snapshot(counterId, limit, shardCount, shards);
+  }
+}
@@ -0,0 +1,78 @@
+/*-
+ * -\-\-
+ * Spotify Styx Benchmarks
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.util;
+
+import com.spotify.styx.model.Schedule;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the schedule computations done for every natural trigger and backfill instance.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeUtilBenchmark {
+
+  private static final Instant ORIGIN = Instant.parse("2019-01-01T00:17:00Z");
+
+  @Param({"@hourly", "@daily", "15 3 * * 1-5"})
+  public String schedule;
+
+  @Param({"100"})
+  public int rangeSize;
+
+  private Schedule parsedSchedule;
+  private Instant firstInstant;
+  private Instant lastInstant;
+
+  @Setup
+  public void setUp() {
+    parsedSchedule = Schedule.parse(schedule);
+    firstInstant = TimeUtil.nextInstant(ORIGIN, parsedSchedule);
+    lastInstant = TimeUtil.offsetInstant(firstInstant, parsedSchedule, rangeSize);
+  }
+
+  @Benchmark
+  public Instant nextInstant() {
+    return TimeUtil.nextInstant(ORIGIN, parsedSchedule);
+  }
+
+  @Benchmark
+  public List<Instant> instantsInRange() {
+    return TimeUtil.instantsInRange(firstInstant, lastInstant, parsedSchedule);
+  }
+}
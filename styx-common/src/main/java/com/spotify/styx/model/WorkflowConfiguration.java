@@ -88,6 +88,10 @@ public interface WorkflowConfiguration {
   }
 
   default String defaultOffset(WellKnown schedule) {
+    return defaultOffsetOf(schedule);
+  }
+
+  static String defaultOffsetOf(WellKnown schedule) {
     switch (schedule) {
       case HOURLY:
         return "PT1H";
@@ -0,0 +1,38 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.model;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * A {@link Workflow} together with its {@link WorkflowState}, as read at the same time.
+ */
+@AutoValue
+public abstract class WorkflowWithState {
+
+  public abstract Workflow workflow();
+
+  public abstract WorkflowState state();
+
+  public static WorkflowWithState of(Workflow workflow, WorkflowState state) {
+    return new AutoValue_WorkflowWithState(workflow, state);
+  }
+}
@@ -0,0 +1,282 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.util;
+
+import static java.time.ZoneOffset.UTC;
+
+import com.cronutils.model.time.ExecutionTime;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.spotify.styx.model.Schedule;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * A compiled {@link Schedule} that steps through its execution instants in UTC.
+ *
+ * <p>Well-known schedules are computed with plain date arithmetic. Cron schedules are parsed once and the
+ * {@link ExecutionTime} is shared by all callers, see {@link #of(Schedule)}.
+ */
+public abstract class ScheduleIterator {
+
+  private static final int MAX_COMPILED_SCHEDULES = 10_000;
+
+  private static final ScheduleIterator HOURLY = new FixedPeriod(ChronoUnit.HOURS.getDuration().getSeconds(), 0);
+  private static final ScheduleIterator DAILY = new FixedPeriod(ChronoUnit.DAYS.getDuration().getSeconds(), 0);
+  private static final ScheduleIterator WEEKLY = new FixedPeriod(ChronoUnit.WEEKS.getDuration().getSeconds(),
+      LocalDate.ofEpochDay(0).with(TemporalAdjusters.next(DayOfWeek.MONDAY)).atStartOfDay(UTC).toEpochSecond());
+  private static final ScheduleIterator MONTHLY = new CalendarPeriod(ChronoUnit.MONTHS);
+  private static final ScheduleIterator YEARLY = new CalendarPeriod(ChronoUnit.YEARS);
+
+  private static final LoadingCache<Schedule, ScheduleIterator> CRON_SCHEDULES = CacheBuilder.newBuilder()
+      .maximumSize(MAX_COMPILED_SCHEDULES)
+      .build(CacheLoader.from(schedule -> new Cron(ExecutionTime.forCron(TimeUtil.cron(schedule)))));
+
+  ScheduleIterator() {
+  }
+
+  /**
+   * Get the compiled iterator of a schedule.
+   *
+   * @throws IllegalArgumentException if the schedule is not a valid cron expression.
+   */
+  public static ScheduleIterator of(Schedule schedule) {
+    switch (schedule.wellKnown()) {
+      case HOURLY:
+        return HOURLY;
+      case DAILY:
+        return DAILY;
+      case WEEKLY:
+        return WEEKLY;
+      case MONTHLY:
+        return MONTHLY;
+      case YEARLY:
+        return YEARLY;
+
+      default:
+        try {
+          return CRON_SCHEDULES.getUnchecked(schedule);
+        } catch (UncheckedExecutionException e) {
+          Throwables.throwIfUnchecked(e.getCause());
+          throw e;
+        }
+    }
+  }
+
+  /**
+   * Tests if an instant is an execution instant of the schedule.
+   */
+  public abstract boolean isAligned(Instant instant);
+
+  /**
+   * Gets the first execution instant strictly after an instant.
+   */
+  public abstract Instant next(Instant instant);
+
+  /**
+   * Gets the last execution instant strictly before an instant.
+   */
+  public abstract Instant previous(Instant instant);
+
+  /**
+   * Gets the last execution instant at or before an instant.
+   */
+  public Instant last(Instant instant) {
+    return isAligned(instant) ? instant : previous(instant);
+  }
+
+  /**
+   * Gets the execution instant that is offset a number of executions from an aligned instant.
+   */
+  public Instant offset(Instant origin, int offset) {
+    Instant instant = origin;
+    for (int i = 0; i < Math.abs(offset); i++) {
+      instant = offset < 0 ? previous(instant) : next(instant);
+    }
+    return instant;
+  }
+
+  /**
+   * Counts the execution instants from an aligned instant (inclusive) to another instant (exclusive).
+   */
+  public long count(Instant first, Instant last) {
+    return forward(first).takeWhile(instant -> instant.isBefore(last)).count();
+  }
+
+  /**
+   * Streams the execution instants from an aligned instant (inclusive) and forward in time.
+   */
+  public Stream<Instant> forward(Instant first) {
+    return Stream.iterate(first, this::next);
+  }
+
+  /**
+   * Streams the execution instants from an aligned instant (inclusive) and backward in time.
+   */
+  public Stream<Instant> backward(Instant first) {
+    return Stream.iterate(first, this::previous);
+  }
+
+  /**
+   * A schedule that executes at the start of every interval of its unit, e.g. the first day of every month.
+   */
+  private abstract static class Truncating extends ScheduleIterator {
+
+    abstract Instant truncate(Instant instant);
+
+    abstract Instant plus(Instant instant, long amount);
+
+    /**
+     * Gets the number of whole units from one instant to a later one.
+     */
+    abstract long between(Instant first, Instant last);
+
+    @Override
+    public boolean isAligned(Instant instant) {
+      return truncate(instant).equals(instant);
+    }
+
+    @Override
+    public Instant next(Instant instant) {
+      return plus(truncate(instant), 1);
+    }
+
+    @Override
+    public Instant previous(Instant instant) {
+      final Instant truncated = truncate(instant);
+      return truncated.equals(instant) ? plus(truncated, -1) : truncated;
+    }
+
+    @Override
+    public Instant offset(Instant origin, int offset) {
+      return plus(origin, offset);
+    }
+
+    @Override
+    public long count(Instant first, Instant last) {
+      if (!last.isAfter(first)) {
+        return 0;
+      }
+      final long units = between(first, last);
+      return plus(first, units).isBefore(last) ? units + 1 : units;
+    }
+  }
+
+  /**
+   * Executes every period seconds, starting from an origin given in epoch seconds.
+   */
+  private static class FixedPeriod extends Truncating {
+
+    private final long period;
+    private final long origin;
+
+    FixedPeriod(long period, long origin) {
+      this.period = period;
+      this.origin = origin;
+    }
+
+    @Override
+    Instant truncate(Instant instant) {
+      final long seconds = instant.getEpochSecond() - origin;
+      return Instant.ofEpochSecond(origin + Math.floorDiv(seconds, period) * period);
+    }
+
+    @Override
+    Instant plus(Instant instant, long amount) {
+      return instant.plusSeconds(period * amount);
+    }
+
+    @Override
+    long between(Instant first, Instant last) {
+      return (last.getEpochSecond() - first.getEpochSecond()) / period;
+    }
+  }
+
+  /**
+   * Executes at the start of every month or year.
+   */
+  private static class CalendarPeriod extends Truncating {
+
+    private final ChronoUnit unit;
+
+    CalendarPeriod(ChronoUnit unit) {
+      this.unit = Objects.requireNonNull(unit);
+    }
+
+    @Override
+    Instant truncate(Instant instant) {
+      final LocalDate date = LocalDate.ofInstant(instant, UTC);
+      final LocalDate start = unit == ChronoUnit.YEARS
+                              ? date.withDayOfYear(1)
+                              : date.withDayOfMonth(1);
+      return start.atStartOfDay(UTC).toInstant();
+    }
+
+    @Override
+    Instant plus(Instant instant, long amount) {
+      return instant.atZone(UTC).plus(amount, unit).toInstant();
+    }
+
+    @Override
+    long between(Instant first, Instant last) {
+      return unit.between(first.atZone(UTC), last.atZone(UTC));
+    }
+  }
+
+  private static class Cron extends ScheduleIterator {
+
+    private final ExecutionTime executionTime;
+
+    Cron(ExecutionTime executionTime) {
+      this.executionTime = Objects.requireNonNull(executionTime);
+    }
+
+    @Override
+    public boolean isAligned(Instant instant) {
+      // executionTime.isMatch ignores seconds for unix cron
+      // so we fail the check immediately if there is a sub-minute value
+      return instant.truncatedTo(ChronoUnit.MINUTES).equals(instant)
+             && executionTime.isMatch(instant.atZone(UTC));
+    }
+
+    @Override
+    public Instant next(Instant instant) {
+      return executionTime.nextExecution(instant.atZone(UTC))
+          .orElseThrow(IllegalArgumentException::new) // with unix cron, this should not happen
+          .toInstant();
+    }
+
+    @Override
+    public Instant previous(Instant instant) {
+      return executionTime.lastExecution(instant.atZone(UTC))
+          .orElseThrow(IllegalArgumentException::new) // with unix cron, this should not happen
+          .toInstant();
+    }
+  }
+}
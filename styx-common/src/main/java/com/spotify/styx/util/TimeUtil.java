@@ -21,12 +21,9 @@
 package com.spotify.styx.util;
 
 import static com.cronutils.model.definition.CronDefinitionBuilder.instanceDefinitionFor;
-import static java.time.ZoneOffset.UTC;
 
 import com.cronutils.model.Cron;
 import com.cronutils.model.CronType;
-import com.cronutils.model.definition.CronDefinition;
-import com.cronutils.model.time.ExecutionTime;
 import com.cronutils.parser.CronParser;
 import com.google.common.base.Preconditions;
 import com.spotify.styx.model.Schedule;
@@ -35,9 +32,7 @@ import java.time.Instant;
 import java.time.Period;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeParseException;
-import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAmount;
-import java.time.temporal.UnsupportedTemporalTypeException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -55,6 +50,8 @@ public class TimeUtil {
   private static final String MONTHLY_CRON = "0 0 1 * *";
   private static final String YEARLY_CRON = "0 0 1 1 *";
 
+  private static final CronParser CRON_PARSER = new CronParser(instanceDefinitionFor(CronType.UNIX));
+
   private static final Pattern OFFSET_PATTERN = Pattern.compile(
       "([-+]?)P([-+0-9YMWD]+)?(T([-+0-9HMS.,]+)?)?", Pattern.CASE_INSENSITIVE);
 
@@ -74,26 +71,11 @@ public class TimeUtil {
    * @return an instant at the last execution time
    */
   public static Instant lastInstant(Instant instant, Schedule schedule) {
-    final ExecutionTime executionTime = ExecutionTime.forCron(cron(schedule));
-    final ZonedDateTime utcDateTime = instant.atZone(UTC);
-
-    // executionTime.isMatch ignores seconds for unix cron
-    // so we fail the check immediately if there is a sub-minute value
-    return (instant.truncatedTo(ChronoUnit.MINUTES).equals(instant)
-            && executionTime.isMatch(utcDateTime))
-           ? instant
-           : executionTime.lastExecution(utcDateTime)
-               .orElseThrow(IllegalArgumentException::new) // with unix cron, this should not happen
-               .toInstant();
+    return ScheduleIterator.of(schedule).last(instant);
   }
 
   public static Instant previousInstant(Instant instant, Schedule schedule) {
-    final ExecutionTime executionTime = ExecutionTime.forCron(cron(schedule));
-    final ZonedDateTime utcDateTime = instant.atZone(UTC);
-
-    return executionTime.lastExecution(utcDateTime)
-        .orElseThrow(IllegalArgumentException::new) // with unix cron, this should not happen
-        .toInstant();
+    return ScheduleIterator.of(schedule).previous(instant);
   }
 
   /**
@@ -106,12 +88,7 @@ public class TimeUtil {
    * @return an instant at the next execution time
    */
   public static Instant nextInstant(Instant instant, Schedule schedule) {
-    final ExecutionTime executionTime = ExecutionTime.forCron(cron(schedule));
-    final ZonedDateTime utcDateTime = instant.atZone(UTC);
-
-    return executionTime.nextExecution(utcDateTime)
-        .orElseThrow(IllegalArgumentException::new) // with unix cron, this should not happen
-        .toInstant();
+    return ScheduleIterator.of(schedule).next(instant);
   }
 
   /**
@@ -125,22 +102,19 @@ public class TimeUtil {
    */
   public static List<Instant> instantsInRange(Instant firstInstant, Instant lastInstant,
                                               Schedule schedule) {
+    final ScheduleIterator iterator = ScheduleIterator.of(schedule);
     Preconditions.checkArgument(
-        isAligned(firstInstant, schedule) && isAligned(lastInstant, schedule),
+        iterator.isAligned(firstInstant) && iterator.isAligned(lastInstant),
         "unaligned instant");
     Preconditions.checkArgument(!lastInstant.isBefore(firstInstant),
         "last instant should not be before first instant");
 
-    final ExecutionTime executionTime = ExecutionTime.forCron(cron(schedule));
     final List<Instant> instants = new ArrayList<>();
 
     Instant currentInstant = firstInstant;
     while (currentInstant.isBefore(lastInstant)) {
       instants.add(currentInstant);
-      final ZonedDateTime utcDateTime = currentInstant.atZone(UTC);
-      currentInstant = executionTime.nextExecution(utcDateTime)
-          .orElseThrow(IllegalArgumentException::new) // with unix cron, this should not happen
-          .toInstant();
+      currentInstant = iterator.next(currentInstant);
     }
 
     return instants;
@@ -158,22 +132,19 @@ public class TimeUtil {
    */
   public static List<Instant> instantsInReversedRange(Instant firstInstant, Instant lastInstant,
                                                       Schedule schedule) {
+    final ScheduleIterator iterator = ScheduleIterator.of(schedule);
     Preconditions.checkArgument(
-        isAligned(firstInstant, schedule) && isAligned(lastInstant, schedule),
+        iterator.isAligned(firstInstant) && iterator.isAligned(lastInstant),
         "unaligned instant");
     Preconditions.checkArgument(!lastInstant.isAfter(firstInstant),
         "last instant should not be after first instant");
 
-    final ExecutionTime executionTime = ExecutionTime.forCron(cron(schedule));
     final List<Instant> instants = new ArrayList<>();
 
     Instant currentInstant = firstInstant;
     while (currentInstant.isAfter(lastInstant)) {
       instants.add(currentInstant);
-      final ZonedDateTime utcDateTime = currentInstant.atZone(UTC);
-      currentInstant = executionTime.lastExecution(utcDateTime)
-          .orElseThrow(IllegalArgumentException::new) // with unix cron, this should not happen
-          .toInstant();
+      currentInstant = iterator.previous(currentInstant);
     }
 
     return instants;
@@ -187,16 +158,7 @@ public class TimeUtil {
    * @return true if the given instant aligns with the schedule
    */
   public static boolean isAligned(Instant instant, Schedule schedule) {
-    // executionTime.isMatch ignores seconds for unix cron
-    // so we fail the check immediately if there is a sub-minute value
-    if (!instant.truncatedTo(ChronoUnit.MINUTES).equals(instant)) {
-      return false;
-    }
-
-    final ExecutionTime executionTime = ExecutionTime.forCron(cron(schedule));
-    final ZonedDateTime utcDateTime = instant.atZone(UTC);
-
-    return executionTime.isMatch(utcDateTime);
+    return ScheduleIterator.of(schedule).isAligned(instant);
   }
 
   /**
@@ -240,9 +202,12 @@ public class TimeUtil {
     }
   }
 
+  /**
+   * Parses the cron expression of a {@link Schedule}. Prefer {@link ScheduleIterator#of(Schedule)} to compute
+   * execution instants, which caches the parsed expression.
+   */
   public static Cron cron(Schedule schedule) {
-    final CronDefinition cronDefinition = instanceDefinitionFor(CronType.UNIX);
-    return new CronParser(cronDefinition).parse(cronExpression(schedule));
+    return CRON_PARSER.parse(cronExpression(schedule));
   }
 
   private static String cronExpression(Schedule schedule) {
@@ -264,26 +229,8 @@ public class TimeUtil {
   }
 
   public static Instant offsetInstant(Instant origin, Schedule schedule, int offset) {
-    Preconditions.checkArgument(isAligned(origin, schedule), "unaligned origin");
-    return schedule.wellKnown().unit()
-        .map(unit -> {
-          try {
-            return origin.plus(offset, unit);
-          } catch (UnsupportedTemporalTypeException ignored) {
-            return null;
-          }
-        })
-        .orElseGet(() -> {
-          final ExecutionTime executionTime = ExecutionTime.forCron(cron(schedule));
-          ZonedDateTime time = origin.atZone(UTC);
-          for (int i = 0; i < Math.abs(offset); i++) {
-            final Optional<ZonedDateTime> execution = offset <= 0
-                                                      ? executionTime.lastExecution(time)
-                                                      : executionTime.nextExecution(time);
-            time = execution
-                .orElseThrow(AssertionError::new); // with unix cron, this should not happen
-          }
-          return time.toInstant();
-        });
+    final ScheduleIterator iterator = ScheduleIterator.of(schedule);
+    Preconditions.checkArgument(iterator.isAligned(origin), "unaligned origin");
+    return iterator.offset(origin, offset);
   }
 }
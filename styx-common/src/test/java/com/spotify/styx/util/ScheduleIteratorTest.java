@@ -0,0 +1,138 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.util;
+
+import static java.time.Instant.parse;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import com.spotify.styx.model.Schedule;
+import java.time.Duration;
+import java.time.Instant;
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(JUnitParamsRunner.class)
+public class ScheduleIteratorTest {
+
+  private static final Instant START = parse("2015-12-27T22:30:00Z");
+
+  @Test
+  @Parameters({
+      "@hourly, 0 * * * *",
+      "@daily, 0 0 * * *",
+      "@weekly, 0 0 * * MON",
+      "@monthly, 0 0 1 * *",
+      "@yearly, 0 0 1 1 *",
+  })
+  public void shouldMatchCronForWellKnownSchedules(String wellKnown, String cron) {
+    final ScheduleIterator fast = ScheduleIterator.of(Schedule.parse(wellKnown));
+    final ScheduleIterator reference = ScheduleIterator.of(Schedule.parse(cron));
+
+    // step 7h 13m at a time to hit aligned and unaligned instants in all units
+    Instant instant = START;
+    for (int i = 0; i < 5000; i++) {
+      assertThat(instant.toString(), fast.isAligned(instant), is(reference.isAligned(instant)));
+      assertThat(instant.toString(), fast.next(instant), is(reference.next(instant)));
+      assertThat(instant.toString(), fast.previous(instant), is(reference.previous(instant)));
+      assertThat(instant.toString(), fast.last(instant), is(reference.last(instant)));
+      instant = instant.plus(Duration.ofHours(7).plusMinutes(13));
+      if (i % 10 == 0) {
+        instant = reference.last(instant);
+      }
+    }
+  }
+
+  @Test
+  @Parameters({
+      "@hourly, 0 * * * *",
+      "@daily, 0 0 * * *",
+      "@weekly, 0 0 * * MON",
+      "@monthly, 0 0 1 * *",
+      "@yearly, 0 0 1 1 *",
+  })
+  public void shouldOffsetLikeCronForWellKnownSchedules(String wellKnown, String cron) {
+    final ScheduleIterator fast = ScheduleIterator.of(Schedule.parse(wellKnown));
+    final ScheduleIterator reference = ScheduleIterator.of(Schedule.parse(cron));
+    final Instant origin = reference.next(START);
+
+    for (int offset = -30; offset <= 30; offset++) {
+      assertThat(fast.offset(origin, offset), is(reference.offset(origin, offset)));
+    }
+  }
+
+  @Test
+  @Parameters({
+      "@hourly, 0 * * * *",
+      "@daily, 0 0 * * *",
+      "@weekly, 0 0 * * MON",
+      "@monthly, 0 0 1 * *",
+      "@yearly, 0 0 1 1 *",
+  })
+  public void shouldCountLikeCronForWellKnownSchedules(String wellKnown, String cron) {
+    final ScheduleIterator fast = ScheduleIterator.of(Schedule.parse(wellKnown));
+    final ScheduleIterator reference = ScheduleIterator.of(Schedule.parse(cron));
+    final Instant first = reference.next(START);
+
+    // step 7h 13m at a time to count up to aligned and unaligned instants
+    Instant last = reference.previous(first);
+    for (int i = 0; i < 500; i++) {
+      assertThat(last.toString(), fast.count(first, last), is(reference.count(first, last)));
+      last = last.plus(Duration.ofHours(7).plusMinutes(13));
+    }
+  }
+
+  @Test
+  public void shouldStreamForward() {
+    final ScheduleIterator iterator = ScheduleIterator.of(Schedule.parse("15,45 10 * * *"));
+
+    assertThat(iterator.forward(parse("2016-01-19T10:45:00Z")).limit(3).collect(toList()), contains(
+        parse("2016-01-19T10:45:00Z"),
+        parse("2016-01-20T10:15:00Z"),
+        parse("2016-01-20T10:45:00Z")));
+  }
+
+  @Test
+  public void shouldStreamBackward() {
+    final ScheduleIterator iterator = ScheduleIterator.of(Schedule.MONTHS);
+
+    assertThat(iterator.backward(parse("2016-02-01T00:00:00Z")).limit(3).collect(toList()), contains(
+        parse("2016-02-01T00:00:00Z"),
+        parse("2016-01-01T00:00:00Z"),
+        parse("2015-12-01T00:00:00Z")));
+  }
+
+  @Test
+  public void shouldCompileCronScheduleOnce() {
+    assertThat(ScheduleIterator.of(Schedule.parse("*/5 * * * *")),
+        is(sameInstance(ScheduleIterator.of(Schedule.parse("*/5 * * * *")))));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldFailForInvalidCron() {
+    ScheduleIterator.of(Schedule.parse("not a cron"));
+  }
+}
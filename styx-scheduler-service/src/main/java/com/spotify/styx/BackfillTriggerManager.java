@@ -24,21 +24,24 @@ import static com.google.common.base.CaseFormat.LOWER_UNDERSCORE;
 import static com.google.common.base.CaseFormat.UPPER_CAMEL;
 import static com.spotify.styx.util.ExceptionUtil.findCause;
 import static com.spotify.styx.util.GuardedRunnable.guard;
-import static com.spotify.styx.util.TimeUtil.instantsInRange;
-import static com.spotify.styx.util.TimeUtil.instantsInReversedRange;
+import static com.spotify.styx.util.ParameterUtil.toParameter;
 import static com.spotify.styx.util.TimeUtil.nextInstant;
 import static com.spotify.styx.util.TimeUtil.previousInstant;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.spotify.styx.model.Backfill;
 import com.spotify.styx.model.TriggerParameters;
 import com.spotify.styx.model.Workflow;
+import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.monitoring.Stats;
 import com.spotify.styx.state.StateManager;
 import com.spotify.styx.state.Trigger;
 import com.spotify.styx.storage.Storage;
 import com.spotify.styx.storage.StorageTransaction;
 import com.spotify.styx.util.AlreadyInitializedException;
+import com.spotify.styx.util.ReplayEvents;
 import com.spotify.styx.util.Time;
 import io.opencensus.common.Scope;
 import io.opencensus.trace.Tracer;
@@ -47,10 +50,21 @@ import io.opencensus.trace.samplers.Samplers;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -71,31 +85,47 @@ class BackfillTriggerManager {
 
   private final TriggerListener triggerListener;
   private final Storage storage;
+  private final WorkflowCache workflowCache;
   private final StateManager stateManager;
   private final Stats stats;
   private final Time time;
+  private final Executor backfillExecutor;
+  private final Executor triggerExecutor;
   private final Consumer<List<Backfill>> shuffler;
 
+  // When each backfill last triggered partitions, to favour the backfills that have been waiting the longest
+  private final ConcurrentMap<String, Instant> lastTriggered = new ConcurrentHashMap<>();
+
   BackfillTriggerManager(StateManager stateManager,
                          Storage storage,
+                         WorkflowCache workflowCache,
                          TriggerListener triggerListener,
                          Stats stats,
-                         Time time) {
-    this(stateManager, storage, triggerListener, stats, time, DEFAULT_SHUFFLER);
+                         Time time,
+                         Executor backfillExecutor,
+                         Executor triggerExecutor) {
+    this(stateManager, storage, workflowCache, triggerListener, stats, time, backfillExecutor, triggerExecutor,
+        DEFAULT_SHUFFLER);
   }
 
   @VisibleForTesting
   BackfillTriggerManager(StateManager stateManager,
                          Storage storage,
+                         WorkflowCache workflowCache,
                          TriggerListener triggerListener,
                          Stats stats,
                          Time time,
+                         Executor backfillExecutor,
+                         Executor triggerExecutor,
                          Consumer<List<Backfill>> shuffler) {
     this.stateManager = Objects.requireNonNull(stateManager);
     this.storage = Objects.requireNonNull(storage);
+    this.workflowCache = Objects.requireNonNull(workflowCache);
     this.triggerListener = Objects.requireNonNull(triggerListener);
     this.stats = Objects.requireNonNull(stats);
     this.time = Objects.requireNonNull(time);
+    this.backfillExecutor = Objects.requireNonNull(backfillExecutor);
+    this.triggerExecutor = Objects.requireNonNull(triggerExecutor);
     this.shuffler = Objects.requireNonNull(shuffler);
   }
 
@@ -119,18 +149,45 @@ class BackfillTriggerManager {
       return;
     }
 
+    final Set<String> ids = backfills.stream().map(Backfill::id).collect(toSet());
+    // Backfills that are no longer listed have been all triggered or halted, so their trigger rate is done
+    lastTriggered.keySet().stream()
+        .filter(id -> !ids.contains(id))
+        .forEach(stats::removeBackfillTriggerMetric);
+    lastTriggered.keySet().retainAll(ids);
+
+    // this is best effort because the active states are not strongly consistent with storage so the
+    // initial remaining capacity may already be wrong
+    final Map<String, Integer> remainingCapacity = new HashMap<>();
+    for (Backfill backfill : backfills) {
+      try {
+        remainingCapacity.put(backfill.id(),
+            backfill.concurrency() - stateManager.getActiveStateCountByBackfill(backfill.id()));
+      } catch (RuntimeException e) {
+        LOG.warn("Failed to get remaining capacity of backfill {}", backfill.id(), e);
+      }
+    }
+
+    // Shuffle before sorting so that ties are broken differently by each scheduler instance
     shuffler.accept(backfills);
 
-    backfills.forEach(backfill -> guard(() -> triggerAndProgress(backfill)).run());
+    final List<CompletableFuture<Void>> progressed = backfills.stream()
+        .filter(backfill -> remainingCapacity.getOrDefault(backfill.id(), 0) > 0)
+        .sorted(Comparator.<Backfill>comparingInt(backfill -> remainingCapacity.get(backfill.id())).reversed()
+            .thenComparing(backfill -> lastTriggered.getOrDefault(backfill.id(), Instant.MIN)))
+        .map(backfill -> CompletableFuture.runAsync(
+            guard(() -> triggerAndProgress(backfill, remainingCapacity.get(backfill.id()))), backfillExecutor))
+        .collect(toList());
+    progressed.forEach(CompletableFuture::join);
 
     final long durationMillis = t0.until(time.get(), ChronoUnit.MILLIS);
     stats.recordTickDuration(TICK_TYPE, durationMillis);
   }
 
-  private void triggerAndProgress(Backfill backfill) {
+  private void triggerAndProgress(Backfill backfill, int remainingCapacity) {
     final Optional<Workflow> workflowOpt;
     try {
-      workflowOpt = storage.workflow(backfill.workflowId());
+      workflowOpt = workflowCache.workflow(backfill.workflowId());
     } catch (IOException e) {
       LOG.warn("Failed to read workflow {}", backfill.workflowId(), e);
       return;
@@ -144,100 +201,196 @@ class BackfillTriggerManager {
 
     final Workflow workflow = workflowOpt.get();
 
-    // this is best effort because querying active states is not strongly consistent so the
-    // initial remaining capacity may already be wrong
-    final int remainingCapacity =
-        backfill.concurrency() - stateManager.getActiveStatesByTriggerId(backfill.id()).size();
-
-    if (remainingCapacity < 1) {
-      LOG.debug("No capacity left for backfill {}", backfill);
+    final Set<Instant> skipped;
+    try {
+      skipped = triggeredAhead(backfill, remainingCapacity);
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to read triggered partitions of backfill {}", backfill.id(), e);
+      return;
+    }
+    final Reservation reservation;
+    try {
+      reservation = storage.runInTransaction(tx -> reserveNextPartitions(tx, backfill.id(),
+          backfill.nextTrigger(), remainingCapacity, skipped));
+    } catch (IOException e) {
+      // if progressing the backfill fails, yield
+      LOG.debug("Failure while trying to progress backfill {}", backfill, e);
       return;
     }
+    if (reservation.partitions.isEmpty()) {
+      return;
+    }
+    lastTriggered.put(backfill.id(), time.get());
 
-    final Instant initialNextTrigger = backfill.nextTrigger();
-    while (true) {
+    final List<Instant> partitions = reservation.partitions.stream()
+        .filter(partition -> !skipped.contains(partition))
+        .collect(toList());
+    final List<CompletableFuture<Void>> triggered = partitions.stream()
+        .map(partition -> CompletableFuture.runAsync(() -> trigger(backfill, workflow, partition), triggerExecutor))
+        .collect(toList());
+
+    final List<Instant> failed = new ArrayList<>();
+    for (int i = 0; i < triggered.size(); i++) {
       try {
-        if (!storage.runInTransaction(tx ->
-            triggerNextPartitionAndProgress(tx, backfill.id(), workflow,
-                initialNextTrigger, remainingCapacity, backfill.reverse()))) {
-          break;
+        triggered.get(i).join();
+      } catch (CompletionException e) {
+        failed.add(partitions.get(i));
+      }
+    }
+    if (!failed.isEmpty()) {
+      releaseFailedPartitions(reservation.backfill, failed.get(0));
+    }
+  }
+
+  /**
+   * Find the partitions from the next trigger of a backfill on that have already been triggered by it. These are
+   * partitions that were triggered after a partition that failed to trigger, before the next trigger was moved back
+   * to retry it, see {@link #releaseFailedPartitions(Backfill, Instant)}. They are looked up in the event log, so
+   * that they are not triggered again by another scheduler instance or after a restart.
+   *
+   * <p>Partitions are looked up until enough partitions that have not been triggered are found to fill the remaining
+   * capacity, and the triggered partitions right after them, which are reserved along with them.
+   */
+  private Set<Instant> triggeredAhead(Backfill backfill, int remainingCapacity) {
+    final Set<Instant> triggered = new HashSet<>();
+    int capacity = remainingCapacity;
+    Instant partition = backfill.nextTrigger();
+    while (!isAllTriggered(backfill, partition)) {
+      final List<Instant> candidates = new ArrayList<>();
+      while (candidates.size() < Math.max(capacity, 1) && !isAllTriggered(backfill, partition)) {
+        candidates.add(partition);
+        partition = getNextPartition(backfill, partition, backfill.reverse());
+      }
+      final List<CompletableFuture<Boolean>> lookups = candidates.stream()
+          .map(candidate -> CompletableFuture.supplyAsync(() -> isTriggered(backfill, candidate), triggerExecutor))
+          .collect(toList());
+      for (int i = 0; i < candidates.size(); i++) {
+        if (lookups.get(i).join()) {
+          triggered.add(candidates.get(i));
+        } else if (capacity > 0) {
+          capacity--;
+        } else {
+          return triggered;
         }
-      } catch (IOException e) {
-        // if progressing the backfill fails, yield
-        LOG.debug("Failure while trying to progress backfill {}", backfill, e);
-        break;
       }
     }
+    return triggered;
+  }
+
+  private boolean isTriggered(Backfill backfill, Instant partition) {
+    final WorkflowInstance workflowInstance = WorkflowInstance.create(backfill.workflowId(),
+        toParameter(backfill.schedule(), partition));
+    return ReplayEvents.getBackfillRunStateData(workflowInstance, storage, backfill.id()).isPresent();
   }
 
+  /**
+   * Reserve the next partitions of a backfill, up to the remaining capacity, by advancing its next trigger past
+   * them. The partitions are triggered after the reservation is committed, so that a conflicting transaction
+   * does not trigger them again and a halted backfill is not triggered.
+   *
+   * @param skipped Partitions that have already been triggered by the backfill, which are reserved again without
+   *                taking up capacity and are not triggered again.
+   * @return The reserved partitions, in the order they should be triggered in.
+   */
   @VisibleForTesting
-  boolean triggerNextPartitionAndProgress(StorageTransaction tx,
-                                          String id,
-                                          Workflow workflow,
-                                          Instant initialNextTrigger,
-                                          int remainingCapacity,
-                                          boolean reversed) throws IOException {
+  Reservation reserveNextPartitions(StorageTransaction tx,
+                                    String id,
+                                    Instant initialNextTrigger,
+                                    int remainingCapacity,
+                                    Set<Instant> skipped) throws IOException {
     final Backfill backfill = tx.backfill(id).orElseThrow(() ->
         new RuntimeException("Error while fetching backfill " + id));
 
     if (backfill.halted()) {
       LOG.debug("Backfill {} halted", backfill);
-      return false;
+      return Reservation.none(backfill);
     }
 
-    final Instant nextTrigger = backfill.nextTrigger();
-
-    if (capacityReached(backfill, initialNextTrigger, nextTrigger,
-        remainingCapacity, reversed)) {
-      LOG.debug("Capacity reached for backfill {}", backfill);
-      return false;
+    if (!backfill.nextTrigger().equals(initialNextTrigger)) {
+      // progressed by the other scheduler instance since the remaining capacity was computed
+      LOG.debug("Backfill {} progressed concurrently", backfill);
+      return Reservation.none(backfill);
     }
 
-    if (isAllTriggered(backfill, nextTrigger)) {
+    if (isAllTriggered(backfill, backfill.nextTrigger())) {
       LOG.debug("Backfill {} all triggered", backfill);
-      tx.store(backfill.builder()
+      return Reservation.none(tx.store(backfill.builder()
           .allTriggered(true)
-          .build());
-      return false;
+          .build()));
+    }
+
+    // race conditions:
+    //   - the other scheduler instance has triggered partition, but hasn't committed the
+    //     transaction, and the workflow instance has finished very quickly
+    //   - this scheduler reads initialNextTrigger before the other scheduler commits the
+    //     transaction, so it will move on to trigger the same partition again, but we still
+    //     don't violate concurrency limit in this case
+    final List<Instant> partitions = new ArrayList<>();
+    int capacity = remainingCapacity;
+    Instant partition = backfill.nextTrigger();
+    while (!isAllTriggered(backfill, partition) && (capacity > 0 || skipped.contains(partition))) {
+      if (!skipped.contains(partition)) {
+        capacity--;
+      }
+      partitions.add(partition);
+      partition = getNextPartition(backfill, partition, backfill.reverse());
     }
 
+    final Backfill reserved = tx.store(backfill.builder()
+        .nextTrigger(partition)
+        .allTriggered(isAllTriggered(backfill, partition))
+        .build());
+    if (reserved.allTriggered()) {
+      LOG.debug("Backfill {} all triggered", backfill);
+    }
+    return new Reservation(reserved, partitions);
+  }
+
+  /**
+   * Move the next trigger of a backfill back to the first reserved partition that failed to trigger, so that it is
+   * retried by the next tick. The partitions after it that were triggered are found in the event log when they are
+   * reserved again, so that they are not triggered again. The next trigger is left as is if the backfill was
+   * progressed or halted since it was reserved, and the failed partitions are then not retried.
+   */
+  private void releaseFailedPartitions(Backfill reserved, Instant firstFailed) {
+    try {
+      final boolean released = storage.runInTransaction(tx -> {
+        final Optional<Backfill> backfill = tx.backfill(reserved.id());
+        if (backfill.isEmpty() || backfill.get().halted()
+            || !backfill.get().nextTrigger().equals(reserved.nextTrigger())) {
+          return false;
+        }
+        tx.store(backfill.get().builder()
+            .nextTrigger(firstFailed)
+            .allTriggered(false)
+            .build());
+        return true;
+      });
+      if (released) {
+        LOG.debug("Failed to trigger {} for backfill {}, retrying in next tick", firstFailed, reserved.id());
+      } else {
+        LOG.warn("Backfill {} progressed or halted, not retrying partitions from {}", reserved.id(), firstFailed);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to release partitions from {} of backfill {}", firstFailed, reserved.id(), e);
+    }
+  }
+
+  private void trigger(Backfill backfill, Workflow workflow, Instant partition) {
     try {
-      // race conditions:
-      //   - the other scheduler instance has triggered partition, but hasn't committed the
-      //     transaction, and the workflow instance has finished very quickly
-      //   - this scheduler reads initialNextTrigger before the other scheduler commits the
-      //     transaction, so it will move on to trigger the same partition again, but we still
-      //     don't violate concurrency limit in this case
       final TriggerParameters parameters = backfill.triggerParameters().orElse(TriggerParameters.zero());
-      triggerListener.event(workflow, Trigger.backfill(backfill.id()), nextTrigger, parameters);
-    } catch (Exception e) {
+      triggerListener.event(workflow, Trigger.backfill(backfill.id()), partition, parameters);
+      stats.recordBackfillTrigger(backfill.id());
+    } catch (RuntimeException e) {
       if (findCause(e, AlreadyInitializedException.class) != null) {
         // just encountered an ad-hoc trigger or it has been triggered by another scheduler instance
-        // do not propagate the exception but instead letting transaction decide what to do
-        LOG.debug("{} already triggered for backfill {}", nextTrigger, backfill, e);
+        LOG.debug("{} already triggered for backfill {}", partition, backfill, e);
       } else {
-        // can be interrupted, we give up this backfill and retry in next tick
-        LOG.debug("Failed to trigger {} for backfill {}", nextTrigger, backfill, e);
-        throw new RuntimeException(e);
+        // can be interrupted, we give up this partition and retry in next tick
+        LOG.debug("Failed to trigger {} for backfill {}", partition, backfill, e);
+        throw e;
       }
     }
-
-    final Instant nextPartition = getNextPartition(backfill, nextTrigger, reversed);
-    tx.store(backfill.builder()
-                      .nextTrigger(nextPartition)
-                      .build());
-
-    if (isAllTriggered(backfill, nextPartition)) {
-      tx.store(backfill.builder()
-                   .nextTrigger(backfill.reverse()
-                                ? previousInstant(backfill.start(), backfill.schedule())
-                                : backfill.end())
-                           .allTriggered(true)
-                           .build());
-      LOG.debug("Backfill {} all triggered", backfill);
-      return false;
-    }
-    return true;
   }
 
   private boolean isAllTriggered(Backfill backfill, Instant nextTrigger) {
@@ -260,6 +413,26 @@ class BackfillTriggerManager {
     }
   }
 
+  @VisibleForTesting
+  static class Reservation {
+
+    private final Backfill backfill;
+    private final List<Instant> partitions;
+
+    private Reservation(Backfill backfill, List<Instant> partitions) {
+      this.backfill = backfill;
+      this.partitions = partitions;
+    }
+
+    private static Reservation none(Backfill backfill) {
+      return new Reservation(backfill, List.of());
+    }
+
+    List<Instant> partitions() {
+      return partitions;
+    }
+  }
+
   private static Instant getNextPartition(Backfill backfill,
                                    Instant nextTrigger,
                                    boolean reversed) {
@@ -269,16 +442,4 @@ class BackfillTriggerManager {
       return nextInstant(nextTrigger, backfill.schedule());
     }
   }
-
-  private static boolean capacityReached(Backfill backfill, Instant initialNextTrigger,
-                                  Instant nextTrigger, int remainingCapacity,
-                                  boolean reversed) {
-    if (reversed) {
-      return instantsInReversedRange(initialNextTrigger, nextTrigger,
-          backfill.schedule()).size() >= remainingCapacity;
-    } else {
-      return instantsInRange(initialNextTrigger, nextTrigger,
-          backfill.schedule()).size() >= remainingCapacity;
-    }
-  }
 }
@@ -0,0 +1,223 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx;
+
+import static java.util.Comparator.comparing;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.state.OutputHandler;
+import com.spotify.styx.state.RunState;
+import com.spotify.styx.state.RunState.State;
+import com.spotify.styx.util.Time;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link OutputHandler} that keeps track of {@link State#QUEUED} instances, ordered by the time they become
+ * eligible for dequeue, and hands them to a dequeue function as soon as they do. This makes dequeue latency
+ * independent of the {@link Scheduler#tick()} interval, and the work proportional to the number of queued
+ * instances rather than active ones.
+ *
+ * <p>Dequeue passes run on the injected executor, one at a time. Instances that become eligible while a pass is
+ * running are handed over in a following pass. Instances that the dequeue function returns, e.g. because their
+ * resources are exhausted, are offered again after {@link #RETRY_DELAY}.
+ */
+public class DequeueQueue implements OutputHandler {
+
+  private static final Logger log = LoggerFactory.getLogger(DequeueQueue.class);
+
+  static final Duration RETRY_DELAY = Duration.ofSeconds(1);
+
+  private final Time time;
+  private final ScheduledExecutorService executor;
+  private final Function<List<WorkflowInstance>, List<RunState>> dequeue;
+
+  private final Object lock = new Object();
+  private final Map<WorkflowInstance, Entry> entries = new HashMap<>();
+  private final PriorityQueue<Entry> queue = new PriorityQueue<>(comparing((Entry entry) -> entry.eligibleAt));
+  private Instant scheduledWakeup;
+
+  private final AtomicBoolean running = new AtomicBoolean();
+  private final AtomicBoolean pending = new AtomicBoolean();
+
+  /**
+   * @param dequeue Dequeues the given instances, returning the states of those that should be offered again.
+   */
+  public DequeueQueue(Time time, ScheduledExecutorService executor,
+                      Function<List<WorkflowInstance>, List<RunState>> dequeue) {
+    this.time = Objects.requireNonNull(time);
+    this.executor = Objects.requireNonNull(executor);
+    this.dequeue = Objects.requireNonNull(dequeue);
+  }
+
+  @Override
+  public void transitionInto(RunState state) {
+    if (state.state() == State.QUEUED) {
+      offer(state.workflowInstance(), state.counter(), eligibleAt(state));
+    } else {
+      remove(state.workflowInstance(), state.counter());
+    }
+  }
+
+  /**
+   * The earliest time at which a {@link State#QUEUED} instance may be dequeued.
+   */
+  static Instant eligibleAt(RunState state) {
+    return Instant
+        .ofEpochMilli(state.timestamp())
+        .plusMillis(state.data().retryDelayMillis().orElse(0L));
+  }
+
+  @VisibleForTesting
+  void offer(WorkflowInstance instance, long counter, Instant eligibleAt) {
+    synchronized (lock) {
+      final Entry current = entries.get(instance);
+      if (current != null && current.counter > counter) {
+        return;
+      }
+      final Entry entry = new Entry(instance, counter, eligibleAt);
+      entries.put(instance, entry);
+      queue.add(entry);
+      scheduleWakeup(eligibleAt);
+    }
+  }
+
+  private void remove(WorkflowInstance instance, long counter) {
+    synchronized (lock) {
+      final Entry current = entries.get(instance);
+      if (current != null && current.counter <= counter) {
+        entries.remove(instance);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int size() {
+    synchronized (lock) {
+      return entries.size();
+    }
+  }
+
+  @VisibleForTesting
+  Optional<Instant> nextEligible() {
+    synchronized (lock) {
+      dropStaleHead();
+      return Optional.ofNullable(queue.peek()).map(entry -> entry.eligibleAt);
+    }
+  }
+
+  @VisibleForTesting
+  List<WorkflowInstance> pollEligible(Instant now) {
+    final List<WorkflowInstance> eligible = new ArrayList<>();
+    synchronized (lock) {
+      dropStaleHead();
+      while (!queue.isEmpty() && !queue.peek().eligibleAt.isAfter(now)) {
+        final Entry entry = queue.poll();
+        entries.remove(entry.instance);
+        eligible.add(entry.instance);
+        dropStaleHead();
+      }
+    }
+    return eligible;
+  }
+
+  /**
+   * Entries are replaced rather than removed from the priority queue, so skip the ones that are no longer current.
+   */
+  private void dropStaleHead() {
+    while (!queue.isEmpty() && entries.get(queue.peek().instance) != queue.peek()) {
+      queue.poll();
+    }
+  }
+
+  private void scheduleWakeup(Instant at) {
+    if (scheduledWakeup != null && !at.isBefore(scheduledWakeup)) {
+      return;
+    }
+    scheduledWakeup = at;
+    final long delayMillis = Math.max(0, time.get().until(at, ChronoUnit.MILLIS));
+    executor.schedule(this::wakeup, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void wakeup() {
+    synchronized (lock) {
+      scheduledWakeup = null;
+    }
+
+    if (!running.compareAndSet(false, true)) {
+      pending.set(true);
+      return;
+    }
+    try {
+      do {
+        pending.set(false);
+        dequeueEligible();
+      } while (pending.get());
+    } finally {
+      running.set(false);
+    }
+
+    synchronized (lock) {
+      nextEligible().ifPresent(this::scheduleWakeup);
+    }
+  }
+
+  private void dequeueEligible() {
+    final List<WorkflowInstance> eligible = pollEligible(time.get());
+    if (eligible.isEmpty()) {
+      return;
+    }
+    try {
+      final Instant retryAt = time.get().plus(RETRY_DELAY);
+      dequeue.apply(eligible).forEach(state -> offer(state.workflowInstance(), state.counter(), retryAt));
+    } catch (Exception e) {
+      log.warn("Failed to dequeue instances: {}", eligible, e);
+    }
+  }
+
+  private static class Entry {
+
+    private final WorkflowInstance instance;
+    private final long counter;
+    private final Instant eligibleAt;
+
+    private Entry(WorkflowInstance instance, long counter, Instant eligibleAt) {
+      this.instance = instance;
+      this.counter = counter;
+      this.eligibleAt = eligibleAt;
+    }
+  }
+}
@@ -25,10 +25,13 @@ import static com.google.common.base.CaseFormat.UPPER_CAMEL;
 import static com.spotify.styx.state.StateUtil.workflowResources;
 import static com.spotify.styx.storage.Storage.GLOBAL_RESOURCE_ID;
 import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toCollection;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 import static java.util.stream.Collectors.toSet;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.AtomicLongMap;
 import com.google.common.util.concurrent.RateLimiter;
@@ -50,8 +53,10 @@ import com.spotify.styx.state.StateTransitionConflictException;
 import com.spotify.styx.state.StateUtil;
 import com.spotify.styx.state.TimeoutConfig;
 import com.spotify.styx.storage.Storage;
+import com.spotify.styx.util.IsClosedException;
 import com.spotify.styx.util.ShardedCounter;
 import com.spotify.styx.util.Time;
+import com.spotify.styx.util.TriggerUtil;
 import io.grpc.Context;
 import io.opencensus.common.Scope;
 import io.opencensus.trace.Tracer;
@@ -60,15 +65,22 @@ import io.opencensus.trace.samplers.Samplers;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
@@ -88,8 +100,14 @@ import org.slf4j.LoggerFactory;
  *
  * <p>For all Queued states that are eligible for execution, the scheduler will determine which
  * ones to dequeue, while ensuring that the {@link Resource}s associated with each respective
- * {@link Workflow} is not exceeded. It will try to dequeue workflow instances fairly by globally
- * randomizing the dequeue order on each {@link #tick()}.
+ * {@link Workflow} is not exceeded. The available capacity of each resource is read once per
+ * {@link #tick()} and handed out round-robin across workflows and backfills, so that a single
+ * workflow or backfill with many queued instances cannot starve the others sharing its resources.
+ * The dequeue events are sent to the {@link StateManager} in batches once all instances have been
+ * planned.
+ *
+ * <p>Queued instances are also handed to {@link #dequeue(List)} by a {@link DequeueQueue} as soon as they become
+ * eligible, in which case {@link #tick()} only serves as a safety net and to record resource usage.
  */
 public class Scheduler {
 
@@ -98,9 +116,12 @@ public class Scheduler {
 
   private static final Tracer tracer = Tracing.getTracer();
 
+  private static final int DEQUEUE_BATCH_SIZE = 100;
+
   private final Time time;
   private final StateManager stateManager;
   private final Storage storage;
+  private final WorkflowCache workflowCache;
   private final WorkflowResourceDecorator resourceDecorator;
   private final Stats stats;
   private final RateLimiter dequeueRateLimiter;
@@ -109,20 +130,21 @@ public class Scheduler {
   private final Executor executor;
   private final Logger log;
 
-  Scheduler(Time time, StateManager stateManager, Storage storage,
+  Scheduler(Time time, StateManager stateManager, Storage storage, WorkflowCache workflowCache,
             WorkflowResourceDecorator resourceDecorator, Stats stats, RateLimiter dequeueRateLimiter,
             WorkflowExecutionGate gate, ShardedCounter shardedCounter, Executor executor) {
-    this(time, stateManager, storage, resourceDecorator, stats, dequeueRateLimiter, gate, shardedCounter, executor,
-        LoggerFactory.getLogger(Scheduler.class));
+    this(time, stateManager, storage, workflowCache, resourceDecorator, stats, dequeueRateLimiter, gate,
+        shardedCounter, executor, LoggerFactory.getLogger(Scheduler.class));
   }
 
 
-  Scheduler(Time time, StateManager stateManager, Storage storage,
+  Scheduler(Time time, StateManager stateManager, Storage storage, WorkflowCache workflowCache,
             WorkflowResourceDecorator resourceDecorator, Stats stats, RateLimiter dequeueRateLimiter,
             WorkflowExecutionGate gate, ShardedCounter shardedCounter, Executor executor, Logger log) {
     this.time = Objects.requireNonNull(time);
     this.stateManager = Objects.requireNonNull(stateManager);
     this.storage = Objects.requireNonNull(storage);
+    this.workflowCache = Objects.requireNonNull(workflowCache);
     this.resourceDecorator = Objects.requireNonNull(resourceDecorator);
     this.stats = Objects.requireNonNull(stats);
     this.dequeueRateLimiter = Objects.requireNonNull(dequeueRateLimiter, "dequeueRateLimiter");
@@ -144,23 +166,16 @@ public class Scheduler {
   private void tick0() {
     final Instant t0 = time.get();
 
-    final Map<String, Resource> resources;
-    final Optional<Long> globalConcurrency;
     final StyxConfig config;
+    final Map<String, Resource> resources;
     try {
-      resources = storage.resources().stream().collect(toMap(Resource::id, identity()));
       config = storage.config();
-      globalConcurrency = config.globalConcurrency();
+      resources = resources(config);
     } catch (IOException e) {
       log.warn("Failed to get resource limits", e);
       return;
     }
 
-    globalConcurrency.ifPresent(
-        concurrency ->
-            resources.put(GLOBAL_RESOURCE_ID,
-                Resource.create(GLOBAL_RESOURCE_ID, concurrency)));
-
     var activeInstances = stateManager.listActiveInstances();
     var workflows = new ConcurrentHashMap<WorkflowId, Optional<Workflow>>();
 
@@ -169,7 +184,12 @@ public class Scheduler {
     var currentResourceUsage = AtomicLongMap.<String>create();
     var currentResourceDemand = AtomicLongMap.<String>create();
 
-    processInstances(config, resources, workflows, activeInstances, currentResourceUsage, currentResourceDemand);
+    var candidates = new ConcurrentLinkedQueue<Dequeue>();
+
+    processInstances(config, resources, workflows, activeInstances, currentResourceUsage, currentResourceDemand,
+        candidates);
+
+    sendDequeues(planDequeues(config, candidates, new ArrayList<>()));
 
     // TODO: stats might be inaccurate if some instances fail processing
     updateResourceStats(resources, currentResourceUsage);
@@ -179,6 +199,48 @@ public class Scheduler {
     stats.recordTickDuration(TICK_TYPE, durationMillis);
   }
 
+  /**
+   * Evaluate the given instances for dequeue, without recording resource usage.
+   *
+   * @return The states of the instances that are eligible for dequeue but could not be dequeued because their
+   *         resources are exhausted.
+   */
+  List<RunState> dequeue(List<WorkflowInstance> instances) {
+    try (Scope ss = tracer.spanBuilder("Styx.Scheduler.dequeue")
+        .setRecordEvents(true)
+        .setSampler(Samplers.alwaysSample())
+        .startScopedSpan()) {
+      final StyxConfig config;
+      final Map<String, Resource> resources;
+      try {
+        config = storage.config();
+        resources = resources(config);
+      } catch (IOException e) {
+        log.warn("Failed to get resource limits", e);
+        return List.of();
+      }
+
+      var candidates = new ConcurrentLinkedQueue<Dequeue>();
+      var limited = new ArrayList<RunState>();
+
+      processInstances(config, resources, new ConcurrentHashMap<>(), instances, AtomicLongMap.create(),
+          AtomicLongMap.create(), candidates);
+
+      sendDequeues(planDequeues(config, candidates, limited));
+
+      return limited;
+    }
+  }
+
+  private Map<String, Resource> resources(StyxConfig config) throws IOException {
+    final Map<String, Resource> resources = storage.resources().stream().collect(toMap(Resource::id, identity()));
+    config.globalConcurrency().ifPresent(
+        concurrency ->
+            resources.put(GLOBAL_RESOURCE_ID,
+                Resource.create(GLOBAL_RESOURCE_ID, concurrency)));
+    return resources;
+  }
+
   private void updateResourceStats(Map<String, Resource> resources,
                                    AtomicLongMap<String> currentResourceUsage) {
     resources.values().forEach(r -> stats.recordResourceConfigured(r.id(), r.concurrency()));
@@ -189,11 +251,10 @@ public class Scheduler {
 
   private void processInstances(StyxConfig config, Map<String, Resource> resources,
                                 ConcurrentHashMap<WorkflowId, Optional<Workflow>> workflows,
-                                Set<WorkflowInstance> activeInstances,
+                                Collection<WorkflowInstance> activeInstances,
                                 AtomicLongMap<String> currentResourceUsage,
-                                AtomicLongMap<String> currentResourceDemand) {
-
-    var resourceExhaustedCache = new ConcurrentHashMap<String, Boolean>();
+                                AtomicLongMap<String> currentResourceDemand,
+                                Queue<Dequeue> candidates) {
 
     // Shuffle the instances in order to process them in random order and reduce contention with other schedulers etc
     var shuffledInstances = new ArrayList<>(activeInstances);
@@ -204,8 +265,8 @@ public class Scheduler {
         .map(instance -> CompletableFuture.runAsync(() ->
             tracer.spanBuilder("processInstance").startSpanAndRun(() -> {
               try {
-                processInstance(config, resources, workflows, instance, resourceExhaustedCache,
-                    currentResourceUsage, currentResourceDemand);
+                processInstance(config, resources, workflows, instance, currentResourceUsage,
+                    currentResourceDemand, candidates);
               } catch (StateTransitionConflictException e) {
                 log.debug("State transition conflict when scheduling instance: {}", instance, e);
               } catch (Throwable e) {
@@ -220,9 +281,9 @@ public class Scheduler {
 
   private void processInstance(StyxConfig config, Map<String, Resource> resources,
                                ConcurrentMap<WorkflowId, Optional<Workflow>> workflows, WorkflowInstance instance,
-                               ConcurrentMap<String, Boolean> resourceExhaustedCache,
                                AtomicLongMap<String> currentResourceUsage,
-                               AtomicLongMap<String> currentResourceDemand) {
+                               AtomicLongMap<String> currentResourceDemand,
+                               Queue<Dequeue> candidates) {
 
     log.debug("Processing instance: {}", instance);
 
@@ -274,31 +335,144 @@ public class Scheduler {
     // Account resource demand by instances that are queued
     instanceResourceRefs.forEach(currentResourceDemand::incrementAndGet);
 
-    // Check resource limits. This is racy and can give false positives but the transactional
-    // checking happens later. This is just intended to avoid spinning on exhausted resources.
-    final List<String> depletedResources = instanceResourceRefs.stream()
-        .filter(resourceId -> limitReached(resourceId, resourceExhaustedCache))
-        .sorted()
-        .collect(toList());
-    if (!depletedResources.isEmpty()) {
+    // Racy: some resources may have been removed (become unknown) by now; in that case the
+    // counters code during dequeue will treat them as unlimited...
+    candidates.add(new Dequeue(instance, runState, instanceResourceRefs));
+  }
+
+  /**
+   * Pick the candidates to dequeue within the available capacity of their resources, round-robin across
+   * workflows and backfills. The available capacity is read once per resource. This is racy and can give
+   * false positives but the transactional checking happens on dequeue. This is just intended to avoid
+   * spinning on exhausted resources.
+   *
+   * <p>Picked candidates that turn out to be blocked from executing give their capacity back, and the
+   * candidates that did not fit are planned again within the capacity that was given back.
+   *
+   * @param limited Receives the states of the candidates that are not dequeued because their resources are
+   *                exhausted.
+   */
+  private List<Dequeue> planDequeues(StyxConfig config, Collection<Dequeue> candidates, List<RunState> limited) {
+    var availableCapacity = new HashMap<String, Long>();
+    var dequeues = new ArrayList<Dequeue>();
+    var remaining = new ArrayList<Dequeue>(candidates);
+    var depleted = new LinkedHashMap<Dequeue, List<String>>();
+    while (!remaining.isEmpty()) {
+      depleted.clear();
+      var picked = pickDequeues(remaining, availableCapacity, depleted);
+      if (picked.isEmpty()) {
+        break;
+      }
+
+      var unblocked = Sets.<Dequeue>newIdentityHashSet();
+      unblocked.addAll(withoutExecutionBlockers(config, picked));
+      picked.stream().filter(unblocked::contains).forEach(dequeues::add);
+      if (unblocked.size() == picked.size()) {
+        break;
+      }
+
+      // Only the candidates that are actually dequeued use capacity
+      picked.stream()
+          .filter(candidate -> !unblocked.contains(candidate))
+          .forEach(candidate -> candidate.resourceIds.forEach(
+              resourceId -> availableCapacity.merge(resourceId, 1L, Long::sum)));
+      remaining = new ArrayList<>(depleted.keySet());
+    }
+
+    var messages = new ArrayList<CompletableFuture<Void>>();
+    depleted.forEach((candidate, depletedResources) -> {
       log.debug("Resource limit reached for instance, not dequeueing: {}: exhausted resources={}",
-          instance, depletedResources);
-      MessageUtil.emitResourceLimitReachedMessage(stateManager, runState, depletedResources);
-      return;
+          candidate.instance, depletedResources);
+      messages.add(CompletableFuture.runAsync(() ->
+          MessageUtil.emitResourceLimitReachedMessage(stateManager, candidate.state, depletedResources),
+          executor));
+      limited.add(candidate.state);
+    });
+
+    try {
+      CompletableFutures.allAsList(messages).join();
+    } catch (CompletionException e) {
+      log.warn("Failed to emit resource limit reached messages", e);
     }
+    return dequeues;
+  }
 
-    // Check for execution blocker
-    var blocker = executionBlocker(config, instance);
-    if (blocker.isPresent()) {
-      var retry = Event.retryAfter(instance, blocker.get().delay().toMillis());
-      stateManager.receiveIgnoreClosed(retry, runState.counter());
-      log.debug("Dequeue rescheduled: {}: {}", instance, blocker.get());
-      return;
+  /**
+   * Pick the candidates that fit within the available capacity, round-robin across workflows and backfills,
+   * and take their capacity.
+   *
+   * @param depleted Receives the candidates that do not fit, along with their exhausted resources.
+   */
+  private List<Dequeue> pickDequeues(Collection<Dequeue> candidates, Map<String, Long> availableCapacity,
+                                     Map<Dequeue, List<String>> depleted) {
+    var queues = new ArrayList<>(candidates.stream()
+        .collect(groupingBy(Scheduler::fairnessKey, LinkedHashMap::new, toCollection(ArrayDeque::new)))
+        .values());
+    Collections.shuffle(queues);
+
+    var picked = new ArrayList<Dequeue>();
+    while (!queues.isEmpty()) {
+      var it = queues.iterator();
+      while (it.hasNext()) {
+        var queue = it.next();
+        var candidate = queue.poll();
+        if (queue.isEmpty()) {
+          it.remove();
+        }
+
+        final List<String> depletedResources = candidate.resourceIds.stream()
+            .filter(resourceId -> availableCapacity.computeIfAbsent(resourceId, this::availableCapacity) <= 0)
+            .sorted()
+            .collect(toList());
+        if (!depletedResources.isEmpty()) {
+          depleted.put(candidate, depletedResources);
+          continue;
+        }
+
+        candidate.resourceIds.forEach(resourceId -> availableCapacity.merge(resourceId, -1L, Long::sum));
+        picked.add(candidate);
+      }
     }
+    return picked;
+  }
 
-    // Racy: some resources may have been removed (become unknown) by now; in that case the
-    // counters code during dequeue will treat them as unlimited...
-    sendDequeue(instance, runState, instanceResourceRefs);
+  /**
+   * Instances of the same workflow share a queue, except for backfill instances which are queued per backfill.
+   */
+  private static String fairnessKey(Dequeue dequeue) {
+    return dequeue.state.data().trigger()
+        .filter(TriggerUtil::isBackfill)
+        .map(trigger -> "backfill:" + TriggerUtil.triggerId(trigger))
+        .orElseGet(() -> "workflow:" + dequeue.instance.workflowId().toKey());
+  }
+
+  private List<Dequeue> withoutExecutionBlockers(StyxConfig config, List<Dequeue> dequeues) {
+    if (!config.executionGatingEnabled()) {
+      return dequeues;
+    }
+
+    var futures = dequeues.stream()
+        .map(dequeue -> CompletableFuture.supplyAsync(() -> {
+          try {
+            var blocker = executionBlocker(config, dequeue.instance);
+            if (blocker.isEmpty()) {
+              return Optional.of(dequeue);
+            }
+            var retry = Event.retryAfter(dequeue.instance, blocker.get().delay().toMillis());
+            stateManager.receiveIgnoreClosed(retry, dequeue.state.counter());
+            log.debug("Dequeue rescheduled: {}: {}", dequeue.instance, blocker.get());
+          } catch (StateTransitionConflictException e) {
+            log.debug("State transition conflict when scheduling instance: {}", dequeue.instance, e);
+          } catch (Throwable e) {
+            log.warn("Caught exception when scheduling instance: {}", dequeue.instance, e);
+          }
+          return Optional.<Dequeue>empty();
+        }, executor))
+        .collect(toList());
+
+    return CompletableFutures.allAsList(futures).join().stream()
+        .flatMap(Optional::stream)
+        .collect(toList());
   }
 
   private Optional<ExecutionBlocker> executionBlocker(StyxConfig config, WorkflowInstance instance) {
@@ -320,21 +494,19 @@ public class Scheduler {
 
   private Optional<Workflow> readWorkflow(WorkflowId workflowId) {
     try {
-      return storage.workflow(workflowId);
+      return workflowCache.workflow(workflowId);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private boolean limitReached(final String resourceId, ConcurrentMap<String, Boolean> resourceExhaustedCache) {
-    return resourceExhaustedCache.computeIfAbsent(resourceId, k -> {
-      try {
-        return !shardedCounter.counterHasSpareCapacity(resourceId);
-      } catch (RuntimeException | IOException e) {
-        log.warn("Failed to check resource counter limit", e);
-        return false;
-      }
-    });
+  private long availableCapacity(String resourceId) {
+    try {
+      return shardedCounter.availableCapacity(resourceId);
+    } catch (RuntimeException | IOException e) {
+      log.warn("Failed to check resource counter limit", e);
+      return Long.MAX_VALUE;
+    }
   }
 
   private boolean shouldExecute(RunState runState) {
@@ -342,16 +514,17 @@ public class Scheduler {
       return false;
     }
 
-    final Instant now = time.get();
-    final Instant deadline = Instant
-        .ofEpochMilli(runState.timestamp())
-        .plusMillis(runState.data().retryDelayMillis().orElse(0L));
+    return !DequeueQueue.eligibleAt(runState).isAfter(time.get());
+  }
 
-    return !deadline.isAfter(now);
+  private void sendDequeues(List<Dequeue> dequeues) {
+    for (var batch : Lists.partition(dequeues, DEQUEUE_BATCH_SIZE)) {
+      tracer.spanBuilder("sendDequeues").startSpanAndRun(() -> sendDequeueBatch(batch));
+    }
   }
 
-  private void sendDequeue(WorkflowInstance workflowInstance, RunState state, Set<String> resourceIds) {
-    double sleepingTimeSeconds = dequeueRateLimiter.acquire();
+  private void sendDequeueBatch(List<Dequeue> batch) {
+    double sleepingTimeSeconds = dequeueRateLimiter.acquire(batch.size());
     if (sleepingTimeSeconds > 0.0001) {
       final double sleepingTimeMillis = sleepingTimeSeconds * 1000;
       final String message = "Dequeue rate limited and slept for " + sleepingTimeMillis + " ms";
@@ -359,12 +532,45 @@ public class Scheduler {
       tracer.getCurrentSpan().addAnnotation(message);
     }
 
-    if (state.data().tries() == 0) {
-      log.info("Executing {}", workflowInstance);
-    } else {
-      log.info("Executing {}, retry #{}", workflowInstance, state.data().tries());
+    var events = new ArrayList<Event>(batch.size());
+    var counters = new HashMap<WorkflowInstance, Long>();
+    for (var dequeue : batch) {
+      if (dequeue.state.data().tries() == 0) {
+        log.info("Executing {}", dequeue.instance);
+      } else {
+        log.info("Executing {}, retry #{}", dequeue.instance, dequeue.state.data().tries());
+      }
+      events.add(Event.dequeue(dequeue.instance, dequeue.resourceIds));
+      counters.put(dequeue.instance, dequeue.state.counter());
+    }
+
+    final Map<WorkflowInstance, Exception> failures;
+    try {
+      failures = stateManager.receiveBatch(events, counters);
+    } catch (IsClosedException e) {
+      log.info("Ignored dequeue events, state receiver closed", e);
+      return;
+    }
+
+    failures.forEach((instance, e) -> {
+      if (e instanceof StateTransitionConflictException) {
+        log.debug("State transition conflict when scheduling instance: {}", instance, e);
+      } else {
+        log.warn("Caught exception when scheduling instance: {}", instance, e);
+      }
+    });
+  }
+
+  private static class Dequeue {
+
+    private final WorkflowInstance instance;
+    private final RunState state;
+    private final Set<String> resourceIds;
+
+    private Dequeue(WorkflowInstance instance, RunState state, Set<String> resourceIds) {
+      this.instance = instance;
+      this.state = state;
+      this.resourceIds = resourceIds;
     }
-    var dequeue = Event.dequeue(workflowInstance, resourceIds);
-    stateManager.receiveIgnoreClosed(dequeue, state.counter());
   }
 }
@@ -20,6 +20,7 @@
 
 package com.spotify.styx;
 
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.spotify.apollo.environment.ConfigUtil.optionalInt;
 import static com.spotify.styx.ScheduledExecutionUtil.scheduleWithJitter;
 import static com.spotify.styx.state.OutputHandler.fanOutput;
@@ -72,12 +73,15 @@ import com.spotify.styx.monitoring.Stats;
 import com.spotify.styx.monitoring.StatsFactory;
 import com.spotify.styx.monitoring.TracingProxy;
 import com.spotify.styx.publisher.Publisher;
+import com.spotify.styx.state.OrderedEventConsumer;
+import com.spotify.styx.state.OrderedEventConsumer.OverflowPolicy;
 import com.spotify.styx.state.OutputHandler;
 import com.spotify.styx.state.PersistentStateManager;
 import com.spotify.styx.state.RunState;
 import com.spotify.styx.state.RunState.State;
 import com.spotify.styx.state.StateManager;
 import com.spotify.styx.state.TimeoutConfig;
+import com.spotify.styx.state.handlers.BackfillProgressHandler;
 import com.spotify.styx.state.handlers.DockerRunnerHandler;
 import com.spotify.styx.state.handlers.ExecutionDescriptionHandler;
 import com.spotify.styx.state.handlers.PublisherHandler;
@@ -87,6 +91,8 @@ import com.spotify.styx.state.handlers.TransitionLogger;
 import com.spotify.styx.storage.AggregateStorage;
 import com.spotify.styx.storage.Storage;
 import com.spotify.styx.util.CachedSupplier;
+import com.spotify.styx.util.CounterLeaseManager;
+import com.spotify.styx.util.CounterLeases;
 import com.spotify.styx.util.CounterSnapshotFactory;
 import com.spotify.styx.util.Debug;
 import com.spotify.styx.util.DockerImageValidator;
@@ -117,6 +123,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -145,18 +152,49 @@ public class StyxScheduler implements AppInit {
   public static final String STYX_STATE_PROCESSING_THREADS = "styx.state-processing-threads";
   public static final String STYX_SCHEDULER_TICK_INTERVAL = "styx.scheduler.tick-interval";
   public static final String STYX_TRIGGER_TICK_INTERVAL = "styx.trigger.tick-interval";
+  public static final String STYX_TRIGGER_RECONCILIATION_INTERVAL = "styx.trigger.reconciliation-interval";
+  public static final String STYX_BACKFILL_PROGRESS_FLUSH_INTERVAL = "styx.backfill-progress.flush-interval";
+  public static final String STYX_BACKFILL_PROGRESS_RECONCILIATION_INTERVAL =
+      "styx.backfill-progress.reconciliation-interval";
+  public static final String STYX_SECRET_PROVISIONING_LOOKAHEAD = "styx.secret-provisioning.lookahead";
+  public static final String STYX_WORKFLOW_CACHE_TTL = "styx.workflow-cache.ttl";
+  public static final String STYX_DOCKER_RUNNER_MAX_IN_FLIGHT_SUBMISSIONS =
+      "styx.docker-runner.max-in-flight-submissions";
   public static final String STYX_STATE_MANAGER_TICK_INTERVAL = "styx.state-manager.tick-interval";
+  public static final String STYX_STATE_MANAGER_RECONCILIATION_INTERVAL =
+      "styx.state-manager.reconciliation-interval";
+  public static final String STYX_COUNTER_LEASE_ENABLED = "styx.counter-lease.enabled";
+  public static final String STYX_COUNTER_LEASE_TICK_INTERVAL = "styx.counter-lease.tick-interval";
   public static final String STYX_SCHEDULER_THREADS = "styx.scheduler-threads";
+  public static final String STYX_BACKFILL_THREADS = "styx.backfill-threads";
+  public static final String STYX_EVENT_CONSUMER_THREADS = "styx.event-consumer.threads";
+  public static final String STYX_EVENT_CONSUMER_MAX_QUEUED = "styx.event-consumer.max-queued";
+  public static final String STYX_EVENT_CONSUMER_MAX_QUEUED_PER_INSTANCE =
+      "styx.event-consumer.max-queued-per-instance";
   private static final String STYX_ENVIRONMENT = "styx.environment";
   private static final String KUBERNETES_REQUEST_TIMEOUT = "styx.k8s.request-timeout";
 
   public static final int DEFAULT_STYX_STATE_PROCESSING_THREADS = 32;
   public static final int DEFAULT_STYX_SCHEDULER_THREADS = 32;
-  public static final Duration DEFAULT_SCHEDULER_TICK_INTERVAL = Duration.ofSeconds(2);
-  public static final Duration DEFAULT_STATE_MANAGER_TICK_INTERVAL = Duration.ofSeconds(15);
+  public static final int DEFAULT_STYX_BACKFILL_THREADS = 16;
+  public static final int DEFAULT_STYX_EVENT_CONSUMER_THREADS = 8;
+  public static final int DEFAULT_STYX_EVENT_CONSUMER_MAX_QUEUED = 100_000;
+  public static final int DEFAULT_STYX_EVENT_CONSUMER_MAX_QUEUED_PER_INSTANCE = 1_000;
+  public static final Duration DEFAULT_SCHEDULER_TICK_INTERVAL = Duration.ofSeconds(30);
+  // Timeouts and dequeues are scheduled as instances transition, so the tick is only a consistency check
+  public static final Duration DEFAULT_STATE_MANAGER_TICK_INTERVAL = Duration.ofMinutes(5);
+  public static final Duration DEFAULT_STATE_MANAGER_RECONCILIATION_INTERVAL = Duration.ofMinutes(5);
+  public static final Duration DEFAULT_COUNTER_LEASE_TICK_INTERVAL = Duration.ofSeconds(5);
   public static final Duration DEFAULT_TRIGGER_TICK_INTERVAL = Duration.ofSeconds(1);
+  public static final Duration DEFAULT_TRIGGER_RECONCILIATION_INTERVAL = Duration.ofMinutes(1);
+  public static final Duration DEFAULT_BACKFILL_PROGRESS_FLUSH_INTERVAL = Duration.ofSeconds(1);
+  public static final Duration DEFAULT_BACKFILL_PROGRESS_RECONCILIATION_INTERVAL = Duration.ofMinutes(10);
+  public static final Duration DEFAULT_SECRET_PROVISIONING_LOOKAHEAD = Duration.ofMinutes(1);
+  public static final Duration DEFAULT_WORKFLOW_CACHE_TTL = Duration.ofSeconds(10);
+  public static final int DEFAULT_STYX_DOCKER_RUNNER_MAX_IN_FLIGHT_SUBMISSIONS = 256;
   public static final Duration CLEANER_TICK_INTERVAL = Duration.ofMinutes(30);
   public static final Duration RUNTIME_CONFIG_UPDATE_INTERVAL = Duration.ofSeconds(5);
+  public static final Duration TIMEOUT_REFRESH_INTERVAL = Duration.ofMinutes(1);
   public static final Duration DEFAULT_RETRY_BASE_DELAY = Duration.ofMinutes(3);
   public static final int DEFAULT_RETRY_MAX_EXPONENT = 4;
   public static final Duration DEFAULT_RETRY_BASE_DELAY_BT = Duration.ofSeconds(1);
@@ -345,14 +383,37 @@ public class StyxScheduler implements AppInit {
     // TODO: is the shutdown timeout of 1 second here sane?
     final ScheduledExecutorService tickExecutor = executorFactory.create(3, tickTf);
     closer.register(closeable(tickExecutor, "tick-executor", Duration.ofSeconds(1)));
+    // Dequeues of eligible instances run apart from the ticks, so that a slow tick does not hold them up
+    final ThreadFactory dequeueTf = new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("styx-dequeue-%d")
+        .setUncaughtExceptionHandler(uncaughtExceptionHandler)
+        .build();
+    final ScheduledExecutorService dequeueExecutor = executorFactory.create(1, dequeueTf);
+    closer.register(closeable(dequeueExecutor, "dequeue", Duration.ofSeconds(1)));
     var stateProcessingExecutor = Executors.newWorkStealingPool(
         optionalInt(config, STYX_STATE_PROCESSING_THREADS).orElse(DEFAULT_STYX_STATE_PROCESSING_THREADS));
     closer.register(closeable(stateProcessingExecutor, "state-processing", Duration.ofSeconds(1)));
-    final ExecutorService eventConsumerExecutor = Executors.newSingleThreadExecutor();
+    final ExecutorService eventConsumerExecutor = Executors.newFixedThreadPool(
+        optionalInt(config, STYX_EVENT_CONSUMER_THREADS).orElse(DEFAULT_STYX_EVENT_CONSUMER_THREADS));
     closer.register(closeable(eventConsumerExecutor, "event-consumer", Duration.ofSeconds(1)));
+    final ScheduledExecutorService publisherRetryExecutor = Executors.newSingleThreadScheduledExecutor();
+    closer.register(closeable(publisherRetryExecutor, "publisher-retry", Duration.ofSeconds(1)));
     final ExecutorService schedulerExecutor = Executors.newWorkStealingPool(
         optionalInt(config, STYX_SCHEDULER_THREADS).orElse(DEFAULT_STYX_SCHEDULER_THREADS));
     closer.register(closeable(schedulerExecutor, "scheduler", Duration.ofSeconds(1)));
+    final ExecutorService backfillExecutor = Executors.newFixedThreadPool(
+        optionalInt(config, STYX_BACKFILL_THREADS).orElse(DEFAULT_STYX_BACKFILL_THREADS));
+    closer.register(closeable(backfillExecutor, "backfill", Duration.ofSeconds(1)));
+    final ThreadFactory timeoutTf = new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("styx-timeout-%d")
+        .setUncaughtExceptionHandler(uncaughtExceptionHandler)
+        .build();
+    final ScheduledExecutorService timeoutExecutor = executorFactory.create(1, timeoutTf);
+    closer.register(closeable(timeoutExecutor, "timeout", Duration.ofSeconds(1)));
+    final ScheduledExecutorService backfillProgressExecutor = Executors.newSingleThreadScheduledExecutor();
+    closer.register(closeable(backfillProgressExecutor, "backfill-progress", Duration.ofSeconds(1)));
 
     final Stats stats = statsFactory.apply(environment);
     final Storage storage = MeteredStorageProxy.instrument(
@@ -361,23 +422,48 @@ public class StyxScheduler implements AppInit {
     closer.register(storage);
 
     final CounterSnapshotFactory counterSnapshotFactory = new ShardedCounterSnapshotFactory(storage);
-    final ShardedCounter shardedCounter = new ShardedCounter(stats, counterSnapshotFactory);
+    final boolean counterLeaseEnabled = get(config, config::getBoolean, STYX_COUNTER_LEASE_ENABLED).orElse(false);
+    final Optional<CounterLeases> counterLeases = counterLeaseEnabled
+        ? Optional.of(new CounterLeases(UUID.randomUUID().toString()))
+        : Optional.empty();
+    final ShardedCounter shardedCounter = new ShardedCounter(stats, counterSnapshotFactory, counterLeases);
 
     final Config staleStateTtlConfig = config.getConfig(STYX_STALE_STATE_TTL_CONFIG);
     final TimeoutConfig timeoutConfig = TimeoutConfig.createFromConfig(staleStateTtlConfig);
 
-    final Supplier<Map<WorkflowId, Workflow>> workflowCache = new CachedSupplier<>(storage::workflows, time);
+    final Supplier<Map<WorkflowId, Workflow>> allWorkflowsSupplier = new CachedSupplier<>(storage::workflows, time);
+    final WorkflowCache workflowLookupCache = new WorkflowCache(storage,
+        get(config, config::getDuration, STYX_WORKFLOW_CACHE_TTL).orElse(DEFAULT_WORKFLOW_CACHE_TTL), time);
 
     // TODO: hack to get around circular reference. Change OutputHandler.transitionInto() to
     //       take StateManager as argument instead?
     final List<OutputHandler> outputHandlers = new ArrayList<>();
-    var eventConsumer = fanoutEventConsumer(
-        eventConsumerFactory.apply(environment, stats),
-        new PublisherHandler(publisher, stats),
-        new TransitionLogger());
+    final int maxQueuedEventsPerInstance = optionalInt(config, STYX_EVENT_CONSUMER_MAX_QUEUED_PER_INSTANCE)
+        .orElse(DEFAULT_STYX_EVENT_CONSUMER_MAX_QUEUED_PER_INSTANCE);
+    final int maxQueuedEvents = optionalInt(config, STYX_EVENT_CONSUMER_MAX_QUEUED)
+        .orElse(DEFAULT_STYX_EVENT_CONSUMER_MAX_QUEUED);
+    // Publishing and external consumers are best effort, so their events are dropped rather than stalling state
+    // processing when they fall behind
+    var bestEffortEventConsumer = new OrderedEventConsumer(
+        fanoutEventConsumer(
+            eventConsumerFactory.apply(environment, stats),
+            new PublisherHandler(publisher, stats, publisherRetryExecutor)),
+        eventConsumerExecutor, maxQueuedEventsPerInstance, maxQueuedEvents, OverflowPolicy.DROP, stats);
+    // Backfill progress is buffered by the event consumer and written apart from it, see startBackfillProgress
+    final BackfillProgressHandler backfillProgressHandler = closer.register(new BackfillProgressHandler(storage, time));
+    // Backfill progress and the transition log must see every event, so state processing waits for them instead
+    var losslessEventConsumer = new OrderedEventConsumer(
+        fanoutEventConsumer(
+            backfillProgressHandler,
+            new TransitionLogger()),
+        eventConsumerExecutor, maxQueuedEventsPerInstance, maxQueuedEvents, OverflowPolicy.BLOCK, stats);
+    stats.registerEventConsumerQueueMetric(
+        () -> (long) bestEffortEventConsumer.queued() + losslessEventConsumer.queued());
+    var eventConsumer = fanoutEventConsumer(bestEffortEventConsumer, losslessEventConsumer);
     var outputHandler = OutputHandler.mdcDecorating(fanOutput(outputHandlers));
+    // The ordered event consumers do their own hand-off, so events are passed to them on the calling thread
     var queuedStateManager = closer.register(new PersistentStateManager(time, stateProcessingExecutor,
-        storage, eventConsumer, eventConsumerExecutor, outputHandler, shardedCounter));
+        storage, eventConsumer, directExecutor(), outputHandler, shardedCounter));
     final StateManager stateManager = TracingProxy.instrument(StateManager.class, queuedStateManager);
 
     final Supplier<StyxConfig> styxConfig = new CachedSupplier<>(storage::config, time);
@@ -396,30 +482,49 @@ public class StyxScheduler implements AppInit {
         .withMaxRunningTimeoutLimit(runningStateTtl)
         .build();
 
+    final TimeoutHandler timeoutHandler = new TimeoutHandler(timeoutConfig, time, stateManager, workflowLookupCache,
+        timeoutExecutor);
+
     // These output handlers will be invoked in order.
     outputHandlers.addAll(List.of(
         new DockerRunnerHandler(dockerRunner, stateManager),
         new TerminationHandler(retryUtil, stateManager),
         new MonitoringHandler(stats),
-        new ExecutionDescriptionHandler(storage, stateManager, workflowValidator),
+        new ExecutionDescriptionHandler(workflowLookupCache, stateManager, workflowValidator),
 
         // Emit timeouts last in order to not over-eagerly time out an instance that
         // will be transitioned by another handler. In situations where the styx scheduler comes back up after
         // an extended downtime, many k8s pods will be completed and would transition the instance into done.
         // However, many of those instances would _also_ technically have timed out according to wall clock and
         // the TimeoutHandler would fail them if allowed to run first.
-        new TimeoutHandler(timeoutConfig, time, stateManager, workflowCache)));
+        timeoutHandler));
 
     final TriggerListener trigger =
         new StateInitializingTrigger(stateManager);
-    final TriggerManager triggerManager = new TriggerManager(trigger, time, storage, stats);
+    final Duration triggerReconciliationInterval =
+        get(config, config::getDuration, STYX_TRIGGER_RECONCILIATION_INTERVAL)
+            .orElse(DEFAULT_TRIGGER_RECONCILIATION_INTERVAL);
+    final Duration secretProvisioningLookahead =
+        get(config, config::getDuration, STYX_SECRET_PROVISIONING_LOOKAHEAD)
+            .orElse(DEFAULT_SECRET_PROVISIONING_LOOKAHEAD);
+    // Provision the secrets of workflows ahead of their natural triggers
+    final TriggerManager triggerManager = new TriggerManager(trigger, time, storage, stats,
+        triggerReconciliationInterval,
+        workflowId -> workflowLookupCache.workflow(workflowId).ifPresent(dockerRunner::prepare),
+        secretProvisioningLookahead);
     closer.register(triggerManager);
 
     final BackfillTriggerManager backfillTriggerManager =
-        new BackfillTriggerManager(stateManager, storage, trigger, stats, time);
+        new BackfillTriggerManager(stateManager, storage, workflowLookupCache, trigger, stats, time,
+            backfillExecutor, schedulerExecutor);
+
+    final Scheduler scheduler = new Scheduler(time, stateManager, storage, workflowLookupCache, resourceDecorator,
+        stats, dequeueRateLimiter, executionGateFactory.apply(environment, storage), shardedCounter,
+        schedulerExecutor);
 
-    final Scheduler scheduler = new Scheduler(time, stateManager, storage, resourceDecorator, stats,
-        dequeueRateLimiter, executionGateFactory.apply(environment, storage), shardedCounter, schedulerExecutor);
+    // Dequeue instances as soon as they become eligible, leaving the scheduler tick as a safety net.
+    // Invoked first as the other output handlers may fail with a conflict.
+    outputHandlers.add(0, new DequeueQueue(time, dequeueExecutor, scheduler::dequeue));
 
     final Cleaner cleaner = new Cleaner(dockerRunner);
 
@@ -432,21 +537,45 @@ public class StyxScheduler implements AppInit {
     final Duration stateManagerTickInterval = get(config, config::getDuration, STYX_STATE_MANAGER_TICK_INTERVAL)
         .orElse(DEFAULT_STATE_MANAGER_TICK_INTERVAL);
 
+    final Duration stateManagerReconciliationInterval =
+        get(config, config::getDuration, STYX_STATE_MANAGER_RECONCILIATION_INTERVAL)
+            .orElse(DEFAULT_STATE_MANAGER_RECONCILIATION_INTERVAL);
+
+    final Duration backfillProgressFlushInterval =
+        get(config, config::getDuration, STYX_BACKFILL_PROGRESS_FLUSH_INTERVAL)
+            .orElse(DEFAULT_BACKFILL_PROGRESS_FLUSH_INTERVAL);
+
+    final Duration backfillProgressReconciliationInterval =
+        get(config, config::getDuration, STYX_BACKFILL_PROGRESS_RECONCILIATION_INTERVAL)
+            .orElse(DEFAULT_BACKFILL_PROGRESS_RECONCILIATION_INTERVAL);
+
     startTriggerManager(triggerManager, tickExecutor, triggerTickInterval);
     startBackfillTriggerManager(backfillTriggerManager, tickExecutor, triggerTickInterval);
     startScheduler(scheduler, tickExecutor, schedulerTickInterval);
+    startBackfillProgress(backfillProgressHandler, backfillProgressExecutor, backfillProgressFlushInterval,
+        backfillProgressReconciliationInterval);
     startRuntimeConfigUpdate(styxConfig, tickExecutor, dequeueRateLimiter);
     startCleaner(cleaner, tickExecutor);
     scheduleWithJitter(stateManager::tick, tickExecutor, stateManagerTickInterval);
+    scheduleWithJitter(queuedStateManager::reconcileActiveStates, tickExecutor, stateManagerReconciliationInterval);
+    scheduleWithJitter(timeoutHandler::refresh, timeoutExecutor, TIMEOUT_REFRESH_INTERVAL);
+    if (counterLeases.isPresent()) {
+      final CounterLeaseManager counterLeaseManager = new CounterLeaseManager(storage, shardedCounter,
+          counterLeases.get(), stats, time);
+      final Duration counterLeaseTickInterval = get(config, config::getDuration, STYX_COUNTER_LEASE_TICK_INTERVAL)
+          .orElse(DEFAULT_COUNTER_LEASE_TICK_INTERVAL);
+      scheduleWithJitter(counterLeaseManager::tick, tickExecutor, counterLeaseTickInterval);
+    }
 
-    setupMetrics(queuedStateManager, workflowCache, storage, dequeueRateLimiter, stats, time);
+    setupMetrics(queuedStateManager, allWorkflowsSupplier, storage, dequeueRateLimiter, stats);
 
     final ServiceAccountUsageAuthorizer serviceAccountUsageAuthorizer =
         serviceAccountUsageAuthorizerFactory.apply(config, serviceName);
     final WorkflowActionAuthorizer workflowActionAuthorizer =
         new WorkflowActionAuthorizer(storage, serviceAccountUsageAuthorizer);
     final SchedulerResource schedulerResource =
-        new SchedulerResource(stateManager, trigger, storage, time, workflowValidator, workflowActionAuthorizer);
+        new SchedulerResource(stateManager, trigger, workflowLookupCache, time, workflowValidator,
+            workflowActionAuthorizer);
 
     final RequestAuthenticator requestAuthenticator = new RequestAuthenticator(
         authenticatorFactory.apply(AuthenticatorConfiguration.fromConfig(config, serviceName)));
@@ -514,6 +643,12 @@ public class StyxScheduler implements AppInit {
     scheduleWithJitter(scheduler::tick, exec, tickInterval);
   }
 
+  private static void startBackfillProgress(BackfillProgressHandler backfillProgressHandler,
+      ScheduledExecutorService exec, Duration flushInterval, Duration reconciliationInterval) {
+    scheduleWithJitter(backfillProgressHandler::flush, exec, flushInterval);
+    scheduleWithJitter(backfillProgressHandler::reconcile, exec, reconciliationInterval);
+  }
+
   private static void startRuntimeConfigUpdate(Supplier<StyxConfig> config, ScheduledExecutorService exec,
       RateLimiter submissionRateLimiter) {
     scheduleWithJitter(() -> updateRuntimeConfig(config, submissionRateLimiter), exec, RUNTIME_CONFIG_UPDATE_INTERVAL);
@@ -546,33 +681,30 @@ public class StyxScheduler implements AppInit {
   @VisibleForTesting
   static void setupMetrics(
       PersistentStateManager stateManager,
-      Supplier<Map<WorkflowId, Workflow>> workflowCache,
+      Supplier<Map<WorkflowId, Workflow>> allWorkflowsSupplier,
       Storage storage,
       RateLimiter submissionRateLimiter,
-      Stats stats,
-      Time time) {
+      Stats stats) {
 
     // Cache expensive methods
     final Supplier<Set<WorkflowId>> enabledWorkflowCache =
         new CachedSupplier<>(storage::enabled, Instant::now);
-    final CachedSupplier<Map<WorkflowInstance, RunState>> activeStatesCache =
-        new CachedSupplier<>(stateManager::getActiveStates, time);
 
-    stats.registerWorkflowCountMetric("all", () -> (long) workflowCache.get().size());
+    stats.registerWorkflowCountMetric("all", () -> (long) allWorkflowsSupplier.get().size());
 
-    stats.registerWorkflowCountMetric("configured", () -> workflowCache.get().values()
+    stats.registerWorkflowCountMetric("configured", () -> allWorkflowsSupplier.get().values()
         .stream()
         .filter(workflow -> workflow.configuration().dockerImage().isPresent())
         .count());
 
-    stats.registerWorkflowCountMetric("enabled", () -> workflowCache.get().values()
+    stats.registerWorkflowCountMetric("enabled", () -> allWorkflowsSupplier.get().values()
         .stream()
         .filter(workflow1 -> workflow1.configuration().dockerImage().isPresent())
         .filter(workflow1 -> enabledWorkflowCache.get().contains(WorkflowId.ofWorkflow(workflow1)))
         .count());
 
     stats.registerWorkflowCountMetric("docker_termination_logging_enabled", () ->
-        workflowCache.get().values()
+        allWorkflowsSupplier.get().values()
             .stream()
             .filter(workflow -> workflow.configuration().dockerImage().isPresent())
             .filter(workflow -> workflow.configuration().dockerTerminationLogging())
@@ -581,19 +713,10 @@ public class StyxScheduler implements AppInit {
     for (State state : State.values()) {
       for (String triggerType : TriggerUtil.triggerTypesList()) {
         stats.registerActiveStatesMetric(state, triggerType, () ->
-            activeStatesCache.get().values().stream()
-                .filter(runState -> runState.state().equals(state))
-                .filter(runState -> runState.data().trigger()
-                    .map(TriggerUtil::triggerType)
-                    .map(triggerType::equals)
-                    .orElse(false))
-                .count());
+            stateManager.getActiveStateCount(state, triggerType));
       }
       stats.registerActiveStatesMetric(state, "none", () ->
-          activeStatesCache.get().values().stream()
-              .filter(runState -> runState.state().equals(state))
-              .filter(runState -> !runState.data().trigger().isPresent())
-              .count());
+          stateManager.getActiveStateCount(state, "none"));
     }
 
     stats.registerSubmissionRateLimitMetric(submissionRateLimiter::getRate);
@@ -609,7 +732,7 @@ public class StyxScheduler implements AppInit {
 
     final Connection bigTable = closer.register(createBigTableConnection(config));
     final Datastore datastore = createDatastore(config, stats);
-    return new AggregateStorage(bigTable, datastore, DEFAULT_RETRY_BASE_DELAY_BT);
+    return new AggregateStorage(bigTable, datastore, DEFAULT_RETRY_BASE_DELAY_BT, stats);
   }
 
   private static DockerRunner createDockerRunner(
@@ -625,8 +748,10 @@ public class StyxScheduler implements AppInit {
     final NamespacedKubernetesClient kubernetes = closer.register(getKubernetesClient(
         config, id, createGkeClient(), DefaultKubernetesClient::new));
     final ServiceAccountKeyManager serviceAccountKeyManager = createServiceAccountKeyManager();
+    final int maxInFlightSubmissions = optionalInt(config, STYX_DOCKER_RUNNER_MAX_IN_FLIGHT_SUBMISSIONS)
+        .orElse(DEFAULT_STYX_DOCKER_RUNNER_MAX_IN_FLIGHT_SUBMISSIONS);
     return closer.register(DockerRunner.kubernetes(kubernetes, stateManager, stats,
-        serviceAccountKeyManager, debug, styxEnvironment));
+        serviceAccountKeyManager, debug, styxEnvironment, maxInFlightSubmissions));
   }
 
   private static Container createGkeClient() {
@@ -24,22 +24,23 @@ import static com.google.common.base.CaseFormat.LOWER_UNDERSCORE;
 import static com.google.common.base.CaseFormat.UPPER_CAMEL;
 import static com.spotify.styx.util.CloserUtil.register;
 import static com.spotify.styx.util.ExceptionUtil.findCause;
-import static com.spotify.styx.util.GuardedRunnable.guard;
 import static com.spotify.styx.util.ParameterUtil.toParameter;
 import static com.spotify.styx.util.TimeUtil.nextInstant;
 import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.toList;
 
-import com.google.common.base.Throwables;
 import com.google.common.io.Closer;
 import com.spotify.styx.model.Schedule;
 import com.spotify.styx.model.TriggerParameters;
 import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.model.WorkflowState;
+import com.spotify.styx.model.WorkflowWithState;
 import com.spotify.styx.monitoring.Stats;
 import com.spotify.styx.state.Trigger;
 import com.spotify.styx.storage.Storage;
+import com.spotify.styx.storage.WorkflowScheduleView;
 import com.spotify.styx.util.AlreadyInitializedException;
 import com.spotify.styx.util.Time;
 import com.spotify.styx.util.TriggerInstantSpec;
@@ -50,10 +51,15 @@ import io.opencensus.trace.Tracing;
 import io.opencensus.trace.samplers.Samplers;
 import java.io.Closeable;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
@@ -62,6 +68,17 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Triggers natural executions for {@link Workflow}s.
+ *
+ * <p>The next natural trigger of every workflow is kept in memory, ordered by the instant it is due, so that a
+ * {@link #tick()} only has to look at the workflows that are due. The in-memory index is kept current by the
+ * next natural triggers written by this class and is reconciled against storage with a full scan of all
+ * workflows at a low frequency, which picks up workflows that are created or rescheduled elsewhere. Before
+ * triggering, the workflow and its state are read from storage, so a stale index never triggers a deleted or
+ * disabled workflow or an outdated instant.
+ *
+ * <p>Optionally, an {@link UpcomingTriggerListener} is notified once per next natural trigger when the trigger is
+ * within a lookahead duration of being due, giving e.g. the docker runner time to provision the secrets of the
+ * workflow ahead of the execution.
  */
 class TriggerManager implements Closeable {
 
@@ -79,16 +96,46 @@ class TriggerManager implements Closeable {
   private final Time time;
   private final Storage storage;
   private final Stats stats;
+  private final Duration reconciliationInterval;
+  private final UpcomingTriggerListener upcomingTriggerListener;
+  private final Duration upcomingTriggerLookahead;
   private final Executor executor;
 
+  private final Map<WorkflowId, TriggerInstantSpec> nextTriggers = new HashMap<>();
+  private final PriorityQueue<NextTrigger> queue = new PriorityQueue<>();
+  private final PriorityQueue<NextTrigger> upcoming = new PriorityQueue<>();
+  private final Map<WorkflowId, TriggerInstantSpec> notifiedUpcoming = new HashMap<>();
+  private Instant nextReconciliation = Instant.MIN;
+
   TriggerManager(TriggerListener triggerListener,
                  Time time,
                  Storage storage,
                  Stats stats) {
+    this(triggerListener, time, storage, stats, StyxScheduler.DEFAULT_TRIGGER_RECONCILIATION_INTERVAL);
+  }
+
+  TriggerManager(TriggerListener triggerListener,
+                 Time time,
+                 Storage storage,
+                 Stats stats,
+                 Duration reconciliationInterval) {
+    this(triggerListener, time, storage, stats, reconciliationInterval, workflowId -> { }, Duration.ZERO);
+  }
+
+  TriggerManager(TriggerListener triggerListener,
+                 Time time,
+                 Storage storage,
+                 Stats stats,
+                 Duration reconciliationInterval,
+                 UpcomingTriggerListener upcomingTriggerListener,
+                 Duration upcomingTriggerLookahead) {
     this.triggerListener = requireNonNull(triggerListener);
     this.time = requireNonNull(time);
     this.storage = requireNonNull(storage);
     this.stats = requireNonNull(stats);
+    this.reconciliationInterval = requireNonNull(reconciliationInterval);
+    this.upcomingTriggerListener = requireNonNull(upcomingTriggerListener);
+    this.upcomingTriggerLookahead = requireNonNull(upcomingTriggerLookahead);
     final ForkJoinPool forkJoinPool = register(closer, new ForkJoinPool(TRIGGER_CONCURRENCY), "trigger-manager");
     this.executor = Context.currentContextExecutor(forkJoinPool);
   }
@@ -102,7 +149,7 @@ class TriggerManager implements Closeable {
     }
   }
 
-  void tick0() {
+  synchronized void tick0() {
     final Instant t0 = time.get();
 
     try {
@@ -115,69 +162,189 @@ class TriggerManager implements Closeable {
       return;
     }
 
-    final Map<Workflow, TriggerInstantSpec> canBeTriggeredWorkflows;
-    final Set<WorkflowId> enabledWorkflows;
-    try {
-      canBeTriggeredWorkflows = storage.workflowsWithNextNaturalTrigger();
-      enabledWorkflows = storage.enabled();
-    } catch (IOException e) {
-      LOG.warn("Couldn't fetch workflows to trigger, skipping this run", e);
-      return;
+    if (!t0.isBefore(nextReconciliation)) {
+      try {
+        reconcile();
+      } catch (IOException e) {
+        LOG.warn("Couldn't fetch workflows to trigger, skipping this run", e);
+        return;
+      }
+      nextReconciliation = t0.plus(reconciliationInterval);
     }
 
     final Instant now = time.get();
-    canBeTriggeredWorkflows.entrySet().stream()
-        .filter(entry -> now.isAfter(entry.getValue().offsetInstant()))
-        .map(entry -> CompletableFuture.runAsync(
-            tryTriggering(entry.getKey(), entry.getValue(), enabledWorkflows), executor))
+    notifyUpcoming(now);
+    final List<Map.Entry<WorkflowId, TriggerInstantSpec>> due = pollDue(now);
+    final List<Map.Entry<WorkflowId, Optional<TriggerInstantSpec>>> results = due.stream()
+        .map(entry -> CompletableFuture.supplyAsync(
+            () -> Map.entry(entry.getKey(), tryTriggering(entry.getKey(), entry.getValue())), executor)
+            .exceptionally(e -> {
+              LOG.warn("Failed to trigger {}", entry.getKey(), e);
+              return Map.entry(entry.getKey(), Optional.of(entry.getValue()));
+            }))
         .collect(toList()) // collect here to trigger in parallel
-        .forEach(CompletableFuture::join);
+        .stream()
+        .map(CompletableFuture::join)
+        .collect(toList());
+
+    results.forEach(result -> {
+      if (result.getValue().isPresent()) {
+        schedule(result.getKey(), result.getValue().get());
+      } else {
+        nextTriggers.remove(result.getKey());
+        notifiedUpcoming.remove(result.getKey());
+      }
+    });
 
     final long durationMillis = t0.until(time.get(), ChronoUnit.MILLIS);
     stats.recordTickDuration(TICK_TYPE, durationMillis);
   }
 
-  private Runnable tryTriggering(Workflow workflow,
-                             TriggerInstantSpec instantSpec,
-                             Set<WorkflowId> enabledWorkflows) {
-    return guard(() -> {
-      if (enabledWorkflows.contains(workflow.id())) {
-        try {
-          triggerListener.event(workflow, Trigger.natural(), instantSpec.instant(), TriggerParameters.zero());
-        } catch (Exception e) {
-          final WorkflowInstance workflowInstance = WorkflowInstance.create(workflow.id(),
-              toParameter(workflow.configuration().schedule(), instantSpec.instant()));
-
-          if (findCause(e, AlreadyInitializedException.class) != null) {
-            LOG.debug("{} already triggered", workflowInstance, e);
-            // move on to update next natural trigger
-          } else {
-            LOG.debug("Failed to trigger {}", workflowInstance, e);
-            return;
-          }
-        }
+  /**
+   * Replace the in-memory index with the next natural triggers of all workflows in storage.
+   */
+  private void reconcile() throws IOException {
+    // only the schedule views are needed here, the full workflow is read when it is triggered
+    final Map<WorkflowId, WorkflowScheduleView> workflows = storage.workflowScheduleViews();
+    nextTriggers.clear();
+    queue.clear();
+    upcoming.clear();
+    workflows.forEach((workflowId, view) ->
+        view.nextNaturalTrigger().ifPresent(spec -> schedule(workflowId, spec)));
+    notifiedUpcoming.keySet().retainAll(nextTriggers.keySet());
+  }
+
+  private void schedule(WorkflowId workflowId, TriggerInstantSpec spec) {
+    nextTriggers.put(workflowId, spec);
+    final NextTrigger next = new NextTrigger(workflowId, spec);
+    queue.add(next);
+    if (!spec.equals(notifiedUpcoming.get(workflowId))) {
+      upcoming.add(next);
+    }
+  }
 
-        stats.recordNaturalTrigger();
+  private void notifyUpcoming(Instant now) {
+    final Instant horizon = now.plus(upcomingTriggerLookahead);
+    while (!upcoming.isEmpty() && horizon.isAfter(upcoming.peek().spec.offsetInstant())) {
+      final NextTrigger next = upcoming.poll();
+      // skip entries that were superseded by a later schedule() of the same workflow or already notified
+      if (!next.spec.equals(nextTriggers.get(next.workflowId))
+          || next.spec.equals(notifiedUpcoming.put(next.workflowId, next.spec))) {
+        continue;
+      }
+      try {
+        upcomingTriggerListener.upcoming(next.workflowId);
+      } catch (Exception e) {
+        LOG.warn("Failed to notify upcoming trigger of {}", next.workflowId, e);
       }
+    }
+  }
 
-      final Schedule schedule = workflow.configuration().schedule();
-      final Instant nextTrigger = nextInstant(instantSpec.instant(), schedule);
-      final Instant nextWithOffset = workflow.configuration().addOffset(nextTrigger);
-      final TriggerInstantSpec nextSpec = TriggerInstantSpec.create(nextTrigger, nextWithOffset);
+  private List<Map.Entry<WorkflowId, TriggerInstantSpec>> pollDue(Instant now) {
+    final List<Map.Entry<WorkflowId, TriggerInstantSpec>> due = new ArrayList<>();
+    while (!queue.isEmpty() && now.isAfter(queue.peek().spec.offsetInstant())) {
+      final NextTrigger next = queue.poll();
+      // skip entries that were superseded by a later schedule() of the same workflow
+      if (next.spec.equals(nextTriggers.get(next.workflowId))) {
+        due.add(Map.entry(next.workflowId, next.spec));
+      }
+    }
+    return due;
+  }
+
+  /**
+   * Trigger a workflow and store its next natural trigger.
+   *
+   * @return The next natural trigger to keep in the index, or empty if the workflow no longer exists or has no
+   *         next natural trigger.
+   */
+  private Optional<TriggerInstantSpec> tryTriggering(WorkflowId workflowId, TriggerInstantSpec instantSpec) {
+    // the workflow and its state are stored in the same entity, read them together
+    final Optional<WorkflowWithState> workflowWithState;
+    try {
+      workflowWithState = storage.workflowWithState(workflowId);
+    } catch (IOException e) {
+      LOG.warn("Couldn't fetch workflow {} to trigger, retrying", workflowId, e);
+      return Optional.of(instantSpec);
+    }
+
+    if (workflowWithState.isEmpty() || workflowWithState.get().state().nextNaturalTrigger().isEmpty()) {
+      LOG.debug("Workflow {} was deleted or has no next natural trigger", workflowId);
+      return Optional.empty();
+    }
+    final Workflow workflow = workflowWithState.get().workflow();
+    final WorkflowState workflowState = workflowWithState.get().state();
+
+    if (workflowState.nextNaturalOffsetTrigger().isPresent()
+        && !workflowState.nextNaturalTrigger().get().equals(instantSpec.instant())) {
+      LOG.debug("Next natural trigger of {} was changed, rescheduling", workflowId);
+      return Optional.of(TriggerInstantSpec.create(
+          workflowState.nextNaturalTrigger().get(), workflowState.nextNaturalOffsetTrigger().get()));
+    }
 
+    if (workflowState.enabled().orElse(false)) {
       try {
-        storage.updateNextNaturalTrigger(workflow.id(), nextSpec);
-      } catch (IOException e) {
-        LOG.error(
-            "Sent trigger for workflow {}, but didn't succeed storing next scheduled run {}.",
-            workflow.id(), nextTrigger);
-        throw Throwables.propagate(e);
+        triggerListener.event(workflow, Trigger.natural(), instantSpec.instant(), TriggerParameters.zero());
+      } catch (Exception e) {
+        final WorkflowInstance workflowInstance = WorkflowInstance.create(workflow.id(),
+            toParameter(workflow.configuration().schedule(), instantSpec.instant()));
+
+        if (findCause(e, AlreadyInitializedException.class) != null) {
+          LOG.debug("{} already triggered", workflowInstance, e);
+          // move on to update next natural trigger
+        } else {
+          LOG.debug("Failed to trigger {}", workflowInstance, e);
+          return Optional.of(instantSpec);
+        }
       }
-    });
+
+      stats.recordNaturalTrigger();
+    }
+
+    final Schedule schedule = workflow.configuration().schedule();
+    final Instant nextTrigger = nextInstant(instantSpec.instant(), schedule);
+    final Instant nextWithOffset = workflow.configuration().addOffset(nextTrigger);
+    final TriggerInstantSpec nextSpec = TriggerInstantSpec.create(nextTrigger, nextWithOffset);
+
+    try {
+      storage.updateNextNaturalTrigger(workflow.id(), nextSpec);
+    } catch (IOException e) {
+      LOG.error(
+          "Sent trigger for workflow {}, but didn't succeed storing next scheduled run {}.",
+          workflow.id(), nextTrigger, e);
+      return Optional.of(instantSpec);
+    }
+
+    return Optional.of(nextSpec);
   }
 
   @Override
   public void close() throws IOException {
     closer.close();
   }
+
+  /**
+   * Notified when the next natural trigger of a workflow is about to be due. Invoked on the tick thread, so it
+   * must not do more than a keyed lookup before handing off any slow work.
+   */
+  interface UpcomingTriggerListener {
+
+    void upcoming(WorkflowId workflowId) throws IOException;
+  }
+
+  private static class NextTrigger implements Comparable<NextTrigger> {
+
+    private final WorkflowId workflowId;
+    private final TriggerInstantSpec spec;
+
+    NextTrigger(WorkflowId workflowId, TriggerInstantSpec spec) {
+      this.workflowId = requireNonNull(workflowId);
+      this.spec = requireNonNull(spec);
+    }
+
+    @Override
+    public int compareTo(NextTrigger o) {
+      return spec.offsetInstant().compareTo(o.spec.offsetInstant());
+    }
+  }
 }
@@ -0,0 +1,91 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.spotify.styx.model.Workflow;
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.storage.Storage;
+import com.spotify.styx.util.Time;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read-through cache of {@link Workflow}s, keyed on {@link WorkflowId}.
+ *
+ * <p>Workflows are changed by the API service, so the scheduler is not notified of changes. Instead, cached
+ * workflows are read again from storage once they are older than the configured ttl, and callers that require
+ * the latest configuration use {@link #reload(WorkflowId)}, which also refreshes the cached workflow for
+ * everyone else. Absent workflows are never cached, as callers act on a workflow being missing.
+ */
+public class WorkflowCache {
+
+  private static final long MAX_SIZE = 100_000;
+
+  private final Storage storage;
+  private final Cache<WorkflowId, Workflow> cache;
+
+  public WorkflowCache(Storage storage, Duration ttl, Time time) {
+    this.storage = Objects.requireNonNull(storage);
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(MAX_SIZE)
+        .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+        .ticker(new Ticker() {
+          // Expire entries according to the injected time, which also drives the workflow schedules
+          @Override
+          public long read() {
+            final Instant now = time.get();
+            return TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano();
+          }
+        })
+        .build();
+  }
+
+  /**
+   * Get a workflow, reading it from storage unless a sufficiently recent copy is cached.
+   */
+  public Optional<Workflow> workflow(WorkflowId workflowId) throws IOException {
+    final Workflow cached = cache.getIfPresent(workflowId);
+    if (cached != null) {
+      return Optional.of(cached);
+    }
+    return reload(workflowId);
+  }
+
+  /**
+   * Read a workflow from storage, replacing any cached copy.
+   */
+  public Optional<Workflow> reload(WorkflowId workflowId) throws IOException {
+    final Optional<Workflow> workflow = storage.workflow(workflowId);
+    if (workflow.isPresent()) {
+      cache.put(workflowId, workflow.get());
+    } else {
+      cache.invalidate(workflowId);
+    }
+    return workflow;
+  }
+}
@@ -37,6 +37,7 @@ import com.spotify.apollo.route.AsyncHandler;
 import com.spotify.apollo.route.Middleware;
 import com.spotify.apollo.route.Route;
 import com.spotify.styx.TriggerListener;
+import com.spotify.styx.WorkflowCache;
 import com.spotify.styx.api.Middlewares.AuthContext;
 import com.spotify.styx.model.Event;
 import com.spotify.styx.model.TriggerParameters;
@@ -46,7 +47,6 @@ import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.serialization.Json;
 import com.spotify.styx.state.StateManager;
 import com.spotify.styx.state.Trigger;
-import com.spotify.styx.storage.Storage;
 import com.spotify.styx.util.AlreadyInitializedException;
 import com.spotify.styx.util.EventUtil;
 import com.spotify.styx.util.IsClosedException;
@@ -68,7 +68,7 @@ public class SchedulerResource {
 
   private final StateManager stateManager;
   private final TriggerListener triggerListener;
-  private final Storage storage;
+  private final WorkflowCache workflowCache;
   private final Time time;
   private final WorkflowValidator workflowValidator;
 
@@ -77,13 +77,13 @@ public class SchedulerResource {
 
   public SchedulerResource(StateManager stateManager,
                            TriggerListener triggerListener,
-                           Storage storage,
+                           WorkflowCache workflowCache,
                            Time time,
                            WorkflowValidator workflowValidator,
                            WorkflowActionAuthorizer workflowActionAuthorizer) {
     this.stateManager = Objects.requireNonNull(stateManager);
     this.triggerListener = Objects.requireNonNull(triggerListener);
-    this.storage = Objects.requireNonNull(storage);
+    this.workflowCache = Objects.requireNonNull(workflowCache);
     this.time = Objects.requireNonNull(time);
     this.workflowValidator = Objects.requireNonNull(workflowValidator, "workflowValidator");
     this.workflowActionAuthorizer = Objects.requireNonNull(workflowActionAuthorizer,
@@ -174,9 +174,9 @@ public class SchedulerResource {
         triggerRequest.workflowId(), triggerRequest.parameter());
     final Workflow workflow;
 
-    // Verifying workflow
+    // Verifying workflow, reading the latest configuration so that the instance is also prepared with it
     try {
-      final Optional<Workflow> workflowResult = storage.workflow(workflowInstance.workflowId());
+      final Optional<Workflow> workflowResult = workflowCache.reload(workflowInstance.workflowId());
       if (workflowResult.isPresent()) {
         workflow = workflowResult.get();
       } else {
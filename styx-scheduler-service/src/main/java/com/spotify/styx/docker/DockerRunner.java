@@ -21,6 +21,7 @@
 package com.spotify.styx.docker;
 
 import com.spotify.styx.ServiceAccountKeyManager;
+import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowConfiguration;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.monitoring.Stats;
@@ -35,6 +36,8 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import org.slf4j.Logger;
@@ -54,6 +57,32 @@ public interface DockerRunner extends Closeable {
    */
   void start(WorkflowInstance workflowInstance, RunSpec runSpec) throws IOException;
 
+  /**
+   * Starts a workflow instance without waiting for the execution to be submitted.
+   *
+   * @param workflowInstance The workflow instance that the run belongs to
+   * @param runSpec          Specification of what to run
+   * @return A stage that completes when the execution has been submitted, or fails if it could not be
+   */
+  default CompletionStage<Void> startAsync(WorkflowInstance workflowInstance, RunSpec runSpec) {
+    try {
+      start(workflowInstance, runSpec);
+      return CompletableFuture.completedFuture(null);
+    } catch (Throwable e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Prepare for an upcoming execution of a workflow, e.g. by provisioning the secrets it needs ahead of time.
+   * Should not block.
+   *
+   * @param workflow The workflow that is about to be triggered
+   */
+  default void prepare(Workflow workflow) {
+    // nop
+  }
+
   /**
    * Check the status of a workflow instance execution.
    *
@@ -116,12 +145,13 @@ public interface DockerRunner extends Closeable {
                                  StateManager stateManager,
                                  Stats stats, ServiceAccountKeyManager serviceAccountKeyManager,
                                  Debug debug,
-                                 String styxEnvironment) {
+                                 String styxEnvironment,
+                                 int maxInFlightSubmissions) {
     final KubernetesGCPServiceAccountSecretManager serviceAccountSecretManager =
         new KubernetesGCPServiceAccountSecretManager(kubernetesClient, serviceAccountKeyManager);
     final KubernetesDockerRunner dockerRunner =
         new KubernetesDockerRunner(kubernetesClient, stateManager, stats,
-            serviceAccountSecretManager, debug, styxEnvironment);
+            serviceAccountSecretManager, debug, styxEnvironment, maxInFlightSubmissions);
 
     dockerRunner.init();
 
@@ -33,13 +33,14 @@ import static java.util.stream.Collectors.toList;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.base.Throwables;
 import com.google.common.io.Closer;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.spotify.styx.model.Event;
 import com.spotify.styx.model.EventVisitor;
 import com.spotify.styx.model.ExecutionDescription;
 import com.spotify.styx.model.TriggerParameters;
+import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowConfiguration;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.monitoring.Stats;
@@ -75,7 +76,6 @@ import io.fabric8.kubernetes.api.model.VolumeMountBuilder;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClientException;
 import io.fabric8.kubernetes.client.NamespacedKubernetesClient;
-import io.fabric8.kubernetes.client.Watch;
 import io.fabric8.kubernetes.client.Watcher;
 import io.norberg.automatter.AutoMatter;
 import io.opencensus.common.Scope;
@@ -93,14 +93,14 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeUnit;
 
 /**
  * A {@link DockerRunner} implementation that submits container executions to a Kubernetes cluster.
@@ -126,8 +126,14 @@ class KubernetesDockerRunner implements DockerRunner {
   static final String LOGGING = "STYX_LOGGING";
   private static final int DEFAULT_POD_CLEANUP_INTERVAL_SECONDS = 60;
   private static final int DEFAULT_POD_DELETION_DELAY_SECONDS = 120;
-  private static final Duration PROCESS_POD_UPDATE_INTERVAL = Duration.ofSeconds(5);
+  private static final Duration POD_UPDATE_RETRY_INITIAL_BACKOFF = Duration.ofSeconds(1);
+  private static final Duration POD_UPDATE_RETRY_MAX_BACKOFF = Duration.ofMinutes(1);
+  private static final int POD_UPDATE_MAX_RETRIES = 10;
+  private static final Duration POD_STORE_RESYNC_INTERVAL = Duration.ofMinutes(10);
   private static final int K8S_POD_PROCESSING_THREADS = 32;
+  private static final int K8S_SECRET_THREADS = 16;
+  private static final int K8S_POD_CREATION_THREADS = 32;
+  private static final int DEFAULT_MAX_IN_FLIGHT_SUBMISSIONS = 256;
   private static final Time DEFAULT_TIME = Instant::now;
   static final String STYX_WORKFLOW_SA_ENV_VARIABLE = "GOOGLE_APPLICATION_CREDENTIALS";
   static final String STYX_WORKFLOW_SA_SECRET_NAME = "styx-wf-sa-keys";
@@ -156,14 +162,21 @@ class KubernetesDockerRunner implements DockerRunner {
   private final Duration podDeletionDelay;
   private final Time time;
   private final ExecutorService executor;
+  private final KubernetesPodStore podStore;
+  private final KubernetesPodUpdateQueue podUpdateQueue;
+  private final ExecutorService secretExecutor;
+  private final KubernetesSubmissionPipeline submissionPipeline;
+  private final PodWatcher podWatcher = new PodWatcher();
 
-  private Watch watch;
-
-  KubernetesDockerRunner(NamespacedKubernetesClient client, StateManager stateManager, Stats stats,
-                         KubernetesGCPServiceAccountSecretManager serviceAccountSecretManager,
-                         Debug debug, String styxEnvironment,
-                         int cleanupPodsIntervalSeconds, int podDeletionDelaySeconds,
-                         Time time, ScheduledExecutorService scheduledExecutor) {
+  /**
+   * @param podUpdateExecutor the executor to process pod updates on, or null to use the pod processing pool
+   */
+  private KubernetesDockerRunner(NamespacedKubernetesClient client, StateManager stateManager, Stats stats,
+                                 KubernetesGCPServiceAccountSecretManager serviceAccountSecretManager,
+                                 Debug debug, String styxEnvironment,
+                                 int cleanupPodsIntervalSeconds, int podDeletionDelaySeconds,
+                                 int maxInFlightSubmissions, Time time,
+                                 ScheduledExecutorService scheduledExecutor, Executor podUpdateExecutor) {
     this.stateManager = Objects.requireNonNull(stateManager);
     this.client = Objects.requireNonNull(client);
     this.stats = Objects.requireNonNull(stats);
@@ -177,30 +190,80 @@ class KubernetesDockerRunner implements DockerRunner {
         register(closer, Objects.requireNonNull(scheduledExecutor), "kubernetes-scheduled-executor");
     this.executor = currentContextExecutorService(
         register(closer, new ForkJoinPool(K8S_POD_PROCESSING_THREADS), "kubernetes-executor"));
+    this.podStore = closer.register(
+        new KubernetesPodStore(client, this.scheduledExecutor, stats, POD_STORE_RESYNC_INTERVAL));
+    this.podUpdateQueue = new KubernetesPodUpdateQueue(this::processPodUpdate,
+        Objects.requireNonNullElse(podUpdateExecutor, this.executor), this.scheduledExecutor,
+        K8S_POD_PROCESSING_THREADS, POD_UPDATE_RETRY_INITIAL_BACKOFF, POD_UPDATE_RETRY_MAX_BACKOFF,
+        POD_UPDATE_MAX_RETRIES, time, stats);
+    this.secretExecutor = currentContextExecutorService(register(closer,
+        Executors.newFixedThreadPool(K8S_SECRET_THREADS, threadFactory("k8s-secret-thread-%d")),
+        "kubernetes-secret-executor"));
+    final ExecutorService podCreationExecutor = currentContextExecutorService(register(closer,
+        Executors.newFixedThreadPool(K8S_POD_CREATION_THREADS, threadFactory("k8s-pod-creation-thread-%d")),
+        "kubernetes-pod-creation-executor"));
+    this.submissionPipeline = new KubernetesSubmissionPipeline(this::ensureSecrets, this::submitPod,
+        secretExecutor, podCreationExecutor, maxInFlightSubmissions);
+  }
+
+  /**
+   * Create a runner that processes pod updates on a specific executor.
+   */
+  @VisibleForTesting
+  KubernetesDockerRunner(NamespacedKubernetesClient client, StateManager stateManager, Stats stats,
+                         KubernetesGCPServiceAccountSecretManager serviceAccountSecretManager,
+                         Debug debug, String styxEnvironment,
+                         int cleanupPodsIntervalSeconds, int podDeletionDelaySeconds,
+                         Time time, ScheduledExecutorService scheduledExecutor, Executor podUpdateExecutor) {
+    this(client, stateManager, stats, serviceAccountSecretManager, debug, styxEnvironment,
+        cleanupPodsIntervalSeconds, podDeletionDelaySeconds, DEFAULT_MAX_IN_FLIGHT_SUBMISSIONS, time,
+        scheduledExecutor, Objects.requireNonNull(podUpdateExecutor));
   }
 
   KubernetesDockerRunner(NamespacedKubernetesClient client, StateManager stateManager, Stats stats,
                          KubernetesGCPServiceAccountSecretManager serviceAccountSecretManager,
-                         Debug debug, String styxEnvironment) {
+                         Debug debug, String styxEnvironment, int maxInFlightSubmissions) {
     this(client, stateManager, stats, serviceAccountSecretManager, debug, styxEnvironment,
-        DEFAULT_POD_CLEANUP_INTERVAL_SECONDS, DEFAULT_POD_DELETION_DELAY_SECONDS, DEFAULT_TIME,
-        Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY));
+        DEFAULT_POD_CLEANUP_INTERVAL_SECONDS, DEFAULT_POD_DELETION_DELAY_SECONDS, maxInFlightSubmissions,
+        DEFAULT_TIME, Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY), null);
+  }
+
+  private static ThreadFactory threadFactory(String nameFormat) {
+    return new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat(nameFormat)
+        .build();
   }
 
   @Override
   public void start(WorkflowInstance workflowInstance, RunSpec runSpec) throws IOException {
-    // First make cheap check for if pod already exists
-    var existingPod = client.pods().withName(runSpec.executionId()).get();
-    if (existingPod != null) {
-      LOG.info("Pod already exists, not creating: {}: {}", workflowInstance, existingPod);
-      return;
+    try {
+      startAsync(workflowInstance, runSpec).toCompletableFuture().join();
+    } catch (CompletionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
     }
+  }
 
-    // Set up secrets
-    final KubernetesSecretSpec secretSpec = ensureSecrets(workflowInstance, runSpec);
+  @Override
+  public CompletableFuture<Void> startAsync(WorkflowInstance workflowInstance, RunSpec runSpec) {
+    // The pod store is populated before the runner is used, so a pod that is missing from it has not been created
+    // other than possibly very recently, in which case the creation fails with 409 Conflict below.
+    var existingPod = podStore.get(runSpec.executionId());
+    if (existingPod.isPresent()) {
+      LOG.info("Pod already exists, not creating: {}: {}", workflowInstance, existingPod.get());
+      return CompletableFuture.completedFuture(null);
+    }
+
+    // Set up secrets and create the pod in the submission pipeline
+    return submissionPipeline.submit(workflowInstance, runSpec);
+  }
 
-    // Create pod. This might fail with 409 Conflict if the pod already exists as despite the existence
-    // check above it might have been concurrently created. That is fine.
+  private void submitPod(WorkflowInstance workflowInstance, RunSpec runSpec, KubernetesSecretSpec secretSpec)
+      throws IOException {
+    // Create pod. This might fail with 409 Conflict if the pod already exists as despite the pod store
+    // check it might have been concurrently created. That is fine.
     try {
       var pod = createPod(workflowInstance, runSpec, secretSpec, styxEnvironment);
       LOG.info("Creating pod: {}: {}", workflowInstance, pod);
@@ -218,10 +281,31 @@ class KubernetesDockerRunner implements DockerRunner {
     }
   }
 
+  @Override
+  public void prepare(Workflow workflow) {
+    final Optional<String> serviceAccount = workflow.configuration().serviceAccount();
+    if (serviceAccount.isEmpty()) {
+      return;
+    }
+    try {
+      secretExecutor.execute(() -> {
+        try {
+          serviceAccountSecretManager.ensureServiceAccountKeySecret(workflow.id().toString(), serviceAccount.get());
+        } catch (Exception e) {
+          LOG.info("Failed to provision service account key secret ahead of time: {}: {}",
+              workflow.id(), serviceAccount.get(), e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Not provisioning service account key secret, runner closed: {}", workflow.id());
+    }
+  }
+
   @Override
   public void poll(RunState runState) {
     var executionId = runState.data().executionId().orElseThrow(IllegalArgumentException::new);
-    var pod = client.pods().withName(executionId).get();
+    // A pod that was just created might not have reached the store yet, so confirm a miss with the API server
+    var pod = podStore.get(executionId).orElseGet(() -> client.pods().withName(executionId).get());
     if (pod == null) {
       // No pod found. Emit an error guarded by the state counter we are basing the error conclusion on.
       stateManager.receiveIgnoreClosed(
@@ -456,7 +540,8 @@ class KubernetesDockerRunner implements DockerRunner {
   }
 
   private boolean shouldDeleteNonTerminatedPodWithoutRunState(WorkflowInstance workflowInstance, String name) {
-    // Fetch the pod here to avoid acting on stale information
+    // Fetch the pod from the API server here rather than the pod store, which can lag behind, to avoid acting on
+    // stale information before deleting a pod that might be running
     final Pod pod = client.pods().withName(name).get();
     if (pod == null) {
       // The pod is gone, nothing left to do here
@@ -518,19 +603,12 @@ class KubernetesDockerRunner implements DockerRunner {
 
   @Override
   public void close() throws IOException {
-    if (watch != null) {
-      watch.close();
-    }
     closer.close();
   }
 
   public void init() {
     scheduleWithJitter(this::cleanupPods, scheduledExecutor, cleanupPodsInterval);
-
-    final PodWatcher watcher = new PodWatcher();
-    scheduleWithJitter(watcher::processPodUpdates, scheduledExecutor, PROCESS_POD_UPDATE_INTERVAL);
-
-    watch = client.pods().watch(watcher);
+    podStore.start(podWatcher);
   }
 
   private void cleanupPods() {
@@ -551,7 +629,7 @@ class KubernetesDockerRunner implements DockerRunner {
    */
   @VisibleForTesting
   void tryCleanupPods() {
-    client.pods().list().getItems().stream()
+    podStore.pods().stream()
         .map(pod -> runAsync(guard(() -> tryCleanupPod(pod)), executor))
         .collect(toList())
         .forEach(CompletableFuture::join);
@@ -613,28 +691,34 @@ class KubernetesDockerRunner implements DockerRunner {
     return true;
   }
 
-  private void emitPodEvents(Pod pod, RunState runState) {
+  /**
+   * Translate the pod state into events and emit them in a single state transition.
+   *
+   * @return true if any events were emitted
+   */
+  private boolean emitPodEvents(Pod pod, RunState runState) {
     final List<Event> events = translate(runState.workflowInstance(), runState, pod, stats);
+    if (events.isEmpty()) {
+      return false;
+    }
 
-    for (int i = 0; i < events.size(); ++i) {
-      final Event event = events.get(i);
+    for (Event event : events) {
       if (event.accept(new PullImageErrorMatcher())) {
         stats.recordPullImageError();
       }
       if (EventUtil.name(event).equals("started")) {
         runState.data().executionId().ifPresent(stats::recordRunning);
       }
+    }
 
-      try {
-        // TODO: spoofing counter values like this can give unexpected results, e.g. if we emit two events here the
-        // first one might be discarded and the second one accepted.
-        stateManager.receive(event, runState.counter() + i);
-      } catch (StateTransitionConflictException e) {
-        LOG.debug("State transition conflict on kubernetes pod event: {}", event, e);
-        return;
-      } catch (IsClosedException ignore) {
-        return;
-      }
+    try {
+      stateManager.receiveAll(events, runState.counter());
+      return true;
+    } catch (StateTransitionConflictException e) {
+      LOG.debug("State transition conflict on kubernetes pod events: {}", events, e);
+      return false;
+    } catch (IsClosedException ignore) {
+      return false;
     }
   }
 
@@ -659,18 +743,10 @@ class KubernetesDockerRunner implements DockerRunner {
     }
   }
 
-  public class PodWatcher implements Watcher<Pod> {
+  public class PodWatcher implements KubernetesPodStore.Listener {
 
-    private static final int RECONNECT_DELAY_SECONDS = 1;
-
-    private final ConcurrentMap<String, WorkflowInstance> podUpdates = new ConcurrentHashMap<>();
-
-    /**
-     * @implNote In order to be able to keep up with the stream of events from k8s, this method should
-     *           not perform any expensive processing or blocking IO.
-     */
     @Override
-    public void eventReceived(Action action, Pod pod) {
+    public void eventReceived(Watcher.Action action, Pod pod) {
 
       if (pod == null) {
         return;
@@ -679,7 +755,7 @@ class KubernetesDockerRunner implements DockerRunner {
       logEvent(action, pod, pod.getMetadata().getResourceVersion(), false);
 
       // Ignore pod deletions
-      if (action == Action.DELETED) {
+      if (action == Watcher.Action.DELETED) {
         return;
       }
 
@@ -689,64 +765,27 @@ class KubernetesDockerRunner implements DockerRunner {
         return;
       }
 
-      // Flag this pod for later processing. Note that instead of storing the received pod status here,
-      // a new status is fetched later, in order to avoid observing pod statuses out-of-order.
-      podUpdates.put(pod.getMetadata().getName(), workflowInstance.get());
-    }
-
-    void processPodUpdates() {
-      // Get a batch of pods to process
-      final Set<String> podNames = ImmutableSet.copyOf(podUpdates.keySet());
-
-      LOG.debug("Processing pod updates: {}", podNames.size());
-
-      // Process the batch in parallel
-      podNames.stream()
-          .map(podName -> {
-            // Remove from change set before processing in order to not lose updates
-            final WorkflowInstance instance = podUpdates.remove(podName);
-            return runAsync(guard(() -> processPodUpdate(podName, instance)), executor);
-          })
-          .collect(toList())
-          .forEach(CompletableFuture::join);
-    }
-
-    private void processPodUpdate(String podName, WorkflowInstance instance) {
-      LOG.debug("Processing pod update: {}: {}", podName, instance);
-
-      final Pod pod = client.pods().withName(podName).get();
-      if (pod == null) {
-        return;
-      }
-
-      final Optional<RunState> runState = lookupPodRunState(pod, instance);
-      if (!runState.isPresent()) {
-        return;
-      }
-
-      emitPodEvents(pod, runState.get());
+      // Queue this pod for processing. The latest pod status is read from the store when processing, so
+      // repeated updates are coalesced.
+      podUpdateQueue.add(pod.getMetadata().getName(), workflowInstance.get());
     }
+  }
 
-    private void reconnect() {
-      LOG.warn("Re-establishing pod watcher");
+  private void processPodUpdate(String podName, WorkflowInstance instance, Instant receivedAt) {
+    LOG.debug("Processing pod update: {}: {}", podName, instance);
 
-      try {
-        watch = client.pods()
-            .watch(this);
-      } catch (Throwable e) {
-        LOG.warn("Retry threw", e);
-        scheduleReconnect();
-      }
+    final Optional<Pod> pod = podStore.get(podName);
+    if (pod.isEmpty()) {
+      return;
     }
 
-    private void scheduleReconnect() {
-      scheduledExecutor.schedule(this::reconnect, RECONNECT_DELAY_SECONDS, TimeUnit.SECONDS);
+    final Optional<RunState> runState = lookupPodRunState(pod.get(), instance);
+    if (!runState.isPresent()) {
+      return;
     }
 
-    @Override
-    public void onClose(KubernetesClientException e) {
-      LOG.warn("Watch closed", e);
-      scheduleReconnect();
+    if (emitPodEvents(pod.get(), runState.get())) {
+      stats.recordPodEventTransitionLatency(Duration.between(receivedAt, time.get()).toMillis());
     }
   }
 
@@ -0,0 +1,273 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.docker;
+
+import static java.net.HttpURLConnection.HTTP_GONE;
+
+import com.spotify.styx.monitoring.Stats;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodList;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local store of the pods in a namespace, kept up to date by a single list followed by a watch from the
+ * resource version of the list, in the manner of a Kubernetes informer.
+ *
+ * <p>The store is relisted when the watch can no longer be resumed, e.g. when the API server has compacted away
+ * the resource version it was watching from (410 Gone), and periodically as a resync to repair any drift. Every
+ * change to the store is passed on to a {@link Listener}, including the changes found by a relist.
+ */
+class KubernetesPodStore implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(KubernetesPodStore.class);
+
+  static final String RELIST_INITIAL = "initial";
+  static final String RELIST_RESYNC = "resync";
+  static final String RELIST_GONE = "gone";
+  static final String RELIST_WATCH_ERROR = "watch-error";
+
+  private static final Duration REWATCH_DELAY = Duration.ofSeconds(1);
+
+  interface Listener {
+
+    /**
+     * Called for every change to the store. Should not perform any expensive processing or blocking IO.
+     */
+    void eventReceived(Watcher.Action action, Pod pod);
+  }
+
+  private final KubernetesClient client;
+  private final ScheduledExecutorService executor;
+  private final Stats stats;
+  private final Duration resyncInterval;
+
+  private final ConcurrentMap<String, Pod> pods = new ConcurrentHashMap<>();
+
+  // Guarded by this. The generation is bumped for every new watch, so that events of replaced watches are ignored.
+  private Listener listener;
+  private Watch watch;
+  private long generation;
+  private String resourceVersion;
+  private boolean closed;
+
+  KubernetesPodStore(KubernetesClient client, ScheduledExecutorService executor, Stats stats,
+                     Duration resyncInterval) {
+    this.client = Objects.requireNonNull(client);
+    this.executor = Objects.requireNonNull(executor);
+    this.stats = Objects.requireNonNull(stats);
+    this.resyncInterval = Objects.requireNonNull(resyncInterval);
+  }
+
+  /**
+   * Populate the store, start watching and schedule resyncs.
+   */
+  void start(Listener listener) {
+    synchronized (this) {
+      this.listener = Objects.requireNonNull(listener);
+    }
+    stats.registerPodStoreSizeMetric(() -> (long) pods.size());
+    relist(RELIST_INITIAL);
+    schedule(this::resync, resyncInterval);
+  }
+
+  /**
+   * Get a pod by name.
+   */
+  Optional<Pod> get(String name) {
+    return Optional.ofNullable(pods.get(name));
+  }
+
+  /**
+   * Get all pods in the store.
+   */
+  List<Pod> pods() {
+    return List.copyOf(pods.values());
+  }
+
+  private void resync() {
+    try {
+      relist(RELIST_RESYNC);
+    } catch (Throwable e) {
+      LOG.warn("Failed to resync pods", e);
+    }
+    schedule(this::resync, resyncInterval);
+  }
+
+  /**
+   * Replace the contents of the store with a fresh list of pods and restart the watch from there. Holds the lock
+   * for the duration, so that events of the replaced watch are not applied on top of the list.
+   */
+  synchronized void relist(String reason) {
+    if (closed) {
+      return;
+    }
+    LOG.info("Listing pods ({})", reason);
+    stats.recordPodStoreRelist(reason);
+
+    final PodList list = client.pods().list();
+    closeWatch();
+
+    final Set<String> listed = new HashSet<>();
+    for (Pod pod : list.getItems()) {
+      final String name = pod.getMetadata().getName();
+      listed.add(name);
+      final Pod previous = pods.put(name, pod);
+      if (previous == null) {
+        listener.eventReceived(Watcher.Action.ADDED, pod);
+      } else if (!Objects.equals(resourceVersion(previous), resourceVersion(pod))) {
+        listener.eventReceived(Watcher.Action.MODIFIED, pod);
+      }
+    }
+    for (Pod pod : List.copyOf(pods.values())) {
+      if (!listed.contains(pod.getMetadata().getName()) && pods.remove(pod.getMetadata().getName(), pod)) {
+        listener.eventReceived(Watcher.Action.DELETED, pod);
+      }
+    }
+
+    resourceVersion = list.getMetadata().getResourceVersion();
+    watch();
+  }
+
+  private synchronized void rewatch() {
+    if (closed || watch != null) {
+      return;
+    }
+    try {
+      watch();
+    } catch (KubernetesClientException e) {
+      LOG.warn("Failed to resume pod watch from resource version {}", resourceVersion, e);
+      relistLater(e);
+    }
+  }
+
+  private void watch() {
+    generation++;
+    LOG.info("Watching pods from resource version {}", resourceVersion);
+    watch = client.pods().withResourceVersion(resourceVersion).watch(new StoreWatcher(generation));
+  }
+
+  private void closeWatch() {
+    generation++;
+    if (watch != null) {
+      watch.close();
+      watch = null;
+    }
+  }
+
+  private void relistLater(KubernetesClientException cause) {
+    final String reason = (cause != null && cause.getCode() == HTTP_GONE) ? RELIST_GONE : RELIST_WATCH_ERROR;
+    schedule(() -> {
+      try {
+        relist(reason);
+      } catch (Throwable e) {
+        LOG.warn("Failed to relist pods", e);
+        relistLater(null);
+      }
+    }, reason.equals(RELIST_GONE) ? Duration.ZERO : REWATCH_DELAY);
+  }
+
+  private void schedule(Runnable runnable, Duration delay) {
+    try {
+      executor.schedule(runnable, delay.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Pod store executor shut down", e);
+    }
+  }
+
+  private static String resourceVersion(Pod pod) {
+    return pod.getMetadata().getResourceVersion();
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    closeWatch();
+  }
+
+  private class StoreWatcher implements Watcher<Pod> {
+
+    private final long watchGeneration;
+
+    private StoreWatcher(long watchGeneration) {
+      this.watchGeneration = watchGeneration;
+    }
+
+    @Override
+    public void eventReceived(Action action, Pod pod) {
+      if (pod == null) {
+        return;
+      }
+      synchronized (KubernetesPodStore.this) {
+        if (watchGeneration != generation) {
+          return;
+        }
+        final String name = pod.getMetadata().getName();
+        switch (action) {
+          case ADDED:
+          case MODIFIED:
+            pods.put(name, pod);
+            break;
+          case DELETED:
+            pods.remove(name);
+            break;
+          default:
+            return;
+        }
+        resourceVersion = resourceVersion(pod);
+        listener.eventReceived(action, pod);
+      }
+    }
+
+    @Override
+    public void onClose(KubernetesClientException cause) {
+      synchronized (KubernetesPodStore.this) {
+        if (closed || watchGeneration != generation) {
+          return;
+        }
+        watch = null;
+        if (cause != null && cause.getCode() == HTTP_GONE) {
+          LOG.warn("Pod watch expired at resource version {}, relisting", resourceVersion, cause);
+          relistLater(cause);
+        } else {
+          LOG.warn("Pod watch closed, resuming from resource version {}", resourceVersion, cause);
+          schedule(KubernetesPodStore.this::rewatch, REWATCH_DELAY);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.styx.docker;
+
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.monitoring.Stats;
+import com.spotify.styx.util.Time;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A work queue of pods with pending updates, processed continuously on an {@link Executor}.
+ *
+ * <p>A pod is queued at most once: updates that arrive while a pod is waiting are coalesced, and a pod that is
+ * updated while being processed is queued again once its processing is done, so that a pod is never processed
+ * concurrently with itself. At most {@code maxConcurrency} pods are processed at any time. A pod whose processing
+ * fails is retried with an exponential backoff of its own, until it has failed {@code maxRetries} times in a row.
+ */
+class KubernetesPodUpdateQueue {
+
+  private static final Logger LOG = LoggerFactory.getLogger(KubernetesPodUpdateQueue.class);
+
+  interface Processor {
+
+    /**
+     * Process the latest state of a pod.
+     *
+     * @param receivedAt the time of the earliest update that has not been processed yet
+     */
+    void process(String podName, WorkflowInstance instance, Instant receivedAt) throws Exception;
+  }
+
+  private final Processor processor;
+  private final Executor executor;
+  private final ScheduledExecutorService retryExecutor;
+  private final int maxConcurrency;
+  private final Duration initialBackoff;
+  private final Duration maxBackoff;
+  private final int maxRetries;
+  private final Time time;
+  private final Stats stats;
+
+  private final Object lock = new Object();
+
+  // Guarded by lock. Pods are in the map from being updated until they are neither dirty, processing nor backing off.
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final Queue<String> ready = new ArrayDeque<>();
+  private int dirty;
+  private int active;
+
+  KubernetesPodUpdateQueue(Processor processor, Executor executor, ScheduledExecutorService retryExecutor,
+                           int maxConcurrency, Duration initialBackoff, Duration maxBackoff, int maxRetries,
+                           Time time, Stats stats) {
+    this.processor = Objects.requireNonNull(processor);
+    this.executor = Objects.requireNonNull(executor);
+    this.retryExecutor = Objects.requireNonNull(retryExecutor);
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("invalid concurrency: " + maxConcurrency);
+    }
+    this.maxConcurrency = maxConcurrency;
+    this.initialBackoff = Objects.requireNonNull(initialBackoff);
+    this.maxBackoff = Objects.requireNonNull(maxBackoff);
+    this.maxRetries = maxRetries;
+    this.time = Objects.requireNonNull(time);
+    this.stats = Objects.requireNonNull(stats);
+  }
+
+  /**
+   * Mark a pod as updated, queueing it for processing unless it is already queued.
+   */
+  void add(String podName, WorkflowInstance instance) {
+    final int depth;
+    synchronized (lock) {
+      final Entry entry = entries.computeIfAbsent(podName, Entry::new);
+      entry.instance = instance;
+      markDirty(entry, time.get());
+      if (!entry.queued && !entry.processing && !entry.backingOff) {
+        entry.queued = true;
+        ready.add(podName);
+      }
+      depth = dirty;
+    }
+    stats.recordPodUpdateQueueDepth(depth);
+    dispatch();
+  }
+
+  /**
+   * Get the number of pods with updates that have not been processed yet.
+   */
+  int size() {
+    synchronized (lock) {
+      return dirty;
+    }
+  }
+
+  private void markDirty(Entry entry, Instant receivedAt) {
+    if (!entry.dirty) {
+      entry.dirty = true;
+      entry.receivedAt = receivedAt;
+      dirty++;
+    }
+  }
+
+  /**
+   * Start processing queued pods, up to the concurrency limit.
+   */
+  private void dispatch() {
+    while (true) {
+      final Entry entry;
+      final WorkflowInstance instance;
+      final Instant receivedAt;
+      synchronized (lock) {
+        if (active >= maxConcurrency || ready.isEmpty()) {
+          return;
+        }
+        entry = entries.get(ready.remove());
+        entry.queued = false;
+        entry.dirty = false;
+        entry.processing = true;
+        dirty--;
+        active++;
+        instance = entry.instance;
+        receivedAt = entry.receivedAt;
+      }
+
+      stats.recordPodEventLag(Duration.between(receivedAt, time.get()).toMillis());
+
+      try {
+        executor.execute(() -> process(entry, instance, receivedAt));
+      } catch (RejectedExecutionException e) {
+        LOG.warn("Pod update processing rejected, discarding update of {}", entry.podName, e);
+        synchronized (lock) {
+          active--;
+          if (entry.dirty) {
+            dirty--;
+          }
+          entries.remove(entry.podName);
+        }
+        return;
+      }
+    }
+  }
+
+  private void process(Entry entry, WorkflowInstance instance, Instant receivedAt) {
+    boolean failed = false;
+    try {
+      processor.process(entry.podName, instance, receivedAt);
+    } catch (Throwable e) {
+      LOG.warn("Error while processing pod update: {}: {}", entry.podName, instance, e);
+      failed = true;
+    }
+
+    synchronized (lock) {
+      active--;
+      entry.processing = false;
+      if (!failed) {
+        entry.failures = 0;
+      } else if (++entry.failures > maxRetries) {
+        LOG.warn("Giving up on pod update after {} failures: {}: {}", entry.failures, entry.podName, instance);
+        entry.failures = 0;
+      } else {
+        // Keep the pod dirty, retaining the time of the update that failed, and hold it back until the backoff
+        // has passed. Updates that arrive in the meantime are coalesced into the retry.
+        markDirty(entry, receivedAt);
+        entry.backingOff = true;
+        try {
+          retryExecutor.schedule(() -> retry(entry), backoff(entry.failures).toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          entry.backingOff = false;
+        }
+      }
+      requeue(entry);
+    }
+
+    dispatch();
+  }
+
+  private void retry(Entry entry) {
+    synchronized (lock) {
+      entry.backingOff = false;
+      requeue(entry);
+    }
+    dispatch();
+  }
+
+  // Guarded by lock
+  private void requeue(Entry entry) {
+    if (entry.processing || entry.backingOff) {
+      return;
+    }
+    if (entry.dirty) {
+      entry.queued = true;
+      ready.add(entry.podName);
+    } else {
+      entries.remove(entry.podName);
+    }
+  }
+
+  private Duration backoff(int failures) {
+    final Duration backoff = initialBackoff.multipliedBy(1L << Math.min(failures - 1, 30));
+    return backoff.compareTo(maxBackoff) < 0 ? backoff : maxBackoff;
+  }
+
+  private static class Entry {
+
+    private final String podName;
+
+    private WorkflowInstance instance;
+    private Instant receivedAt;
+    private boolean dirty;
+    private boolean queued;
+    private boolean processing;
+    private boolean backingOff;
+    private int failures;
+
+    private Entry(String podName) {
+      this.podName = podName;
+    }
+  }
+}
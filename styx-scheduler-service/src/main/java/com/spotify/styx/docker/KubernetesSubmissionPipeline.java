@@ -0,0 +1,171 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.styx.docker;
+
+import com.spotify.styx.docker.DockerRunner.RunSpec;
+import com.spotify.styx.docker.KubernetesDockerRunner.KubernetesSecretSpec;
+import com.spotify.styx.model.WorkflowInstance;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Submits executions in two stages, resolving the secrets of an execution on one executor and creating its pod on
+ * another, so that slow secret resolutions, e.g. ones that create service account keys, do not hold up the pod
+ * creations of executions whose secrets are ready.
+ *
+ * <p>At most {@code maxInFlight} submissions are in the pipeline at any time. Further submissions wait for a
+ * submission to complete, in order of arrival, without blocking the submitting thread.
+ */
+class KubernetesSubmissionPipeline {
+
+  interface SecretStage {
+
+    KubernetesSecretSpec ensureSecrets(WorkflowInstance workflowInstance, RunSpec runSpec);
+  }
+
+  interface PodStage {
+
+    void createPod(WorkflowInstance workflowInstance, RunSpec runSpec, KubernetesSecretSpec secretSpec)
+        throws IOException;
+  }
+
+  private final SecretStage secretStage;
+  private final PodStage podStage;
+  private final Executor secretExecutor;
+  private final Executor podExecutor;
+  private final int maxInFlight;
+
+  private final Object lock = new Object();
+
+  // Guarded by lock
+  private final Queue<Submission> waiting = new ArrayDeque<>();
+  private int inFlight;
+
+  KubernetesSubmissionPipeline(SecretStage secretStage, PodStage podStage,
+                               Executor secretExecutor, Executor podExecutor, int maxInFlight) {
+    this.secretStage = Objects.requireNonNull(secretStage);
+    this.podStage = Objects.requireNonNull(podStage);
+    this.secretExecutor = Objects.requireNonNull(secretExecutor);
+    this.podExecutor = Objects.requireNonNull(podExecutor);
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("invalid in-flight limit: " + maxInFlight);
+    }
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Submit an execution.
+   *
+   * @return A future that completes when the pod of the execution has been created
+   */
+  CompletableFuture<Void> submit(WorkflowInstance workflowInstance, RunSpec runSpec) {
+    final Submission submission = new Submission(workflowInstance, runSpec);
+    final boolean admitted;
+    synchronized (lock) {
+      admitted = inFlight < maxInFlight;
+      if (admitted) {
+        inFlight++;
+      } else {
+        waiting.add(submission);
+      }
+    }
+    if (admitted) {
+      run(submission);
+    }
+    return submission.result;
+  }
+
+  /**
+   * Get the number of submissions in the pipeline.
+   */
+  int inFlight() {
+    synchronized (lock) {
+      return inFlight;
+    }
+  }
+
+  /**
+   * Get the number of submissions waiting to enter the pipeline.
+   */
+  int waiting() {
+    synchronized (lock) {
+      return waiting.size();
+    }
+  }
+
+  private void run(Submission submission) {
+    CompletableFuture<Void> pipeline;
+    try {
+      pipeline = CompletableFuture
+          .supplyAsync(() -> secretStage.ensureSecrets(submission.workflowInstance, submission.runSpec),
+              secretExecutor)
+          .thenAcceptAsync(secretSpec -> {
+            try {
+              podStage.createPod(submission.workflowInstance, submission.runSpec, secretSpec);
+            } catch (IOException e) {
+              throw new CompletionException(e);
+            }
+          }, podExecutor);
+    } catch (Throwable e) {
+      pipeline = CompletableFuture.failedFuture(e);
+    }
+    pipeline.whenComplete((ignore, e) -> {
+      admitNext();
+      if (e == null) {
+        submission.result.complete(null);
+      } else {
+        submission.result.completeExceptionally(
+            e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+      }
+    });
+  }
+
+  private void admitNext() {
+    final Submission next;
+    synchronized (lock) {
+      next = waiting.poll();
+      if (next == null) {
+        inFlight--;
+      }
+    }
+    if (next != null) {
+      run(next);
+    }
+  }
+
+  private static class Submission {
+
+    private final WorkflowInstance workflowInstance;
+    private final RunSpec runSpec;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    private Submission(WorkflowInstance workflowInstance, RunSpec runSpec) {
+      this.workflowInstance = workflowInstance;
+      this.runSpec = runSpec;
+    }
+  }
+}
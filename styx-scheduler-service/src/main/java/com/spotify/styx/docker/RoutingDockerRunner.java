@@ -22,10 +22,12 @@ package com.spotify.styx.docker;
 
 import com.google.common.collect.Maps;
 import com.google.common.io.Closer;
+import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.state.RunState;
 import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentMap;
 import java.util.function.Supplier;
 
@@ -52,6 +54,16 @@ class RoutingDockerRunner implements DockerRunner {
     runner().start(workflowInstance, runSpec);
   }
 
+  @Override
+  public CompletionStage<Void> startAsync(WorkflowInstance workflowInstance, RunSpec runSpec) {
+    return runner().startAsync(workflowInstance, runSpec);
+  }
+
+  @Override
+  public void prepare(Workflow workflow) {
+    runner().prepare(workflow);
+  }
+
   @Override
   public void poll(RunState runState) {
     runner().poll(runState);
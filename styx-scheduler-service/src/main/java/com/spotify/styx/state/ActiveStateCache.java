@@ -0,0 +1,241 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.state;
+
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.util.TriggerUtil;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * A write-through, in-memory view of the active {@link RunState}s, keyed on {@link WorkflowInstance}.
+ *
+ * <p>Entries are versioned by {@link RunState#counter()}: an update is only applied if it is not older than the
+ * entry already held for the instance. Instances that have left the active set are kept as tombstones carrying
+ * the counter of the terminal transition, so that a late write of an older state does not resurrect them.
+ *
+ * <p>The view is periodically brought in line with storage using {@link #reconcile(long, Map)}. Entries that
+ * were updated after the reconciliation read started are considered newer than storage and are kept.
+ *
+ * <p>The number of active states per state and trigger type, and per backfill, is maintained along with every
+ * change to the view, so that it can be read without iterating over the active states.
+ */
+public class ActiveStateCache {
+
+  private final ConcurrentMap<WorkflowInstance, Entry> entries = new ConcurrentHashMap<>();
+  private final AtomicLong stamps = new AtomicLong();
+  private final Map<RunState.State, ConcurrentMap<String, AtomicLong>> counts = new EnumMap<>(RunState.State.class);
+  // Only backfill trigger ids, removed when they reach zero
+  private final ConcurrentMap<String, Long> backfillCounts = new ConcurrentHashMap<>();
+
+  private volatile boolean loaded = false;
+
+  public ActiveStateCache() {
+    for (RunState.State state : RunState.State.values()) {
+      counts.put(state, new ConcurrentHashMap<>());
+    }
+  }
+
+  /**
+   * Whether the view has been populated from storage by at least one reconciliation.
+   */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Get the cached state of an instance.
+   *
+   * @return The cached state, or empty if the instance is unknown or known to be inactive.
+   */
+  public Optional<RunState> get(WorkflowInstance instance) {
+    final Entry entry = entries.get(instance);
+    return entry == null ? Optional.empty() : entry.state;
+  }
+
+  /**
+   * Whether the view holds an entry, live or tombstone, for the instance.
+   */
+  public boolean contains(WorkflowInstance instance) {
+    return entries.containsKey(instance);
+  }
+
+  /**
+   * Store a state unless a newer state or tombstone is already held for the instance.
+   */
+  public void put(RunState state) {
+    Objects.requireNonNull(state);
+    final Entry update = new Entry(state.counter(), Optional.of(state), stamps.incrementAndGet());
+    entries.compute(state.workflowInstance(), (instance, current) ->
+        current == null || update.counter >= current.counter ? replace(current, update) : current);
+  }
+
+  /**
+   * Mark an instance as inactive as of the given counter.
+   */
+  public void remove(WorkflowInstance instance, long counter) {
+    final Entry update = new Entry(counter, Optional.empty(), stamps.incrementAndGet());
+    entries.compute(instance, (key, current) ->
+        current == null || update.counter >= current.counter ? replace(current, update) : current);
+  }
+
+  /**
+   * Drop whatever is held for an instance, forcing the next read to go to storage.
+   */
+  public void invalidate(WorkflowInstance instance) {
+    entries.computeIfPresent(instance, (key, current) -> replace(current, null));
+  }
+
+  /**
+   * Get all cached active instances.
+   */
+  public Set<WorkflowInstance> instances() {
+    return entries.entrySet().stream()
+        .filter(e -> e.getValue().state.isPresent())
+        .map(Map.Entry::getKey)
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * Get a snapshot of all cached active states.
+   */
+  public Map<WorkflowInstance, RunState> snapshot() {
+    final Map<WorkflowInstance, RunState> snapshot = new HashMap<>();
+    entries.forEach((instance, entry) -> entry.state.ifPresent(state -> snapshot.put(instance, state)));
+    return snapshot;
+  }
+
+  /**
+   * Get the number of cached active states in a state, by trigger type.
+   *
+   * @param triggerType The trigger type as returned by {@link TriggerUtil#triggerType}, or {@code "none"} for
+   *                    states without a trigger.
+   */
+  public long count(RunState.State state, String triggerType) {
+    final AtomicLong count = counts.get(state).get(triggerType);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * Get the number of cached active states triggered by a backfill.
+   */
+  public int countByBackfill(String backfillId) {
+    return backfillCounts.getOrDefault(backfillId, 0L).intValue();
+  }
+
+  /**
+   * Mark the start of a reconciliation. Must be called before reading the active states from storage.
+   *
+   * @return A stamp to pass to {@link #reconcile(long, Map)}.
+   */
+  public long beginReconciliation() {
+    return stamps.incrementAndGet();
+  }
+
+  /**
+   * Replace the view with the active states read from storage, keeping entries that were updated after the
+   * reconciliation started.
+   *
+   * @param stamp  The stamp returned by {@link #beginReconciliation()} before the storage read
+   * @param stored The active states read from storage
+   * @return The number of entries that were out of sync with storage.
+   */
+  public int reconcile(long stamp, Map<WorkflowInstance, RunState> stored) {
+    int drift = 0;
+
+    for (RunState state : stored.values()) {
+      final Entry storedEntry = new Entry(state.counter(), Optional.of(state), stamp);
+      final Entry current = entries.get(state.workflowInstance());
+      if (current == null || (current.stamp < stamp && !current.state.equals(storedEntry.state))) {
+        drift++;
+      }
+      entries.compute(state.workflowInstance(), (instance, existing) ->
+          existing != null && existing.stamp > stamp ? existing : replace(existing, storedEntry));
+    }
+
+    for (WorkflowInstance instance : Set.copyOf(entries.keySet())) {
+      if (stored.containsKey(instance)) {
+        continue;
+      }
+      final Entry current = entries.get(instance);
+      if (current != null && current.stamp < stamp) {
+        if (current.state.isPresent()) {
+          drift++;
+        }
+        entries.computeIfPresent(instance, (key, existing) ->
+            existing == current ? replace(existing, null) : existing);
+      }
+    }
+
+    loaded = true;
+    return drift;
+  }
+
+  // Called from within the atomic update of an entry
+  private Entry replace(Entry current, Entry next) {
+    if (current != null) {
+      current.state.ifPresent(state -> {
+        count(state).decrementAndGet();
+        countBackfill(state, -1);
+      });
+    }
+    if (next != null) {
+      next.state.ifPresent(state -> {
+        count(state).incrementAndGet();
+        countBackfill(state, 1);
+      });
+    }
+    return next;
+  }
+
+  private void countBackfill(RunState state, long delta) {
+    state.data().trigger()
+        .filter(TriggerUtil::isBackfill)
+        .ifPresent(trigger -> backfillCounts.merge(TriggerUtil.triggerId(trigger), delta,
+            (count, d) -> count + d == 0 ? null : count + d));
+  }
+
+  private AtomicLong count(RunState state) {
+    final String triggerType = state.data().trigger().map(TriggerUtil::triggerType).orElse("none");
+    return counts.get(state.state()).computeIfAbsent(triggerType, type -> new AtomicLong());
+  }
+
+  private static final class Entry {
+
+    private final long counter;
+    private final Optional<RunState> state;
+    private final long stamp;
+
+    private Entry(long counter, Optional<RunState> state, long stamp) {
+      this.counter = counter;
+      this.state = state;
+      this.stamp = stamp;
+    }
+  }
+}
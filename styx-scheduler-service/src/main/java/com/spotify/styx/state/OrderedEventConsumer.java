@@ -0,0 +1,203 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.state;
+
+import static com.spotify.styx.util.MDCUtil.withMDC;
+
+import com.spotify.styx.model.SequenceEvent;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.monitoring.Stats;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An event consumer that hands events off to a delegate consumer running on an {@link Executor}, preserving the
+ * order of events per {@link WorkflowInstance} while consuming events of different instances in parallel.
+ *
+ * <p>Each instance has its own queue, of which at most one event is being consumed at any time. Queues are bounded,
+ * both per instance and in total, so that a slow delegate cannot make the backlog grow without limit. What happens
+ * to an event that does not fit is decided by the {@link OverflowPolicy}: delegates that can afford to miss events
+ * use {@link OverflowPolicy#DROP}, delegates that must see every event use {@link OverflowPolicy#BLOCK}.
+ */
+public class OrderedEventConsumer implements BiConsumer<SequenceEvent, RunState> {
+
+  private static final Logger log = LoggerFactory.getLogger(OrderedEventConsumer.class);
+
+  /**
+   * What to do with an event when the queues are full.
+   */
+  public enum OverflowPolicy {
+
+    /**
+     * Drop the event and record it with {@link Stats#recordEventConsumerDropped(SequenceEvent)}.
+     */
+    DROP,
+
+    /**
+     * Block the caller until the event fits. If the caller is interrupted while waiting, the event is consumed on
+     * the calling thread instead, possibly out of order.
+     */
+    BLOCK
+  }
+
+  private final BiConsumer<SequenceEvent, RunState> delegate;
+  private final Executor executor;
+  private final int maxQueuedPerInstance;
+  private final int maxQueued;
+  private final OverflowPolicy overflowPolicy;
+  private final Stats stats;
+
+  private final Object lock = new Object();
+
+  // Guarded by lock. The head of a queue is the event being consumed, an instance with a queue is being drained.
+  private final Map<WorkflowInstance, Queue<Runnable>> queues = new HashMap<>();
+  private int queued;
+
+  public OrderedEventConsumer(BiConsumer<SequenceEvent, RunState> delegate, Executor executor,
+                              int maxQueuedPerInstance, int maxQueued, OverflowPolicy overflowPolicy,
+                              Stats stats) {
+    this.delegate = Objects.requireNonNull(delegate);
+    this.executor = Objects.requireNonNull(executor);
+    this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+    this.stats = Objects.requireNonNull(stats);
+    if (maxQueuedPerInstance < 1 || maxQueued < maxQueuedPerInstance) {
+      throw new IllegalArgumentException("invalid queue bounds: " + maxQueuedPerInstance + ", " + maxQueued);
+    }
+    this.maxQueuedPerInstance = maxQueuedPerInstance;
+    this.maxQueued = maxQueued;
+  }
+
+  @Override
+  public void accept(SequenceEvent sequenceEvent, RunState runState) {
+    final WorkflowInstance instance = runState.workflowInstance();
+    final Runnable task = withMDC(() -> delegate.accept(sequenceEvent, runState));
+
+    boolean interrupted = false;
+    boolean idle = false;
+    synchronized (lock) {
+      while (isFull(instance)) {
+        if (overflowPolicy == OverflowPolicy.DROP) {
+          stats.recordEventConsumerDropped(sequenceEvent);
+          log.warn("Event consumer queue full, dropping event {}", sequenceEvent);
+          return;
+        }
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          interrupted = true;
+          break;
+        }
+      }
+      if (!interrupted) {
+        idle = !queues.containsKey(instance);
+        queues.computeIfAbsent(instance, i -> new ArrayDeque<>()).add(task);
+        queued++;
+      }
+    }
+
+    if (interrupted) {
+      log.warn("Interrupted while waiting for event consumer queue, consuming event {} directly", sequenceEvent);
+      consumeDirectly(instance, task);
+    } else if (idle) {
+      schedule(instance);
+    }
+  }
+
+  // Guarded by lock
+  private boolean isFull(WorkflowInstance instance) {
+    final Queue<Runnable> queue = queues.get(instance);
+    return queued >= maxQueued || (queue != null && queue.size() >= maxQueuedPerInstance);
+  }
+
+  /**
+   * Get the number of events that are queued or being consumed.
+   */
+  public int queued() {
+    synchronized (lock) {
+      return queued;
+    }
+  }
+
+  private void schedule(WorkflowInstance instance) {
+    try {
+      executor.execute(() -> consumeNext(instance));
+    } catch (RejectedExecutionException e) {
+      final Queue<Runnable> discarded;
+      synchronized (lock) {
+        discarded = queues.remove(instance);
+        queued -= discarded.size();
+        lock.notifyAll();
+      }
+      if (overflowPolicy == OverflowPolicy.BLOCK) {
+        log.warn("Event consumer rejected, consuming {} event(s) for {} directly", discarded.size(), instance, e);
+        discarded.forEach(task -> consumeDirectly(instance, task));
+      } else {
+        log.warn("Event consumer rejected, discarding {} event(s) for {}", discarded.size(), instance, e);
+      }
+    }
+  }
+
+  /**
+   * Consume a single event of an instance and yield the thread, so that a long queue of one instance does not
+   * starve the others.
+   */
+  private void consumeNext(WorkflowInstance instance) {
+    final Runnable task;
+    synchronized (lock) {
+      task = queues.get(instance).element();
+    }
+
+    consumeDirectly(instance, task);
+
+    final boolean more;
+    synchronized (lock) {
+      final Queue<Runnable> queue = queues.get(instance);
+      queue.remove();
+      queued--;
+      lock.notifyAll();
+      more = !queue.isEmpty();
+      if (!more) {
+        queues.remove(instance);
+      }
+    }
+
+    if (more) {
+      schedule(instance);
+    }
+  }
+
+  private static void consumeDirectly(WorkflowInstance instance, Runnable task) {
+    try {
+      task.run();
+    } catch (Throwable e) {
+      log.warn("Error while consuming event for {}", instance, e);
+    }
+  }
+}
@@ -22,11 +22,13 @@ package com.spotify.styx.state;
 
 import static com.spotify.styx.state.StateUtil.isConsumingResources;
 import static com.spotify.styx.util.MDCUtil.withMDC;
+import static com.spotify.styx.util.ShardedCounterSnapshotFactory.TRANSACTION_GROUP_SIZE;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.spotify.futures.CompletableFutures;
 import com.spotify.styx.MessageUtil;
 import com.spotify.styx.model.Event;
@@ -47,6 +49,7 @@ import com.spotify.styx.util.Time;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -72,6 +75,10 @@ import org.slf4j.LoggerFactory;
  *
  * <p>All {@link #outputHandler} transitions are also executed on the injected
  * {@link Executor}.
+ *
+ * <p>The active states are served from an {@link ActiveStateCache} that is updated with the outcome of
+ * every transition made by this state manager. Storage is only read on cache misses and when the cache is
+ * reconciled using {@link #reconcileActiveStates()}.
  */
 public class PersistentStateManager implements StateManager {
 
@@ -80,6 +87,21 @@ public class PersistentStateManager implements StateManager {
 
   private static final long NO_EVENTS_PROCESSED = -1L;
 
+  /**
+   * The number of entity groups a transition in a batch is expected to touch: the active state of the workflow
+   * instance, and a counter shard for each of the resources it typically uses, the global concurrency resource
+   * and a workflow resource.
+   */
+  @VisibleForTesting
+  static final int ENTITY_GROUPS_PER_TRANSITION = 3;
+
+  /**
+   * Maximum number of workflow instances transitioned in a single transaction by {@link #receiveBatch}, keeping
+   * the entity groups touched per transaction within the Datastore limit.
+   */
+  @VisibleForTesting
+  static final int MAX_BATCH_TRANSACTION_SIZE = TRANSACTION_GROUP_SIZE / ENTITY_GROUPS_PER_TRANSITION;
+
   private final Time time;
   private final ExecutorService executor;
   private final Storage storage;
@@ -87,6 +109,7 @@ public class PersistentStateManager implements StateManager {
   private final Executor eventConsumerExecutor;
   private final OutputHandler outputHandler;
   private final ShardedCounter shardedCounter;
+  private final ActiveStateCache activeStates = new ActiveStateCache();
 
   private volatile boolean running = true;
 
@@ -123,29 +146,50 @@ public class PersistentStateManager implements StateManager {
 
   @Override
   public void tick() {
-    var shuffledInstances = new ArrayList<>(Try.of(storage::listActiveInstances).get());
-    Collections.shuffle(shuffledInstances);
-    var futures = shuffledInstances.stream()
-        .map(instance -> CompletableFuture.runAsync(() -> tickInstance(instance), executor))
+    var shuffledStates = new ArrayList<>(getActiveStates().values());
+    Collections.shuffle(shuffledStates);
+    var futures = shuffledStates.stream()
+        .map(state -> CompletableFuture.runAsync(() -> tickInstance(state), executor))
         .collect(toList());
     CompletableFutures.allAsList(futures).join();
   }
 
-  private void tickInstance(WorkflowInstance instance) {
-    try {
-      var stateOpt = storage.readActiveState(instance);
-      stateOpt.ifPresent(this::tickInstance);
-    } catch (Exception e) {
-      log.error("Error ticking instance: {}", instance, e);
-    }
-  }
-
   private void tickInstance(RunState state) {
     log.info("Ticking instance: {}: #{} {}", state.workflowInstance(), state.counter(), state.state());
     try {
       outputHandler.transitionInto(state);
     } catch (StateTransitionConflictException e) {
       log.debug("State transition conflict when ticking instance: {}", state.workflowInstance(), e);
+    } catch (Exception e) {
+      log.error("Error ticking instance: {}", state.workflowInstance(), e);
+    }
+  }
+
+  /**
+   * Bring the in-memory view of the active states in line with storage. Should be called regularly to
+   * recover from changes to the active states that were not made through this state manager.
+   */
+  public void reconcileActiveStates() {
+    final long stamp = activeStates.beginReconciliation();
+    final Map<WorkflowInstance, RunState> stored;
+    try {
+      stored = storage.readActiveStates();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    final int drift = activeStates.reconcile(stamp, stored);
+    if (drift > 0) {
+      log.info("Reconciled active states: {} active, {} out of sync", stored.size(), drift);
+    }
+  }
+
+  private void ensureActiveStatesLoaded() {
+    if (!activeStates.isLoaded()) {
+      synchronized (activeStates) {
+        if (!activeStates.isLoaded()) {
+          reconcileActiveStates();
+        }
+      }
     }
   }
 
@@ -157,7 +201,7 @@ public class PersistentStateManager implements StateManager {
 
     // TODO: optional retry on transaction conflict
 
-    initialize(workflowInstance);
+    final RunState initialState = initialize(workflowInstance);
 
     final Event event = Event.triggerExecution(workflowInstance, trigger, parameters);
     try {
@@ -167,6 +211,7 @@ public class PersistentStateManager implements StateManager {
       // Best effort attempt to rollback the creation of the NEW state
       try {
         storage.deleteActiveState(workflowInstance);
+        activeStates.remove(workflowInstance, initialState.counter());
       } catch (IOException e) {
         log.warn("Failed to remove dangling NEW state for: {}", workflowInstance, e);
       }
@@ -187,10 +232,57 @@ public class PersistentStateManager implements StateManager {
     // TODO: optional retry on transaction conflict
 
     var newState = transition(event, expectedCounter);
+    updateActiveState(newState._2);
     postTransition(newState._1, newState._2);
   }
 
-  private void initialize(WorkflowInstance workflowInstance) {
+  @Override
+  public void receiveAll(List<Event> events, long expectedCounter) throws IsClosedException {
+    ensureRunning();
+    if (events.isEmpty()) {
+      return;
+    }
+    if (events.stream().map(Event::workflowInstance).distinct().count() > 1) {
+      throw new IllegalArgumentException("Events are not for a single workflow instance");
+    }
+    log.info("Received events {}", events);
+
+    var newStates = transition(events, expectedCounter);
+    updateActiveState(newStates.get(newStates.size() - 1)._2);
+    postTransitions(newStates);
+  }
+
+  @Override
+  public Map<WorkflowInstance, Exception> receiveBatch(List<Event> events, Map<WorkflowInstance, Long> counters)
+      throws IsClosedException {
+    ensureRunning();
+    final Set<WorkflowInstance> instances = events.stream()
+        .map(Event::workflowInstance)
+        .collect(toSet());
+    if (instances.size() != events.size()) {
+      throw new IllegalArgumentException("Batch contains more than one event for a workflow instance");
+    }
+    log.info("Received batch of {} events", events.size());
+
+    final Map<WorkflowInstance, Exception> failures = new HashMap<>();
+    final List<Tuple2<SequenceEvent, RunState>> newStates = new ArrayList<>();
+    for (List<Event> chunk : Lists.partition(events, MAX_BATCH_TRANSACTION_SIZE)) {
+      newStates.addAll(transitionBatch(chunk, counters, failures));
+    }
+    newStates.forEach(newState -> updateActiveState(newState._2));
+    postTransitions(newStates);
+    return failures;
+  }
+
+  private void updateActiveState(RunState runState) {
+    if (runState.state().isTerminal()) {
+      activeStates.remove(runState.workflowInstance(), runState.counter());
+    } else {
+      activeStates.put(runState);
+    }
+  }
+
+  private RunState initialize(WorkflowInstance workflowInstance) {
     // Write active state to datastore
 
     final long counter;
@@ -209,6 +301,8 @@ public class PersistentStateManager implements StateManager {
         }
         return tx.writeActiveState(workflowInstance, runState);
       });
+      activeStates.put(runState);
+      return runState;
     } catch (TransactionException e) {
       if (e.isAlreadyExists()) {
         throw new AlreadyInitializedException("Workflow instance is already triggered: " + workflowInstance);
@@ -229,65 +323,149 @@ public class PersistentStateManager implements StateManager {
   }
 
   private Tuple2<SequenceEvent, RunState> transition(Event event, long expectedCounter) {
-    try {
-      return storage.runInTransaction(tx -> {
-
-        // Read active state from datastore
-        final Optional<RunState> currentRunState =
-            tx.readActiveState(event.workflowInstance());
-        if (!currentRunState.isPresent()) {
-          String message = "Received event for unknown workflow instance: " + event;
-          log.warn(message);
-          throw new IllegalArgumentException(message);
-        }
-
-        // Verify counters for in-order event processing
-        verifyCounter(event, expectedCounter, currentRunState.get());
-        log.info("Received event (verified) {}", event);
-
-        final RunState nextRunState;
-        try {
-          nextRunState = currentRunState.get().transition(event, time);
-        } catch (IllegalStateException e) {
-          // TODO: illegal state transitions might become common as multiple scheduler
-          //       instances concurrently consume events from k8s.
-          log.warn("Illegal state transition", e);
-          throw e;
-        }
-
-        // Resource limiting occurs by throwing here, or by failing the commit with a conflict.
-        updateResourceCounters(tx, event, currentRunState.get(), nextRunState);
-
-        // Write new state to datastore (or remove it if terminal)
-        if (nextRunState.state().isTerminal()) {
-          tx.deleteActiveState(event.workflowInstance());
-        } else {
-          tx.updateActiveState(event.workflowInstance(), nextRunState);
-        }
-
-        final SequenceEvent sequenceEvent =
-            SequenceEvent.create(event, nextRunState.counter(), nextRunState.timestamp());
+    return transition(List.of(event), expectedCounter).get(0);
+  }
 
-        return Tuple.of(sequenceEvent, nextRunState);
-      });
+  private List<Tuple2<SequenceEvent, RunState>> transition(List<Event> events, long expectedCounter) {
+    final WorkflowInstance workflowInstance = events.get(0).workflowInstance();
+    // Log a single event as is, as most transitions are of a single event
+    final Object logged = events.size() == 1 ? events.get(0) : events;
+    try {
+      return storage.runInTransaction(tx -> transition(tx, events, expectedCounter));
     } catch (TransactionException e) {
       if (e.isConflict()) {
         log.debug("Transaction conflict during workflow instance transition. Aborted: {}, counter={}",
-            event, expectedCounter);
+            logged, expectedCounter);
+        activeStates.invalidate(workflowInstance);
         throw new StateTransitionConflictException(e);
       } else {
         log.debug("Transaction failure during workflow instance transition: {}, counter={}",
-            event, expectedCounter, e);
+            logged, expectedCounter, e);
         throw new RuntimeException(e);
       }
     } catch (Exception e) {
       log.debug("Failure during workflow instance transition: {}, counter={}",
-          event, expectedCounter, e);
+          logged, expectedCounter, e);
       Throwables.throwIfUnchecked(e);
       throw new RuntimeException(e);
     }
   }
 
+  private Tuple2<SequenceEvent, RunState> transition(StorageTransaction tx, Event event, long expectedCounter)
+      throws IOException {
+    return transition(tx, List.of(event), expectedCounter).get(0);
+  }
+
+  /**
+   * Apply a sequence of events for a single workflow instance in order, reading its active state once and
+   * writing only the resulting state. The expected counter is verified against the first event.
+   */
+  private List<Tuple2<SequenceEvent, RunState>> transition(StorageTransaction tx, List<Event> events,
+                                                           long expectedCounter) throws IOException {
+    final WorkflowInstance workflowInstance = events.get(0).workflowInstance();
+
+    // Read active state from datastore
+    final Optional<RunState> currentRunState = tx.readActiveState(workflowInstance);
+    if (!currentRunState.isPresent()) {
+      String message = "Received event for unknown workflow instance: " + events.get(0);
+      log.warn(message);
+      throw new IllegalArgumentException(message);
+    }
+
+    // Verify counters for in-order event processing
+    verifyCounter(events.get(0), expectedCounter, currentRunState.get());
+
+    final List<Tuple2<SequenceEvent, RunState>> newStates = new ArrayList<>(events.size());
+    RunState runState = currentRunState.get();
+    for (Event event : events) {
+      log.info("Received event (verified) {}", event);
+
+      final RunState nextRunState;
+      try {
+        nextRunState = runState.transition(event, time);
+      } catch (IllegalStateException e) {
+        // TODO: illegal state transitions might become common as multiple scheduler
+        //       instances concurrently consume events from k8s.
+        log.warn("Illegal state transition", e);
+        throw e;
+      }
+
+      // Resource limiting occurs by throwing here, or by failing the commit with a conflict.
+      updateResourceCounters(tx, event, runState, nextRunState);
+
+      newStates.add(Tuple.of(SequenceEvent.create(event, nextRunState.counter(), nextRunState.timestamp()),
+          nextRunState));
+      runState = nextRunState;
+    }
+
+    // Write new state to datastore (or remove it if terminal)
+    if (runState.state().isTerminal()) {
+      tx.deleteActiveState(workflowInstance);
+    } else {
+      tx.updateActiveState(workflowInstance, runState);
+    }
+
+    return newStates;
+  }
+
+  /**
+   * Transition a chunk of events for distinct workflow instances in a single transaction. An event that fails
+   * aborts the transaction, as it might already have added writes to it, and the transaction is retried without
+   * that event. On a commit conflict the events are transitioned one by one instead.
+   */
+  private List<Tuple2<SequenceEvent, RunState>> transitionBatch(List<Event> events,
+                                                                 Map<WorkflowInstance, Long> counters,
+                                                                 Map<WorkflowInstance, Exception> failures) {
+    final List<Event> pending = new ArrayList<>(events);
+    while (!pending.isEmpty()) {
+      try {
+        return storage.runInTransaction(tx -> {
+          final List<Tuple2<SequenceEvent, RunState>> newStates = new ArrayList<>();
+          for (Event event : pending) {
+            try {
+              newStates.add(transition(tx, event, counters.getOrDefault(event.workflowInstance(), Long.MAX_VALUE)));
+            } catch (Exception e) {
+              throw new BatchEventException(event, e);
+            }
+          }
+          return newStates;
+        });
+      } catch (BatchEventException e) {
+        log.debug("Failure during batch transition, retrying batch without event: {}", e.event, e.getCause());
+        failures.put(e.event.workflowInstance(), (Exception) e.getCause());
+        pending.remove(e.event);
+      } catch (TransactionException e) {
+        if (e.isConflict()) {
+          log.debug("Transaction conflict during batch transition, transitioning events one by one: {}",
+              pending);
+          return transitionEach(pending, counters, failures);
+        }
+        log.debug("Transaction failure during batch transition: {}", pending, e);
+        pending.forEach(event -> failures.put(event.workflowInstance(), e));
+        return List.of();
+      } catch (Exception e) {
+        log.debug("Failure during batch transition: {}", pending, e);
+        pending.forEach(event -> failures.put(event.workflowInstance(), e));
+        return List.of();
+      }
+    }
+    return List.of();
+  }
+
+  private List<Tuple2<SequenceEvent, RunState>> transitionEach(List<Event> events,
+                                                                Map<WorkflowInstance, Long> counters,
+                                                                Map<WorkflowInstance, Exception> failures) {
+    final List<Tuple2<SequenceEvent, RunState>> newStates = new ArrayList<>();
+    for (Event event : events) {
+      try {
+        newStates.add(transition(event, counters.getOrDefault(event.workflowInstance(), Long.MAX_VALUE)));
+      } catch (Exception e) {
+        failures.put(event.workflowInstance(), e);
+      }
+    }
+    return newStates;
+  }
+
   private void updateResourceCounters(StorageTransaction tx, Event event,
                                       RunState currentRunState, RunState nextRunState) throws IOException {
     // increment counters if event is dequeue
@@ -377,6 +555,34 @@ public class PersistentStateManager implements StateManager {
       log.warn("Error writing event {}", sequenceEvent, e);
     }
 
+    consumeTransition(sequenceEvent, runState);
+  }
+
+  private void postTransitions(List<Tuple2<SequenceEvent, RunState>> newStates) {
+    if (newStates.isEmpty()) {
+      return;
+    }
+
+    // Write all events to bigtable in one batch
+    final List<SequenceEvent> sequenceEvents = newStates.stream()
+        .map(newState -> newState._1)
+        .collect(toList());
+    try {
+      storage.writeEvents(sequenceEvents);
+    } catch (IOException e) {
+      log.warn("Error writing events {}", sequenceEvents, e);
+    }
+
+    for (var newState : newStates) {
+      try {
+        consumeTransition(newState._1, newState._2);
+      } catch (Exception e) {
+        log.warn("Error when invoking output handler: {}", newState._2.workflowInstance(), e);
+      }
+    }
+  }
+
+  private void consumeTransition(SequenceEvent sequenceEvent, RunState runState) {
     // Publish event
     try {
       eventConsumerExecutor.execute(withMDC(() -> eventConsumer.accept(sequenceEvent, runState)));
@@ -394,16 +600,31 @@ public class PersistentStateManager implements StateManager {
 
   @Override
   public Set<WorkflowInstance> listActiveInstances() {
-    return Try.of(storage::listActiveInstances).get();
+    ensureActiveStatesLoaded();
+    return activeStates.instances();
   }
 
   @Override
   public Map<WorkflowInstance, RunState> getActiveStates() {
-    try {
-      return storage.readActiveStates();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    ensureActiveStatesLoaded();
+    return activeStates.snapshot();
+  }
+
+  /**
+   * Get the number of active instances in a state, by trigger type. The count is maintained in memory along with
+   * the active states and does not require iterating over them.
+   *
+   * @param triggerType The trigger type, or {@code "none"} for instances without a trigger.
+   */
+  public long getActiveStateCount(RunState.State state, String triggerType) {
+    ensureActiveStatesLoaded();
+    return activeStates.count(state, triggerType);
+  }
+
+  @Override
+  public int getActiveStateCountByBackfill(String backfillId) {
+    ensureActiveStatesLoaded();
+    return activeStates.countByBackfill(backfillId);
   }
 
   @Override
@@ -417,11 +638,17 @@ public class PersistentStateManager implements StateManager {
 
   @Override
   public Optional<RunState> getActiveState(WorkflowInstance workflowInstance) {
+    if (activeStates.contains(workflowInstance)) {
+      return activeStates.get(workflowInstance);
+    }
+    final Optional<RunState> runState;
     try {
-      return storage.readActiveState(workflowInstance);
+      runState = storage.readActiveState(workflowInstance);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
+    runState.ifPresent(activeStates::put);
+    return runState.flatMap(state -> activeStates.get(workflowInstance));
   }
 
   @Override
@@ -438,4 +665,14 @@ public class PersistentStateManager implements StateManager {
       throw new IsClosedException();
     }
   }
+
+  private static class BatchEventException extends RuntimeException {
+
+    private final Event event;
+
+    BatchEventException(Event event, Exception cause) {
+      super(cause);
+      this.event = event;
+    }
+  }
 }
@@ -25,6 +25,7 @@ import com.spotify.styx.model.TriggerParameters;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.util.IsClosedException;
 import java.io.Closeable;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -71,11 +72,50 @@ public interface StateManager extends Closeable {
    */
   void receive(Event event, long counter) throws IsClosedException;
 
+  /**
+   * Receive an ordered sequence of {@link Event}s for a single workflow instance and apply them to the
+   * corresponding active {@link RunState} in a single storage transaction. Either all events are
+   * transitioned or none of them.
+   *
+   * @param events  The events to receive, in order, all for the same workflow instance
+   * @param counter The state counter upon which the first event must act upon
+   * @throws IsClosedException if the state receiver is closed and can not handle events
+   */
+  void receiveAll(List<Event> events, long counter) throws IsClosedException;
+
+  /**
+   * Receive a batch of {@link Event}s for distinct workflow instances and route each of them to the
+   * corresponding active {@link RunState}. The events are transitioned in as few storage transactions as
+   * possible. A failure to transition one event does not prevent the other events from being transitioned.
+   *
+   * @param events   The events to receive, at most one per workflow instance
+   * @param counters The state counters upon which the events must act upon, keyed by workflow instance.
+   *                 Events for workflow instances without a counter are not verified against a counter.
+   * @return The failures of the events that could not be transitioned, keyed by workflow instance
+   * @throws IsClosedException if the state receiver is closed and can not handle events
+   */
+  Map<WorkflowInstance, Exception> receiveBatch(List<Event> events, Map<WorkflowInstance, Long> counters)
+      throws IsClosedException;
+
+  /**
+   * Like {@link #receiveBatch(List, Map)} but without verifying state counters.
+   */
+  default Map<WorkflowInstance, Exception> receiveBatch(List<Event> events) throws IsClosedException {
+    return receiveBatch(events, Map.of());
+  }
+
   /**
    * Get a map of all active {@link WorkflowInstance} states filtered by triggerId.
    */
   Map<WorkflowInstance, RunState> getActiveStatesByTriggerId(String triggerId);
 
+  /**
+   * Get the number of active {@link WorkflowInstance}s triggered by a backfill.
+   */
+  default int getActiveStateCountByBackfill(String backfillId) {
+    return getActiveStatesByTriggerId(backfillId).size();
+  }
+
   /**
    * Like {@link #receive(Event)} but ignoring the {@link IsClosedException} exception.
    *
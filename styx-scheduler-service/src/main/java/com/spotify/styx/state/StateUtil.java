@@ -115,6 +115,13 @@ public final class StateUtil {
       return false;
     }
 
+    return !timeoutDeadline(workflowOpt, runState, timeout).isAfter(instant);
+  }
+
+  /**
+   * Get the time at which an instance times out if it remains in its current state.
+   */
+  public static Instant timeoutDeadline(Optional<Workflow> workflowOpt, RunState runState, Duration timeout) {
     final Duration effectiveTimeout = runState.state() == RunState.State.RUNNING
                                       ? workflowOpt
                                           .flatMap(workflow -> workflow.configuration().runningTimeout())
@@ -122,11 +129,9 @@ public final class StateUtil {
                                       : timeout;
     final Duration sanitizedTimeout = effectiveTimeout.compareTo(timeout) < 0 ? effectiveTimeout : timeout;
 
-    final Instant deadline = Instant
+    return Instant
         .ofEpochMilli(runState.timestamp())
         .plus(sanitizedTimeout);
-
-    return !deadline.isAfter(instant);
   }
 
   public static boolean isConsumingResources(RunState.State state) {
@@ -0,0 +1,280 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.state.handlers;
+
+import com.spotify.styx.api.RunStateDataPayload.RunStateData;
+import com.spotify.styx.model.Backfill;
+import com.spotify.styx.model.SequenceEvent;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.state.BackfillProgress;
+import com.spotify.styx.state.RunState;
+import com.spotify.styx.state.Trigger;
+import com.spotify.styx.storage.Storage;
+import com.spotify.styx.util.ParameterUtil;
+import com.spotify.styx.util.ReplayEvents;
+import com.spotify.styx.util.RetryUtil;
+import com.spotify.styx.util.ScheduleIterator;
+import com.spotify.styx.util.Time;
+import com.spotify.styx.util.TriggerUtil;
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An event consumer that records the terminal states of backfill partitions in the {@link BackfillProgress} of
+ * their backfill, so that the progress of a backfill can be read without replaying the events of its partitions.
+ *
+ * <p>Events only buffer the terminal states, which are coalesced per backfill and written by {@link #flush()} in
+ * one transaction per backfill. A backfill whose write fails keeps its terminal states buffered and is retried
+ * with a jittered exponential backoff. {@link #reconcile()} fills in partitions whose terminal state was never
+ * recorded, e.g. because the scheduler stopped before flushing, by replaying their events.
+ */
+public class BackfillProgressHandler implements BiConsumer<SequenceEvent, RunState>, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BackfillProgressHandler.class);
+
+  private static final RetryUtil RETRY_UTIL = new RetryUtil(Duration.ofSeconds(1), 6);
+  private static final int MAX_REPLAYED_PARTITIONS = 100;
+
+  private final Storage storage;
+  private final Time time;
+
+  // Terminal states not yet written, per backfill. A buffer is owned by the flush once removed from the map.
+  private final ConcurrentMap<String, Map<WorkflowInstance, RunState.State>> pending = new ConcurrentHashMap<>();
+
+  // Backfills seen since start that may still have partitions without a recorded terminal state
+  private final Set<String> unreconciled = ConcurrentHashMap.newKeySet();
+
+  // Guarded by this
+  private final Map<String, Backoff> backoffs = new HashMap<>();
+
+  public BackfillProgressHandler(Storage storage, Time time) {
+    this.storage = Objects.requireNonNull(storage);
+    this.time = Objects.requireNonNull(time);
+  }
+
+  @Override
+  public void accept(SequenceEvent sequenceEvent, RunState state) {
+    if (!state.state().isTerminal()) {
+      return;
+    }
+    final Optional<Trigger> trigger = state.data().trigger();
+    if (trigger.isEmpty() || !TriggerUtil.isBackfill(trigger.get())) {
+      return;
+    }
+
+    final String backfillId = TriggerUtil.triggerId(trigger.get());
+    unreconciled.add(backfillId);
+    pending.compute(backfillId, (id, states) -> {
+      final Map<WorkflowInstance, RunState.State> buffer = states == null ? new LinkedHashMap<>() : states;
+      buffer.put(state.workflowInstance(), state.state());
+      return buffer;
+    });
+  }
+
+  /**
+   * Write the buffered terminal states of every backfill that is not backing off.
+   */
+  public synchronized void flush() {
+    final Instant now = time.get();
+    for (String backfillId : pending.keySet()) {
+      final Backoff backoff = backoffs.get(backfillId);
+      if (backoff != null && now.isBefore(backoff.nextAttempt)) {
+        continue;
+      }
+      final Map<WorkflowInstance, RunState.State> states = pending.remove(backfillId);
+      if (states == null) {
+        continue;
+      }
+      try {
+        record(backfillId, states);
+        backoffs.remove(backfillId);
+      } catch (IOException | RuntimeException e) {
+        // Terminal states buffered since take precedence over the ones that failed to be written
+        pending.merge(backfillId, states, (newer, failed) -> {
+          failed.putAll(newer);
+          return failed;
+        });
+        final int failures = backoff == null ? 1 : backoff.failures + 1;
+        final Duration delay = RETRY_UTIL.calculateDelay(failures);
+        backoffs.put(backfillId, new Backoff(failures, now.plus(delay)));
+        LOG.warn("Failed to record progress of backfill {} ({} partitions, {} consecutive failures), retrying in {}",
+            backfillId, states.size(), failures, delay, e);
+      }
+    }
+  }
+
+  /**
+   * Buffer the terminal states of the triggered partitions of backfills that have not been recorded, as read
+   * from their events. At most {@link #MAX_REPLAYED_PARTITIONS} partitions are replayed per call.
+   */
+  public void reconcile() {
+    final Map<String, Optional<Backfill>> backfills = new LinkedHashMap<>();
+    try {
+      storage.backfills(false).forEach(backfill -> backfills.put(backfill.id(), Optional.of(backfill)));
+      for (String backfillId : unreconciled) {
+        if (!backfills.containsKey(backfillId)) {
+          backfills.put(backfillId, storage.backfill(backfillId));
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to read backfills, not reconciling progress", e);
+      return;
+    }
+
+    int replayBudget = MAX_REPLAYED_PARTITIONS;
+    for (Map.Entry<String, Optional<Backfill>> entry : backfills.entrySet()) {
+      if (replayBudget <= 0) {
+        break;
+      }
+      if (entry.getValue().isEmpty() || entry.getValue().get().halted()) {
+        unreconciled.remove(entry.getKey());
+        continue;
+      }
+      try {
+        replayBudget -= reconcile(entry.getValue().get(), replayBudget);
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("Failed to reconcile progress of backfill {}", entry.getKey(), e);
+      }
+    }
+  }
+
+  /**
+   * Write the buffered terminal states, without retrying failed backfills.
+   */
+  @Override
+  public synchronized void close() {
+    backoffs.clear();
+    flush();
+  }
+
+  private int reconcile(Backfill backfill, int replayBudget) throws IOException {
+    final BackfillProgress progress = storage.backfillProgress(backfill.id())
+        .orElseGet(() -> BackfillProgress.create(backfill.id()));
+    final Map<WorkflowInstance, RunState> activeStates = storage.readActiveStatesByTriggerId(backfill.id());
+
+    final ScheduleIterator schedule = ScheduleIterator.of(backfill.schedule());
+    final Instant first = backfill.reverse() ? schedule.next(backfill.nextTrigger()) : backfill.start();
+    final Instant last = backfill.reverse() ? backfill.end() : backfill.nextTrigger();
+    final int firstPartition = BackfillProgress.partition(backfill, first);
+
+    int replayed = 0;
+    boolean complete = backfill.allTriggered();
+    final Iterator<Instant> instants = schedule.forward(first).takeWhile(last::isAfter).iterator();
+    for (int partition = firstPartition; instants.hasNext(); partition++) {
+      final Instant instant = instants.next();
+      if (progress.terminalState(partition).isPresent()) {
+        continue;
+      }
+      complete = false;
+      final WorkflowInstance workflowInstance = WorkflowInstance.create(backfill.workflowId(),
+          ParameterUtil.toParameter(backfill.schedule(), instant));
+      if (activeStates.containsKey(workflowInstance) || replayed == replayBudget) {
+        continue;
+      }
+      replayed++;
+      final Optional<RunState.State> state = ReplayEvents
+          .getBackfillRunStateData(workflowInstance, storage, backfill.id())
+          .map(RunStateData::state)
+          .map(RunState.State::valueOf)
+          .filter(RunState.State::isTerminal);
+      // Terminal states buffered by events are newer than the ones replayed
+      state.ifPresent(s -> pending.compute(backfill.id(), (id, states) -> {
+        final Map<WorkflowInstance, RunState.State> buffer = states == null ? new LinkedHashMap<>() : states;
+        buffer.putIfAbsent(workflowInstance, s);
+        return buffer;
+      }));
+    }
+
+    if (complete) {
+      unreconciled.remove(backfill.id());
+    }
+    return replayed;
+  }
+
+  private void record(String backfillId, Map<WorkflowInstance, RunState.State> states) throws IOException {
+    final Optional<Backfill> backfill = storage.backfill(backfillId);
+    if (backfill.isEmpty()) {
+      LOG.warn("Backfill not found, not recording progress of {} partitions: {}", states.size(), backfillId);
+      return;
+    }
+
+    final Map<Integer, RunState.State> partitionStates = new LinkedHashMap<>();
+    states.forEach((workflowInstance, state) -> {
+      final OptionalInt partition = partition(backfill.get(), workflowInstance);
+      if (partition.isPresent()) {
+        partitionStates.put(partition.getAsInt(), state);
+      } else {
+        LOG.warn("Instance not in backfill, not recording progress: {}: {}", backfillId, workflowInstance);
+      }
+    });
+    if (partitionStates.isEmpty()) {
+      return;
+    }
+
+    storage.runInTransaction(tx -> {
+      BackfillProgress progress = tx.backfillProgress(backfillId)
+          .orElseGet(() -> BackfillProgress.create(backfillId));
+      for (Map.Entry<Integer, RunState.State> entry : partitionStates.entrySet()) {
+        progress = progress.withTerminalState(entry.getKey(), entry.getValue());
+      }
+      return tx.store(progress);
+    });
+  }
+
+  private static OptionalInt partition(Backfill backfill, WorkflowInstance workflowInstance) {
+    final Instant instant;
+    try {
+      instant = ParameterUtil.parseAlignedInstant(workflowInstance.parameter(), backfill.schedule());
+    } catch (IllegalArgumentException e) {
+      return OptionalInt.empty();
+    }
+    if (instant.isBefore(backfill.start()) || !instant.isBefore(backfill.end())) {
+      return OptionalInt.empty();
+    }
+    return OptionalInt.of(BackfillProgress.partition(backfill, instant));
+  }
+
+  private static class Backoff {
+
+    private final int failures;
+    private final Instant nextAttempt;
+
+    Backoff(int failures, Instant nextAttempt) {
+      this.failures = failures;
+      this.nextAttempt = nextAttempt;
+    }
+  }
+}
@@ -35,6 +35,9 @@ import com.spotify.styx.util.IsClosedException;
 import com.spotify.styx.util.ResourceNotFoundException;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,31 +71,22 @@ public class DockerRunnerHandler implements OutputHandler {
           return;
         }
 
+        LOG.info("running:{}, spec:{}, state:{}", state.workflowInstance(), runSpec, state);
+        CompletionStage<Void> started;
         try {
-          LOG.info("running:{}, spec:{}, state:{}", state.workflowInstance(), runSpec, state);
-          dockerRunner.start(state.workflowInstance(), runSpec);
+          started = dockerRunner.startAsync(state.workflowInstance(), runSpec);
         } catch (Throwable e) {
-          try {
-            final String msg = "Failed the docker starting procedure for " + state.workflowInstance();
-            if (isUserError(e)) {
-              LOG.info("{}: {}", msg, e.getMessage());
-            } else {
-              LOG.error(msg, e);
-            }
-            stateManager.receive(Event.runError(state.workflowInstance(), e.getMessage()), state.counter());
-          } catch (IsClosedException isClosedException) {
-            LOG.warn("Failed to send 'runError' event", isClosedException);
-          }
-          return;
+          started = CompletableFuture.failedFuture(e);
         }
 
-        // Emit `submitted` _after_ starting execution to ensure that we retry in case of failure.
-        final Event submitted = Event.submitted(state.workflowInstance(), runSpec.executionId());
-        try {
-          stateManager.receive(submitted, state.counter());
-        } catch (IsClosedException isClosedException) {
-          LOG.warn("Could not emit 'submitted' event", isClosedException);
-        }
+        // Do not hold up the state transition while the execution is being submitted
+        started.whenComplete((ignore, e) -> {
+          if (e != null) {
+            runError(state, (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e);
+          } else {
+            submitted(state, runSpec);
+          }
+        });
         break;
 
       case SUBMITTED:
@@ -117,6 +111,30 @@ public class DockerRunnerHandler implements OutputHandler {
     }
   }
 
+  private void runError(RunState state, Throwable e) {
+    try {
+      final String msg = "Failed the docker starting procedure for " + state.workflowInstance();
+      if (isUserError(e)) {
+        LOG.info("{}: {}", msg, e.getMessage());
+      } else {
+        LOG.error(msg, e);
+      }
+      stateManager.receive(Event.runError(state.workflowInstance(), e.getMessage()), state.counter());
+    } catch (IsClosedException isClosedException) {
+      LOG.warn("Failed to send 'runError' event", isClosedException);
+    }
+  }
+
+  private void submitted(RunState state, RunSpec runSpec) {
+    // Emit `submitted` _after_ starting execution to ensure that we retry in case of failure.
+    final Event submitted = Event.submitted(state.workflowInstance(), runSpec.executionId());
+    try {
+      stateManager.receive(submitted, state.counter());
+    } catch (IsClosedException isClosedException) {
+      LOG.warn("Could not emit 'submitted' event", isClosedException);
+    }
+  }
+
   private boolean isUserError(Throwable e) {
     return e instanceof InvalidExecutionException;
   }
@@ -24,17 +24,20 @@ import static com.spotify.styx.state.handlers.HandlerUtil.argsReplace;
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.spotify.styx.MissingRequiredPropertyException;
+import com.spotify.styx.WorkflowCache;
 import com.spotify.styx.model.Event;
 import com.spotify.styx.model.ExecutionDescription;
 import com.spotify.styx.model.Workflow;
+import com.spotify.styx.model.WorkflowConfiguration;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.state.OutputHandler;
 import com.spotify.styx.state.RunState;
 import com.spotify.styx.state.StateData;
 import com.spotify.styx.state.StateManager;
-import com.spotify.styx.storage.Storage;
 import com.spotify.styx.util.IsClosedException;
 import com.spotify.styx.util.ResourceNotFoundException;
 import com.spotify.styx.util.WorkflowValidator;
@@ -54,15 +57,22 @@ public class ExecutionDescriptionHandler implements OutputHandler {
 
   private static final String STYX_RUN = "styx-run";
 
-  private final Storage storage;
+  private static final long MAX_CACHED_VALIDATIONS = 10_000;
+
+  private final WorkflowCache workflowCache;
   private final StateManager stateManager;
   private final WorkflowValidator validator;
 
+  // Validation errors of recently prepared workflow configurations
+  private final Cache<WorkflowConfiguration, List<String>> validationErrors = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_VALIDATIONS)
+      .build();
+
   public ExecutionDescriptionHandler(
-      Storage storage,
+      WorkflowCache workflowCache,
       StateManager stateManager,
       WorkflowValidator validator) {
-    this.storage = requireNonNull(storage);
+    this.workflowCache = requireNonNull(workflowCache);
     this.stateManager = requireNonNull(stateManager);
     this.validator = requireNonNull(validator);
   }
@@ -106,7 +116,7 @@ public class ExecutionDescriptionHandler implements OutputHandler {
       throws IOException, MissingRequiredPropertyException {
     final WorkflowId workflowId = workflowInstance.workflowId();
 
-    final Workflow workflow = storage.workflow(workflowId).orElseThrow(
+    final Workflow workflow = workflowCache.workflow(workflowId).orElseThrow(
         () -> new ResourceNotFoundException(format("Missing %s, halting %s",
                                                    workflowId, workflowInstance)));
 
@@ -116,7 +126,7 @@ public class ExecutionDescriptionHandler implements OutputHandler {
                                                           workflowInstance))
     );
 
-    final Collection<String> errors = validator.validateWorkflow(workflow);
+    final Collection<String> errors = validate(workflow);
     if (!errors.isEmpty()) {
       throw new MissingRequiredPropertyException(format(
           "%s configuration is invalid, halting %s. Errors: %s",
@@ -141,6 +151,16 @@ public class ExecutionDescriptionHandler implements OutputHandler {
         .build();
   }
 
+  private List<String> validate(Workflow workflow) {
+    final List<String> cached = validationErrors.getIfPresent(workflow.configuration());
+    if (cached != null) {
+      return cached;
+    }
+    final List<String> errors = validator.validateWorkflow(workflow);
+    validationErrors.put(workflow.configuration(), errors);
+    return errors;
+  }
+
   private static String createExecutionId() {
     return STYX_RUN + "-" + UUID.randomUUID().toString();
   }
@@ -20,33 +20,36 @@
 
 package com.spotify.styx.state.handlers;
 
-import static com.github.rholder.retry.StopStrategies.stopAfterDelay;
-import static com.github.rholder.retry.WaitStrategies.exponentialWait;
 import static com.spotify.styx.state.RunState.State.RUNNING;
 import static com.spotify.styx.state.RunState.State.SUBMITTED;
-import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-import com.cronutils.utils.VisibleForTesting;
-import com.github.rholder.retry.Attempt;
-import com.github.rholder.retry.Retryer;
-import com.github.rholder.retry.RetryerBuilder;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Throwables;
 import com.spotify.styx.model.ExecutionDescription;
 import com.spotify.styx.model.SequenceEvent;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.monitoring.Stats;
 import com.spotify.styx.publisher.Publisher;
 import com.spotify.styx.state.RunState;
+import java.time.Duration;
 import java.util.Objects;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.BiConsumer;
-import javaslang.control.Try;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * An event consumer that integrates {@link RunState.State} values with a {@link Publisher}.
+ *
+ * <p>Failed publications are retried with exponential backoff on a {@link ScheduledExecutorService} instead of
+ * blocking the consuming thread. Publications of an instance that arrive while an earlier one is being retried
+ * are chained after it, so the order is kept per instance as long as events of the same instance are delivered
+ * serially.
  */
 public class PublisherHandler implements BiConsumer<SequenceEvent, RunState> {
 
@@ -55,64 +58,43 @@ public class PublisherHandler implements BiConsumer<SequenceEvent, RunState> {
   private static final String DEPLOYING = "deploying";
   private static final String DEPLOYED = "deployed";
 
-  private final Retryer<Void> retryer;
+  private static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofMillis(100);
+  private static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(5);
+  private static final Duration DEFAULT_MAX_RETRY_DURATION = Duration.ofSeconds(30);
+
   private final Publisher publisher;
   private final Stats stats;
+  private final ScheduledExecutorService retryExecutor;
+  private final Duration initialBackoff;
+  private final Duration maxBackoff;
+  private final Duration maxRetryDuration;
 
-  public PublisherHandler(Publisher publisher, Stats stats) {
-    this(publisher, stats,
-        RetryerBuilder.<Void>newBuilder()
-            .retryIfException()
-            .withRetryListener(PublisherHandler::onPublishAttempt)
-            .withWaitStrategy(exponentialWait())
-            .withStopStrategy(stopAfterDelay(30, SECONDS))
-            .build());
-  }
+  private final ConcurrentMap<WorkflowInstance, CompletableFuture<Void>> retrying = new ConcurrentHashMap<>();
 
-  private static <V> void onPublishAttempt(Attempt<V> attempt) {
-    if (attempt.hasException()) {
-      LOG.warn("Failed to publish deploy event (attempt #{})", attempt.getAttemptNumber());
-    }
+  public PublisherHandler(Publisher publisher, Stats stats, ScheduledExecutorService retryExecutor) {
+    this(publisher, stats, retryExecutor, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF, DEFAULT_MAX_RETRY_DURATION);
   }
 
   @VisibleForTesting
-  PublisherHandler(Publisher publisher, Stats stats, Retryer<Void> retryer) {
+  PublisherHandler(Publisher publisher, Stats stats, ScheduledExecutorService retryExecutor,
+                   Duration initialBackoff, Duration maxBackoff, Duration maxRetryDuration) {
     this.publisher = Objects.requireNonNull(publisher);
     this.stats = Objects.requireNonNull(stats);
-    this.retryer = Objects.requireNonNull(retryer);
+    this.retryExecutor = Objects.requireNonNull(retryExecutor);
+    this.initialBackoff = Objects.requireNonNull(initialBackoff);
+    this.maxBackoff = Objects.requireNonNull(maxBackoff);
+    this.maxRetryDuration = Objects.requireNonNull(maxRetryDuration);
   }
 
   @Override
   public void accept(SequenceEvent sequenceEvent, RunState state) {
-    final WorkflowInstance workflowInstance = state.workflowInstance();
     switch (state.state()) {
       case SUBMITTED:
-        try {
-          Preconditions.checkArgument(state.data().executionDescription().isPresent());
-          final ExecutionDescription executionDescription = state.data().executionDescription().get();
-
-          retryer.call(
-              meteredPublishing(() -> publisher.deploying(workflowInstance, executionDescription),
-                  stats, DEPLOYING, SUBMITTED.name()));
-        } catch (Exception e) {
-          stats.recordPublishingError(DEPLOYING, SUBMITTED.name());
-          LOG.error("Failed to publish event for {} state", SUBMITTED.name(), e);
-        }
+        publish(state, DEPLOYING, publisher::deploying);
         break;
 
       case RUNNING:
-        final String type = "deployed";
-        try {
-          Preconditions.checkArgument(state.data().executionDescription().isPresent());
-          final ExecutionDescription executionDescription = state.data().executionDescription().get();
-
-          retryer.call(
-              meteredPublishing(() -> publisher.deployed(workflowInstance, executionDescription),
-                  stats, type, RUNNING.name()));
-        } catch (Exception e) {
-          stats.recordPublishingError(DEPLOYED, RUNNING.name());
-          LOG.error("Failed to publish event for {} state", RUNNING.name(), e);
-        }
+        publish(state, DEPLOYED, publisher::deployed);
         break;
 
       default:
@@ -120,18 +102,100 @@ public class PublisherHandler implements BiConsumer<SequenceEvent, RunState> {
     }
   }
 
-  private Callable<Void> meteredPublishing(Try.CheckedRunnable f, Stats stats, String type, String state) {
-    return () -> {
+  private void publish(RunState state, String type, PublishFn fn) {
+    final WorkflowInstance workflowInstance = state.workflowInstance();
+    final String stateName = state.state().name();
+    final ExecutionDescription executionDescription;
+    try {
+      Preconditions.checkArgument(state.data().executionDescription().isPresent());
+      executionDescription = state.data().executionDescription().get();
+    } catch (Exception e) {
+      stats.recordPublishingError(type, stateName);
+      LOG.error("Failed to publish event for {} state", stateName, e);
+      return;
+    }
+
+    final Publication publication = new Publication(
+        () -> fn.publish(workflowInstance, executionDescription), type, stateName);
+
+    // Swap in the new publication atomically, so that concurrent publications of an instance are always chained
+    final CompletableFuture<Void> previousDone = new CompletableFuture<>();
+    final CompletableFuture<Void> done = previousDone.thenCompose(ignored -> publication.start());
+    final CompletableFuture<Void> previous = retrying.put(workflowInstance, done);
+    done.whenComplete((ignored, e) -> retrying.remove(workflowInstance, done));
+
+    if (previous == null) {
+      previousDone.complete(null);
+    } else {
+      previous.whenComplete((ignored, e) -> previousDone.complete(null));
+    }
+  }
+
+  @FunctionalInterface
+  private interface PublishFn {
+    void publish(WorkflowInstance workflowInstance, ExecutionDescription executionDescription) throws Exception;
+  }
+
+  @FunctionalInterface
+  private interface Attempt {
+    void run() throws Exception;
+  }
+
+  /**
+   * A single publication and its retries. Completes normally once it has either succeeded or been given up on.
+   */
+  private class Publication {
+
+    private final Attempt attempt;
+    private final String type;
+    private final String state;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private Publication(Attempt attempt, String type, String state) {
+      this.attempt = attempt;
+      this.type = type;
+      this.state = state;
+    }
+
+    private CompletableFuture<Void> start() {
+      attempt(1, Duration.ZERO);
+      return done;
+    }
+
+    private void attempt(int attemptNumber, Duration waited) {
       try {
-        f.run();
+        attempt.run();
         stats.recordPublishing(type, state);
-        return null;
-      } catch (Throwable e) {
+        done.complete(null);
+        return;
+      } catch (Exception e) {
         stats.recordPublishingError(type, state);
-        LOG.warn("Failed to publish event for {} state", state, e);
-        Throwables.throwIfUnchecked(e);
-        throw new RuntimeException(e);
+        LOG.warn("Failed to publish deploy event (attempt #{})", attemptNumber, e);
+      }
+
+      final Duration backoff = backoff(attemptNumber);
+      final Duration nextWaited = waited.plus(backoff);
+      if (nextWaited.compareTo(maxRetryDuration) > 0) {
+        giveUp(null);
+        return;
       }
-    };
+
+      try {
+        retryExecutor.schedule(() -> attempt(attemptNumber + 1, nextWaited), backoff.toMillis(), MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        giveUp(e);
+      }
+    }
+
+    private void giveUp(Exception cause) {
+      stats.recordPublishingError(type, state);
+      LOG.error("Failed to publish event for {} state", state, cause);
+      done.complete(null);
+    }
+
+    private Duration backoff(int attemptNumber) {
+      final Duration backoff = initialBackoff.multipliedBy(1L << Math.min(attemptNumber - 1, 30));
+      return backoff.compareTo(maxBackoff) > 0 ? maxBackoff : backoff;
+    }
   }
 }
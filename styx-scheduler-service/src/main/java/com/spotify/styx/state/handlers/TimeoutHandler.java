@@ -20,29 +20,51 @@
 
 package com.spotify.styx.state.handlers;
 
-import static com.spotify.styx.state.StateUtil.hasTimedOut;
+import static com.spotify.styx.state.StateUtil.timeoutDeadline;
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.spotify.styx.WorkflowCache;
 import com.spotify.styx.model.Event;
 import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowConfiguration;
-import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.state.OutputHandler;
 import com.spotify.styx.state.RunState;
 import com.spotify.styx.state.StateManager;
 import com.spotify.styx.state.TimeoutConfig;
 import com.spotify.styx.util.Time;
+import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.function.Supplier;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A {@link OutputHandler} that issues {@code timeout} events for instances that have timed out according to the
  * {@link TimeoutConfig} and the {@link WorkflowConfiguration#runningTimeout()}.
+ *
+ * <p>Instances that have not timed out yet when transitioned into a state are kept in a queue ordered by their
+ * deadline, and are timed out on the injected executor as soon as the deadline has passed. This makes timeout
+ * precision independent of how often the active states are ticked. A deadline is removed when the instance
+ * transitions again, and the timeout is issued with the counter of the state it was computed for, so that an
+ * instance that has moved on in the meantime is not timed out.
+ *
+ * <p>A deadline is computed again from the current workflow configuration before the instance is timed out, and
+ * {@link #refresh()} recomputes all deadlines and removes the ones of instances that are no longer in the state they
+ * were computed for, so that changes of the running timeout of a workflow also apply to queued deadlines.
  */
 public class TimeoutHandler implements OutputHandler {
 
@@ -51,27 +73,206 @@ public class TimeoutHandler implements OutputHandler {
   private final TimeoutConfig ttls;
   private final Time time;
   private final StateManager stateManager;
-  private final Supplier<Map<WorkflowId, Workflow>> workflows;
+  private final WorkflowCache workflowCache;
+  private final ScheduledExecutorService executor;
+
+  private final Object lock = new Object();
+  private final Map<WorkflowInstance, Deadline> deadlines = new HashMap<>();
+  private final TreeSet<Deadline> queue = new TreeSet<>(comparing((Deadline deadline) -> deadline.at)
+      .thenComparing(deadline -> deadline.state.workflowInstance(), WorkflowInstance.KEY_COMPARATOR));
+  private Instant scheduledWakeup;
 
   public TimeoutHandler(TimeoutConfig ttls, Time time, StateManager stateManager,
-                        Supplier<Map<WorkflowId, Workflow>> workflows) {
+                        WorkflowCache workflowCache, ScheduledExecutorService executor) {
     this.ttls = Objects.requireNonNull(ttls, "ttls");
     this.time = Objects.requireNonNull(time, "time");
     this.stateManager = Objects.requireNonNull(stateManager, "stateManager");
-    this.workflows = Objects.requireNonNull(workflows, "workflows");
+    this.workflowCache = Objects.requireNonNull(workflowCache, "workflowCache");
+    this.executor = Objects.requireNonNull(executor, "executor");
   }
 
   @Override
   public void transitionInto(RunState runState) {
-    var workflow = Optional.ofNullable(workflows.get().get(runState.workflowInstance().workflowId()));
-    if (hasTimedOut(workflow, runState, time.get(), ttls.ttlOf(runState.state()))) {
-      sendTimeout(runState.workflowInstance(), runState);
+    if (runState.state().isTerminal()) {
+      remove(runState);
+      return;
+    }
+    final Instant deadline = deadline(runState);
+    if (!deadline.isAfter(time.get())) {
+      remove(runState);
+      sendTimeout(runState);
+    } else {
+      offer(runState, deadline);
+    }
+  }
+
+  /**
+   * Recompute the deadlines of all queued instances from the current workflow configurations, and remove the
+   * deadlines of instances that are no longer active or have moved on from the state they were computed for.
+   */
+  public void refresh() {
+    final Map<WorkflowInstance, RunState> activeStates = stateManager.getActiveStates();
+    final List<Deadline> queued;
+    synchronized (lock) {
+      queued = List.copyOf(deadlines.values());
+    }
+    // Workflows are looked up without holding the lock, so deadlines may be offered or removed in the meantime
+    final Map<Deadline, Instant> recomputed = new IdentityHashMap<>();
+    for (Deadline deadline : queued) {
+      final RunState activeState = activeStates.get(deadline.state.workflowInstance());
+      // The deadline may be of a newer state than the active states read above, if it was offered since
+      if (activeState != null && activeState.counter() <= deadline.state.counter()) {
+        recomputed.put(deadline, deadline(deadline.state));
+      }
+    }
+    synchronized (lock) {
+      for (Deadline deadline : queued) {
+        if (deadlines.get(deadline.state.workflowInstance()) != deadline) {
+          continue;
+        }
+        final Instant at = recomputed.get(deadline);
+        if (at == null) {
+          // A newer state is queued by its own transition
+          deadlines.remove(deadline.state.workflowInstance());
+          queue.remove(deadline);
+        } else {
+          replace(deadline, at);
+        }
+      }
+      if (!queue.isEmpty()) {
+        scheduleWakeup(queue.first().at);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int size() {
+    synchronized (lock) {
+      return deadlines.size();
+    }
+  }
+
+  private Instant deadline(RunState runState) {
+    final Duration ttl = ttls.ttlOf(runState.state());
+    if (runState.state() != RunState.State.RUNNING) {
+      // Only the running timeout is configured per workflow
+      return timeoutDeadline(Optional.empty(), runState, ttl);
+    }
+    Optional<Workflow> workflow;
+    try {
+      workflow = workflowCache.workflow(runState.workflowInstance().workflowId());
+    } catch (IOException e) {
+      // The ttl is never shorter than the running timeout of the workflow, so this will not time out too early
+      log.warn("Failed to read workflow of {}, falling back to the default timeout", runState.workflowInstance(), e);
+      workflow = Optional.empty();
+    }
+    return timeoutDeadline(workflow, runState, ttl);
+  }
+
+  private void offer(RunState runState, Instant at) {
+    synchronized (lock) {
+      final Deadline current = deadlines.get(runState.workflowInstance());
+      if (current != null && current.state.counter() > runState.counter()) {
+        return;
+      }
+      if (current != null) {
+        queue.remove(current);
+      }
+      final Deadline deadline = new Deadline(runState, at);
+      deadlines.put(runState.workflowInstance(), deadline);
+      queue.add(deadline);
+      scheduleWakeup(at);
+    }
+  }
+
+  private void remove(RunState runState) {
+    synchronized (lock) {
+      final Deadline current = deadlines.get(runState.workflowInstance());
+      if (current != null && current.state.counter() <= runState.counter()) {
+        deadlines.remove(runState.workflowInstance());
+        queue.remove(current);
+      }
+    }
+  }
+
+  private void replace(Deadline deadline, Instant at) {
+    if (deadline.at.equals(at)) {
+      return;
+    }
+    final Deadline replacement = new Deadline(deadline.state, at);
+    queue.remove(deadline);
+    queue.add(replacement);
+    deadlines.put(deadline.state.workflowInstance(), replacement);
+  }
+
+  private void scheduleWakeup(Instant at) {
+    if (scheduledWakeup != null && !at.isBefore(scheduledWakeup)) {
+      return;
     }
+    scheduledWakeup = at;
+    final long delayMillis = Math.max(0, time.get().until(at, ChronoUnit.MILLIS));
+    executor.schedule(this::wakeup, delayMillis, TimeUnit.MILLISECONDS);
   }
 
-  private void sendTimeout(WorkflowInstance workflowInstance, RunState runState) {
+  private void wakeup() {
+    final Instant now;
+    final List<Deadline> due;
+    synchronized (lock) {
+      scheduledWakeup = null;
+      now = time.get();
+      due = queue.stream()
+          .takeWhile(deadline -> !deadline.at.isAfter(now))
+          .collect(toList());
+    }
+    // The timeout of the workflow may have been extended since the deadline was computed
+    final Map<Deadline, Instant> recomputed = new IdentityHashMap<>();
+    for (Deadline deadline : due) {
+      recomputed.put(deadline, deadline(deadline.state));
+    }
+    final List<RunState> timedOut = new ArrayList<>();
+    synchronized (lock) {
+      for (Deadline deadline : due) {
+        if (deadlines.get(deadline.state.workflowInstance()) != deadline) {
+          // Replaced or removed while the workflow was looked up
+          continue;
+        }
+        final Instant at = recomputed.get(deadline);
+        if (at.isAfter(now)) {
+          replace(deadline, at);
+          continue;
+        }
+        queue.remove(deadline);
+        deadlines.remove(deadline.state.workflowInstance());
+        timedOut.add(deadline.state);
+      }
+      if (!queue.isEmpty()) {
+        scheduleWakeup(queue.first().at);
+      }
+    }
+
+    for (RunState runState : timedOut) {
+      try {
+        sendTimeout(runState);
+      } catch (Exception e) {
+        log.warn("Failed to time out {}", runState.workflowInstance(), e);
+      }
+    }
+  }
+
+  private void sendTimeout(RunState runState) {
     log.info("Found stale state {} since {} for workflow {}; Issuing a timeout",
-        runState.state(), Instant.ofEpochMilli(runState.timestamp()), workflowInstance);
-    stateManager.receiveIgnoreClosed(Event.timeout(workflowInstance), runState.counter());
+        runState.state(), Instant.ofEpochMilli(runState.timestamp()), runState.workflowInstance());
+    stateManager.receiveIgnoreClosed(Event.timeout(runState.workflowInstance()), runState.counter());
+  }
+
+  private static class Deadline {
+
+    private final RunState state;
+    private final Instant at;
+
+    private Deadline(RunState state, Instant at) {
+      this.state = state;
+      this.at = at;
+    }
   }
 }
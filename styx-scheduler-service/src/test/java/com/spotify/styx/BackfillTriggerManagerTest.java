@@ -19,11 +19,11 @@
  */
 package com.spotify.styx;
 
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.spotify.styx.util.ParameterUtil.toParameter;
 import static com.spotify.styx.util.TimeUtil.instantsInRange;
 import static com.spotify.styx.util.TimeUtil.previousInstant;
 import static org.hamcrest.CoreMatchers.is;
-import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -32,18 +32,24 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.only;
+import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import com.google.cloud.datastore.DatastoreException;
 import com.google.common.collect.Lists;
 import com.spotify.styx.model.Backfill;
+import com.spotify.styx.model.Event;
 import com.spotify.styx.model.Resource;
 import com.spotify.styx.model.Schedule;
+import com.spotify.styx.model.SequenceEvent;
 import com.spotify.styx.model.StyxConfig;
 import com.spotify.styx.model.TriggerParameters;
 import com.spotify.styx.model.Workflow;
@@ -56,10 +62,12 @@ import com.spotify.styx.state.StateManager;
 import com.spotify.styx.state.Trigger;
 import com.spotify.styx.storage.Storage;
 import com.spotify.styx.storage.StorageTransaction;
+import com.spotify.styx.storage.TransactionException;
 import com.spotify.styx.storage.TransactionFunction;
 import com.spotify.styx.util.AlreadyInitializedException;
 import com.spotify.styx.util.Time;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -67,6 +75,9 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
@@ -78,6 +89,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -156,10 +168,13 @@ public class BackfillTriggerManagerTest {
 
   private Map<WorkflowInstance, RunState> activeStates;
 
+  private Map<WorkflowInstance, SequenceEvent> triggerEvents;
+
   @Before
   public void setUp() throws Exception {
     backfills = new LinkedHashMap<>(); // we need to keep entry order
     activeStates = new HashMap<>();
+    triggerEvents = new HashMap<>();
 
     doAnswer(a -> {
       Workflow workflow = a.getArgument(0);
@@ -170,10 +185,12 @@ public class BackfillTriggerManagerTest {
           parameter);
       RunState runState = RunState.fresh(workflowInstance);
       activeStates.put(workflowInstance, runState);
+      triggerEvents.put(workflowInstance, SequenceEvent.create(
+          Event.triggerExecution(workflowInstance, a.getArgument(1), a.getArgument(3)), 0L, 0L));
       return null;
     }).when(triggerListener).event(any(), any(), any(), any());
 
-    when(stateManager.getActiveStatesByTriggerId(anyString())).thenReturn(activeStates);
+    when(stateManager.getActiveStateCountByBackfill(anyString())).then(a -> activeStates.size());
 
     ArgumentCaptor<Backfill> backfillArgumentCaptor = ArgumentCaptor.forClass(Backfill.class);
     when(transaction.store(backfillArgumentCaptor.capture())).then(answer -> {
@@ -190,8 +207,9 @@ public class BackfillTriggerManagerTest {
         a -> a.<TransactionFunction>getArgument(0).apply(transaction));
 
     backfillTriggerManager = new BackfillTriggerManager(stateManager, storage,
+                                                        new WorkflowCache(storage, Duration.ZERO, TIME),
                                                         triggerListener, Stats.NOOP, TIME,
-                                                        (x) -> {});
+                                                        directExecutor(), directExecutor(), (x) -> {});
   }
 
   @After
@@ -349,6 +367,78 @@ public class BackfillTriggerManagerTest {
     verifyZeroInteractions(triggerListener);
   }
 
+  @Test
+  public void shouldTriggerBackfillsWithMostRemainingCapacityFirst() throws IOException {
+    final Workflow workflow = createWorkflow(WORKFLOW_ID1);
+    initWorkflow(workflow);
+
+    backfills.put(BACKFILL_1.id(), BACKFILL_1);
+    backfills.put(BACKFILL_3.id(), BACKFILL_3);
+
+    backfillTriggerManager.tick();
+
+    final InOrder inOrder = inOrder(triggerListener);
+    inOrder.verify(triggerListener).event(workflow, Trigger.backfill(BACKFILL_3.id()),
+        BACKFILL_3.nextTrigger(), TRIGGER_PARAMETERS);
+    inOrder.verify(triggerListener).event(workflow, Trigger.backfill(BACKFILL_1.id()),
+        BACKFILL_1.nextTrigger(), TRIGGER_PARAMETERS);
+  }
+
+  @Test
+  public void shouldTriggerBackfillsWaitingLongestFirst() throws IOException {
+    final Workflow workflow = createWorkflow(WORKFLOW_ID1);
+    initWorkflow(workflow);
+
+    final Backfill backfill1 = BACKFILL_1.builder().concurrency(1).build();
+    final Backfill backfill2 = BACKFILL_2.builder().concurrency(1).build();
+    backfills.put(backfill1.id(), backfill1);
+
+    backfillTriggerManager.tick();
+
+    // backfill 1 has triggered most recently and goes last
+    backfills.put(backfill2.id(), backfill2);
+    activeStates.clear();
+    reset(triggerListener);
+
+    backfillTriggerManager.tick();
+
+    final InOrder inOrder = inOrder(triggerListener);
+    inOrder.verify(triggerListener).event(any(), eq(Trigger.backfill(backfill2.id())), any(), any());
+    inOrder.verify(triggerListener).event(any(), eq(Trigger.backfill(backfill1.id())), any(), any());
+  }
+
+  @Test
+  public void shouldNotReadWorkflowOfBackfillWithoutCapacity() throws IOException {
+    backfills.put(BACKFILL_1.id(), BACKFILL_1);
+    when(stateManager.getActiveStateCountByBackfill(BACKFILL_1.id())).thenReturn(BACKFILL_1.concurrency());
+
+    backfillTriggerManager.tick();
+
+    verify(storage, never()).workflow(any());
+    verify(storage, never()).runInTransaction(any());
+    verifyZeroInteractions(triggerListener);
+  }
+
+  @Test
+  public void shouldRemoveTriggerMetricOfBackfillNoLongerListed() throws IOException {
+    final Workflow workflow = createWorkflow(WORKFLOW_ID1);
+    initWorkflow(workflow);
+    final Stats stats = mock(Stats.class);
+    backfillTriggerManager = new BackfillTriggerManager(stateManager, storage,
+                                                        new WorkflowCache(storage, Duration.ZERO, TIME),
+                                                        triggerListener, stats, TIME,
+                                                        directExecutor(), directExecutor(), (x) -> {});
+
+    backfills.put(BACKFILL_3.id(), BACKFILL_3);
+    backfillTriggerManager.tick();
+    verify(stats, never()).removeBackfillTriggerMetric(any());
+
+    // all triggered backfills are not listed
+    backfills.clear();
+    backfillTriggerManager.tick();
+    verify(stats).removeBackfillTriggerMetric(BACKFILL_3.id());
+  }
+
   @Test
   public void shouldNotTriggerIfAllTriggered() throws IOException {
     final Workflow workflow = createWorkflow(WORKFLOW_ID1);
@@ -476,27 +566,23 @@ public class BackfillTriggerManagerTest {
   }
 
   @Test
-  public void shouldTriggerAndUpdateBackfillsSynchronously() throws Exception {
+  public void shouldReserveBackfillPartitionsBeforeTriggeringThemConcurrently() throws Exception {
     final Workflow workflow = createWorkflow(WORKFLOW_ID1);
     initWorkflow(workflow);
 
     backfills.put(BACKFILL_1.id(), BACKFILL_1);
 
+    backfillTriggerManager = new BackfillTriggerManager(stateManager, storage,
+                                                        new WorkflowCache(storage, Duration.ZERO, TIME),
+                                                        triggerListener, Stats.NOOP, TIME,
+                                                        directExecutor(), executor, (x) -> {});
+
     // Collect unfinished triggering futures as the trigger listener is called
     final BlockingQueue<CompletableFuture<Void>> triggerProcessingFutures =
         new LinkedBlockingQueue<>();
 
     doAnswer(a -> {
       CompletableFuture<Void> processed = new CompletableFuture<>();
-      Workflow workflow1 = a.getArgument(0);
-      Instant instant = a.getArgument(2);
-
-      final String parameter = toParameter(workflow1.configuration().schedule(), instant);
-      final WorkflowInstance workflowInstance = WorkflowInstance.create(workflow1.id(),
-                                                                        parameter);
-      RunState runState = RunState.fresh(workflowInstance);
-      activeStates.put(workflowInstance, runState);
-
       triggerProcessingFutures.add(processed);
       return processed.join();
     }).when(triggerListener)
@@ -508,22 +594,156 @@ public class BackfillTriggerManagerTest {
     final List<Instant> instants = instantsInRange(BACKFILL_1.start(), BACKFILL_1.end(),
         workflow.configuration().schedule());
 
-    // Go through each expected trigger sequentially and verify that the next partition is not
-    // triggered before the future for the previous partition trigger is completed
+    // All partitions up to the concurrency are triggered without waiting for each other
+    final List<CompletableFuture<Void>> triggersProcessed = new ArrayList<>();
     for (int i = 0; i < BACKFILL_1.concurrency(); i++) {
-      final Instant instant = instants.get(i);
+      triggersProcessed.add(triggerProcessingFutures.poll(1, TimeUnit.MINUTES));
+      verify(triggerListener, timeout(60_000))
+          .event(any(), any(), eq(instants.get(i)), any());
+    }
 
-      final CompletableFuture<Void> triggerProcessed = triggerProcessingFutures.poll(1,
-                                                                                     TimeUnit.MINUTES);
-      assertThat(triggerProcessingFutures.isEmpty(), is(true));
+    // The backfill is progressed once, before the partitions are triggered
+    verify(transaction)
+        .store(BACKFILL_1.builder().nextTrigger(instants.get(BACKFILL_1.concurrency())).build());
+    triggersProcessed.forEach(triggerProcessed -> triggerProcessed.complete(null));
 
-      verify(triggerListener, timeout(60_000))
-          .event(any(), any(), eq(instant), any());
+    verify(triggerListener, timeout(60_000).times(BACKFILL_1.concurrency())).event(any(), any(), any(), any());
+    verify(transaction).store(any(Backfill.class));
+  }
 
-      triggerProcessed.complete(null);
-      verify(transaction, timeout(60_000))
-          .store(BACKFILL_1.builder().nextTrigger(instants.get(i + 1)).build());
-    }
+  @Test
+  public void shouldNotTriggerPartitionsIfReservationConflicts() throws Exception {
+    final Workflow workflow = createWorkflow(WORKFLOW_ID1);
+    initWorkflow(workflow);
+
+    backfills.put(BACKFILL_1.id(), BACKFILL_1);
+    doAnswer(a -> {
+      a.<TransactionFunction>getArgument(0).apply(transaction);
+      throw new TransactionException(new DatastoreException(10, "conflict", "ABORTED"));
+    }).when(storage).runInTransaction(any());
+
+    backfillTriggerManager.tick();
+
+    verifyZeroInteractions(triggerListener);
+  }
+
+  @Test
+  public void shouldProgressUpToFirstPartitionFailingToTrigger() throws IOException {
+    final Workflow workflow = createWorkflow(WORKFLOW_ID1);
+    initWorkflow(workflow);
+
+    backfills.put(BACKFILL_3.id(), BACKFILL_3);
+
+    doThrow(new RuntimeException())
+        .when(triggerListener)
+        .event(any(), any(), eq(Instant.parse("2016-12-02T01:00:00Z")), eq(TRIGGER_PARAMETERS));
+
+    backfillTriggerManager.tick();
+
+    final List<Instant> instants = instantsInRange(BACKFILL_3.start(), BACKFILL_3.end(),
+        workflow.configuration().schedule());
+
+    instants.forEach(instant ->
+        verify(triggerListener).event(workflow, Trigger.backfill(BACKFILL_3.id()), instant, TRIGGER_PARAMETERS));
+
+    verify(transaction)
+        .store(BACKFILL_3.builder().nextTrigger(Instant.parse("2016-12-02T01:00:00Z")).build());
+  }
+
+  @Test
+  public void shouldRetryOnlyPartitionsFailingToTriggerInNextTick() throws IOException {
+    final Workflow workflow = createWorkflow(WORKFLOW_ID1);
+    initWorkflow(workflow);
+
+    backfills.put(BACKFILL_3.id(), BACKFILL_3);
+    readTriggerEvents();
+
+    doThrow(new RuntimeException())
+        .doNothing()
+        .when(triggerListener)
+        .event(any(), any(), eq(Instant.parse("2016-12-02T01:00:00Z")), eq(TRIGGER_PARAMETERS));
+
+    backfillTriggerManager.tick();
+    backfillTriggerManager.tick();
+
+    verify(triggerListener, times(2))
+        .event(workflow, Trigger.backfill(BACKFILL_3.id()), Instant.parse("2016-12-02T01:00:00Z"), TRIGGER_PARAMETERS);
+    verify(triggerListener)
+        .event(workflow, Trigger.backfill(BACKFILL_3.id()), Instant.parse("2016-12-02T02:00:00Z"), TRIGGER_PARAMETERS);
+    assertThat(backfills.get(BACKFILL_3.id()),
+        is(BACKFILL_3.builder().nextTrigger(BACKFILL_3.end()).allTriggered(true).build()));
+  }
+
+  @Test
+  public void shouldNotTriggerPartitionsTriggeredBeforeRestartAgain() throws IOException {
+    final Workflow workflow = createWorkflow(WORKFLOW_ID1);
+    initWorkflow(workflow);
+
+    // Released to retry 01, after 02 was triggered by a previous scheduler instance
+    final WorkflowInstance triggeredAhead = WorkflowInstance.create(WORKFLOW_ID1, "2016-12-02T02");
+    triggerEvents.put(triggeredAhead, SequenceEvent.create(
+        Event.triggerExecution(triggeredAhead, Trigger.backfill(BACKFILL_3.id()), TRIGGER_PARAMETERS), 0L, 0L));
+    backfills.put(BACKFILL_3.id(), BACKFILL_3.builder().nextTrigger(Instant.parse("2016-12-02T01:00:00Z")).build());
+    readTriggerEvents();
+
+    backfillTriggerManager.tick();
+
+    verify(triggerListener)
+        .event(workflow, Trigger.backfill(BACKFILL_3.id()), Instant.parse("2016-12-02T01:00:00Z"), TRIGGER_PARAMETERS);
+    verify(triggerListener, never())
+        .event(workflow, Trigger.backfill(BACKFILL_3.id()), Instant.parse("2016-12-02T02:00:00Z"), TRIGGER_PARAMETERS);
+    assertThat(backfills.get(BACKFILL_3.id()),
+        is(BACKFILL_3.builder().nextTrigger(BACKFILL_3.end()).allTriggered(true).build()));
+  }
+
+  @Test
+  public void shouldTriggerPartitionsTriggeredByOtherBackfill() throws IOException {
+    final Workflow workflow = createWorkflow(WORKFLOW_ID1);
+    initWorkflow(workflow);
+
+    final WorkflowInstance triggeredByOther = WorkflowInstance.create(WORKFLOW_ID1, "2016-12-02T01");
+    triggerEvents.put(triggeredByOther, SequenceEvent.create(
+        Event.triggerExecution(triggeredByOther, Trigger.backfill(BACKFILL_4.id()), TRIGGER_PARAMETERS), 0L, 0L));
+    backfills.put(BACKFILL_3.id(), BACKFILL_3);
+    readTriggerEvents();
+
+    backfillTriggerManager.tick();
+
+    verify(triggerListener)
+        .event(workflow, Trigger.backfill(BACKFILL_3.id()), Instant.parse("2016-12-02T01:00:00Z"), TRIGGER_PARAMETERS);
+  }
+
+  @Test
+  public void shouldNotTriggerBackfillsIfFailedToReadTriggeredPartitions() throws IOException {
+    final Workflow workflow = createWorkflow(WORKFLOW_ID1);
+    initWorkflow(workflow);
+
+    backfills.put(BACKFILL_3.id(), BACKFILL_3);
+    when(storage.readEvents(any())).thenThrow(new IOException("Bigtable is down"));
+
+    backfillTriggerManager.tick();
+
+    verifyZeroInteractions(triggerListener);
+    verify(transaction, never()).store(any(Backfill.class));
+  }
+
+  @Test
+  public void shouldNotReleaseFailedPartitionsOfHaltedBackfill() throws IOException {
+    final Workflow workflow = createWorkflow(WORKFLOW_ID1);
+    initWorkflow(workflow);
+
+    backfills.put(BACKFILL_3.id(), BACKFILL_3);
+
+    doAnswer(a -> {
+      backfills.put(BACKFILL_3.id(), backfills.get(BACKFILL_3.id()).builder().halted(true).build());
+      throw new RuntimeException();
+    }).when(triggerListener)
+        .event(any(), any(), eq(Instant.parse("2016-12-02T01:00:00Z")), eq(TRIGGER_PARAMETERS));
+
+    backfillTriggerManager.tick();
+
+    verify(transaction, never())
+        .store(BACKFILL_3.builder().nextTrigger(Instant.parse("2016-12-02T01:00:00Z")).build());
   }
 
   @Test
@@ -608,18 +828,27 @@ public class BackfillTriggerManagerTest {
   }
 
   @Test
-  public void shouldNotTriggerNextPartitionAndProgressIfBackfillHalted() throws Exception {
+  public void shouldNotReserveNextPartitionsIfBackfillHalted() throws Exception {
     final Workflow workflow = createWorkflow(WORKFLOW_ID1);
     initWorkflow(workflow);
 
     backfills.put(BACKFILL_1.id(), BACKFILL_1.builder().halted(true).build());
 
-    final boolean moveOn = backfillTriggerManager.triggerNextPartitionAndProgress(transaction,
-        BACKFILL_1.id(), workflow, BACKFILL_1.nextTrigger(), 10, false);
-    assertFalse(moveOn);
+    final BackfillTriggerManager.Reservation reservation = backfillTriggerManager.reserveNextPartitions(
+        transaction, BACKFILL_1.id(), BACKFILL_1.nextTrigger(), 10, Set.of());
+    assertThat(reservation.partitions(), is(List.of()));
+    verify(transaction, never()).store(any(Backfill.class));
     verifyNoMoreInteractions(triggerListener);
   }
 
+  private void readTriggerEvents() throws IOException {
+    when(storage.readEvents(any())).then(a -> {
+      final SortedSet<SequenceEvent> events = new TreeSet<>(SequenceEvent.COUNTER_COMPARATOR);
+      Optional.ofNullable(triggerEvents.get(a.<WorkflowInstance>getArgument(0))).ifPresent(events::add);
+      return events;
+    });
+  }
+
   private void initWorkflow(Workflow workflow) throws IOException {
     when(storage.workflow(workflow.id())).thenReturn(Optional.of(workflow));
   }
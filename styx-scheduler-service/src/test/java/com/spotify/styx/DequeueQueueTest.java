@@ -0,0 +1,131 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.state.RunState;
+import com.spotify.styx.state.RunState.State;
+import com.spotify.styx.state.StateData;
+import com.spotify.styx.util.Time;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.jmock.lib.concurrent.DeterministicScheduler;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DequeueQueueTest {
+
+  private static final WorkflowInstance INSTANCE_1 =
+      WorkflowInstance.create(WorkflowId.create("styx1", "example1"), "2016-12-02T01");
+  private static final WorkflowInstance INSTANCE_2 =
+      WorkflowInstance.create(WorkflowId.create("styx2", "example2"), "2016-12-02T01");
+
+  private Instant now = Instant.parse("2016-12-02T22:00:00Z");
+  private Time time = () -> now;
+
+  private final DeterministicScheduler executor = new DeterministicScheduler();
+  private final List<List<WorkflowInstance>> dequeued = new ArrayList<>();
+  private List<RunState> limited = List.of();
+
+  private DequeueQueue queue;
+
+  @Before
+  public void setUp() {
+    queue = new DequeueQueue(time, executor, instances -> {
+      dequeued.add(instances);
+      return limited;
+    });
+  }
+
+  @Test
+  public void shouldDequeueInstanceWhenEligible() {
+    final StateData data = StateData.newBuilder().retryDelayMillis(10_000L).build();
+    queue.transitionInto(RunState.create(INSTANCE_1, State.QUEUED, data, now, 1L));
+
+    executor.runUntilIdle();
+    assertThat(dequeued, is(empty()));
+
+    timePasses(10);
+    assertThat(dequeued, contains(List.of(INSTANCE_1)));
+    assertThat(queue.size(), is(0));
+  }
+
+  @Test
+  public void shouldDequeueEligibleInstancesInOnePass() {
+    queue.transitionInto(RunState.create(INSTANCE_1, State.QUEUED, StateData.zero(), now, 1L));
+    queue.transitionInto(RunState.create(INSTANCE_2, State.QUEUED, StateData.zero(), now, 1L));
+
+    executor.runUntilIdle();
+
+    assertThat(dequeued.size(), is(1));
+    assertThat(dequeued.get(0), containsInAnyOrder(INSTANCE_1, INSTANCE_2));
+  }
+
+  @Test
+  public void shouldForgetInstanceThatLeftQueued() {
+    queue.transitionInto(RunState.create(INSTANCE_1, State.QUEUED, StateData.zero(), now, 1L));
+    queue.transitionInto(RunState.create(INSTANCE_1, State.PREPARE, StateData.zero(), now, 2L));
+
+    executor.runUntilIdle();
+
+    assertThat(dequeued, is(empty()));
+    assertThat(queue.size(), is(0));
+  }
+
+  @Test
+  public void shouldIgnoreOfferForOlderState() {
+    queue.transitionInto(RunState.create(INSTANCE_1, State.QUEUED, StateData.zero(), now.plusSeconds(5), 2L));
+    queue.transitionInto(RunState.create(INSTANCE_1, State.QUEUED, StateData.zero(), now, 1L));
+
+    assertThat(queue.nextEligible(), is(Optional.of(now.plusSeconds(5))));
+  }
+
+  @Test
+  public void shouldOfferLimitedInstanceAgainAfterDelay() {
+    final RunState state = RunState.create(INSTANCE_1, State.QUEUED, StateData.zero(), now, 1L);
+    limited = List.of(state);
+    queue.transitionInto(state);
+
+    executor.runUntilIdle();
+    assertThat(dequeued, contains(List.of(INSTANCE_1)));
+    assertThat(queue.nextEligible(), is(Optional.of(now.plus(DequeueQueue.RETRY_DELAY))));
+
+    limited = List.of();
+    timePasses(DequeueQueue.RETRY_DELAY.getSeconds());
+    assertThat(dequeued, contains(List.of(INSTANCE_1), List.of(INSTANCE_1)));
+    assertThat(queue.size(), is(0));
+  }
+
+  private void timePasses(long seconds) {
+    now = now.plusSeconds(seconds);
+    executor.tick(seconds, TimeUnit.SECONDS);
+  }
+}
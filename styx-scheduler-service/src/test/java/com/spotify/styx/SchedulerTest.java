@@ -20,10 +20,15 @@
 
 package com.spotify.styx;
 
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.either;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anySetOf;
@@ -31,6 +36,7 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
@@ -125,14 +131,28 @@ public class SchedulerTest {
   @Mock Logger log;
 
   @Captor ArgumentCaptor<Event> eventCaptor = ArgumentCaptor.forClass(Event.class);
+  @Captor ArgumentCaptor<List<Event>> eventsCaptor;
 
   @Before
   public void setUp() throws Exception {
     workflows = new HashMap<>();
     when(gate.executionBlocker(any()))
         .thenReturn(WorkflowExecutionGate.NO_BLOCKER);
-    when(shardedCounter.counterHasSpareCapacity(anyString())).thenReturn(true);
+    when(shardedCounter.availableCapacity(anyString())).thenReturn(Long.MAX_VALUE);
     doNothing().when(stateManager).receiveIgnoreClosed(eventCaptor.capture(), anyLong());
+    when(stateManager.receiveBatch(anyList(), anyMap())).then(a -> {
+      final List<Event> events = a.getArgument(0);
+      final Map<WorkflowInstance, Long> counters = a.getArgument(1);
+      final Map<WorkflowInstance, Exception> failures = new HashMap<>();
+      for (Event event : events) {
+        try {
+          stateManager.receiveIgnoreClosed(event, counters.get(event.workflowInstance()));
+        } catch (Exception e) {
+          failures.put(event.workflowInstance(), e);
+        }
+      }
+      return failures;
+    });
 
     when(storage.resources()).thenReturn(resourceLimits);
     when(config.globalConcurrency()).thenReturn(Optional.empty());
@@ -148,7 +168,8 @@ public class SchedulerTest {
     when(stateManager.getActiveState(any())).then(a ->
         Optional.ofNullable(activeStates.get(a.<WorkflowInstance>getArgument(0))));
 
-    scheduler = new Scheduler(time, stateManager, storage, resourceDecorator,
+    scheduler = new Scheduler(time, stateManager, storage, new WorkflowCache(storage, Duration.ZERO, time),
+        resourceDecorator,
         stats, rateLimiter, gate, shardedCounter, executor, log);
   }
 
@@ -184,7 +205,7 @@ public class SchedulerTest {
 
   @Test
   public void shouldBeRateLimiting() throws Exception {
-    when(rateLimiter.acquire()).thenReturn(1.0);
+    when(rateLimiter.acquire(anyInt())).thenReturn(1.0);
 
     setResourceLimit("r1", 2);
     initWorkflow(workflowUsingResources(WORKFLOW_ID1, "r1"));
@@ -195,7 +216,7 @@ public class SchedulerTest {
     verify(stats).recordResourceUsed("r1", 0L);
     verify(stateManager).receiveIgnoreClosed(
         eq(Event.dequeue(INSTANCE_1, ImmutableSet.of("r1"))), anyLong());
-    verify(rateLimiter).acquire();
+    verify(rateLimiter).acquire(1);
   }
 
   @Test
@@ -337,7 +358,7 @@ public class SchedulerTest {
   public void shouldIssueInfoOnceIfRepeated() throws Exception {
     setResourceLimit("r1", 0);
     initWorkflow(workflowUsingResources(WORKFLOW_ID1, "r1"));
-    when(shardedCounter.counterHasSpareCapacity("r1")).thenReturn(false);
+    when(shardedCounter.availableCapacity("r1")).thenReturn(0L);
 
     InOrder inOrder = Mockito.inOrder(stateManager);
 
@@ -400,7 +421,7 @@ public class SchedulerTest {
   public void shouldNotExceedResourceLimitsIfAlreadyAtLimit() throws Exception {
     setResourceLimit("r1", 3);
     initWorkflow(workflowUsingResources(WORKFLOW_ID1, "r1"));
-    when(shardedCounter.counterHasSpareCapacity("r1")).thenReturn(false);
+    when(shardedCounter.availableCapacity("r1")).thenReturn(0L);
 
     // do not consume resources
     final WorkflowInstance i0 = instance(WORKFLOW_ID1, "i0");
@@ -417,7 +438,7 @@ public class SchedulerTest {
 
     scheduler.tick();
 
-    verify(shardedCounter, times(1)).counterHasSpareCapacity("r1");
+    verify(shardedCounter, times(1)).availableCapacity("r1");
     assertThat(eventCaptor.getAllValues().stream()
         .anyMatch(e -> EventUtil.name(e).equals("dequeue")), is(false));
     verify(stats).recordResourceDemanded("r1", 1L);
@@ -426,7 +447,7 @@ public class SchedulerTest {
     scheduler.tick();
 
     verify(stateManager, times(2)).listActiveInstances();
-    verify(shardedCounter, times(2)).counterHasSpareCapacity("r1");
+    verify(shardedCounter, times(2)).availableCapacity("r1");
     assertThat(eventCaptor.getAllValues().stream()
         .anyMatch(e -> EventUtil.name(e).equals("dequeue")), is(false));
     verify(stats, times(2)).recordResourceDemanded("r1", 1L);
@@ -437,7 +458,7 @@ public class SchedulerTest {
   public void shouldCacheResourceUsageExceededLookup() throws Exception {
     setResourceLimit("r1", 2);
     initWorkflow(workflowUsingResources(WORKFLOW_ID1, "r1"));
-    when(shardedCounter.counterHasSpareCapacity("r1")).thenReturn(false);
+    when(shardedCounter.availableCapacity("r1")).thenReturn(0L);
 
     final WorkflowInstance i0 = instance(WORKFLOW_ID1, "i0");
     final WorkflowInstance i1 = instance(WORKFLOW_ID1, "i1");
@@ -448,7 +469,7 @@ public class SchedulerTest {
 
     scheduler.tick();
 
-    verify(shardedCounter, times(1)).counterHasSpareCapacity("r1");
+    verify(shardedCounter, times(1)).availableCapacity("r1");
     verifyNoMoreInteractions(shardedCounter);
   }
 
@@ -456,7 +477,7 @@ public class SchedulerTest {
   public void shouldHandleResourceUsageExceededLookupFailure() throws Exception {
     setResourceLimit("r1", 2);
     initWorkflow(workflowUsingResources(WORKFLOW_ID1, "r1"));
-    when(shardedCounter.counterHasSpareCapacity("r1")).thenThrow(new RuntimeException("error!"));
+    when(shardedCounter.availableCapacity("r1")).thenThrow(new RuntimeException("error!"));
 
     final WorkflowInstance i0 = instance(WORKFLOW_ID1, "i0");
     final RunState rs0 = RunState.create(i0, State.QUEUED, time.get(), 17);
@@ -464,7 +485,7 @@ public class SchedulerTest {
 
     scheduler.tick();
 
-    verify(shardedCounter, times(1)).counterHasSpareCapacity("r1");
+    verify(shardedCounter, times(1)).availableCapacity("r1");
     verify(stateManager).receiveIgnoreClosed(Event.dequeue(i0, ImmutableSet.of("r1")), 17);
   }
 
@@ -643,6 +664,24 @@ public class SchedulerTest {
     verify(stats).recordTickDuration(any(), anyLong());
   }
 
+  @Test
+  public void shouldSendDequeuesInOneBatch() throws Exception {
+    initWorkflow(workflowUsingResources(WORKFLOW_ID1));
+    initWorkflow(workflowUsingResources(WORKFLOW_ID2));
+
+    var runState1 = RunState.create(INSTANCE_1, State.QUEUED, StateData.zero(), time.get(), 17);
+    var runState2 = RunState.create(INSTANCE_2, State.QUEUED, StateData.zero(), time.get(), 4711);
+    populateActiveStates(runState1, runState2);
+
+    scheduler.tick();
+
+    verify(stateManager).receiveBatch(eventsCaptor.capture(), eq(Map.of(INSTANCE_1, 17L, INSTANCE_2, 4711L)));
+    assertThat(eventsCaptor.getValue(), containsInAnyOrder(
+        Event.dequeue(INSTANCE_1, ImmutableSet.of()),
+        Event.dequeue(INSTANCE_2, ImmutableSet.of())));
+    verify(rateLimiter).acquire(2);
+  }
+
 
   @Test
   public void shouldHandleStateTransitionConflicts() throws Exception {
@@ -674,6 +713,87 @@ public class SchedulerTest {
     verify(log).debug("State transition conflict when scheduling instance: {}", INSTANCE_1, cause);
   }
 
+  @Test
+  public void shouldDequeueGivenInstancesOnly() throws Exception {
+    initWorkflow(workflowUsingResources(WORKFLOW_ID1));
+    initWorkflow(workflowUsingResources(WORKFLOW_ID2));
+    populateActiveStates(
+        RunState.create(INSTANCE_1, State.QUEUED, time.get()),
+        RunState.create(INSTANCE_2, State.QUEUED, time.get()));
+
+    final List<RunState> limited = scheduler.dequeue(List.of(INSTANCE_1));
+
+    assertThat(limited, is(List.of()));
+    verify(stateManager).receiveIgnoreClosed(eq(Event.dequeue(INSTANCE_1, ImmutableSet.of())), anyLong());
+    verify(stateManager, never()).receiveIgnoreClosed(eq(Event.dequeue(INSTANCE_2, ImmutableSet.of())), anyLong());
+    verify(stateManager, never()).listActiveInstances();
+  }
+
+  @Test
+  public void shouldReturnResourceLimitedInstancesOnDequeue() throws Exception {
+    setResourceLimit("r1", 1);
+    when(shardedCounter.availableCapacity("r1")).thenReturn(0L);
+    initWorkflow(workflowUsingResources(WORKFLOW_ID1, "r1"));
+    final RunState runState = RunState.create(INSTANCE_1, State.QUEUED, time.get());
+    populateActiveStates(runState);
+
+    final List<RunState> limited = scheduler.dequeue(List.of(INSTANCE_1));
+
+    assertThat(limited, is(List.of(runState)));
+    verify(stateManager, never()).receiveBatch(anyList(), anyMap());
+  }
+
+  @Test
+  public void shouldShareResourceCapacityRoundRobinAcrossWorkflows() throws Exception {
+    setResourceLimit("r1", 2);
+    when(shardedCounter.availableCapacity("r1")).thenReturn(2L);
+    initWorkflow(workflowUsingResources(WORKFLOW_ID1, "r1"));
+    initWorkflow(workflowUsingResources(WORKFLOW_ID2, "r1"));
+    populateActiveStates(
+        RunState.create(instance(WORKFLOW_ID1, "2016-12-02T01"), State.QUEUED, time.get()),
+        RunState.create(instance(WORKFLOW_ID1, "2016-12-02T02"), State.QUEUED, time.get()),
+        RunState.create(instance(WORKFLOW_ID1, "2016-12-02T03"), State.QUEUED, time.get()),
+        RunState.create(INSTANCE_2, State.QUEUED, time.get()));
+
+    scheduler.tick();
+
+    verify(shardedCounter).availableCapacity("r1");
+    final List<WorkflowId> dequeued = eventCaptor.getAllValues().stream()
+        .filter(event -> EventUtil.name(event).equals("dequeue"))
+        .map(event -> event.workflowInstance().workflowId())
+        .collect(toList());
+    assertThat(dequeued, containsInAnyOrder(WORKFLOW_ID1, WORKFLOW_ID2));
+  }
+
+  @Test
+  public void shouldNotUseResourceCapacityForBlockedInstances() throws Exception {
+    when(config.executionGatingEnabled()).thenReturn(true);
+    setResourceLimit("r1", 1);
+    when(shardedCounter.availableCapacity("r1")).thenReturn(1L);
+    final ExecutionBlocker blocker = ExecutionBlocker.of("missing dep", Duration.ofMinutes(17));
+    // Only consulted if the blocked instance is picked first, see below
+    lenient().when(gate.executionBlocker(INSTANCE_1)).thenReturn(
+        CompletableFuture.completedFuture(Optional.of(blocker)));
+    initWorkflow(workflowUsingResources(WORKFLOW_ID1, "r1"));
+    initWorkflow(workflowUsingResources(WORKFLOW_ID2, "r1"));
+    final RunState runState1 = RunState.create(INSTANCE_1, State.QUEUED, time.get());
+    final RunState runState2 = RunState.create(INSTANCE_2, State.QUEUED, time.get());
+    populateActiveStates(runState1, runState2);
+
+    final List<RunState> limited = scheduler.dequeue(List.of(INSTANCE_1, INSTANCE_2));
+
+    // Candidates are picked in random order, so the blocked instance is either picked first and gives its capacity
+    // back, or is left over after the other instance has taken the capacity
+    if (limited.isEmpty()) {
+      verify(stateManager).receiveIgnoreClosed(
+          eq(Event.retryAfter(INSTANCE_1, blocker.delay().toMillis())), anyLong());
+    } else {
+      assertThat(limited, is(List.of(runState1)));
+    }
+    verify(stateManager).receiveIgnoreClosed(eq(Event.dequeue(INSTANCE_2, ImmutableSet.of("r1"))), anyLong());
+    verify(stateManager, never()).receiveIgnoreClosed(eq(Event.dequeue(INSTANCE_1, ImmutableSet.of("r1"))), anyLong());
+  }
+
   private WorkflowInstance instance(WorkflowId id, String instanceId) {
     return WorkflowInstance.create(id, instanceId);
   }
@@ -29,6 +29,7 @@ import static org.junit.Assert.assertThat;
 import static org.mockito.Answers.RETURNS_DEEP_STUBS;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -46,23 +47,17 @@ import com.spotify.styx.StyxScheduler.KubernetesClientFactory;
 import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowConfiguration;
 import com.spotify.styx.model.WorkflowId;
-import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.monitoring.Stats;
 import com.spotify.styx.state.PersistentStateManager;
-import com.spotify.styx.state.RunState;
 import com.spotify.styx.state.RunState.State;
-import com.spotify.styx.state.StateData;
-import com.spotify.styx.state.Trigger;
 import com.spotify.styx.storage.Storage;
 import com.spotify.styx.storage.StorageTransaction;
 import com.spotify.styx.util.Shard;
-import com.spotify.styx.util.Time;
 import com.spotify.styx.util.TriggerUtil;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import io.fabric8.kubernetes.client.NamespacedKubernetesClient;
 import java.io.IOException;
-import java.time.Instant;
 import java.util.Map;
 import java.util.function.Supplier;
 import junitparams.JUnitParamsRunner;
@@ -96,7 +91,6 @@ public class StyxSchedulerTest {
   @Mock private Supplier<Map<WorkflowId, Workflow>> workflowCache;
   @Mock private RateLimiter submissionRateLimiter;
   @Mock private Stats stats;
-  @Mock private Time time;
 
   private StyxScheduler styxScheduler;
 
@@ -186,21 +180,12 @@ public class StyxSchedulerTest {
         .build();
     final Workflow wf1 = Workflow.create(wfid1.componentId(), wfc1);
     final Workflow wf2 = Workflow.create(wfid2.componentId(), wfc2);
-    final WorkflowInstance wfi1 = WorkflowInstance.create(wfid1, "2018-01-02");
-    final WorkflowInstance wfi2 = WorkflowInstance.create(wfid2, "2018-01-02");
-    final RunState rs1 = RunState.create(wfi1, State.QUEUED, StateData.newBuilder()
-        .trigger(Trigger.natural())
-        .build());
-    final RunState rs2 = RunState.create(wfi2, State.RUNNING, StateData.newBuilder()
-        .trigger(Trigger.adhoc("foobar"))
-        .build());
-
-    when(time.get()).thenReturn(Instant.now());
-    when(stateManager.getActiveStates()).thenReturn(Map.of(wfi1, rs1, wfi2, rs2));
+
+    when(stateManager.getActiveStateCount(State.QUEUED, "natural")).thenReturn(17L);
     when(workflowCache.get()).thenReturn(Map.of(wfid1, wf1, wfid2, wf2));
     when(storage.enabled()).thenReturn(ImmutableSet.of(wfid1));
 
-    StyxScheduler.setupMetrics(stateManager, workflowCache, storage, submissionRateLimiter, stats, time);
+    StyxScheduler.setupMetrics(stateManager, workflowCache, storage, submissionRateLimiter, stats);
 
     verify(stats).registerWorkflowCountMetric(eq("all"), longGaugeCaptor.capture());
     verify(stats).registerWorkflowCountMetric(eq("configured"), longGaugeCaptor.capture());
@@ -219,11 +204,13 @@ public class StyxSchedulerTest {
     longGaugeCaptor.getAllValues().forEach(Gauge::getValue);
     doubleGaugeCaptor.getAllValues().forEach(Gauge::getValue);
 
-    // Verify that expensive methods were cached
-    verify(stateManager, times(1)).getActiveStates();
+    verify(stats).registerActiveStatesMetric(eq(State.QUEUED), eq("natural"), longGaugeCaptor.capture());
+    assertThat(longGaugeCaptor.getValue().getValue(), is(17L));
+
+    // Verify that expensive methods were cached or avoided
     verify(storage, times(1)).enabled();
+    verify(stateManager, never()).getActiveStates();
 
     verifyNoMoreInteractions(storage);
-    verifyNoMoreInteractions(stateManager);
   }
 }
@@ -25,28 +25,35 @@ import static java.time.Instant.parse;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import com.google.common.collect.ImmutableSet;
 import com.spotify.styx.model.StyxConfig;
 import com.spotify.styx.model.TriggerParameters;
 import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.model.WorkflowState;
+import com.spotify.styx.model.WorkflowWithState;
 import com.spotify.styx.monitoring.Stats;
 import com.spotify.styx.state.Trigger;
 import com.spotify.styx.storage.Storage;
+import com.spotify.styx.storage.WorkflowScheduleView;
 import com.spotify.styx.util.AlreadyInitializedException;
 import com.spotify.styx.util.Time;
 import com.spotify.styx.util.TriggerInstantSpec;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -65,9 +72,11 @@ public class TriggerManagerTest {
   @Mock Storage storage;
   @Mock TriggerListener triggerListener;
   @Mock StyxConfig config;
+  @Mock TriggerManager.UpcomingTriggerListener upcomingTriggerListener;
 
   private TriggerManager triggerManager;
-  private final Time MANAGER_TIME = () -> parse("2016-10-10T13:11:11Z");
+  private Instant now = parse("2016-10-10T13:11:11Z");
+  private final Time MANAGER_TIME = () -> now;
 
   private final ExecutorService executor = Executors.newCachedThreadPool();
 
@@ -184,18 +193,135 @@ public class TriggerManagerTest {
         TriggerInstantSpec.create(parse("2016-10-02T00:00:00Z"), parse("2016-10-03T00:00:00Z")));
   }
 
+  @Test
+  public void shouldNotScanWorkflowsOnEveryTick() throws Exception {
+    setupWithNextNaturalTrigger(true, parse("2016-10-01T00:00:00Z"));
+
+    triggerManager.tick();
+    now = now.plusSeconds(1);
+    triggerManager.tick();
+
+    verify(storage).workflowScheduleViews();
+    verify(storage, times(2)).workflowWithState(WORKFLOW_DAILY.id());
+    verify(storage, never()).workflow(any());
+    verify(storage, never()).workflowState(any());
+    // catches up with the next natural trigger from memory
+    verify(triggerListener).event(WORKFLOW_DAILY, NATURAL_TRIGGER, parse("2016-10-02T00:00:00Z"),
+        TriggerParameters.zero());
+  }
+
+  @Test
+  public void shouldReconcileWorkflowsPeriodically() throws Exception {
+    setupWithNextNaturalTrigger(true, parse("2016-10-11T00:00:00Z"));
+
+    triggerManager.tick();
+    now = now.plus(StyxScheduler.DEFAULT_TRIGGER_RECONCILIATION_INTERVAL);
+    triggerManager.tick();
+
+    verify(storage, times(2)).workflowScheduleViews();
+  }
+
+  @Test
+  public void shouldNotTriggerDeletedWorkflow() throws Exception {
+    setupWithNextNaturalTrigger(true, parse("2016-10-01T00:00:00Z"));
+    when(storage.workflowWithState(WORKFLOW_DAILY.id())).thenReturn(Optional.empty());
+
+    triggerManager.tick();
+    now = now.plusSeconds(1);
+    triggerManager.tick();
+
+    verify(triggerListener, never()).event(any(), any(), any(), any());
+    verify(storage, never()).updateNextNaturalTrigger(any(), any());
+    verify(storage).workflowWithState(WORKFLOW_DAILY.id());
+  }
+
+  @Test
+  public void shouldFollowNextNaturalTriggerChangedInStorage() throws Exception {
+    setupWithNextNaturalTrigger(true, parse("2016-10-01T00:00:00Z"));
+    final TriggerInstantSpec changed =
+        TriggerInstantSpec.create(parse("2016-10-05T00:00:00Z"), parse("2016-10-06T00:00:00Z"));
+    when(storage.workflowWithState(WORKFLOW_DAILY.id()))
+        .thenReturn(Optional.of(WorkflowWithState.of(WORKFLOW_DAILY, WorkflowState.builder()
+            .enabled(true)
+            .nextNaturalTrigger(changed.instant())
+            .nextNaturalOffsetTrigger(changed.offsetInstant())
+            .build())));
+
+    triggerManager.tick();
+    verify(triggerListener, never()).event(any(), any(), any(), any());
+
+    now = now.plusSeconds(1);
+    triggerManager.tick();
+    verify(triggerListener).event(WORKFLOW_DAILY, NATURAL_TRIGGER, parse("2016-10-05T00:00:00Z"),
+        TriggerParameters.zero());
+  }
+
+  @Test
+  public void shouldNotifyUpcomingTriggerOnceWithinLookahead() throws Exception {
+    withUpcomingTriggerLookahead(Duration.ofHours(1));
+    setupWithNextNaturalTrigger(true, parse("2016-10-09T14:00:00Z"));
+
+    triggerManager.tick();
+    triggerManager.tick();
+
+    verify(upcomingTriggerListener, times(1)).upcoming(WORKFLOW_DAILY.id());
+    verify(triggerListener, never()).event(any(), any(), any(), any());
+  }
+
+  @Test
+  public void shouldNotNotifyUpcomingTriggerBeyondLookahead() throws Exception {
+    withUpcomingTriggerLookahead(Duration.ofHours(1));
+    setupWithNextNaturalTrigger(true, parse("2016-10-09T15:00:00Z"));
+
+    triggerManager.tick();
+    verify(upcomingTriggerListener, never()).upcoming(any());
+
+    now = parse("2016-10-10T14:30:00Z");
+    triggerManager.tick();
+    verify(upcomingTriggerListener).upcoming(WORKFLOW_DAILY.id());
+  }
+
+  @Test
+  public void shouldTriggerIfUpcomingTriggerListenerThrows() throws Exception {
+    withUpcomingTriggerLookahead(Duration.ofHours(1));
+    setupWithNextNaturalTrigger(true, parse("2016-10-09T00:00:00Z"));
+    doThrow(new RuntimeException("prepare failure!")).when(upcomingTriggerListener).upcoming(any());
+
+    triggerManager.tick();
+
+    verify(upcomingTriggerListener).upcoming(WORKFLOW_DAILY.id());
+    verify(triggerListener).event(WORKFLOW_DAILY, NATURAL_TRIGGER, parse("2016-10-09T00:00:00Z"),
+        TriggerParameters.zero());
+  }
+
+  private void withUpcomingTriggerLookahead(Duration lookahead) throws IOException {
+    triggerManager.close();
+    triggerManager = new TriggerManager(triggerListener, MANAGER_TIME, storage, Stats.NOOP,
+        StyxScheduler.DEFAULT_TRIGGER_RECONCILIATION_INTERVAL, upcomingTriggerListener, lookahead);
+  }
+
   private void setupWithNextNaturalTrigger(boolean enabled, Instant nextNaturalTrigger) throws IOException {
     when(config.globalEnabled()).thenReturn(true);
-    if (enabled) {
-      when(storage.enabled()).thenReturn(ImmutableSet.of(WORKFLOW_DAILY.id()));
-    } else {
-      when(storage.enabled()).thenReturn(ImmutableSet.of());
-    }
 
     Instant offset = WORKFLOW_DAILY.configuration().addOffset(nextNaturalTrigger);
     TriggerInstantSpec spec = TriggerInstantSpec.create(nextNaturalTrigger, offset);
 
-    when(storage.workflowsWithNextNaturalTrigger())
-        .thenReturn(Map.of(WORKFLOW_DAILY, spec));
+    when(storage.workflowScheduleViews())
+        .thenReturn(Map.of(WORKFLOW_DAILY.id(), WorkflowScheduleView.create(WORKFLOW_DAILY.id(),
+            WORKFLOW_DAILY.configuration().schedule(), WORKFLOW_DAILY.configuration().offset(), enabled,
+            Optional.of(spec))));
+
+    // storage follows the next natural trigger written by the trigger manager
+    final AtomicReference<TriggerInstantSpec> storedSpec = new AtomicReference<>(spec);
+    lenient().doAnswer(a -> {
+      storedSpec.set(a.getArgument(1));
+      return null;
+    }).when(storage).updateNextNaturalTrigger(any(WorkflowId.class), any(TriggerInstantSpec.class));
+    lenient().when(storage.workflowWithState(WORKFLOW_DAILY.id())).then(a -> Optional.of(WorkflowWithState.of(
+        WORKFLOW_DAILY, WorkflowState.builder()
+            .enabled(enabled)
+            .nextNaturalTrigger(storedSpec.get().instant())
+            .nextNaturalOffsetTrigger(storedSpec.get().offsetInstant())
+            .build())));
   }
 }
@@ -0,0 +1,109 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx;
+
+import static com.spotify.styx.testdata.TestData.FULL_WORKFLOW_CONFIGURATION;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.spotify.styx.model.Workflow;
+import com.spotify.styx.model.WorkflowConfigurationBuilder;
+import com.spotify.styx.storage.Storage;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class WorkflowCacheTest {
+
+  private static final Duration TTL = Duration.ofSeconds(10);
+  private static final Workflow WORKFLOW = Workflow.create("styx", FULL_WORKFLOW_CONFIGURATION);
+  private static final Workflow CHANGED_WORKFLOW = Workflow.create("styx",
+      WorkflowConfigurationBuilder.from(FULL_WORKFLOW_CONFIGURATION)
+          .dockerImage("busybox:changed")
+          .build());
+
+  @Mock private Storage storage;
+
+  private Instant now = Instant.parse("2019-01-01T00:00:00Z");
+  private WorkflowCache workflowCache;
+
+  @Before
+  public void setUp() {
+    workflowCache = new WorkflowCache(storage, TTL, () -> now);
+  }
+
+  @Test
+  public void shouldCacheWorkflow() throws Exception {
+    when(storage.workflow(WORKFLOW.id())).thenReturn(Optional.of(WORKFLOW), Optional.of(CHANGED_WORKFLOW));
+
+    assertThat(workflowCache.workflow(WORKFLOW.id()), is(Optional.of(WORKFLOW)));
+    now = now.plus(TTL).minusSeconds(1);
+    assertThat(workflowCache.workflow(WORKFLOW.id()), is(Optional.of(WORKFLOW)));
+
+    verify(storage, times(1)).workflow(WORKFLOW.id());
+  }
+
+  @Test
+  public void shouldReadExpiredWorkflow() throws Exception {
+    when(storage.workflow(WORKFLOW.id())).thenReturn(Optional.of(WORKFLOW), Optional.of(CHANGED_WORKFLOW));
+
+    assertThat(workflowCache.workflow(WORKFLOW.id()), is(Optional.of(WORKFLOW)));
+    now = now.plus(TTL);
+    assertThat(workflowCache.workflow(WORKFLOW.id()), is(Optional.of(CHANGED_WORKFLOW)));
+  }
+
+  @Test
+  public void shouldNotCacheMissingWorkflow() throws Exception {
+    when(storage.workflow(WORKFLOW.id())).thenReturn(Optional.empty(), Optional.of(WORKFLOW));
+
+    assertThat(workflowCache.workflow(WORKFLOW.id()), is(Optional.empty()));
+    assertThat(workflowCache.workflow(WORKFLOW.id()), is(Optional.of(WORKFLOW)));
+  }
+
+  @Test
+  public void shouldReplaceCachedWorkflowOnReload() throws Exception {
+    when(storage.workflow(WORKFLOW.id())).thenReturn(Optional.of(WORKFLOW), Optional.of(CHANGED_WORKFLOW));
+
+    assertThat(workflowCache.workflow(WORKFLOW.id()), is(Optional.of(WORKFLOW)));
+    assertThat(workflowCache.reload(WORKFLOW.id()), is(Optional.of(CHANGED_WORKFLOW)));
+    assertThat(workflowCache.workflow(WORKFLOW.id()), is(Optional.of(CHANGED_WORKFLOW)));
+
+    verify(storage, times(2)).workflow(WORKFLOW.id());
+  }
+
+  @Test
+  public void shouldDropCachedWorkflowWhenReloadedAsMissing() throws Exception {
+    when(storage.workflow(WORKFLOW.id())).thenReturn(Optional.of(WORKFLOW), Optional.empty());
+
+    assertThat(workflowCache.workflow(WORKFLOW.id()), is(Optional.of(WORKFLOW)));
+    assertThat(workflowCache.reload(WORKFLOW.id()), is(Optional.empty()));
+    assertThat(workflowCache.workflow(WORKFLOW.id()), is(Optional.empty()));
+  }
+}
@@ -48,6 +48,7 @@ import com.spotify.apollo.Status;
 import com.spotify.apollo.StatusType;
 import com.spotify.apollo.test.ServiceHelper;
 import com.spotify.styx.TriggerListener;
+import com.spotify.styx.WorkflowCache;
 import com.spotify.styx.model.Event;
 import com.spotify.styx.model.TriggerParameters;
 import com.spotify.styx.model.TriggerRequest;
@@ -64,6 +65,7 @@ import com.spotify.styx.util.AlreadyInitializedException;
 import com.spotify.styx.util.TriggerUtil;
 import com.spotify.styx.util.WorkflowValidator;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
@@ -132,7 +134,7 @@ public class SchedulerResourceTest {
       final SchedulerResource schedulerResource = new SchedulerResource(
           stateManager,
           triggerListener,
-          storage,
+          new WorkflowCache(storage, Duration.ZERO, Instant::now),
           () -> Instant.parse("2015-12-31T23:59:10.000Z"),
           workflowValidator, workflowActionAuthorizer);
 
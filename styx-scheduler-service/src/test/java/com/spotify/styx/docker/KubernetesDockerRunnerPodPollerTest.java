@@ -29,6 +29,7 @@ import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import com.spotify.styx.QuietDeterministicScheduler;
 import com.spotify.styx.docker.KubernetesDockerRunner.KubernetesSecretSpec;
 import com.spotify.styx.model.Event;
 import com.spotify.styx.model.WorkflowInstance;
@@ -46,8 +47,11 @@ import io.fabric8.kubernetes.api.model.PodList;
 import io.fabric8.kubernetes.api.model.PodStatus;
 import io.fabric8.kubernetes.api.model.PodStatusBuilder;
 import io.fabric8.kubernetes.client.NamespacedKubernetesClient;
+import io.fabric8.kubernetes.client.Watch;
 import io.fabric8.kubernetes.client.dsl.MixedOperation;
 import io.fabric8.kubernetes.client.dsl.PodResource;
+import io.fabric8.kubernetes.client.dsl.Watchable;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -91,8 +95,11 @@ public class KubernetesDockerRunnerPodPollerTest {
 
   @Mock KubernetesGCPServiceAccountSecretManager serviceAccountSecretManager;
   @Mock Debug debug;
+  @SuppressWarnings("rawtypes") @Mock Watchable watchable;
+  @Mock Watch watch;
 
   KubernetesDockerRunner kdr;
+  QuietDeterministicScheduler executor = new QuietDeterministicScheduler();
 
   @Before
   public void setUp() {
@@ -101,7 +108,7 @@ public class KubernetesDockerRunnerPodPollerTest {
     when(k8sClient.pods()).thenReturn(pods);
 
     kdr = new KubernetesDockerRunner(k8sClient, stateManager, stats, serviceAccountSecretManager,
-        debug, STYX_ENVIRONMENT);
+        debug, STYX_ENVIRONMENT, 60, 120, Instant::now, executor, executor);
     podList = new PodList();
     podList.setMetadata(new ListMeta());
     podList.getMetadata().setResourceVersion("4711");
@@ -148,6 +155,7 @@ public class KubernetesDockerRunnerPodPollerTest {
     when(k8sClient.pods().list()).thenReturn(podList);
     setupActiveInstances(RunState.State.SUBMITTED, POD_NAME, POD_NAME_2);
 
+    startPodStore();
     kdr.tryCleanupPods();
 
     verifyZeroInteractions(stateManager);
@@ -160,10 +168,6 @@ public class KubernetesDockerRunnerPodPollerTest {
 
     podList.setItems(Arrays.asList(createdPod1, createdPod2));
     when(k8sClient.pods().list()).thenReturn(podList);
-    when(k8sClient.pods().withName(RUN_SPEC.executionId())).thenReturn(namedPod1);
-    when(k8sClient.pods().withName(RUN_SPEC_2.executionId())).thenReturn(namedPod2);
-    when(namedPod1.get()).thenReturn(createdPod1);
-    when(namedPod2.get()).thenReturn(createdPod2);
 
     createdPod1.setStatus(podStatus1);
     when(podStatus1.getContainerStatuses()).thenReturn(List.of(containerStatus1));
@@ -172,7 +176,12 @@ public class KubernetesDockerRunnerPodPollerTest {
     createdPod2.setStatus(podStatus2);
     when(podStatus2.getContainerStatuses()).thenReturn(List.of(containerStatus2));
     when(containerStatus2.getName()).thenReturn(RUN_SPEC_2.executionId());
+    when(k8sClient.pods().withName(RUN_SPEC.executionId())).thenReturn(namedPod1);
+    when(k8sClient.pods().withName(RUN_SPEC_2.executionId())).thenReturn(namedPod2);
+    when(namedPod1.get()).thenReturn(createdPod1);
+    when(namedPod2.get()).thenReturn(createdPod2);
 
+    startPodStore();
     kdr.tryCleanupPods();
 
     verify(pods).delete(createdPod1);
@@ -188,13 +197,14 @@ public class KubernetesDockerRunnerPodPollerTest {
 
     podList.setItems(Arrays.asList(createdPod1, createdPod2));
     when(k8sClient.pods().list()).thenReturn(podList);
+    createdPod1.setStatus(new PodStatusBuilder().withContainerStatuses().build());
+    createdPod2.setStatus(new PodStatusBuilder().withContainerStatuses().build());
     when(k8sClient.pods().withName(RUN_SPEC.executionId())).thenReturn(namedPod1);
     when(k8sClient.pods().withName(RUN_SPEC_2.executionId())).thenReturn(namedPod2);
     when(namedPod1.get()).thenReturn(createdPod1);
     when(namedPod2.get()).thenReturn(createdPod2);
-    createdPod1.setStatus(new PodStatusBuilder().withContainerStatuses().build());
-    createdPod2.setStatus(new PodStatusBuilder().withContainerStatuses().build());
 
+    startPodStore();
     kdr.tryCleanupPods();
 
     verifyPodNeverDeleted(namedPod1);
@@ -212,6 +222,7 @@ public class KubernetesDockerRunnerPodPollerTest {
     podList.setItems(Arrays.asList(createdPod1, createdPod2));
     when(k8sClient.pods().list()).thenReturn(podList);
 
+    startPodStore();
     kdr.tryCleanupPods();
 
     verifyPodNeverDeleted(namedPod1);
@@ -230,6 +241,7 @@ public class KubernetesDockerRunnerPodPollerTest {
 
     setupActiveInstances(RunState.State.RUNNING, RUN_SPEC.executionId(), RUN_SPEC_2.executionId());
 
+    startPodStore();
     kdr.tryCleanupPods();
 
     verify(k8sClient.pods(), never()).delete(any(Pod.class));
@@ -238,6 +250,13 @@ public class KubernetesDockerRunnerPodPollerTest {
     verify(k8sClient.pods(), never()).delete();
   }
 
+  @SuppressWarnings("unchecked")
+  private void startPodStore() {
+    when(k8sClient.pods().withResourceVersion("4711")).thenReturn(watchable);
+    when(watchable.watch(any())).thenReturn(watch);
+    kdr.init();
+  }
+
   private Map<WorkflowInstance, RunState> setupActiveInstances(RunState.State state, String podName1, String podName2) {
     StateData stateData = StateData.newBuilder().executionId(podName1).build();
     StateData stateData2 = StateData.newBuilder().executionId(podName2).build();
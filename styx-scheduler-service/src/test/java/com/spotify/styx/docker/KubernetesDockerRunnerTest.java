@@ -29,17 +29,20 @@ import static com.spotify.styx.docker.KubernetesPodEventTranslatorTest.setWaitin
 import static com.spotify.styx.docker.KubernetesPodEventTranslatorTest.terminated;
 import static com.spotify.styx.docker.KubernetesPodEventTranslatorTest.terminatedContainerState;
 import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
-import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -51,6 +54,8 @@ import com.spotify.styx.docker.DockerRunner.RunSpec;
 import com.spotify.styx.docker.KubernetesDockerRunner.KubernetesSecretSpec;
 import com.spotify.styx.docker.KubernetesDockerRunner.PodWatcher;
 import com.spotify.styx.model.Event;
+import com.spotify.styx.model.Schedule;
+import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowConfiguration;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.monitoring.Stats;
@@ -82,6 +87,7 @@ import io.fabric8.kubernetes.api.model.Secret;
 import io.fabric8.kubernetes.api.model.SecretBuilder;
 import io.fabric8.kubernetes.api.model.SecretList;
 import io.fabric8.kubernetes.api.model.SecretVolumeSource;
+import io.fabric8.kubernetes.api.model.Status;
 import io.fabric8.kubernetes.api.model.StatusBuilder;
 import io.fabric8.kubernetes.api.model.Volume;
 import io.fabric8.kubernetes.client.KubernetesClientException;
@@ -92,6 +98,7 @@ import io.fabric8.kubernetes.client.Watcher.Action;
 import io.fabric8.kubernetes.client.dsl.MixedOperation;
 import io.fabric8.kubernetes.client.dsl.PodResource;
 import io.fabric8.kubernetes.client.dsl.Resource;
+import io.fabric8.kubernetes.client.dsl.Watchable;
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
@@ -101,6 +108,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 import javaslang.control.Try;
 import junitparams.JUnitParamsRunner;
@@ -173,6 +182,7 @@ public class KubernetesDockerRunnerTest {
   @Mock private ContainerStateTerminated containerStateTerminated;
   @Mock private ListMeta listMeta;
   @Mock private Watch watch;
+  @SuppressWarnings("rawtypes") @Mock private Watchable watchable;
   @Mock private Debug debug;
   @Mock private Time time;
   @Mock private StateManager stateManager;
@@ -209,7 +219,8 @@ public class KubernetesDockerRunnerTest {
     when(podList.getMetadata()).thenReturn(listMeta);
     when(listMeta.getResourceVersion()).thenReturn("1000");
 
-    when(pods.watch(watchCaptor.capture())).thenReturn(watch);
+    when(pods.withResourceVersion(any())).thenReturn(watchable);
+    when(watchable.watch(watchCaptor.capture())).thenReturn(watch);
 
     when(serviceAccountSecretManager.ensureServiceAccountKeySecret(
         WORKFLOW_INSTANCE.workflowId().toString(), SERVICE_ACCOUNT))
@@ -217,20 +228,25 @@ public class KubernetesDockerRunnerTest {
 
     when(time.get()).thenReturn(FIXED_INSTANT);
 
+    Map<String, String> annotations = new HashMap<>();
+    annotations.put(KubernetesDockerRunner.STYX_WORKFLOW_INSTANCE_ANNOTATION, WORKFLOW_INSTANCE.toKey());
+    createdPod.getMetadata().setAnnotations(annotations);
+    createdPod.getMetadata().setName(POD_NAME);
+    createdPod.getMetadata().setResourceVersion("1001");
+
     kdr = new KubernetesDockerRunner(k8sClient, stateManager, stats, serviceAccountSecretManager,
-        debug, STYX_ENVIRONMENT, POD_CLEANUP_INTERVAL_SECONDS, POD_DELETION_DELAY_SECONDS, time, executor);
+        debug, STYX_ENVIRONMENT, POD_CLEANUP_INTERVAL_SECONDS, POD_DELETION_DELAY_SECONDS, time, executor, executor);
     kdr.init();
 
-    verify(k8sClient).pods();
-    verify(pods).watch(any());
+    verify(k8sClient, times(2)).pods();
+    verify(pods).list();
+    verify(pods).withResourceVersion("1000");
 
     podWatcher = watchCaptor.getValue();
 
-    Map<String, String> annotations = new HashMap<>();
-    annotations.put(KubernetesDockerRunner.STYX_WORKFLOW_INSTANCE_ANNOTATION, WORKFLOW_INSTANCE.toKey());
-    createdPod.getMetadata().setAnnotations(annotations);
-    createdPod.getMetadata().setName(POD_NAME);
-    createdPod.getMetadata().setResourceVersion("1001");
+    // Process the pod updates of the initial pod list
+    executor.tick(0, TimeUnit.SECONDS);
+    clearInvocations(stateManager);
 
     StateData stateData = StateData.newBuilder().executionId(POD_NAME).build();
     RunState runState = RunState.create(WORKFLOW_INSTANCE, State.SUBMITTED, stateData);
@@ -256,16 +272,66 @@ public class KubernetesDockerRunnerTest {
 
   @Test
   public void shouldCheckIfPodExistsBeforeCreating() throws IOException {
-    when(pods.withName(any())).thenReturn(namedPod);
-    when(namedPod.get()).thenReturn(createdPod);
+    final Pod existingPod = createPod(WORKFLOW_INSTANCE, RUN_SPEC, EMPTY_SECRET_SPEC);
+    existingPod.getMetadata().setResourceVersion("1002");
+    podWatcher.eventReceived(Action.ADDED, existingPod);
     kdr.start(WORKFLOW_INSTANCE, RUN_SPEC);
-    verify(pods).withName(RUN_SPEC.executionId());
-    verify(namedPod).get();
     verifyNoMoreInteractions(pods);
-    verifyNoMoreInteractions(namedPod);
+    verifyZeroInteractions(namedPod);
     verifyZeroInteractions(stateManager);
   }
 
+  @Test
+  public void shouldNotGetPodFromApiServerBeforeCreating() throws IOException {
+    kdr.start(WORKFLOW_INSTANCE, RUN_SPEC);
+    verify(pods).create(any(Pod.class));
+    verify(pods, never()).withName(any());
+  }
+
+  @Test
+  public void shouldCompleteStartAsyncWhenPodIsCreated() {
+    kdr.startAsync(WORKFLOW_INSTANCE, RUN_SPEC).toCompletableFuture().join();
+    verify(pods).create(any(Pod.class));
+    verify(stats).recordSubmission(RUN_SPEC.executionId());
+  }
+
+  @Test
+  public void shouldFailStartAsyncIfPodCreationFails() {
+    final KubernetesClientException error = new KubernetesClientException("Forbidden", 403, new Status());
+    when(pods.create(any(Pod.class))).thenThrow(error);
+
+    final CompletableFuture<Void> started = kdr.startAsync(WORKFLOW_INSTANCE, RUN_SPEC).toCompletableFuture();
+
+    try {
+      started.join();
+      fail("Expected exception");
+    } catch (CompletionException e) {
+      assertThat(e.getCause(), is(instanceOf(IOException.class)));
+      assertThat(e.getCause().getCause(), is(error));
+    }
+  }
+
+  @Test
+  public void shouldPrepareServiceAccountSecret() {
+    final Workflow workflow = Workflow.create(TestData.WORKFLOW_ID.componentId(), WorkflowConfiguration.builder()
+        .id(TestData.WORKFLOW_ID.id())
+        .dockerImage("busybox")
+        .schedule(Schedule.HOURS)
+        .serviceAccount(SERVICE_ACCOUNT)
+        .build());
+
+    kdr.prepare(workflow);
+
+    verify(serviceAccountSecretManager, timeout(30_000))
+        .ensureServiceAccountKeySecret(WORKFLOW_INSTANCE.workflowId().toString(), SERVICE_ACCOUNT);
+  }
+
+  @Test
+  public void shouldNotPrepareWorkflowWithoutServiceAccount() {
+    kdr.prepare(TestData.WORKFLOW_WITH_RESOURCES);
+    verifyZeroInteractions(serviceAccountSecretManager);
+  }
+
   @Test
   public void shouldUseExecutionIdForPodName() throws IOException {
     kdr.start(WORKFLOW_INSTANCE, RUN_SPEC);
@@ -525,7 +591,7 @@ public class KubernetesDockerRunnerTest {
             .build())
         .build();
 
-    // Return terminated container when refreshing by name
+    // The pod store has not seen the container terminate yet, the API server has
     when(k8sClient.pods().withName(name)).thenReturn(namedPod);
     when(namedPod.get()).thenReturn(refreshedPod);
 
@@ -729,8 +795,9 @@ public class KubernetesDockerRunnerTest {
     createdPod.setStatus(podStatus);
     receiveAndProcessEvent(Watcher.Action.MODIFIED, createdPod);
 
-    verify(stateManager).receive(Event.started(WORKFLOW_INSTANCE), -1);
-    verify(stateManager).receive(Event.terminate(WORKFLOW_INSTANCE, Optional.of(code)), 0);
+    verify(stateManager).receiveAll(
+        List.of(Event.started(WORKFLOW_INSTANCE), Event.terminate(WORKFLOW_INSTANCE, Optional.of(code))),
+        -1);
   }
 
   @Test
@@ -738,8 +805,8 @@ public class KubernetesDockerRunnerTest {
     setWaiting(createdPod, "Pending", "ErrImagePull", "foobar");
     receiveAndProcessEvent(Watcher.Action.MODIFIED, createdPod);
 
-    verify(stateManager).receive(
-        Event.runError(WORKFLOW_INSTANCE, "One or more containers failed to pull their image: ErrImagePull: foobar"),
+    verify(stateManager).receiveAll(
+        List.of(Event.runError(WORKFLOW_INSTANCE, "One or more containers failed to pull their image: ErrImagePull: foobar")),
         -1);
   }
 
@@ -749,8 +816,8 @@ public class KubernetesDockerRunnerTest {
     receiveAndProcessEvent(Watcher.Action.MODIFIED, createdPod);
 
     verify(stats, times(1)).recordPullImageError();
-    verify(stateManager).receive(
-        Event.runError(WORKFLOW_INSTANCE, "One or more containers failed to pull their image: ErrImagePull: foobar"),
+    verify(stateManager).receiveAll(
+        List.of(Event.runError(WORKFLOW_INSTANCE, "One or more containers failed to pull their image: ErrImagePull: foobar")),
         -1);
   }
 
@@ -759,14 +826,14 @@ public class KubernetesDockerRunnerTest {
     createdPod.setStatus(podStatusNoContainer("Succeeded"));
     receiveAndProcessEvent(Watcher.Action.MODIFIED, createdPod);
 
-    verifyNoMoreInteractions(stats);
+    verify(stats, never()).recordPullImageError();
   }
 
   @Test
   public void shouldFailOnUnknownPhaseEntered() throws Exception {
     createdPod.setStatus(podStatusNoContainer("Unknown"));
     receiveAndProcessEvent(Watcher.Action.MODIFIED, createdPod);
-    verify(stateManager).receive(Event.runError(WORKFLOW_INSTANCE, "Pod entered Unknown phase"),
+    verify(stateManager).receiveAll(List.of(Event.runError(WORKFLOW_INSTANCE, "Pod entered Unknown phase")),
         -1);
   }
 
@@ -775,7 +842,7 @@ public class KubernetesDockerRunnerTest {
     createdPod.setStatus(podStatusNoContainer("Succeeded"));
     receiveAndProcessEvent(Watcher.Action.DELETED, createdPod);
 
-    verify(stateManager, never()).receive(any(), anyLong());
+    verify(stateManager, never()).receiveAll(any(), anyLong());
   }
 
   @Test
@@ -783,8 +850,8 @@ public class KubernetesDockerRunnerTest {
     createdPod.setStatus(podStatusNoContainer("Succeeded"));
     receiveAndProcessEvent(Watcher.Action.MODIFIED, createdPod);
 
-    verify(stateManager).receive(
-        Event.runError(WORKFLOW_INSTANCE, "Could not find our container in pod"),
+    verify(stateManager).receiveAll(
+        List.of(Event.runError(WORKFLOW_INSTANCE, "Could not find our container in pod")),
         -1);
   }
 
@@ -793,13 +860,16 @@ public class KubernetesDockerRunnerTest {
     setWaiting(createdPod, "Failed", "");
     receiveAndProcessEvent(Watcher.Action.MODIFIED, createdPod);
 
-    verify(stateManager).receive(
-        Event.runError(WORKFLOW_INSTANCE, "Unexpected null terminated status"),
+    verify(stateManager).receiveAll(
+        List.of(Event.runError(WORKFLOW_INSTANCE, "Unexpected null terminated status")),
         -1);
   }
 
   @Test
   public void shouldGenerateStartedAndRecordSubmitToRunningTimeWhenContainerIsReady() throws Exception {
+    // The pod has not been created yet
+    receiveAndProcessEvent(Watcher.Action.DELETED, createdPod);
+
     when(time.nanoTime()).thenReturn(TimeUnit.SECONDS.toNanos(17));
     kdr.start(WORKFLOW_INSTANCE, RunSpec.simple(POD_NAME, "busybox"));
     verify(stats).recordSubmission(POD_NAME);
@@ -809,12 +879,12 @@ public class KubernetesDockerRunnerTest {
     when(time.nanoTime()).thenReturn(TimeUnit.SECONDS.toNanos(19));
     setRunning(createdPod, /* ready= */ false);
     receiveAndProcessEvent(Watcher.Action.MODIFIED, createdPod);
-    verify(stateManager, never()).receive(Event.started(WORKFLOW_INSTANCE), -1);
+    verify(stateManager, never()).receiveAll(List.of(Event.started(WORKFLOW_INSTANCE)), -1);
 
     when(time.nanoTime()).thenReturn(TimeUnit.SECONDS.toNanos(4711));
     setRunning(createdPod, /* ready= */ true);
     receiveAndProcessEvent(Watcher.Action.MODIFIED, createdPod);
-    verify(stateManager).receive(Event.started(WORKFLOW_INSTANCE), -1);
+    verify(stateManager).receiveAll(List.of(Event.started(WORKFLOW_INSTANCE)), -1);
 
     verify(stats).recordRunning(POD_NAME);
   }
@@ -829,18 +899,13 @@ public class KubernetesDockerRunnerTest {
 
     receiveAndProcessEvent(Watcher.Action.MODIFIED, createdPod);
 
-    verify(stateManager, never()).receive(any(), anyLong());
+    verify(stateManager, never()).receiveAll(any(), anyLong());
   }
 
   @Test
   public void shouldPollPodStatusAndEmitEvents() throws Exception {
-    when(k8sClient.pods().withName(createdPod.getMetadata().getName())).thenReturn(namedPod);
-
-    // Change the pod status to terminated without notifying the runner through the pod watcher
-    final Pod terminatedPod = new PodBuilder(createdPod)
-        .withStatus(terminated("Succeeded", 20, null))
-        .build();
-    when(namedPod.get()).thenReturn(terminatedPod);
+    // Change the pod status in the store to terminated without the runner processing a pod update
+    createdPod.setStatus(terminated("Succeeded", 20, null));
 
     // Poll for execution status
     var stateData = StateData.newBuilder().executionId(POD_NAME).build();
@@ -848,26 +913,18 @@ public class KubernetesDockerRunnerTest {
     kdr.poll(runState);
 
     // Verify that the runner found out that the pod is terminated and emits events
-    verify(stateManager, atLeastOnce()).receive(
-        Event.started(WORKFLOW_INSTANCE),
+    verify(stateManager).receiveAll(
+        List.of(Event.started(WORKFLOW_INSTANCE), Event.terminate(WORKFLOW_INSTANCE, Optional.of(20))),
         -1);
-    verify(stateManager, atLeastOnce()).receive(
-        Event.terminate(WORKFLOW_INSTANCE, Optional.of(20)),
-        0);
   }
 
   @Test
   public void shouldTolerateTransitionConflictWhenEmittingEvents() throws Exception {
-    when(k8sClient.pods().withName(createdPod.getMetadata().getName())).thenReturn(namedPod);
-
-    // Change the pod status to terminated without notifying the runner through the pod watcher
-    final Pod terminatedPod = new PodBuilder(createdPod)
-        .withStatus(terminated("Succeeded", 20, null))
-        .build();
-    when(namedPod.get()).thenReturn(terminatedPod);
+    // Change the pod status in the store to terminated without the runner processing a pod update
+    createdPod.setStatus(terminated("Succeeded", 20, null));
 
     doThrow(new StateTransitionConflictException("foo!"))
-        .when(stateManager).receive(any(), anyLong());
+        .when(stateManager).receiveAll(any(), anyLong());
 
     verifyZeroInteractions(stateManager);
 
@@ -876,7 +933,78 @@ public class KubernetesDockerRunnerTest {
     var runState = RunState.create(WORKFLOW_INSTANCE, State.SUBMITTED, stateData);
     kdr.poll(runState);
 
-    verify(stateManager).receive(any(), anyLong());
+    verify(stateManager).receiveAll(any(), anyLong());
+  }
+
+  @Test
+  public void shouldPollPodFromStore() {
+    createdPod.setStatus(podStatusNoContainer("Pending"));
+
+    var stateData = StateData.newBuilder().executionId(POD_NAME).build();
+    var runState = RunState.create(WORKFLOW_INSTANCE, State.SUBMITTED, stateData);
+    kdr.poll(runState);
+
+    verify(pods, never()).withName(any());
+    verify(stateManager, never()).receiveIgnoreClosed(any(), anyLong());
+  }
+
+  @Test
+  public void shouldFetchPodWhenPollingPodMissingFromStore() throws Exception {
+    final Pod otherPod = new PodBuilder(createdPod)
+        .editMetadata().withName("other").endMetadata()
+        .withStatus(terminated("Succeeded", 20, null))
+        .build();
+    when(pods.withName("other")).thenReturn(namedPod);
+    when(namedPod.get()).thenReturn(otherPod);
+
+    var stateData = StateData.newBuilder().executionId("other").build();
+    var runState = RunState.create(WORKFLOW_INSTANCE, State.SUBMITTED, stateData);
+    kdr.poll(runState);
+
+    verify(stateManager).receiveAll(
+        List.of(Event.started(WORKFLOW_INSTANCE), Event.terminate(WORKFLOW_INSTANCE, Optional.of(20))),
+        -1);
+  }
+
+  @Test
+  public void shouldRecordPodEventLag() {
+    createdPod.setStatus(podStatusNoContainer("Pending"));
+    podWatcher.eventReceived(Action.MODIFIED, createdPod);
+    podWatcher.eventReceived(Action.MODIFIED, createdPod);
+    when(time.get()).thenReturn(FIXED_INSTANT.plusSeconds(3));
+    executor.tick(10, TimeUnit.SECONDS);
+
+    // The second update waits for the processing of the first one
+    verify(stats).recordPodEventLag(3000L);
+  }
+
+  @Test
+  public void shouldRecordPodEventTransitionLatency() {
+    setRunning(createdPod, /* ready= */ true);
+    podWatcher.eventReceived(Action.MODIFIED, createdPod);
+    when(time.get()).thenReturn(FIXED_INSTANT.plusSeconds(2));
+    executor.tick(10, TimeUnit.SECONDS);
+
+    verify(stats).recordPodEventTransitionLatency(2000L);
+  }
+
+  @Test
+  public void shouldNotRecordPodEventTransitionLatencyWithoutTransition() {
+    createdPod.setStatus(podStatusNoContainer("Pending"));
+    receiveAndProcessEvent(Action.MODIFIED, createdPod);
+
+    verify(stats, never()).recordPodEventTransitionLatency(anyLong());
+  }
+
+  @Test
+  public void shouldRetryFailedPodUpdate() throws Exception {
+    setRunning(createdPod, /* ready= */ true);
+    doThrow(new RuntimeException("foo!")).doNothing()
+        .when(stateManager).receiveAll(List.of(Event.started(WORKFLOW_INSTANCE)), -1);
+
+    receiveAndProcessEvent(Action.MODIFIED, createdPod);
+
+    verify(stateManager, times(2)).receiveAll(List.of(Event.started(WORKFLOW_INSTANCE)), -1);
   }
 
   @Test
@@ -888,9 +1016,7 @@ public class KubernetesDockerRunnerTest {
 
     assertThat(pod.getMetadata().getAnnotations(), is(nullValue()));
 
-    when(k8sClient.pods().withName("foobar")).thenReturn(namedPod);
-    when(namedPod.get()).thenReturn(pod);
-    when(podList.getItems()).thenReturn(List.of(pod));
+    podWatcher.eventReceived(Action.ADDED, pod);
 
     assertThat(Try.run(() -> kdr.tryCleanupPods()).isSuccess(), is(true));
   }
@@ -925,9 +1051,6 @@ public class KubernetesDockerRunnerTest {
    * Helper to deal with asynchronous pod even handling
    */
   private void receiveAndProcessEvent(Action action, Pod pod) {
-    @SuppressWarnings("unchecked") PodResource<Pod, DoneablePod> namedPod = mock(PodResource.class);
-    when(namedPod.get()).thenReturn(pod);
-    when(pods.withName(pod.getMetadata().getName())).thenReturn(namedPod);
     podWatcher.eventReceived(action, pod);
     executor.tick(10, TimeUnit.SECONDS);
   }
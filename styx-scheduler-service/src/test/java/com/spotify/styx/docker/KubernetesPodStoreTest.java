@@ -0,0 +1,201 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.docker;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.spotify.styx.QuietDeterministicScheduler;
+import com.spotify.styx.monitoring.Stats;
+import io.fabric8.kubernetes.api.model.DoneablePod;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodBuilder;
+import io.fabric8.kubernetes.api.model.PodList;
+import io.fabric8.kubernetes.api.model.PodListBuilder;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.NamespacedKubernetesClient;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.client.Watcher.Action;
+import io.fabric8.kubernetes.client.dsl.MixedOperation;
+import io.fabric8.kubernetes.client.dsl.PodResource;
+import io.fabric8.kubernetes.client.dsl.Watchable;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class KubernetesPodStoreTest {
+
+  private static final Duration RESYNC_INTERVAL = Duration.ofMinutes(10);
+
+  private static final Pod POD_1 = pod("pod-1", "1001");
+  private static final Pod POD_2 = pod("pod-2", "1002");
+
+  @Mock private NamespacedKubernetesClient client;
+  @Mock private MixedOperation<Pod, PodList, DoneablePod, PodResource<Pod, DoneablePod>> pods;
+  @SuppressWarnings("rawtypes") @Mock private Watchable watchable;
+  @Mock private Watch watch;
+  @Mock private Stats stats;
+  @Mock private KubernetesPodStore.Listener listener;
+
+  @Captor private ArgumentCaptor<Watcher<Pod>> watcherCaptor;
+
+  private final QuietDeterministicScheduler executor = new QuietDeterministicScheduler();
+
+  private KubernetesPodStore store;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    when(client.pods()).thenReturn(pods);
+    when(pods.list()).thenReturn(podList("1000", POD_1));
+    when(pods.withResourceVersion(any())).thenReturn(watchable);
+    when(watchable.watch(watcherCaptor.capture())).thenReturn(watch);
+    store = new KubernetesPodStore(client, executor, stats, RESYNC_INTERVAL);
+    store.start(listener);
+  }
+
+  @Test
+  public void shouldListAndWatchFromListResourceVersion() {
+    verify(pods).withResourceVersion("1000");
+    verify(stats).recordPodStoreRelist(KubernetesPodStore.RELIST_INITIAL);
+    verify(listener).eventReceived(Action.ADDED, POD_1);
+    assertThat(store.get("pod-1"), is(Optional.of(POD_1)));
+    assertThat(store.pods(), contains(POD_1));
+  }
+
+  @Test
+  public void shouldApplyWatchEvents() {
+    final Pod modified = pod("pod-1", "1003");
+    watcher().eventReceived(Action.ADDED, POD_2);
+    watcher().eventReceived(Action.MODIFIED, modified);
+    assertThat(store.pods(), containsInAnyOrder(modified, POD_2));
+
+    watcher().eventReceived(Action.DELETED, POD_2);
+    assertThat(store.get("pod-2"), is(Optional.empty()));
+
+    verify(listener).eventReceived(Action.ADDED, POD_2);
+    verify(listener).eventReceived(Action.MODIFIED, modified);
+    verify(listener).eventReceived(Action.DELETED, POD_2);
+  }
+
+  @Test
+  public void shouldRelistOnGone() {
+    when(pods.list()).thenReturn(podList("2000", POD_2));
+
+    watcher().onClose(new KubernetesClientException("Gone", 410, null));
+    executor.tick(0, TimeUnit.SECONDS);
+
+    verify(stats).recordPodStoreRelist(KubernetesPodStore.RELIST_GONE);
+    verify(pods).withResourceVersion("2000");
+    verify(listener).eventReceived(Action.DELETED, POD_1);
+    verify(listener).eventReceived(Action.ADDED, POD_2);
+    assertThat(store.pods(), contains(POD_2));
+  }
+
+  @Test
+  public void shouldResumeWatchFromLastResourceVersionWhenClosed() {
+    watcher().eventReceived(Action.ADDED, POD_2);
+
+    watcher().onClose(new KubernetesClientException("Closed"));
+    executor.tick(1, TimeUnit.SECONDS);
+
+    verify(pods).withResourceVersion("1002");
+    verify(pods, times(1)).list();
+  }
+
+  @Test
+  public void shouldResyncPeriodically() {
+    final Pod modified = pod("pod-1", "1003");
+    when(pods.list()).thenReturn(podList("2000", modified, POD_2));
+
+    executor.tick(RESYNC_INTERVAL.toMinutes(), TimeUnit.MINUTES);
+
+    verify(stats).recordPodStoreRelist(KubernetesPodStore.RELIST_RESYNC);
+    verify(watch).close();
+    verify(listener).eventReceived(Action.MODIFIED, modified);
+    verify(listener).eventReceived(Action.ADDED, POD_2);
+    assertThat(store.pods(), containsInAnyOrder(modified, POD_2));
+  }
+
+  @Test
+  public void shouldNotNotifyUnchangedPodsOnResync() {
+    executor.tick(RESYNC_INTERVAL.toMinutes(), TimeUnit.MINUTES);
+
+    verify(listener, times(1)).eventReceived(Action.ADDED, POD_1);
+    verify(listener, never()).eventReceived(Action.MODIFIED, POD_1);
+  }
+
+  @Test
+  public void shouldIgnoreEventsOfReplacedWatch() {
+    final Watcher<Pod> replaced = watcher();
+    store.relist(KubernetesPodStore.RELIST_RESYNC);
+
+    replaced.eventReceived(Action.ADDED, POD_2);
+    replaced.onClose(new KubernetesClientException("Gone", 410, null));
+    executor.tick(0, TimeUnit.SECONDS);
+
+    assertThat(store.get("pod-2"), is(Optional.empty()));
+    verify(pods, times(2)).list();
+  }
+
+  @Test
+  public void shouldStopWatchingWhenClosed() {
+    store.close();
+    verify(watch).close();
+
+    watcher().onClose(new KubernetesClientException("Closed"));
+    executor.tick(1, TimeUnit.SECONDS);
+    verify(pods, times(1)).withResourceVersion(any());
+  }
+
+  private Watcher<Pod> watcher() {
+    return watcherCaptor.getValue();
+  }
+
+  private static PodList podList(String resourceVersion, Pod... pods) {
+    return new PodListBuilder()
+        .withNewMetadata().withResourceVersion(resourceVersion).endMetadata()
+        .withItems(pods)
+        .build();
+  }
+
+  private static Pod pod(String name, String resourceVersion) {
+    return new PodBuilder()
+        .withNewMetadata().withName(name).withResourceVersion(resourceVersion).endMetadata()
+        .build();
+  }
+}
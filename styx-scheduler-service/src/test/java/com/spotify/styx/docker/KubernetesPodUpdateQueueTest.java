@@ -0,0 +1,217 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.styx.docker;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.spotify.styx.QuietDeterministicScheduler;
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.monitoring.Stats;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class KubernetesPodUpdateQueueTest {
+
+  private static final WorkflowInstance INSTANCE_1 = WorkflowInstance.create(WorkflowId.create("c", "w"), "1");
+  private static final WorkflowInstance INSTANCE_2 = WorkflowInstance.create(WorkflowId.create("c", "w"), "2");
+  private static final WorkflowInstance INSTANCE_3 = WorkflowInstance.create(WorkflowId.create("c", "w"), "3");
+  private static final Instant NOW = Instant.parse("2019-01-01T00:00:00Z");
+
+  @Mock private KubernetesPodUpdateQueue.Processor processor;
+  @Mock private Stats stats;
+
+  private final QuietDeterministicScheduler executor = new QuietDeterministicScheduler();
+
+  private Instant now = NOW;
+
+  @Test
+  public void shouldProcessAddedPod() throws Exception {
+    var queue = queue(1, 3);
+    queue.add("pod-1", INSTANCE_1);
+    executor.runUntilIdle();
+
+    verify(processor).process("pod-1", INSTANCE_1, NOW);
+    assertThat(queue.size(), is(0));
+  }
+
+  @Test
+  public void shouldCoalesceUpdatesOfQueuedPod() throws Exception {
+    var queue = queue(1, 3);
+    queue.add("pod-1", INSTANCE_1);
+    queue.add("pod-2", INSTANCE_2);
+    now = NOW.plusSeconds(1);
+    queue.add("pod-2", INSTANCE_2);
+    assertThat(queue.size(), is(1));
+    executor.runUntilIdle();
+
+    verify(processor).process("pod-1", INSTANCE_1, NOW);
+    verify(processor).process("pod-2", INSTANCE_2, NOW);
+  }
+
+  @Test
+  public void shouldReprocessPodUpdatedWhileProcessing() throws Exception {
+    var queue = queue(1, 3);
+    doAnswer(invocation -> {
+      now = NOW.plusSeconds(1);
+      queue.add("pod-1", INSTANCE_1);
+      return null;
+    }).when(processor).process("pod-1", INSTANCE_1, NOW);
+
+    queue.add("pod-1", INSTANCE_1);
+    executor.runUntilIdle();
+
+    verify(processor).process("pod-1", INSTANCE_1, NOW);
+    verify(processor).process("pod-1", INSTANCE_1, NOW.plusSeconds(1));
+    assertThat(queue.size(), is(0));
+  }
+
+  @Test
+  public void shouldBoundConcurrency() throws Exception {
+    var queue = queue(2, 3);
+    queue.add("pod-1", INSTANCE_1);
+    queue.add("pod-2", INSTANCE_2);
+    queue.add("pod-3", INSTANCE_3);
+
+    // Only two pods are being processed, the third is waiting
+    assertThat(queue.size(), is(1));
+
+    executor.runUntilIdle();
+
+    verify(processor).process("pod-1", INSTANCE_1, NOW);
+    verify(processor).process("pod-2", INSTANCE_2, NOW);
+    verify(processor).process("pod-3", INSTANCE_3, NOW);
+    assertThat(queue.size(), is(0));
+  }
+
+  @Test
+  public void shouldRetryFailedPodWithBackoff() throws Exception {
+    var queue = queue(1, 3);
+    doThrow(new RuntimeException("foo!")).doThrow(new RuntimeException("bar!")).doNothing()
+        .when(processor).process("pod-1", INSTANCE_1, NOW);
+
+    queue.add("pod-1", INSTANCE_1);
+    executor.runUntilIdle();
+    verify(processor, times(1)).process("pod-1", INSTANCE_1, NOW);
+    assertThat(queue.size(), is(1));
+
+    executor.tick(1, TimeUnit.SECONDS);
+    verify(processor, times(2)).process("pod-1", INSTANCE_1, NOW);
+
+    executor.tick(1, TimeUnit.SECONDS);
+    verify(processor, times(2)).process("pod-1", INSTANCE_1, NOW);
+
+    executor.tick(1, TimeUnit.SECONDS);
+    verify(processor, times(3)).process("pod-1", INSTANCE_1, NOW);
+    assertThat(queue.size(), is(0));
+  }
+
+  @Test
+  public void shouldNotProcessPodUpdatedWhileBackingOff() throws Exception {
+    var queue = queue(1, 3);
+    doThrow(new RuntimeException("foo!")).doNothing()
+        .when(processor).process("pod-1", INSTANCE_1, NOW);
+
+    queue.add("pod-1", INSTANCE_1);
+    executor.runUntilIdle();
+    queue.add("pod-1", INSTANCE_1);
+    executor.runUntilIdle();
+    verify(processor, times(1)).process("pod-1", INSTANCE_1, NOW);
+
+    executor.tick(1, TimeUnit.SECONDS);
+    verify(processor, times(2)).process("pod-1", INSTANCE_1, NOW);
+  }
+
+  @Test
+  public void shouldGiveUpAfterMaxRetries() throws Exception {
+    var queue = queue(1, 2);
+    doThrow(new RuntimeException("foo!")).when(processor).process("pod-1", INSTANCE_1, NOW);
+
+    queue.add("pod-1", INSTANCE_1);
+    executor.tick(1, TimeUnit.MINUTES);
+
+    verify(processor, times(3)).process("pod-1", INSTANCE_1, NOW);
+    assertThat(queue.size(), is(0));
+  }
+
+  @Test
+  public void shouldNotRetrySucceededPod() throws Exception {
+    var queue = queue(1, 3);
+    queue.add("pod-1", INSTANCE_1);
+    executor.tick(1, TimeUnit.MINUTES);
+
+    verify(processor, times(1)).process(anyString(), any(), any());
+  }
+
+  @Test
+  public void shouldRecordQueueDepth() {
+    var queue = queue(1, 3);
+    queue.add("pod-1", INSTANCE_1);
+    queue.add("pod-2", INSTANCE_2);
+    queue.add("pod-3", INSTANCE_3);
+
+    verify(stats).recordPodUpdateQueueDepth(2L);
+  }
+
+  @Test
+  public void shouldRecordEventLag() {
+    var queue = queue(1, 3);
+    queue.add("pod-1", INSTANCE_1);
+    queue.add("pod-2", INSTANCE_2);
+    now = NOW.plusSeconds(5);
+    executor.runUntilIdle();
+
+    verify(stats).recordPodEventLag(0L);
+    verify(stats).recordPodEventLag(5000L);
+  }
+
+  @Test
+  public void shouldDiscardPodsWhenExecutorRejects() throws Exception {
+    var queue = new KubernetesPodUpdateQueue(processor, command -> {
+      throw new RejectedExecutionException();
+    }, executor, 1, Duration.ofSeconds(1), Duration.ofSeconds(10), 3, () -> now, stats);
+    queue.add("pod-1", INSTANCE_1);
+
+    verify(processor, never()).process(anyString(), any(), any());
+    assertThat(queue.size(), is(0));
+  }
+
+  private KubernetesPodUpdateQueue queue(int maxConcurrency, int maxRetries) {
+    return new KubernetesPodUpdateQueue(processor, executor, executor, maxConcurrency,
+        Duration.ofSeconds(1), Duration.ofSeconds(10), maxRetries, () -> now, stats);
+  }
+}
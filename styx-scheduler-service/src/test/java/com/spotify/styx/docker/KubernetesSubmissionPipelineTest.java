@@ -0,0 +1,146 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.docker;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.spotify.styx.QuietDeterministicScheduler;
+import com.spotify.styx.docker.DockerRunner.RunSpec;
+import com.spotify.styx.docker.KubernetesDockerRunner.KubernetesSecretSpec;
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.model.WorkflowInstance;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class KubernetesSubmissionPipelineTest {
+
+  private static final WorkflowInstance INSTANCE_1 = WorkflowInstance.create(WorkflowId.create("c", "w"), "1");
+  private static final WorkflowInstance INSTANCE_2 = WorkflowInstance.create(WorkflowId.create("c", "w"), "2");
+  private static final WorkflowInstance INSTANCE_3 = WorkflowInstance.create(WorkflowId.create("c", "w"), "3");
+  private static final RunSpec RUN_SPEC_1 = RunSpec.simple("eid1", "busybox");
+  private static final RunSpec RUN_SPEC_2 = RunSpec.simple("eid2", "busybox");
+  private static final RunSpec RUN_SPEC_3 = RunSpec.simple("eid3", "busybox");
+  private static final KubernetesSecretSpec SECRET_SPEC = KubernetesSecretSpec.builder().build();
+
+  @Mock private KubernetesSubmissionPipeline.SecretStage secretStage;
+  @Mock private KubernetesSubmissionPipeline.PodStage podStage;
+
+  private final QuietDeterministicScheduler secretExecutor = new QuietDeterministicScheduler();
+  private final QuietDeterministicScheduler podExecutor = new QuietDeterministicScheduler();
+
+  private KubernetesSubmissionPipeline pipeline;
+
+  @Before
+  public void setUp() {
+    when(secretStage.ensureSecrets(any(), any())).thenReturn(SECRET_SPEC);
+    pipeline = new KubernetesSubmissionPipeline(secretStage, podStage, secretExecutor, podExecutor, 2);
+  }
+
+  @Test
+  public void shouldResolveSecretsBeforeCreatingPod() throws Exception {
+    final CompletableFuture<Void> result = pipeline.submit(INSTANCE_1, RUN_SPEC_1);
+
+    secretExecutor.runUntilIdle();
+    verify(secretStage).ensureSecrets(INSTANCE_1, RUN_SPEC_1);
+    verify(podStage, never()).createPod(any(), any(), any());
+    assertThat(result.isDone(), is(false));
+
+    podExecutor.runUntilIdle();
+    verify(podStage).createPod(INSTANCE_1, RUN_SPEC_1, SECRET_SPEC);
+    assertThat(result.isDone(), is(true));
+    assertThat(pipeline.inFlight(), is(0));
+  }
+
+  @Test
+  public void shouldLimitSubmissionsInFlight() throws Exception {
+    final CompletableFuture<Void> result1 = pipeline.submit(INSTANCE_1, RUN_SPEC_1);
+    pipeline.submit(INSTANCE_2, RUN_SPEC_2);
+    final CompletableFuture<Void> result3 = pipeline.submit(INSTANCE_3, RUN_SPEC_3);
+    assertThat(pipeline.inFlight(), is(2));
+    assertThat(pipeline.waiting(), is(1));
+
+    secretExecutor.runUntilIdle();
+    verify(secretStage, never()).ensureSecrets(INSTANCE_3, RUN_SPEC_3);
+
+    podExecutor.runNextPendingCommand();
+    assertThat(result1.isDone(), is(true));
+    assertThat(pipeline.inFlight(), is(2));
+    assertThat(pipeline.waiting(), is(0));
+
+    secretExecutor.runUntilIdle();
+    podExecutor.runUntilIdle();
+    verify(podStage).createPod(INSTANCE_3, RUN_SPEC_3, SECRET_SPEC);
+    assertThat(result3.isDone(), is(true));
+    assertThat(pipeline.inFlight(), is(0));
+  }
+
+  @Test
+  public void shouldFailIfSecretResolutionFails() throws Exception {
+    final InvalidExecutionException error = new InvalidExecutionException("Secret not found");
+    when(secretStage.ensureSecrets(INSTANCE_1, RUN_SPEC_1)).thenThrow(error);
+
+    final CompletableFuture<Void> result = pipeline.submit(INSTANCE_1, RUN_SPEC_1);
+    secretExecutor.runUntilIdle();
+    podExecutor.runUntilIdle();
+
+    assertFailedWith(result, error);
+    verify(podStage, never()).createPod(any(), any(), any());
+    assertThat(pipeline.inFlight(), is(0));
+  }
+
+  @Test
+  public void shouldFailIfPodCreationFails() throws Exception {
+    final IOException error = new IOException("Failed to create Kubernetes pod");
+    doThrow(error).when(podStage).createPod(INSTANCE_1, RUN_SPEC_1, SECRET_SPEC);
+
+    final CompletableFuture<Void> result = pipeline.submit(INSTANCE_1, RUN_SPEC_1);
+    secretExecutor.runUntilIdle();
+    podExecutor.runUntilIdle();
+
+    assertFailedWith(result, error);
+    assertThat(pipeline.inFlight(), is(0));
+  }
+
+  private static void assertFailedWith(CompletableFuture<Void> result, Throwable error) {
+    try {
+      result.join();
+      fail("Expected exception");
+    } catch (CompletionException e) {
+      assertThat(e.getCause(), is(instanceOf(error.getClass())));
+      assertThat(e.getCause(), is(error));
+    }
+  }
+}
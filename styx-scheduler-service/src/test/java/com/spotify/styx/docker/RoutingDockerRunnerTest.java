@@ -71,6 +71,24 @@ public class RoutingDockerRunnerTest {
     verify(createdRunners.get("default")).start(WORKFLOW_INSTANCE, RUN_SPEC);
   }
 
+  @Test
+  public void testUsesCreatesRunnerOnStartAsync() throws Exception {
+    when(dockerId.get()).thenReturn("default");
+    dockerRunner.startAsync(WORKFLOW_INSTANCE, RUN_SPEC);
+
+    assertThat(createdRunners, hasKey("default"));
+    verify(createdRunners.get("default")).startAsync(WORKFLOW_INSTANCE, RUN_SPEC);
+  }
+
+  @Test
+  public void testUsesCreatesRunnerOnPrepare() throws Exception {
+    when(dockerId.get()).thenReturn("default");
+    dockerRunner.prepare(TestData.WORKFLOW_WITH_RESOURCES);
+
+    assertThat(createdRunners, hasKey("default"));
+    verify(createdRunners.get("default")).prepare(TestData.WORKFLOW_WITH_RESOURCES);
+  }
+
   @Test
   public void testUsesCreatesRunnerOnPoll() throws Exception {
     when(dockerId.get()).thenReturn("default");
@@ -20,11 +20,16 @@
 
 package com.spotify.styx.monitoring;
 
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.spotify.styx.docker.DockerRunner;
 import com.spotify.styx.docker.DockerRunner.RunSpec;
@@ -37,6 +42,8 @@ import io.fabric8.kubernetes.client.KubernetesClientTimeoutException;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Rule;
@@ -143,4 +150,30 @@ public class MeteredDockerRunnerProxyTest {
 
     verify(stats).recordDockerOperationError("start", "unknown", 0, 123);
   }
+
+  @Test
+  public void instrumentAsyncDockerMethodOnCompletion() {
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+    when(dockerRunner.startAsync(workflowInstance, runSpec)).thenReturn(future);
+
+    final CompletionStage<Void> stage = proxy.startAsync(workflowInstance, runSpec);
+    verify(stats, never()).recordDockerOperation(anyString(), anyLong(), anyString());
+
+    future.complete(null);
+
+    assertThat(stage.toCompletableFuture().isDone(), is(true));
+    verify(stats).recordDockerOperation("startAsync", 123, "success");
+  }
+
+  @Test
+  public void reportAsyncKubernetesClientException() {
+    when(dockerRunner.startAsync(workflowInstance, runSpec)).thenReturn(CompletableFuture.failedFuture(
+        new KubernetesClientException("enhance your calm", 429, new Status())));
+
+    final CompletionStage<Void> stage = proxy.startAsync(workflowInstance, runSpec);
+
+    assertThat(stage.toCompletableFuture().isCompletedExceptionally(), is(true));
+    verify(stats).recordDockerOperationError("startAsync", "kubernetes-client", 429, 123);
+    verify(stats).recordDockerOperation("startAsync", 123, "failure");
+  }
 }
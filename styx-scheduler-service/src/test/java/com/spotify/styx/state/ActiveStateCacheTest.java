@@ -0,0 +1,186 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.state;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.state.RunState.State;
+import com.spotify.styx.testdata.TestData;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.Test;
+
+public class ActiveStateCacheTest {
+
+  private static final Instant NOW = Instant.parse("2019-01-02T01:02:03Z");
+  private static final WorkflowInstance INSTANCE_1 = WorkflowInstance.create(TestData.WORKFLOW_ID, "2019-01-01");
+  private static final WorkflowInstance INSTANCE_2 = WorkflowInstance.create(TestData.WORKFLOW_ID, "2019-01-02");
+
+  private final ActiveStateCache cache = new ActiveStateCache();
+
+  @Test
+  public void shouldReturnPutState() {
+    var state = runState(INSTANCE_1, State.QUEUED, 17);
+    cache.put(state);
+    assertThat(cache.get(INSTANCE_1), is(Optional.of(state)));
+    assertThat(cache.contains(INSTANCE_1), is(true));
+    assertThat(cache.instances(), is(Set.of(INSTANCE_1)));
+    assertThat(cache.snapshot(), is(Map.of(INSTANCE_1, state)));
+  }
+
+  @Test
+  public void shouldIgnoreOlderState() {
+    var newer = runState(INSTANCE_1, State.PREPARE, 18);
+    cache.put(newer);
+    cache.put(runState(INSTANCE_1, State.QUEUED, 17));
+    assertThat(cache.get(INSTANCE_1), is(Optional.of(newer)));
+  }
+
+  @Test
+  public void shouldNotResurrectRemovedInstance() {
+    cache.put(runState(INSTANCE_1, State.RUNNING, 17));
+    cache.remove(INSTANCE_1, 18);
+    cache.put(runState(INSTANCE_1, State.RUNNING, 17));
+    assertThat(cache.get(INSTANCE_1), is(Optional.empty()));
+    assertThat(cache.contains(INSTANCE_1), is(true));
+    assertThat(cache.instances(), is(Set.of()));
+  }
+
+  @Test
+  public void shouldAcceptReinitializedInstance() {
+    cache.remove(INSTANCE_1, 18);
+    var reinitialized = runState(INSTANCE_1, State.NEW, 18);
+    cache.put(reinitialized);
+    assertThat(cache.get(INSTANCE_1), is(Optional.of(reinitialized)));
+  }
+
+  @Test
+  public void shouldInvalidate() {
+    cache.put(runState(INSTANCE_1, State.QUEUED, 17));
+    cache.invalidate(INSTANCE_1);
+    assertThat(cache.contains(INSTANCE_1), is(false));
+  }
+
+  @Test
+  public void shouldReplaceStaleEntriesOnReconcile() {
+    cache.put(runState(INSTANCE_1, State.QUEUED, 17));
+    cache.remove(INSTANCE_2, 4);
+    var stored = runState(INSTANCE_1, State.PREPARE, 18);
+
+    var stamp = cache.beginReconciliation();
+    var drift = cache.reconcile(stamp, Map.of(INSTANCE_1, stored));
+
+    assertThat(drift, is(1));
+    assertThat(cache.isLoaded(), is(true));
+    assertThat(cache.snapshot(), is(Map.of(INSTANCE_1, stored)));
+    assertThat(cache.contains(INSTANCE_2), is(false));
+  }
+
+  @Test
+  public void shouldRemoveEntriesMissingFromStorageOnReconcile() {
+    cache.put(runState(INSTANCE_1, State.QUEUED, 17));
+
+    var stamp = cache.beginReconciliation();
+    var drift = cache.reconcile(stamp, Map.of());
+
+    assertThat(drift, is(1));
+    assertThat(cache.contains(INSTANCE_1), is(false));
+  }
+
+  @Test
+  public void shouldKeepEntriesUpdatedDuringReconcile() {
+    var stamp = cache.beginReconciliation();
+    var updated = runState(INSTANCE_1, State.PREPARE, 18);
+    cache.put(updated);
+    cache.remove(INSTANCE_2, 5);
+
+    cache.reconcile(stamp, Map.of(
+        INSTANCE_1, runState(INSTANCE_1, State.QUEUED, 17),
+        INSTANCE_2, runState(INSTANCE_2, State.RUNNING, 4)));
+
+    assertThat(cache.snapshot(), is(Map.of(INSTANCE_1, updated)));
+    assertThat(cache.contains(INSTANCE_2), is(true));
+  }
+
+  @Test
+  public void shouldCountStatesByStateAndTriggerType() {
+    cache.put(runState(INSTANCE_1, State.QUEUED, 17, Trigger.natural()));
+    cache.put(runState(INSTANCE_2, State.QUEUED, 4, Trigger.adhoc("foo")));
+    assertThat(cache.count(State.QUEUED, "natural"), is(1L));
+    assertThat(cache.count(State.QUEUED, "adhoc"), is(1L));
+    assertThat(cache.count(State.RUNNING, "natural"), is(0L));
+
+    cache.put(runState(INSTANCE_1, State.RUNNING, 18, Trigger.natural()));
+    assertThat(cache.count(State.QUEUED, "natural"), is(0L));
+    assertThat(cache.count(State.RUNNING, "natural"), is(1L));
+
+    cache.remove(INSTANCE_1, 19);
+    cache.invalidate(INSTANCE_2);
+    assertThat(cache.count(State.RUNNING, "natural"), is(0L));
+    assertThat(cache.count(State.QUEUED, "adhoc"), is(0L));
+  }
+
+  @Test
+  public void shouldCountStatesByBackfill() {
+    cache.put(runState(INSTANCE_1, State.QUEUED, 17, Trigger.backfill("backfill-1")));
+    cache.put(runState(INSTANCE_2, State.QUEUED, 4, Trigger.adhoc("backfill-1")));
+    assertThat(cache.countByBackfill("backfill-1"), is(1));
+
+    cache.put(runState(INSTANCE_1, State.RUNNING, 18, Trigger.backfill("backfill-1")));
+    assertThat(cache.countByBackfill("backfill-1"), is(1));
+
+    cache.remove(INSTANCE_1, 19);
+    assertThat(cache.countByBackfill("backfill-1"), is(0));
+  }
+
+  @Test
+  public void shouldNotCountIgnoredState() {
+    cache.put(runState(INSTANCE_1, State.RUNNING, 18));
+    cache.put(runState(INSTANCE_1, State.QUEUED, 17));
+    assertThat(cache.count(State.RUNNING, "none"), is(1L));
+    assertThat(cache.count(State.QUEUED, "none"), is(0L));
+  }
+
+  @Test
+  public void shouldCountStatesOnReconcile() {
+    cache.put(runState(INSTANCE_1, State.QUEUED, 17));
+    cache.put(runState(INSTANCE_2, State.RUNNING, 4));
+
+    var stamp = cache.beginReconciliation();
+    cache.reconcile(stamp, Map.of(INSTANCE_1, runState(INSTANCE_1, State.PREPARE, 18)));
+
+    assertThat(cache.count(State.QUEUED, "none"), is(0L));
+    assertThat(cache.count(State.PREPARE, "none"), is(1L));
+    assertThat(cache.count(State.RUNNING, "none"), is(0L));
+  }
+
+  private static RunState runState(WorkflowInstance instance, State state, long counter, Trigger trigger) {
+    return RunState.create(instance, state, StateData.newBuilder().trigger(trigger).build(), NOW, counter);
+  }
+
+  private static RunState runState(WorkflowInstance instance, State state, long counter) {
+    return RunState.create(instance, state, StateData.zero(), NOW, counter);
+  }
+}
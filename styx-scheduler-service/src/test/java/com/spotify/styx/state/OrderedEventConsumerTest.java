@@ -0,0 +1,212 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler Service
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.state;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.spotify.styx.model.Event;
+import com.spotify.styx.model.SequenceEvent;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.monitoring.Stats;
+import com.spotify.styx.state.OrderedEventConsumer.OverflowPolicy;
+import com.spotify.styx.state.RunState.State;
+import com.spotify.styx.testdata.TestData;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OrderedEventConsumerTest {
+
+  private static final Instant NOW = Instant.parse("2019-01-02T01:02:03Z");
+  private static final WorkflowInstance INSTANCE_1 = WorkflowInstance.create(TestData.WORKFLOW_ID, "2019-01-01");
+  private static final WorkflowInstance INSTANCE_2 = WorkflowInstance.create(TestData.WORKFLOW_ID, "2019-01-02");
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @Mock private Stats stats;
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void shouldPreserveOrderPerInstance() throws Exception {
+    final Map<WorkflowInstance, List<Long>> consumed = new HashMap<>();
+    final CountDownLatch done = new CountDownLatch(200);
+    final BiConsumer<SequenceEvent, RunState> delegate = (event, state) -> {
+      synchronized (consumed) {
+        consumed.computeIfAbsent(state.workflowInstance(), i -> new ArrayList<>()).add(event.counter());
+      }
+      done.countDown();
+    };
+    final OrderedEventConsumer consumer = new OrderedEventConsumer(delegate, executor, 1000, 1000, OverflowPolicy.DROP, stats);
+
+    for (long counter = 0; counter < 100; counter++) {
+      consumer.accept(sequenceEvent(INSTANCE_1, counter), runState(INSTANCE_1, counter));
+      consumer.accept(sequenceEvent(INSTANCE_2, counter), runState(INSTANCE_2, counter));
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    final Long[] expected = IntStream.range(0, 100).mapToObj(Long::valueOf).toArray(Long[]::new);
+    synchronized (consumed) {
+      assertThat(consumed.get(INSTANCE_1), contains(expected));
+      assertThat(consumed.get(INSTANCE_2), contains(expected));
+    }
+  }
+
+  @Test
+  public void shouldNotBlockOtherInstancesOnSlowConsumer() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch consumed = new CountDownLatch(1);
+    final BiConsumer<SequenceEvent, RunState> delegate = (event, state) -> {
+      if (state.workflowInstance().equals(INSTANCE_1)) {
+        awaitUninterruptibly(blocked);
+      } else {
+        consumed.countDown();
+      }
+    };
+    final OrderedEventConsumer consumer = new OrderedEventConsumer(delegate, executor, 10, 10, OverflowPolicy.DROP, stats);
+
+    consumer.accept(sequenceEvent(INSTANCE_1, 0), runState(INSTANCE_1, 0));
+    consumer.accept(sequenceEvent(INSTANCE_2, 0), runState(INSTANCE_2, 0));
+
+    assertTrue(consumed.await(10, TimeUnit.SECONDS));
+    blocked.countDown();
+  }
+
+  @Test
+  public void shouldDropEventsWhenInstanceQueueIsFull() {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final OrderedEventConsumer consumer = new OrderedEventConsumer(
+        (event, state) -> awaitUninterruptibly(blocked), executor, 2, 10, OverflowPolicy.DROP, stats);
+
+    final SequenceEvent dropped = sequenceEvent(INSTANCE_1, 2);
+    consumer.accept(sequenceEvent(INSTANCE_1, 0), runState(INSTANCE_1, 0));
+    consumer.accept(sequenceEvent(INSTANCE_1, 1), runState(INSTANCE_1, 1));
+    consumer.accept(dropped, runState(INSTANCE_1, 2));
+    consumer.accept(sequenceEvent(INSTANCE_2, 0), runState(INSTANCE_2, 0));
+
+    verify(stats).recordEventConsumerDropped(dropped);
+    assertThat(consumer.queued(), is(3));
+    blocked.countDown();
+  }
+
+  @Test
+  public void shouldDropEventsWhenQueueIsFull() {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final OrderedEventConsumer consumer = new OrderedEventConsumer(
+        (event, state) -> awaitUninterruptibly(blocked), executor, 2, 2, OverflowPolicy.DROP, stats);
+
+    final SequenceEvent dropped = sequenceEvent(INSTANCE_2, 0);
+    consumer.accept(sequenceEvent(INSTANCE_1, 0), runState(INSTANCE_1, 0));
+    consumer.accept(sequenceEvent(INSTANCE_1, 1), runState(INSTANCE_1, 1));
+    consumer.accept(dropped, runState(INSTANCE_2, 0));
+
+    verify(stats).recordEventConsumerDropped(dropped);
+    blocked.countDown();
+  }
+
+  @Test
+  public void shouldReportQueuedEvents() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(2);
+    final OrderedEventConsumer consumer = new OrderedEventConsumer((event, state) -> {
+      awaitUninterruptibly(blocked);
+      done.countDown();
+    }, executor, 10, 10, OverflowPolicy.DROP, stats);
+
+    consumer.accept(sequenceEvent(INSTANCE_1, 0), runState(INSTANCE_1, 0));
+    consumer.accept(sequenceEvent(INSTANCE_1, 1), runState(INSTANCE_1, 1));
+    assertThat(consumer.queued(), is(2));
+
+    blocked.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    verify(stats, never()).recordEventConsumerDropped(any());
+  }
+
+  @Test
+  public void shouldBlockUntilEventFitsWhenQueueIsFull() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final List<Long> consumed = new ArrayList<>();
+    final OrderedEventConsumer consumer = new OrderedEventConsumer((event, state) -> {
+      awaitUninterruptibly(blocked);
+      synchronized (consumed) {
+        consumed.add(event.counter());
+      }
+    }, executor, 2, 2, OverflowPolicy.BLOCK, stats);
+
+    consumer.accept(sequenceEvent(INSTANCE_1, 0), runState(INSTANCE_1, 0));
+    consumer.accept(sequenceEvent(INSTANCE_1, 1), runState(INSTANCE_1, 1));
+    final CompletableFuture<Void> accepted = CompletableFuture.runAsync(
+        () -> consumer.accept(sequenceEvent(INSTANCE_1, 2), runState(INSTANCE_1, 2)));
+
+    Thread.sleep(100);
+    assertFalse(accepted.isDone());
+
+    blocked.countDown();
+    accepted.get(10, TimeUnit.SECONDS);
+    verify(stats, never()).recordEventConsumerDropped(any());
+    await().atMost(10, TimeUnit.SECONDS).until(() -> consumer.queued() == 0);
+    synchronized (consumed) {
+      assertThat(consumed, contains(0L, 1L, 2L));
+    }
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static SequenceEvent sequenceEvent(WorkflowInstance instance, long counter) {
+    return SequenceEvent.create(Event.started(instance), counter, 0L);
+  }
+
+  private static RunState runState(WorkflowInstance instance, long counter) {
+    return RunState.create(instance, State.RUNNING, StateData.zero(), NOW, counter);
+  }
+}
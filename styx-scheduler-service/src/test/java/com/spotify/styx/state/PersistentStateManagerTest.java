@@ -20,12 +20,15 @@
 
 package com.spotify.styx.state;
 
+import static com.spotify.styx.state.PersistentStateManager.MAX_BATCH_TRANSACTION_SIZE;
+import static com.spotify.styx.util.ShardedCounterSnapshotFactory.TRANSACTION_GROUP_SIZE;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 import static org.hamcrest.Matchers.arrayContaining;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
@@ -35,11 +38,13 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -68,13 +73,16 @@ import com.spotify.styx.util.ShardedCounter;
 import com.spotify.styx.util.Time;
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -144,9 +152,7 @@ public class PersistentStateManagerTest {
     var runState1 = RunState.create(instance1, State.SUBMITTING, StateData.zero(), NOW.minusMillis(2), 17);
     var runState2 = RunState.create(instance2, State.TERMINATED, StateData.zero(), NOW.minusMillis(1), 4711);
 
-    when(storage.listActiveInstances()).thenReturn(Set.of(instance1, instance2));
-    when(storage.readActiveState(instance1)).thenReturn(Optional.of(runState1));
-    when(storage.readActiveState(instance2)).thenReturn(Optional.of(runState2));
+    when(storage.readActiveStates()).thenReturn(Map.of(instance1, runState1, instance2, runState2));
 
     stateManager.tick();
 
@@ -161,9 +167,7 @@ public class PersistentStateManagerTest {
     var runState1 = RunState.create(instance1, State.SUBMITTING, StateData.zero(), NOW.minusMillis(2), 17);
     var runState2 = RunState.create(instance2, State.TERMINATED, StateData.zero(), NOW.minusMillis(1), 4711);
 
-    when(storage.listActiveInstances()).thenReturn(Set.of(instance1, instance2));
-    when(storage.readActiveState(instance1)).thenReturn(Optional.of(runState1));
-    when(storage.readActiveState(instance2)).thenReturn(Optional.of(runState2));
+    when(storage.readActiveStates()).thenReturn(Map.of(instance1, runState1, instance2, runState2));
 
     var cause = new RuntimeException("fail!");
     doThrow(cause).when(outputHandler).transitionInto(runState1);
@@ -183,9 +187,7 @@ public class PersistentStateManagerTest {
     var runState1 = RunState.create(instance1, State.SUBMITTING, StateData.zero(), NOW.minusMillis(2), 17);
     var runState2 = RunState.create(instance2, State.TERMINATED, StateData.zero(), NOW.minusMillis(1), 4711);
 
-    when(storage.listActiveInstances()).thenReturn(Set.of(instance1, instance2));
-    when(storage.readActiveState(instance1)).thenReturn(Optional.of(runState1));
-    when(storage.readActiveState(instance2)).thenReturn(Optional.of(runState2));
+    when(storage.readActiveStates()).thenReturn(Map.of(instance1, runState1, instance2, runState2));
 
     var cause = new StateTransitionConflictException("conflict!");
     doThrow(cause).when(outputHandler).transitionInto(runState1);
@@ -396,6 +398,169 @@ public class PersistentStateManagerTest {
     verify(storage).writeEvent(SequenceEvent.create(event, 18, NOW.toEpochMilli()));
   }
 
+  @Test
+  public void shouldReceiveBatchInOneTransaction() throws Exception {
+    var instance2 = WorkflowInstance.create(INSTANCE.workflowId(), "2016-05-02");
+    when(transaction.readActiveState(INSTANCE)).thenReturn(
+        Optional.of(RunState.create(INSTANCE, State.SUBMITTED, StateData.zero(), NOW, 17)));
+    when(transaction.readActiveState(instance2)).thenReturn(
+        Optional.of(RunState.create(instance2, State.SUBMITTED, StateData.zero(), NOW, 4)));
+
+    var event1 = Event.started(INSTANCE);
+    var event2 = Event.started(instance2);
+    var failures = stateManager.receiveBatch(List.of(event1, event2), Map.of(INSTANCE, 17L, instance2, 4L));
+
+    assertThat(failures, is(Map.of()));
+    verify(storage).runInTransaction(any());
+    verify(storage).writeEvents(List.of(
+        SequenceEvent.create(event1, 18, NOW.toEpochMilli()),
+        SequenceEvent.create(event2, 5, NOW.toEpochMilli())));
+    verify(storage, never()).writeEvent(any());
+  }
+
+  @Test
+  public void shouldUpdateResourceCounterForEveryDequeueInBatch() throws Exception {
+    var instance2 = WorkflowInstance.create(INSTANCE.workflowId(), "2016-05-02");
+    when(transaction.readActiveState(INSTANCE)).thenReturn(
+        Optional.of(RunState.create(INSTANCE, State.QUEUED, StateData.zero(), NOW, 17)));
+    when(transaction.readActiveState(instance2)).thenReturn(
+        Optional.of(RunState.create(instance2, State.QUEUED, StateData.zero(), NOW, 4)));
+
+    var failures = stateManager.receiveBatch(List.of(
+        Event.dequeue(INSTANCE, ImmutableSet.of("resource1")),
+        Event.dequeue(instance2, ImmutableSet.of("resource1"))));
+
+    assertThat(failures, is(Map.of()));
+    verify(storage).runInTransaction(any());
+    verify(transaction, times(2)).updateCounter(shardedCounter, "resource1", 1);
+  }
+
+  @Test
+  public void shouldTouchAtMostTransactionGroupSizeEntityGroupsPerBatchTransaction() throws Exception {
+    var resources = ImmutableSet.of("global", "resource1");
+    var events = IntStream.range(0, MAX_BATCH_TRANSACTION_SIZE + 1)
+        .mapToObj(i -> Event.dequeue(WorkflowInstance.create(INSTANCE.workflowId(), "2016-05-" + (10 + i)),
+            resources))
+        .collect(toList());
+    var entityGroups = new ArrayList<AtomicInteger>();
+    doAnswer(a -> {
+      entityGroups.add(new AtomicInteger());
+      return a.<TransactionFunction>getArgument(0).apply(transaction);
+    }).when(storage).runInTransaction(any());
+    when(transaction.readActiveState(any())).thenAnswer(a -> {
+      entityGroups.get(entityGroups.size() - 1).incrementAndGet();
+      return Optional.of(RunState.create(a.getArgument(0), State.QUEUED, StateData.zero(), NOW, 17));
+    });
+    doAnswer(a -> entityGroups.get(entityGroups.size() - 1).incrementAndGet())
+        .when(transaction).updateCounter(eq(shardedCounter), anyString(), eq(1));
+
+    var failures = stateManager.receiveBatch(events);
+
+    assertThat(failures, is(Map.of()));
+    assertThat(entityGroups.size(), is(2));
+    assertThat(entityGroups.get(0).get(), is(MAX_BATCH_TRANSACTION_SIZE * (1 + resources.size())));
+    assertThat(entityGroups.get(0).get(), lessThanOrEqualTo(TRANSACTION_GROUP_SIZE));
+    assertThat(entityGroups.get(1).get(), is(1 + resources.size()));
+  }
+
+  @Test
+  public void shouldReceiveBatchWithoutFailedEvents() throws Exception {
+    var instance2 = WorkflowInstance.create(INSTANCE.workflowId(), "2016-05-02");
+    when(transaction.readActiveState(INSTANCE)).thenReturn(
+        Optional.of(RunState.create(INSTANCE, State.SUBMITTED, StateData.zero(), NOW, 17)));
+    when(transaction.readActiveState(instance2)).thenReturn(Optional.empty());
+
+    var event1 = Event.started(INSTANCE);
+    var failures = stateManager.receiveBatch(List.of(event1, Event.started(instance2)));
+
+    assertThat(failures.keySet(), is(Set.of(instance2)));
+    assertThat(failures.get(instance2), instanceOf(IllegalArgumentException.class));
+    verify(storage, times(2)).runInTransaction(any());
+    verify(storage).writeEvents(List.of(SequenceEvent.create(event1, 18, NOW.toEpochMilli())));
+  }
+
+  @Test
+  public void shouldReceiveBatchEventsOneByOneOnConflict() throws Exception {
+    var instance2 = WorkflowInstance.create(INSTANCE.workflowId(), "2016-05-02");
+    when(transaction.readActiveState(INSTANCE)).thenReturn(
+        Optional.of(RunState.create(INSTANCE, State.SUBMITTED, StateData.zero(), NOW, 17)));
+    when(transaction.readActiveState(instance2)).thenReturn(
+        Optional.of(RunState.create(instance2, State.SUBMITTED, StateData.zero(), NOW, 4)));
+    final TransactionException cause = new TransactionException(
+        new DatastoreException(10, "foo", "bar"));
+    reset(storage);
+    when(storage.runInTransaction(any()))
+        .thenThrow(cause)
+        .thenAnswer(a -> a.<TransactionFunction>getArgument(0).apply(transaction));
+
+    var failures = stateManager.receiveBatch(List.of(Event.started(INSTANCE), Event.started(instance2)));
+
+    assertThat(failures, is(Map.of()));
+    verify(storage, times(3)).runInTransaction(any());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectBatchWithMultipleEventsForInstance() throws Exception {
+    stateManager.receiveBatch(List.of(Event.started(INSTANCE), Event.success(INSTANCE)));
+  }
+
+  @Test
+  public void shouldReceiveAllInOneTransaction() throws Exception {
+    when(transaction.readActiveState(INSTANCE)).thenReturn(
+        Optional.of(RunState.create(INSTANCE, State.SUBMITTED, StateData.zero(), NOW, 17)));
+
+    var event1 = Event.started(INSTANCE);
+    var event2 = Event.terminate(INSTANCE, Optional.of(0));
+    stateManager.receiveAll(List.of(event1, event2), 17);
+
+    verify(storage).runInTransaction(any());
+    verify(transaction).readActiveState(INSTANCE);
+    verify(transaction).updateActiveState(eq(INSTANCE), any());
+    verify(storage).writeEvents(List.of(
+        SequenceEvent.create(event1, 18, NOW.toEpochMilli()),
+        SequenceEvent.create(event2, 19, NOW.toEpochMilli())));
+    verify(storage, never()).writeEvent(any());
+    assertThat(runStateCaptor.getAllValues().stream().map(RunState::state).collect(toList()),
+        is(List.of(State.RUNNING, State.TERMINATED)));
+    assertThat(runStateCaptor.getAllValues().get(1).counter(), is(19L));
+  }
+
+  @Test
+  public void shouldReceiveNoneOfAllIfOneFails() throws Exception {
+    when(transaction.readActiveState(INSTANCE)).thenReturn(
+        Optional.of(RunState.create(INSTANCE, State.SUBMITTED, StateData.zero(), NOW, 17)));
+
+    try {
+      stateManager.receiveAll(List.of(Event.started(INSTANCE), Event.started(INSTANCE)), 17);
+      fail();
+    } catch (IllegalStateException ignore) {
+    }
+
+    verify(transaction, never()).updateActiveState(any(), any());
+    verify(storage, never()).writeEvents(any());
+    verify(outputHandler, never()).transitionInto(any());
+  }
+
+  @Test
+  public void shouldFailReceiveAllWithHigherCounter() throws Exception {
+    when(transaction.readActiveState(INSTANCE)).thenReturn(
+        Optional.of(RunState.create(INSTANCE, State.SUBMITTED, StateData.zero(), NOW, 17)));
+
+    try {
+      stateManager.receiveAll(List.of(Event.started(INSTANCE), Event.terminate(INSTANCE, Optional.of(0))), 16);
+      fail();
+    } catch (StateTransitionConflictException ignore) {
+    }
+
+    verify(storage, never()).writeEvents(any());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectReceiveAllForMultipleInstances() throws Exception {
+    var instance2 = WorkflowInstance.create(INSTANCE.workflowId(), "2016-05-02");
+    stateManager.receiveAll(List.of(Event.started(INSTANCE), Event.started(instance2)), 17);
+  }
+
   @Test
   public void shouldFailReceiveEventWithHigherCounter() throws Exception {
     Event event = Event.started(INSTANCE);
@@ -508,6 +673,49 @@ public class PersistentStateManagerTest {
     assertThat(returnedRunStates.size(), is(1));
   }
 
+  @Test
+  public void shouldGetRunStateFromCacheAfterTransition() throws Exception {
+    Optional<RunState> runState = Optional.of(
+        RunState.create(INSTANCE, State.QUEUED, StateData.zero(), NOW, 17));
+    when(transaction.readActiveState(INSTANCE)).thenReturn(runState);
+
+    stateManager.receive(Event.dequeue(INSTANCE, ImmutableSet.of()));
+
+    var expected = RunState.create(INSTANCE, State.PREPARE,
+        StateData.newBuilder().resourceIds(ImmutableSet.of()).build(), NOW, 18);
+    assertThat(stateManager.getActiveState(INSTANCE), is(Optional.of(expected)));
+    verify(storage, never()).readActiveState(INSTANCE);
+  }
+
+  @Test
+  public void shouldNotGetRunStateFromCacheAfterTerminalTransition() throws Exception {
+    Optional<RunState> runState = Optional.of(
+        RunState.create(INSTANCE, State.TERMINATED, StateData.zero(), NOW, 17));
+    when(transaction.readActiveState(INSTANCE)).thenReturn(runState);
+
+    stateManager.receive(Event.success(INSTANCE));
+
+    assertThat(stateManager.getActiveState(INSTANCE), is(Optional.empty()));
+    verify(storage, never()).readActiveState(INSTANCE);
+  }
+
+  @Test
+  public void shouldReadRunStatesFromStorageOnlyOnceUntilReconciled() throws Exception {
+    var runState1 = RunState.create(INSTANCE, State.QUEUED, StateData.zero(), NOW.minusMillis(1), 17);
+    var runState2 = RunState.create(INSTANCE, State.PREPARE, StateData.zero(), NOW, 18);
+    when(storage.readActiveStates()).thenReturn(Map.of(INSTANCE, runState1), Map.of(INSTANCE, runState2));
+
+    assertThat(stateManager.getActiveStates(), is(Map.of(INSTANCE, runState1)));
+    assertThat(stateManager.listActiveInstances(), is(Set.of(INSTANCE)));
+    verify(storage).readActiveStates();
+
+    stateManager.reconcileActiveStates();
+
+    assertThat(stateManager.getActiveStates(), is(Map.of(INSTANCE, runState2)));
+    verify(storage, times(2)).readActiveStates();
+    verify(storage, never()).listActiveInstances();
+  }
+
   @Test
   public void shouldGetRunStatesByTriggerId() throws Exception {
     Map<WorkflowInstance, RunState> states = Maps.newConcurrentMap();
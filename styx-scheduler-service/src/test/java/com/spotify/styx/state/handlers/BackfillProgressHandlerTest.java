@@ -0,0 +1,271 @@
+/*-
+ * -\-\-
+ * Spotify Styx Scheduler
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.state.handlers;
+
+import static com.spotify.styx.state.RunState.State.DONE;
+import static com.spotify.styx.state.RunState.State.ERROR;
+import static com.spotify.styx.state.RunState.State.RUNNING;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.datastore.DatastoreException;
+import com.google.common.collect.Sets;
+import com.spotify.styx.model.Backfill;
+import com.spotify.styx.model.Event;
+import com.spotify.styx.model.Schedule;
+import com.spotify.styx.model.SequenceEvent;
+import com.spotify.styx.model.TriggerParameters;
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.state.BackfillProgress;
+import com.spotify.styx.state.RunState;
+import com.spotify.styx.state.StateData;
+import com.spotify.styx.state.Trigger;
+import com.spotify.styx.storage.Storage;
+import com.spotify.styx.storage.StorageTransaction;
+import com.spotify.styx.storage.TransactionException;
+import com.spotify.styx.storage.TransactionFunction;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BackfillProgressHandlerTest {
+
+  private static final WorkflowId WORKFLOW_ID = WorkflowId.create("foo", "bar");
+
+  private static final Backfill BACKFILL = Backfill.newBuilder()
+      .id("backfill-1")
+      .start(Instant.parse("2019-01-01T00:00:00Z"))
+      .end(Instant.parse("2019-01-02T00:00:00Z"))
+      .workflowId(WORKFLOW_ID)
+      .concurrency(1)
+      .nextTrigger(Instant.parse("2019-01-01T04:00:00Z"))
+      .schedule(Schedule.HOURS)
+      .build();
+
+  private static final WorkflowInstance INSTANCE = WorkflowInstance.create(WORKFLOW_ID, "2019-01-01T03");
+  private static final WorkflowInstance OTHER_INSTANCE = WorkflowInstance.create(WORKFLOW_ID, "2019-01-01T01");
+
+  @Mock private Storage storage;
+  @Mock private StorageTransaction transaction;
+
+  private Instant now = Instant.parse("2019-01-01T06:00:00Z");
+
+  private BackfillProgressHandler handler;
+
+  @Before
+  public void setUp() {
+    handler = new BackfillProgressHandler(storage, () -> now);
+  }
+
+  @Test
+  public void shouldRecordTerminalStateOfBackfillPartitionOnFlush() throws Exception {
+    setUpStorage();
+    when(transaction.backfillProgress(BACKFILL.id())).thenReturn(Optional.empty());
+
+    handler.accept(event(), state(INSTANCE, DONE));
+    verifyZeroInteractions(storage);
+
+    handler.flush();
+
+    verify(transaction).store(BackfillProgress.create(BACKFILL.id()).withTerminalState(3, DONE));
+  }
+
+  @Test
+  public void shouldUpdateStoredProgress() throws Exception {
+    setUpStorage();
+    final BackfillProgress progress = BackfillProgress.create(BACKFILL.id()).withTerminalState(0, DONE);
+    when(transaction.backfillProgress(BACKFILL.id())).thenReturn(Optional.of(progress));
+
+    handler.accept(event(), state(INSTANCE, ERROR));
+    handler.flush();
+
+    verify(transaction).store(progress.withTerminalState(3, ERROR));
+  }
+
+  @Test
+  public void shouldCoalesceTerminalStatesOfBackfill() throws Exception {
+    setUpStorage();
+    when(transaction.backfillProgress(BACKFILL.id())).thenReturn(Optional.empty());
+
+    handler.accept(event(), state(INSTANCE, ERROR));
+    handler.accept(event(), state(OTHER_INSTANCE, DONE));
+    handler.accept(event(), state(INSTANCE, DONE));
+    handler.flush();
+
+    verify(storage).runInTransaction(any());
+    verify(transaction).store(BackfillProgress.create(BACKFILL.id())
+        .withTerminalState(1, DONE)
+        .withTerminalState(3, DONE));
+  }
+
+  @Test
+  public void shouldBackOffAndRetryOnConflict() throws Exception {
+    when(storage.backfill(BACKFILL.id())).thenReturn(Optional.of(BACKFILL));
+    when(storage.runInTransaction(any()))
+        .thenThrow(new TransactionException(new DatastoreException(10, "conflict", "ABORTED")))
+        .thenAnswer(a -> a.<TransactionFunction>getArgument(0).apply(transaction));
+    when(transaction.backfillProgress(BACKFILL.id())).thenReturn(Optional.empty());
+
+    handler.accept(event(), state(INSTANCE, DONE));
+    handler.flush();
+    handler.flush();
+
+    verify(storage).runInTransaction(any());
+
+    now = now.plus(Duration.ofMinutes(1));
+    handler.flush();
+
+    verify(storage, times(2)).runInTransaction(any());
+    verify(transaction).store(BackfillProgress.create(BACKFILL.id()).withTerminalState(3, DONE));
+  }
+
+  @Test
+  public void shouldPreferNewerTerminalStateOverFailedOne() throws Exception {
+    when(storage.backfill(BACKFILL.id())).thenReturn(Optional.of(BACKFILL));
+    when(storage.runInTransaction(any()))
+        .thenThrow(new TransactionException(new DatastoreException(10, "conflict", "ABORTED")))
+        .thenAnswer(a -> a.<TransactionFunction>getArgument(0).apply(transaction));
+    when(transaction.backfillProgress(BACKFILL.id())).thenReturn(Optional.empty());
+
+    handler.accept(event(), state(INSTANCE, ERROR));
+    handler.flush();
+    handler.accept(event(), state(INSTANCE, DONE));
+    handler.accept(event(), state(OTHER_INSTANCE, DONE));
+    now = now.plus(Duration.ofMinutes(1));
+    handler.flush();
+
+    verify(transaction).store(BackfillProgress.create(BACKFILL.id())
+        .withTerminalState(1, DONE)
+        .withTerminalState(3, DONE));
+  }
+
+  @Test
+  public void shouldFlushOnClose() throws Exception {
+    setUpStorage();
+    when(transaction.backfillProgress(BACKFILL.id())).thenReturn(Optional.empty());
+
+    handler.accept(event(), state(INSTANCE, DONE));
+    handler.close();
+
+    verify(transaction).store(BackfillProgress.create(BACKFILL.id()).withTerminalState(3, DONE));
+  }
+
+  @Test
+  public void shouldIgnoreNonTerminalStates() {
+    handler.accept(event(), state(INSTANCE, RUNNING));
+    handler.flush();
+
+    verifyZeroInteractions(storage);
+  }
+
+  @Test
+  public void shouldIgnoreOtherTriggers() {
+    handler.accept(event(), RunState.create(INSTANCE, DONE,
+        StateData.newBuilder().trigger(Trigger.natural()).build(), Instant.now(), 7L));
+    handler.flush();
+
+    verifyZeroInteractions(storage);
+  }
+
+  @Test
+  public void shouldIgnoreInstancesOutsideOfBackfill() throws Exception {
+    when(storage.backfill(BACKFILL.id())).thenReturn(Optional.of(BACKFILL));
+    final WorkflowInstance instance = WorkflowInstance.create(WORKFLOW_ID, "2019-01-02T03");
+
+    handler.accept(event(), state(instance, DONE));
+    handler.flush();
+
+    verify(storage, never()).runInTransaction(any());
+  }
+
+  @Test
+  public void shouldReconcileUnrecordedPartitionsFromEvents() throws Exception {
+    setUpStorage();
+    final BackfillProgress progress = BackfillProgress.create(BACKFILL.id())
+        .withTerminalState(0, DONE)
+        .withTerminalState(2, DONE);
+    when(storage.backfills(false)).thenReturn(List.of(BACKFILL));
+    when(storage.backfillProgress(BACKFILL.id())).thenReturn(Optional.of(progress));
+    when(transaction.backfillProgress(BACKFILL.id())).thenReturn(Optional.of(progress));
+    when(storage.readActiveStatesByTriggerId(BACKFILL.id()))
+        .thenReturn(Map.of(OTHER_INSTANCE, state(OTHER_INSTANCE, RUNNING)));
+    final SortedSet<SequenceEvent> events = Sets.newTreeSet(SequenceEvent.COUNTER_COMPARATOR);
+    events.add(SequenceEvent.create(
+        Event.triggerExecution(INSTANCE, Trigger.backfill(BACKFILL.id()), TriggerParameters.zero()), 1L, 1L));
+    events.add(SequenceEvent.create(Event.halt(INSTANCE), 2L, 2L));
+    when(storage.readEvents(INSTANCE)).thenReturn(events);
+
+    handler.reconcile();
+    handler.flush();
+
+    verify(storage, never()).readEvents(OTHER_INSTANCE);
+    verify(transaction).store(progress.withTerminalState(3, ERROR));
+  }
+
+  @Test
+  public void shouldNotReplaceBufferedTerminalStateWhenReconciling() throws Exception {
+    setUpStorage();
+    when(storage.backfills(false)).thenReturn(List.of(BACKFILL));
+    when(storage.backfillProgress(BACKFILL.id())).thenReturn(Optional.empty());
+    when(transaction.backfillProgress(BACKFILL.id())).thenReturn(Optional.empty());
+    final SortedSet<SequenceEvent> events = Sets.newTreeSet(SequenceEvent.COUNTER_COMPARATOR);
+    events.add(SequenceEvent.create(
+        Event.triggerExecution(INSTANCE, Trigger.backfill(BACKFILL.id()), TriggerParameters.zero()), 1L, 1L));
+    events.add(SequenceEvent.create(Event.halt(INSTANCE), 2L, 2L));
+    when(storage.readEvents(any())).thenReturn(Sets.newTreeSet(SequenceEvent.COUNTER_COMPARATOR));
+    when(storage.readEvents(INSTANCE)).thenReturn(events);
+
+    handler.accept(event(), state(INSTANCE, DONE));
+    handler.reconcile();
+    handler.flush();
+
+    verify(transaction).store(BackfillProgress.create(BACKFILL.id()).withTerminalState(3, DONE));
+  }
+
+  private void setUpStorage() throws Exception {
+    when(storage.backfill(BACKFILL.id())).thenReturn(Optional.of(BACKFILL));
+    when(storage.runInTransaction(any())).thenAnswer(
+        a -> a.<TransactionFunction>getArgument(0).apply(transaction));
+  }
+
+  private static SequenceEvent event() {
+    return SequenceEvent.create(Event.success(INSTANCE), 7L, 0L);
+  }
+
+  private static RunState state(WorkflowInstance instance, RunState.State state) {
+    return RunState.create(instance, state,
+        StateData.newBuilder().trigger(Trigger.backfill(BACKFILL.id())).build(), Instant.now(), 7L);
+  }
+}
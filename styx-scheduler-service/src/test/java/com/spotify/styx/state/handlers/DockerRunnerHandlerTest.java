@@ -25,10 +25,11 @@ import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
-import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
 import com.spotify.styx.docker.DockerRunner;
@@ -38,6 +39,7 @@ import com.spotify.styx.model.Event;
 import com.spotify.styx.model.ExecutionDescription;
 import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowConfiguration;
+import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.state.RunState;
 import com.spotify.styx.state.RunState.State;
@@ -46,6 +48,7 @@ import com.spotify.styx.state.StateManager;
 import com.spotify.styx.util.IsClosedException;
 import java.io.IOException;
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
 import org.junit.Before;
@@ -80,6 +83,7 @@ public class DockerRunnerHandlerTest {
   @Before
   public void setUp() {
     MockitoAnnotations.initMocks(this);
+    when(dockerRunner.startAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
     dockerRunnerHandler = new DockerRunnerHandler(dockerRunner, stateManager);
   }
 
@@ -96,7 +100,7 @@ public class DockerRunnerHandlerTest {
 
     dockerRunnerHandler.transitionInto(runState);
 
-    verify(dockerRunner, timeout(60_000)).start(instanceCaptor.capture(), runSpecCaptor.capture());
+    verify(dockerRunner, timeout(60_000)).startAsync(instanceCaptor.capture(), runSpecCaptor.capture());
 
     assertThat(instanceCaptor.getValue(), is(workflowInstance));
     assertThat(runSpecCaptor.getValue().imageName(), is(TEST_DOCKER_IMAGE));
@@ -115,7 +119,7 @@ public class DockerRunnerHandlerTest {
 
     dockerRunnerHandler.transitionInto(runState);
 
-    verify(dockerRunner, timeout(60_000)).start(instanceCaptor.capture(), runSpecCaptor.capture());
+    verify(dockerRunner, timeout(60_000)).startAsync(instanceCaptor.capture(), runSpecCaptor.capture());
 
     assertThat(runSpecCaptor.getValue().args(), contains("--date", "2016-03-14T15" , "--bar"));
   }
@@ -136,6 +140,41 @@ public class DockerRunnerHandlerTest {
         runState.counter());
   }
 
+  @Test
+  public void shouldTransitionIntoSubmittedOnlyWhenSubmissionCompletes() throws Exception {
+    final CompletableFuture<Void> submission = new CompletableFuture<>();
+    when(dockerRunner.startAsync(any(), any())).thenReturn(submission);
+
+    WorkflowInstance workflowInstance = WorkflowInstance.create(WorkflowId.create("id", "id"), "2016-03-14T15");
+    RunState runState = RunState.create(workflowInstance, State.SUBMITTING, StateData.newBuilder()
+        .executionId(TEST_EXECUTION_ID)
+        .executionDescription(EXECUTION_DESCRIPTION)
+        .build(), NOW, COUNTER);
+
+    dockerRunnerHandler.transitionInto(runState);
+    verifyZeroInteractions(stateManager);
+
+    submission.complete(null);
+    verify(stateManager).receive(Event.submitted(workflowInstance, TEST_EXECUTION_ID), COUNTER);
+  }
+
+  @Test
+  public void shouldFailIfDockerRunnerThrows() throws Exception {
+    final RuntimeException exception = new RuntimeException("Testing exception.");
+    when(dockerRunner.startAsync(any(), any())).thenThrow(exception);
+
+    WorkflowInstance workflowInstance = WorkflowInstance.create(WorkflowId.create("id", "id"), "2016-03-14T15");
+    RunState runState = RunState.create(workflowInstance, State.SUBMITTING, StateData.newBuilder()
+        .executionId(TEST_EXECUTION_ID)
+        .executionDescription(EXECUTION_DESCRIPTION)
+        .build(), NOW, COUNTER);
+
+    dockerRunnerHandler.transitionInto(runState);
+
+    verify(stateManager).receive(Event.runError(workflowInstance, exception.getMessage()), COUNTER);
+    verifyNoMoreInteractions(stateManager);
+  }
+
   @Test
   public void shouldFailIfDockerRunnerRaisesException() throws Exception {
     shouldFailIfDockerRunnerRaisesException(new IOException("Testing exception."));
@@ -148,8 +187,8 @@ public class DockerRunnerHandlerTest {
 
   void shouldFailIfDockerRunnerRaisesException(Throwable throwable)
       throws IOException, IsClosedException {
-    doThrow(throwable).when(dockerRunner)
-        .start(any(WorkflowInstance.class), any(RunSpec.class));
+    when(dockerRunner.startAsync(any(WorkflowInstance.class), any(RunSpec.class)))
+        .thenReturn(CompletableFuture.failedFuture(throwable));
 
     Workflow workflow = Workflow.create("id", configuration());
     WorkflowInstance workflowInstance = WorkflowInstance.create(workflow.id(), "2016-03-14T15");
@@ -31,9 +31,11 @@ import static org.hamcrest.Matchers.startsWith;
 import static org.hamcrest.core.Is.is;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.spotify.styx.WorkflowCache;
 import com.spotify.styx.model.Event;
 import com.spotify.styx.model.EventVisitor;
 import com.spotify.styx.model.ExecutionDescription;
@@ -47,6 +49,7 @@ import com.spotify.styx.state.StateManager;
 import com.spotify.styx.storage.Storage;
 import com.spotify.styx.util.WorkflowValidator;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
@@ -85,7 +88,8 @@ public class ExecutionDescriptionHandlerTest {
   public void setUp() throws Exception {
     when(workflowValidator.validateWorkflow(any())).thenReturn(Collections.emptyList());
 
-    toTest = new ExecutionDescriptionHandler(storage, stateManager, workflowValidator);
+    toTest = new ExecutionDescriptionHandler(new WorkflowCache(storage, Duration.ofMinutes(1), () -> NOW),
+        stateManager, workflowValidator);
   }
 
   @Test
@@ -135,6 +139,22 @@ public class ExecutionDescriptionHandlerTest {
     assertThat(executionDescriptionCaptor.getValue().dockerArgs(), contains("--date", "2016-03-14", "--bar"));
   }
 
+  @Test
+  public void shouldReuseCachedWorkflowAndValidation() throws Exception {
+    Workflow workflow = Workflow.create("id", workflowConfiguration("--date", "{}", "--bar"));
+    WorkflowInstance workflowInstance1 = WorkflowInstance.create(workflow.id(), "2016-03-14");
+    WorkflowInstance workflowInstance2 = WorkflowInstance.create(workflow.id(), "2016-03-15");
+
+    when(storage.workflow(workflow.id())).thenReturn(Optional.of(workflow));
+
+    toTest.transitionInto(RunState.create(workflowInstance1, PREPARE, NOW, COUNTER));
+    toTest.transitionInto(RunState.create(workflowInstance2, PREPARE, NOW, COUNTER));
+
+    verify(stateManager, times(2)).receive(any(Event.class), eq(COUNTER));
+    verify(storage, times(1)).workflow(workflow.id());
+    verify(workflowValidator, times(1)).validateWorkflow(workflow);
+  }
+
   @Test
   public void shouldTransitionIntoFailedIfStorageError() throws Exception {
     Workflow workflow = Workflow.create("id", workflowConfiguration("--date", "{}", "--bar"));
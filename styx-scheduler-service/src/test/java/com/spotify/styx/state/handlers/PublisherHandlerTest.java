@@ -23,13 +23,12 @@ package com.spotify.styx.state.handlers;
 import static com.spotify.styx.testdata.TestData.WORKFLOW_INSTANCE;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
-import com.github.rholder.retry.Retryer;
-import com.github.rholder.retry.RetryerBuilder;
-import com.github.rholder.retry.StopStrategies;
 import com.spotify.styx.model.ExecutionDescription;
 import com.spotify.styx.model.SequenceEvent;
 import com.spotify.styx.model.WorkflowInstance;
@@ -38,9 +37,14 @@ import com.spotify.styx.publisher.Publisher;
 import com.spotify.styx.state.RunState;
 import com.spotify.styx.state.StateData;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -50,9 +54,11 @@ public class PublisherHandlerTest {
   private static final String COMMIT_SHA = "cc9f6ca490e106ca9324bd34de5e3ad935b91bd6";
   private static final String DOCKER_IMAGE = "busybox:1.1";
 
-  public static final Retryer<Void> NO_RETRIES = RetryerBuilder.<Void>newBuilder()
-      .withStopStrategy(StopStrategies.stopAfterAttempt(1))
-      .build();
+  private static final Duration BACKOFF = Duration.ofMillis(1);
+  private static final Duration MAX_RETRY_DURATION = Duration.ofSeconds(1);
+  private static final int TIMEOUT_MILLIS = 5_000;
+
+  private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor();
 
   private Publisher publisher;
   private PublisherHandler publisherHandler;
@@ -63,7 +69,16 @@ public class PublisherHandlerTest {
   @Before
   public void setUp() throws Exception {
     publisher = mock(Publisher.class);
-    publisherHandler = new PublisherHandler(publisher, stats);
+    publisherHandler = publisherHandler(publisher, MAX_RETRY_DURATION);
+  }
+
+  @After
+  public void tearDown() {
+    retryExecutor.shutdownNow();
+  }
+
+  private PublisherHandler publisherHandler(Publisher publisher, Duration maxRetryDuration) {
+    return new PublisherHandler(publisher, stats, retryExecutor, BACKOFF, BACKOFF, maxRetryDuration);
   }
 
   @Test
@@ -107,7 +122,7 @@ public class PublisherHandlerTest {
 
   @Test
   public void shouldRetryPublishesOnSubmitted() throws Exception {
-    publisherHandler = new PublisherHandler(new FailingPublisher(publisher, 2), stats);
+    publisherHandler = publisherHandler(new FailingPublisher(publisher, 2), MAX_RETRY_DURATION);
 
     ExecutionDescription executionDescription = ExecutionDescription.builder()
         .dockerImage(DOCKER_IMAGE)
@@ -122,17 +137,15 @@ public class PublisherHandlerTest {
             .build());
     publisherHandler.accept(sequenceEvent, runState);
 
-    verify(publisher).deploying(WORKFLOW_INSTANCE, executionDescription);
+    verify(publisher, timeout(TIMEOUT_MILLIS)).deploying(WORKFLOW_INSTANCE, executionDescription);
+    verify(stats, timeout(TIMEOUT_MILLIS)).recordPublishing("deploying", "SUBMITTED");
     verify(stats, times(2)).recordPublishingError("deploying", "SUBMITTED");
-    verify(stats).recordPublishing("deploying", "SUBMITTED");
   }
 
   @Test
   public void shouldFailEventuallyOnSubmitted() throws Exception {
     doThrow(new IOException()).when(publisher).deploying(any(), any());
-    publisherHandler = new PublisherHandler(
-        publisher, stats,
-        NO_RETRIES);
+    publisherHandler = publisherHandler(publisher, Duration.ZERO);
 
     ExecutionDescription executionDescription = ExecutionDescription.builder()
         .dockerImage(DOCKER_IMAGE)
@@ -153,7 +166,7 @@ public class PublisherHandlerTest {
 
   @Test
   public void shouldRetryPublishesOnRunning() throws Exception {
-    publisherHandler = new PublisherHandler(new FailingPublisher(publisher, 2), stats);
+    publisherHandler = publisherHandler(new FailingPublisher(publisher, 2), MAX_RETRY_DURATION);
 
     ExecutionDescription executionDescription = ExecutionDescription.builder()
         .dockerImage(DOCKER_IMAGE)
@@ -168,15 +181,15 @@ public class PublisherHandlerTest {
             .build());
     publisherHandler.accept(sequenceEvent, runState);
 
-    verify(publisher).deployed(WORKFLOW_INSTANCE, executionDescription);
+    verify(publisher, timeout(TIMEOUT_MILLIS)).deployed(WORKFLOW_INSTANCE, executionDescription);
+    verify(stats, timeout(TIMEOUT_MILLIS)).recordPublishing("deployed", "RUNNING");
     verify(stats, times(2)).recordPublishingError("deployed", "RUNNING");
-    verify(stats).recordPublishing("deployed", "RUNNING");
   }
 
   @Test
   public void shouldFailEventuallyOnRunning() throws Exception {
     doThrow(new IOException()).when(publisher).deployed(any(), any());
-    publisherHandler = new PublisherHandler(publisher, stats, NO_RETRIES);
+    publisherHandler = publisherHandler(publisher, Duration.ZERO);
 
     ExecutionDescription executionDescription = ExecutionDescription.builder()
         .dockerImage(DOCKER_IMAGE)
@@ -195,6 +208,46 @@ public class PublisherHandlerTest {
     verify(stats, times(2)).recordPublishingError("deployed", "RUNNING");
   }
 
+  @Test
+  public void shouldNotBlockCallerWhileRetrying() throws Exception {
+    doThrow(new IOException()).when(publisher).deploying(any(), any());
+    publisherHandler = new PublisherHandler(publisher, stats, retryExecutor,
+        Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ofMinutes(10));
+
+    publisherHandler.accept(sequenceEvent, runState(RunState.State.SUBMITTED));
+
+    verify(publisher).deploying(any(), any());
+    verify(stats).recordPublishingError("deploying", "SUBMITTED");
+  }
+
+  @Test
+  public void shouldPublishInOrderWhileRetrying() throws Exception {
+    publisherHandler = publisherHandler(new FailingPublisher(publisher, 2), MAX_RETRY_DURATION);
+
+    final RunState submitted = runState(RunState.State.SUBMITTED);
+    final RunState running = runState(RunState.State.RUNNING);
+    publisherHandler.accept(sequenceEvent, submitted);
+    publisherHandler.accept(sequenceEvent, running);
+
+    verify(stats, timeout(TIMEOUT_MILLIS)).recordPublishing("deployed", "RUNNING");
+    final InOrder inOrder = inOrder(publisher);
+    inOrder.verify(publisher).deploying(WORKFLOW_INSTANCE, submitted.data().executionDescription().get());
+    inOrder.verify(publisher).deployed(WORKFLOW_INSTANCE, running.data().executionDescription().get());
+  }
+
+  private static RunState runState(RunState.State state) {
+    return RunState.create(
+        WORKFLOW_INSTANCE,
+        state,
+        StateData.newBuilder()
+            .executionId("exec1")
+            .executionDescription(ExecutionDescription.builder()
+                .dockerImage(DOCKER_IMAGE)
+                .commitSha(COMMIT_SHA)
+                .build())
+            .build());
+  }
+
   private class FailingPublisher implements Publisher {
 
     private final Publisher delegate;
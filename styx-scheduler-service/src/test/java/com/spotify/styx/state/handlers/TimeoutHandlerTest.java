@@ -24,28 +24,34 @@ import static com.spotify.styx.state.TimeoutConfig.createWithDefaultTtl;
 import static com.spotify.styx.testdata.TestData.WORKFLOW_ID;
 import static com.spotify.styx.testdata.TestData.WORKFLOW_INSTANCE;
 import static com.spotify.styx.testdata.TestData.WORKFLOW_WITH_RESOURCES;
+import static com.spotify.styx.testdata.TestData.WORKFLOW_WITH_RESOURCES_RUNNING_TIMEOUT;
 import static java.time.Duration.ofSeconds;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assume.assumeFalse;
 import static org.junit.Assume.assumeTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.spotify.styx.WorkflowCache;
 import com.spotify.styx.model.Event;
-import com.spotify.styx.model.Workflow;
-import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.state.RunState;
 import com.spotify.styx.state.RunState.State;
 import com.spotify.styx.state.StateManager;
 import com.spotify.styx.state.TimeoutConfig;
 import com.spotify.styx.util.Time;
+import java.io.IOException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Map;
-import java.util.function.Supplier;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
+import org.jmock.lib.concurrent.DeterministicScheduler;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -59,20 +65,22 @@ public class TimeoutHandlerTest {
   private Time time = () -> now;
   private long counter = 17;
 
+  private final DeterministicScheduler executor = new DeterministicScheduler();
+
   @Mock private StateManager stateManager;
-  @Mock private Supplier<Map<WorkflowId, Workflow>> workflows;
+  @Mock private WorkflowCache workflowCache;
 
   private TimeoutHandler timeoutHandler;
 
   @Before
   public void setUp() throws Exception {
     MockitoAnnotations.initMocks(this);
-    when(workflows.get()).thenReturn(Map.of(WORKFLOW_ID, WORKFLOW_WITH_RESOURCES));
+    when(workflowCache.workflow(WORKFLOW_ID)).thenReturn(Optional.of(WORKFLOW_WITH_RESOURCES));
   }
 
   private void setUpWithTimeoutSeconds(int timeoutSeconds) {
     TimeoutConfig timeoutConfig = createWithDefaultTtl(ofSeconds(timeoutSeconds));
-    timeoutHandler = new TimeoutHandler(timeoutConfig, time, stateManager, workflows);
+    timeoutHandler = new TimeoutHandler(timeoutConfig, time, stateManager, workflowCache, executor);
   }
 
   @Parameters(source = State.class)
@@ -105,4 +113,142 @@ public class TimeoutHandlerTest {
     timeoutHandler.transitionInto(runState);
     verify(stateManager, never()).receiveIgnoreClosed(any());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void shouldTimeoutWhenDeadlinePasses() throws Exception {
+    setUpWithTimeoutSeconds(5);
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.RUNNING, now, counter));
+
+    timePasses(4);
+    verify(stateManager, never()).receiveIgnoreClosed(any(), anyLong());
+
+    timePasses(1);
+    verify(stateManager).receiveIgnoreClosed(Event.timeout(WORKFLOW_INSTANCE), counter);
+    assertThat(timeoutHandler.size(), is(0));
+  }
+
+  @Test
+  public void shouldMoveDeadlineOnTransition() throws Exception {
+    setUpWithTimeoutSeconds(5);
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.SUBMITTED, now, counter));
+
+    timePasses(3);
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.RUNNING, now, counter + 1));
+
+    timePasses(2);
+    verify(stateManager, never()).receiveIgnoreClosed(any(), anyLong());
+
+    timePasses(3);
+    verify(stateManager).receiveIgnoreClosed(Event.timeout(WORKFLOW_INSTANCE), counter + 1);
+  }
+
+  @Test
+  public void shouldDropDeadlineOnTerminalTransition() throws Exception {
+    setUpWithTimeoutSeconds(5);
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.RUNNING, now, counter));
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.DONE, now, counter + 1));
+    assertThat(timeoutHandler.size(), is(0));
+
+    timePasses(10);
+    verify(stateManager, never()).receiveIgnoreClosed(any(), anyLong());
+  }
+
+  @Test
+  public void shouldIgnoreOlderTransition() throws Exception {
+    setUpWithTimeoutSeconds(5);
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.RUNNING, now, counter + 2));
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.SUBMITTED, now, counter));
+
+    timePasses(5);
+    verify(stateManager).receiveIgnoreClosed(Event.timeout(WORKFLOW_INSTANCE), counter + 2);
+  }
+
+  @Test
+  public void shouldApplyShortenedRunningTimeoutOnRefresh() throws Exception {
+    setUpWithTimeoutSeconds(10);
+    var runState = RunState.create(WORKFLOW_INSTANCE, State.RUNNING, now, counter);
+    timeoutHandler.transitionInto(runState);
+
+    when(workflowCache.workflow(WORKFLOW_ID)).thenReturn(Optional.of(WORKFLOW_WITH_RESOURCES_RUNNING_TIMEOUT));
+    when(stateManager.getActiveStates()).thenReturn(Map.of(WORKFLOW_INSTANCE, runState));
+    timeoutHandler.refresh();
+
+    timePasses(1);
+    verify(stateManager).receiveIgnoreClosed(Event.timeout(WORKFLOW_INSTANCE), counter);
+  }
+
+  @Test
+  public void shouldApplyExtendedRunningTimeoutAtDeadline() throws Exception {
+    setUpWithTimeoutSeconds(10);
+    when(workflowCache.workflow(WORKFLOW_ID)).thenReturn(Optional.of(WORKFLOW_WITH_RESOURCES_RUNNING_TIMEOUT));
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.RUNNING, now, counter));
+
+    when(workflowCache.workflow(WORKFLOW_ID)).thenReturn(Optional.of(WORKFLOW_WITH_RESOURCES));
+    timePasses(1);
+    verify(stateManager, never()).receiveIgnoreClosed(any(), anyLong());
+    assertThat(timeoutHandler.size(), is(1));
+
+    timePasses(9);
+    verify(stateManager).receiveIgnoreClosed(Event.timeout(WORKFLOW_INSTANCE), counter);
+  }
+
+  @Test
+  public void shouldRemoveDeadlineOfInstanceThatLeftStateOnRefresh() throws Exception {
+    setUpWithTimeoutSeconds(5);
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.RUNNING, now, counter));
+
+    when(stateManager.getActiveStates()).thenReturn(Map.of());
+    timeoutHandler.refresh();
+    assertThat(timeoutHandler.size(), is(0));
+
+    timePasses(5);
+    verify(stateManager, never()).receiveIgnoreClosed(any(), anyLong());
+  }
+
+  @Test
+  public void shouldKeepDeadlineOfNewerStateOfferedDuringRefresh() throws Exception {
+    setUpWithTimeoutSeconds(5);
+    var runState = RunState.create(WORKFLOW_INSTANCE, State.SUBMITTED, now, counter);
+    timeoutHandler.transitionInto(runState);
+
+    when(stateManager.getActiveStates()).then(a -> {
+      // The instance transitions after the active states were read
+      timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.RUNNING, now, counter + 1));
+      return Map.of(WORKFLOW_INSTANCE, runState);
+    });
+    timeoutHandler.refresh();
+    assertThat(timeoutHandler.size(), is(1));
+
+    timePasses(5);
+    verify(stateManager).receiveIgnoreClosed(Event.timeout(WORKFLOW_INSTANCE), counter + 1);
+  }
+
+  @Test
+  public void shouldFallBackToDefaultTimeoutIfWorkflowCannotBeRead() throws Exception {
+    setUpWithTimeoutSeconds(10);
+    when(workflowCache.workflow(WORKFLOW_ID)).thenReturn(Optional.of(WORKFLOW_WITH_RESOURCES_RUNNING_TIMEOUT));
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.RUNNING, now, counter));
+
+    when(workflowCache.workflow(WORKFLOW_ID)).thenThrow(new IOException("Datastore is down"));
+    timePasses(1);
+    verify(stateManager, never()).receiveIgnoreClosed(any(), anyLong());
+
+    timePasses(9);
+    verify(stateManager).receiveIgnoreClosed(Event.timeout(WORKFLOW_INSTANCE), counter);
+  }
+
+  @Test
+  public void shouldNotLookUpWorkflowOfInstanceThatIsNotRunning() throws Exception {
+    setUpWithTimeoutSeconds(5);
+    timeoutHandler.transitionInto(RunState.create(WORKFLOW_INSTANCE, State.SUBMITTED, now, counter));
+
+    timePasses(5);
+    verify(stateManager).receiveIgnoreClosed(Event.timeout(WORKFLOW_INSTANCE), counter);
+    verify(workflowCache, never()).workflow(any());
+  }
+
+  private void timePasses(long seconds) {
+    now = now.plusSeconds(seconds);
+    executor.tick(seconds, TimeUnit.SECONDS);
+  }
+}
@@ -28,6 +28,8 @@ import java.lang.reflect.Proxy;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Objects;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import javaslang.control.Try;
 
 /**
@@ -66,6 +68,14 @@ public abstract class MeteredProxy<T> implements InvocationHandler {
       }
     });
 
+    // Meter asynchronous operations when they complete
+    if (result.isSuccess() && result.get() instanceof CompletionStage) {
+      return ((CompletionStage<?>) result.get()).whenComplete((value, e) -> {
+        final long durationMillis = t0.until(time.get(), ChronoUnit.MILLIS);
+        checkResult(operation, durationMillis, (e == null) ? Try.success(value) : Try.failure(unwrap(e)), stats);
+      });
+    }
+
     final long durationMillis = t0.until(time.get(), ChronoUnit.MILLIS);
 
     checkResult(operation, durationMillis, result, stats);
@@ -79,6 +89,10 @@ public abstract class MeteredProxy<T> implements InvocationHandler {
     return result.get();
   }
 
+  private static Throwable unwrap(Throwable e) {
+    return (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+  }
+
   protected abstract void checkResult(String operation, long durationMillis, Try<?> result,
                                       Stats stats);
 }
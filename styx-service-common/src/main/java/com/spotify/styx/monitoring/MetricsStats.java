@@ -115,10 +115,46 @@ public final class MetricsStats implements Stats {
       .tagged("what", "pull-image-error-rate")
       .tagged("unit", "error");
 
+  static final MetricId POD_STORE_SIZE = BASE
+      .tagged("what", "pod-store-size")
+      .tagged("unit", "pod");
+
+  static final MetricId POD_EVENT_LAG = BASE
+      .tagged("what", "pod-event-lag")
+      .tagged("unit", UNIT_MILLISECOND);
+
+  static final MetricId POD_UPDATE_QUEUE_DEPTH = BASE
+      .tagged("what", "pod-update-queue-depth")
+      .tagged("unit", "pod");
+
+  static final MetricId POD_EVENT_TRANSITION_LATENCY = BASE
+      .tagged("what", "pod-event-transition-latency")
+      .tagged("unit", UNIT_MILLISECOND);
+
+  static final MetricId EVENT_LOG_BUFFER_DEPTH = BASE
+      .tagged("what", "event-log-buffer-depth")
+      .tagged("unit", "event");
+
+  static final MetricId EVENT_LOG_FLUSH_LATENCY = BASE
+      .tagged("what", "event-log-flush-latency")
+      .tagged("unit", UNIT_MILLISECOND);
+
+  static final MetricId EVENT_LOG_WRITES_DROPPED_RATE = BASE
+      .tagged("what", "event-log-writes-dropped-rate")
+      .tagged("unit", "event");
+
+  static final MetricId POD_STORE_RELIST_RATE = BASE
+      .tagged("what", "pod-store-relist-rate")
+      .tagged("unit", "relist");
+
   static final MetricId NATURAL_TRIGGER_RATE = BASE
       .tagged("what", "natural-trigger-rate")
       .tagged("unit", "trigger");
 
+  static final MetricId BACKFILL_TRIGGER_RATE = BASE
+      .tagged("what", "backfill-trigger-rate")
+      .tagged("unit", "trigger");
+
   static final MetricId TERMINATION_LOG_MISSING = BASE
       .tagged("what", "termination-log-missing");
 
@@ -139,6 +175,14 @@ public final class MetricsStats implements Stats {
       .tagged("what", "event-consumer-error-rate")
       .tagged("unit", "error");
 
+  static final MetricId EVENT_CONSUMER_DROPPED_RATE = BASE
+      .tagged("what", "event-consumer-dropped-rate")
+      .tagged("unit", "event");
+
+  static final MetricId EVENT_CONSUMER_QUEUE = BASE
+      .tagged("what", "event-consumer-queue-size")
+      .tagged("unit", "event");
+
   static final MetricId WORKFLOW_CONSUMER_RATE = BASE
       .tagged("what", "workflow-consumer-rate");
 
@@ -163,6 +207,12 @@ public final class MetricsStats implements Stats {
   static final MetricId COUNTER_CACHE_RATE = BASE
       .tagged("what", "counter-cache-rate");
 
+  static final MetricId COUNTER_LEASE_CHURN_RATE = BASE
+      .tagged("what", "counter-lease-churn-rate");
+
+  static final MetricId COUNTER_LEASE_STRANDED = BASE
+      .tagged("what", "counter-lease-stranded-capacity");
+
   private static final String STATUS = "status";
   private static final String COUNTER_CACHE_RESULT = "result";
   private static final String COUNTER_CACHE_HIT = "hit";
@@ -173,6 +223,12 @@ public final class MetricsStats implements Stats {
 
   private final Histogram submitToRunning;
   private final Meter pullImageErrorMeter;
+  private final Histogram podEventLag;
+  private final Histogram podUpdateQueueDepth;
+  private final Histogram podEventTransitionLatency;
+  private final Histogram eventLogBufferDepth;
+  private final Histogram eventLogFlushLatency;
+  private final Meter eventLogWritesDropped;
   private final Meter naturalTrigger;
   private final Meter terminationLogMissing;
   private final Meter terminationLogInvalid;
@@ -191,11 +247,16 @@ public final class MetricsStats implements Stats {
   private final ConcurrentMap<String, Histogram> resourceDemandedHistograms;
   private final ConcurrentMap<String, Meter> eventConsumerErrorMeters;
   private final ConcurrentMap<String, Meter> eventConsumerMeters;
+  private final ConcurrentMap<String, Meter> eventConsumerDroppedMeters;
   private final ConcurrentMap<String, Meter> publishingMeters;
   private final ConcurrentMap<String, Meter> publishingErrorMeters;
   private final ConcurrentMap<String, Meter> workflowConsumerMeters;
   private final ConcurrentMap<String, Histogram> tickHistograms;
   private final ConcurrentMap<Tuple2<String, String>, Meter> datastoreOperationMeters;
+  private final ConcurrentMap<Tuple2<String, String>, Meter> counterLeaseChurnMeters;
+  private final ConcurrentMap<String, Histogram> counterLeaseStrandedHistograms;
+  private final ConcurrentMap<String, Meter> podStoreRelistMeters;
+  private final ConcurrentMap<String, Meter> backfillTriggerMeters;
 
   /**
    * Submission timestamps (nanotime) keyed on execution id.
@@ -210,6 +271,12 @@ public final class MetricsStats implements Stats {
 
     this.submitToRunning = registry.getOrAdd(TRANSITIONING_DURATION, HISTOGRAM);
     this.pullImageErrorMeter = registry.meter(PULL_IMAGE_ERROR_RATE);
+    this.podEventLag = registry.getOrAdd(POD_EVENT_LAG, HISTOGRAM);
+    this.podUpdateQueueDepth = registry.getOrAdd(POD_UPDATE_QUEUE_DEPTH, HISTOGRAM);
+    this.podEventTransitionLatency = registry.getOrAdd(POD_EVENT_TRANSITION_LATENCY, HISTOGRAM);
+    this.eventLogBufferDepth = registry.getOrAdd(EVENT_LOG_BUFFER_DEPTH, HISTOGRAM);
+    this.eventLogFlushLatency = registry.getOrAdd(EVENT_LOG_FLUSH_LATENCY, HISTOGRAM);
+    this.eventLogWritesDropped = registry.meter(EVENT_LOG_WRITES_DROPPED_RATE);
     this.naturalTrigger = registry.meter(NATURAL_TRIGGER_RATE);
     this.terminationLogMissing = registry.meter(TERMINATION_LOG_MISSING);
     this.terminationLogInvalid = registry.meter(TERMINATION_LOG_INVALID);
@@ -228,11 +295,16 @@ public final class MetricsStats implements Stats {
     this.resourceDemandedHistograms = new ConcurrentHashMap<>();
     this.eventConsumerErrorMeters = new ConcurrentHashMap<>();
     this.eventConsumerMeters = new ConcurrentHashMap<>();
+    this.eventConsumerDroppedMeters = new ConcurrentHashMap<>();
     this.publishingMeters = new ConcurrentHashMap<>();
     this.publishingErrorMeters = new ConcurrentHashMap<>();
     this.workflowConsumerMeters = new ConcurrentHashMap<>();
     this.tickHistograms = new ConcurrentHashMap<>();
     this.datastoreOperationMeters = new ConcurrentHashMap<>();
+    this.counterLeaseChurnMeters = new ConcurrentHashMap<>();
+    this.counterLeaseStrandedHistograms = new ConcurrentHashMap<>();
+    this.podStoreRelistMeters = new ConcurrentHashMap<>();
+    this.backfillTriggerMeters = new ConcurrentHashMap<>();
   }
 
   @Override
@@ -252,6 +324,18 @@ public final class MetricsStats implements Stats {
     registry.register(SUBMISSION_RATE_LIMIT, submissionRateLimit);
   }
 
+  @Override
+  public void registerEventConsumerQueueMetric(Gauge<Long> queuedEvents) {
+    registry.register(EVENT_CONSUMER_QUEUE, queuedEvents);
+  }
+
+  @Override
+  public void registerPodStoreSizeMetric(Gauge<Long> podStoreSize) {
+    // Every docker runner has its own pod store, report the most recently started one
+    registry.remove(POD_STORE_SIZE);
+    registry.register(POD_STORE_SIZE, podStoreSize);
+  }
+
   @Override
   public void recordStorageOperation(String operation, long durationMillis, String status) {
     storageOpHistogram(operation, status).update(durationMillis);
@@ -294,11 +378,62 @@ public final class MetricsStats implements Stats {
     pullImageErrorMeter.mark();
   }
 
+  @Override
+  public void recordPodEventLag(long lagMillis) {
+    podEventLag.update(lagMillis);
+  }
+
+  @Override
+  public void recordPodUpdateQueueDepth(long depth) {
+    podUpdateQueueDepth.update(depth);
+  }
+
+  @Override
+  public void recordPodEventTransitionLatency(long latencyMillis) {
+    podEventTransitionLatency.update(latencyMillis);
+  }
+
+  @Override
+  public void recordEventLogBufferDepth(long depth) {
+    eventLogBufferDepth.update(depth);
+  }
+
+  @Override
+  public void recordEventLogFlushLatency(long latencyMillis) {
+    eventLogFlushLatency.update(latencyMillis);
+  }
+
+  @Override
+  public void recordEventLogWritesDropped(long count) {
+    eventLogWritesDropped.mark(count);
+  }
+
+  @Override
+  public void recordPodStoreRelist(String reason) {
+    podStoreRelistMeters.computeIfAbsent(reason,
+        r -> registry.meter(POD_STORE_RELIST_RATE.tagged("reason", reason)))
+        .mark();
+  }
+
   @Override
   public void recordNaturalTrigger() {
     naturalTrigger.mark();
   }
 
+  @Override
+  public void recordBackfillTrigger(String backfillId) {
+    backfillTriggerMeters.computeIfAbsent(backfillId,
+        id -> registry.meter(BACKFILL_TRIGGER_RATE.tagged("backfill", backfillId)))
+        .mark();
+  }
+
+  @Override
+  public void removeBackfillTriggerMetric(String backfillId) {
+    if (backfillTriggerMeters.remove(backfillId) != null) {
+      registry.remove(BACKFILL_TRIGGER_RATE.tagged("backfill", backfillId));
+    }
+  }
+
   @Override
   public void recordTerminationLogMissing() {
     terminationLogMissing.mark();
@@ -339,6 +474,11 @@ public final class MetricsStats implements Stats {
     eventConsumerErrorMeter(event).mark();
   }
 
+  @Override
+  public void recordEventConsumerDropped(SequenceEvent event) {
+    eventConsumerDroppedMeter(event).mark();
+  }
+
   @Override
   public void recordWorkflowConsumer(String action) {
     workflowConsumerMeter(action).mark();
@@ -394,6 +534,20 @@ public final class MetricsStats implements Stats {
     counterCacheMissMeter.mark();
   }
 
+  @Override
+  public void recordCounterLeaseChurn(String resource, String operation) {
+    counterLeaseChurnMeters.computeIfAbsent(Tuple.of(resource, operation),
+        t -> registry.meter(COUNTER_LEASE_CHURN_RATE.tagged("resource", resource, OPERATION, operation)))
+        .mark();
+  }
+
+  @Override
+  public void recordCounterLeaseStranded(String resource, long stranded) {
+    counterLeaseStrandedHistograms.computeIfAbsent(resource,
+        r -> registry.getOrAdd(COUNTER_LEASE_STRANDED.tagged("resource", resource), HISTOGRAM))
+        .update(stranded);
+  }
+
   private void recordDatastoreOperations(String operation, String kind, int n) {
     datastoreOperationMeter(operation, kind).mark(n);
   }
@@ -460,6 +614,12 @@ public final class MetricsStats implements Stats {
         eventType, (op) -> registry.meter(EVENT_CONSUMER_ERROR_RATE.tagged("event-type", eventType)));
   }
 
+  private Meter eventConsumerDroppedMeter(SequenceEvent sequenceEvent) {
+    final String eventType = EventUtil.name(sequenceEvent.event());
+    return eventConsumerDroppedMeters.computeIfAbsent(
+        eventType, (op) -> registry.meter(EVENT_CONSUMER_DROPPED_RATE.tagged("event-type", eventType)));
+  }
+
   private Meter workflowConsumerMeter(String action) {
     return workflowConsumerMeters.computeIfAbsent(
         action, (op) -> registry.meter(WORKFLOW_CONSUMER_RATE.tagged("action", action)));
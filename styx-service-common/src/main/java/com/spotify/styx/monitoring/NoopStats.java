@@ -42,6 +42,16 @@ final class NoopStats implements Stats {
     // nop
   }
 
+  @Override
+  public void registerEventConsumerQueueMetric(Gauge<Long> queuedEvents) {
+    // nop
+  }
+
+  @Override
+  public void registerPodStoreSizeMetric(Gauge<Long> podStoreSize) {
+    // nop
+  }
+
   @Override
   public void recordStorageOperation(String operation, long durationMillis, String status) {
     // nop
@@ -77,11 +87,56 @@ final class NoopStats implements Stats {
     // nop
   }
 
+  @Override
+  public void recordPodEventLag(long lagMillis) {
+    // nop
+  }
+
+  @Override
+  public void recordPodUpdateQueueDepth(long depth) {
+    // nop
+  }
+
+  @Override
+  public void recordPodEventTransitionLatency(long latencyMillis) {
+    // nop
+  }
+
+  @Override
+  public void recordEventLogBufferDepth(long depth) {
+    // nop
+  }
+
+  @Override
+  public void recordEventLogFlushLatency(long latencyMillis) {
+    // nop
+  }
+
+  @Override
+  public void recordEventLogWritesDropped(long count) {
+    // nop
+  }
+
+  @Override
+  public void recordPodStoreRelist(String reason) {
+    // nop
+  }
+
   @Override
   public void recordNaturalTrigger() {
     // nop
   }
 
+  @Override
+  public void recordBackfillTrigger(String backfillId) {
+    // nop
+  }
+
+  @Override
+  public void removeBackfillTriggerMetric(String backfillId) {
+    // nop
+  }
+
   @Override
   public void recordTerminationLogMissing() {
     // nop
@@ -122,6 +177,11 @@ final class NoopStats implements Stats {
     // nop
   }
 
+  @Override
+  public void recordEventConsumerDropped(SequenceEvent event) {
+    // nop
+  }
+
   @Override
   public void recordWorkflowConsumer(String action) {
     // nop
@@ -176,4 +236,14 @@ final class NoopStats implements Stats {
   public void recordCounterCacheMiss() {
     // nop
   }
+
+  @Override
+  public void recordCounterLeaseChurn(String resource, String operation) {
+    // nop
+  }
+
+  @Override
+  public void recordCounterLeaseStranded(String resource, long stranded) {
+    // nop
+  }
 }
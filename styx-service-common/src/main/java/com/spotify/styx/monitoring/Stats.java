@@ -37,6 +37,10 @@ public interface Stats {
 
   void registerSubmissionRateLimitMetric(Gauge<Double> submissionRateLimit);
 
+  void registerEventConsumerQueueMetric(Gauge<Long> queuedEvents);
+
+  void registerPodStoreSizeMetric(Gauge<Long> podStoreSize);
+
   void recordStorageOperation(String operation, long durationMillis, String status);
 
   void recordDockerOperation(String operation, long durationMillis, String status);
@@ -51,8 +55,26 @@ public interface Stats {
 
   void recordPullImageError();
 
+  void recordPodEventLag(long lagMillis);
+
+  void recordPodUpdateQueueDepth(long depth);
+
+  void recordPodEventTransitionLatency(long latencyMillis);
+
+  void recordPodStoreRelist(String reason);
+
+  void recordEventLogBufferDepth(long depth);
+
+  void recordEventLogFlushLatency(long latencyMillis);
+
+  void recordEventLogWritesDropped(long count);
+
   void recordNaturalTrigger();
 
+  void recordBackfillTrigger(String backfillId);
+
+  void removeBackfillTriggerMetric(String backfillId);
+
   void recordTerminationLogMissing();
 
   void recordTerminationLogInvalid();
@@ -69,6 +91,8 @@ public interface Stats {
 
   void recordEventConsumerError(SequenceEvent event);
 
+  void recordEventConsumerDropped(SequenceEvent event);
+
   void recordWorkflowConsumer(String action);
 
   void recordWorkflowConsumerError();
@@ -90,4 +114,8 @@ public interface Stats {
   void recordCounterCacheHit();
 
   void recordCounterCacheMiss();
+
+  void recordCounterLeaseChurn(String resource, String operation);
+
+  void recordCounterLeaseStranded(String resource, long stranded);
 }
@@ -0,0 +1,116 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.state;
+
+import static com.spotify.styx.state.RunState.State.DONE;
+import static com.spotify.styx.state.RunState.State.ERROR;
+
+import com.google.auto.value.AutoValue;
+import com.spotify.styx.model.Backfill;
+import com.spotify.styx.util.ScheduleIterator;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.Optional;
+
+/**
+ * The terminal states reached by the partitions of a backfill, kept as one bitmap per terminal state.
+ *
+ * <p>Partitions are numbered by their position in the schedule from the start of the backfill, regardless of
+ * the direction in which the backfill is triggered.
+ */
+@AutoValue
+public abstract class BackfillProgress {
+
+  public abstract String backfillId();
+
+  // Never mutated, copied on every change
+  abstract BitSet donePartitions();
+
+  abstract BitSet errorPartitions();
+
+  public static BackfillProgress create(String backfillId) {
+    return new AutoValue_BackfillProgress(backfillId, new BitSet(), new BitSet());
+  }
+
+  public static BackfillProgress create(String backfillId, byte[] donePartitions, byte[] errorPartitions) {
+    return new AutoValue_BackfillProgress(backfillId, BitSet.valueOf(donePartitions),
+        BitSet.valueOf(errorPartitions));
+  }
+
+  /**
+   * Get the partition number of an instant of a backfill.
+   */
+  public static int partition(Backfill backfill, Instant instant) {
+    return Math.toIntExact(ScheduleIterator.of(backfill.schedule()).count(backfill.start(), instant));
+  }
+
+  /**
+   * Record the terminal state of a partition, replacing any terminal state it had before.
+   */
+  public BackfillProgress withTerminalState(int partition, RunState.State state) {
+    if (!state.isTerminal()) {
+      throw new IllegalArgumentException("Not a terminal state: " + state);
+    }
+    final BitSet done = (BitSet) donePartitions().clone();
+    final BitSet error = (BitSet) errorPartitions().clone();
+    done.set(partition, state == DONE);
+    error.set(partition, state == ERROR);
+    return new AutoValue_BackfillProgress(backfillId(), done, error);
+  }
+
+  /**
+   * Get the terminal state of a partition, if it has reached one.
+   */
+  public Optional<RunState.State> terminalState(int partition) {
+    if (donePartitions().get(partition)) {
+      return Optional.of(DONE);
+    } else if (errorPartitions().get(partition)) {
+      return Optional.of(ERROR);
+    } else {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Get the number of partitions that have reached a terminal state.
+   */
+  public int count(RunState.State state) {
+    return partitions(state).cardinality();
+  }
+
+  /**
+   * Get the bitmap of the partitions that have reached a terminal state, as returned by {@link BitSet#toByteArray()}.
+   */
+  public byte[] toByteArray(RunState.State state) {
+    return partitions(state).toByteArray();
+  }
+
+  private BitSet partitions(RunState.State state) {
+    switch (state) {
+      case DONE:
+        return donePartitions();
+      case ERROR:
+        return errorPartitions();
+      default:
+        throw new IllegalArgumentException("Not a terminal state: " + state);
+    }
+  }
+}
@@ -29,8 +29,13 @@ import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.model.WorkflowState;
+import com.spotify.styx.model.WorkflowWithState;
 import com.spotify.styx.model.data.WorkflowInstanceExecutionData;
+import com.spotify.styx.monitoring.Stats;
+import com.spotify.styx.state.BackfillProgress;
 import com.spotify.styx.state.RunState;
+import com.spotify.styx.util.CounterLease;
+import com.spotify.styx.util.CounterLimit;
 import com.spotify.styx.util.TriggerInstantSpec;
 import java.io.IOException;
 import java.time.Duration;
@@ -47,6 +52,13 @@ import org.apache.hadoop.hbase.client.Connection;
  */
 public class AggregateStorage implements Storage {
 
+  private static final int EVENT_LOG_MAX_BATCH_SIZE = 500;
+  private static final int EVENT_LOG_MAX_BUFFER_SIZE = 100_000;
+  private static final Duration EVENT_LOG_FLUSH_INTERVAL = Duration.ofMillis(50);
+  private static final Duration EVENT_LOG_RETRY_MAX_DELAY = Duration.ofSeconds(30);
+  private static final int EVENT_LOG_MAX_WRITE_ATTEMPTS = 10;
+  private static final Duration EVENT_LOG_CLOSE_WARNING_INTERVAL = Duration.ofSeconds(10);
+
   private final BigtableStorage bigtableStorage;
   private final DatastoreStorage datastoreStorage;
 
@@ -55,6 +67,16 @@ public class AggregateStorage implements Storage {
          new DatastoreStorage(new CheckedDatastore(datastore), retryBaseDelay));
   }
 
+  /**
+   * Create a storage that writes events to Bigtable asynchronously through a write-behind buffer.
+   */
+  public AggregateStorage(Connection connection, Datastore datastore, Duration retryBaseDelay, Stats stats) {
+    this(new BigtableStorage(connection, retryBaseDelay, Optional.of(new BigtableEventWriter(connection, stats,
+            EVENT_LOG_MAX_BATCH_SIZE, EVENT_LOG_MAX_BUFFER_SIZE, EVENT_LOG_FLUSH_INTERVAL, retryBaseDelay,
+            EVENT_LOG_RETRY_MAX_DELAY, EVENT_LOG_MAX_WRITE_ATTEMPTS, EVENT_LOG_CLOSE_WARNING_INTERVAL))),
+         new DatastoreStorage(new CheckedDatastore(datastore), retryBaseDelay));
+  }
+
   AggregateStorage(BigtableStorage bigtableStorage, DatastoreStorage datastoreStorage) {
     this.bigtableStorage = Objects.requireNonNull(bigtableStorage, "bigtableStorage");
     this.datastoreStorage = Objects.requireNonNull(datastoreStorage, "datastoreStorage");
@@ -62,7 +84,11 @@ public class AggregateStorage implements Storage {
 
   @Override
   public void close() throws IOException {
-    datastoreStorage.close();
+    try {
+      bigtableStorage.close();
+    } finally {
+      datastoreStorage.close();
+    }
   }
 
   @Override
@@ -75,6 +101,11 @@ public class AggregateStorage implements Storage {
     bigtableStorage.writeEvent(sequenceEvent);
   }
 
+  @Override
+  public void writeEvents(List<SequenceEvent> sequenceEvents) throws IOException {
+    bigtableStorage.writeEvents(sequenceEvents);
+  }
+
   @Override
   public Optional<Long> getLatestStoredCounter(WorkflowInstance workflowInstance)
       throws IOException {
@@ -147,8 +178,8 @@ public class AggregateStorage implements Storage {
 
   @Override
   public List<WorkflowInstanceExecutionData> executionData(WorkflowId workflowId, String start,
-                                                           String stop) throws IOException {
-    return bigtableStorage.executionData(workflowId, start, stop);
+                                                           String stop, int limit) throws IOException {
+    return bigtableStorage.executionData(workflowId, start, stop, limit);
   }
 
 
@@ -183,6 +214,11 @@ public class AggregateStorage implements Storage {
     return datastoreStorage.workflowsWithNextNaturalTrigger();
   }
 
+  @Override
+  public Map<WorkflowId, WorkflowScheduleView> workflowScheduleViews() throws IOException {
+    return datastoreStorage.workflowScheduleViews();
+  }
+
   @Override
   public Map<WorkflowId, Workflow> workflows() throws IOException {
     return datastoreStorage.workflows();
@@ -203,6 +239,11 @@ public class AggregateStorage implements Storage {
     return datastoreStorage.workflowState(workflowId);
   }
 
+  @Override
+  public Optional<WorkflowWithState> workflowWithState(WorkflowId workflowId) throws IOException {
+    return datastoreStorage.workflowWithState(workflowId);
+  }
+
   @Override
   public Optional<Resource> resource(String id) throws IOException {
     return datastoreStorage.getResource(id);
@@ -228,16 +269,36 @@ public class AggregateStorage implements Storage {
     datastoreStorage.storeBackfill(backfill);
   }
 
+  @Override
+  public Optional<BackfillProgress> backfillProgress(String id) throws IOException {
+    return datastoreStorage.getBackfillProgress(id);
+  }
+
   @Override
   public Map<Integer, Long> shardsForCounter(String counterId) throws IOException {
     return datastoreStorage.shardsForCounter(counterId);
   }
 
+  @Override
+  public Map<Integer, Long> shardsForCounter(String counterId, int shardSpan) throws IOException {
+    return datastoreStorage.shardsForCounter(counterId, shardSpan);
+  }
+
   @Override
   public long getLimitForCounter(String counterId) throws IOException {
     return datastoreStorage.getLimitForCounter(counterId);
   }
 
+  @Override
+  public CounterLimit counterLimit(String counterId) throws IOException {
+    return datastoreStorage.counterLimit(counterId);
+  }
+
+  @Override
+  public List<CounterLease> counterLeases() throws IOException {
+    return datastoreStorage.counterLeases();
+  }
+
   @Override
   public List<Backfill> backfills(boolean showAll) throws IOException {
     return datastoreStorage.getBackfills(showAll);
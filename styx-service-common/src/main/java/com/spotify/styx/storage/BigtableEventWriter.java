@@ -0,0 +1,365 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.storage;
+
+import static com.spotify.styx.storage.BigtableStorage.EVENTS_TABLE_NAME;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.spotify.styx.model.SequenceEvent;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.monitoring.Stats;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-behind buffer for the Bigtable event log.
+ *
+ * <p>Events are appended to an in-memory buffer and written in batches by a single flusher thread through a
+ * {@link BufferedMutator}. A batch is written when it holds {@code maxBatchSize} events or when its oldest event has
+ * been buffered for {@code flushInterval}. A batch that fails to be written is retried with a jittered exponential
+ * backoff before any later event is written, so events are written in the order they were buffered and thus in
+ * order per workflow instance.
+ *
+ * <p>The events have already been committed to the state they describe, so they are never dropped because of load
+ * or slowness: writers block while the buffer is full, and closing waits until all buffered events are written.
+ * A batch is dropped only if it cannot be written at all, i.e. if it fails with a non-retryable error or has failed
+ * {@code maxWriteAttempts} times, so that a single poison batch does not wedge the event log and block its writers.
+ * The remaining events are also dropped if closing is interrupted. Each dropped event is logged.
+ */
+class BigtableEventWriter implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BigtableEventWriter.class);
+
+  private final Connection connection;
+  private final Stats stats;
+  private final int maxBatchSize;
+  private final int maxBufferSize;
+  private final Duration flushInterval;
+  private final Duration retryBaseDelay;
+  private final Duration retryMaxDelay;
+  private final int maxWriteAttempts;
+  private final Duration closeWarningInterval;
+  private final ExecutorService flusher;
+
+  private final Object lock = new Object();
+
+  // Guarded by lock. Events stay in the buffer until they have been written.
+  private final Queue<BufferedEvent> buffer = new ArrayDeque<>();
+  private final Map<WorkflowInstance, List<SequenceEvent>> pending = new HashMap<>();
+  private boolean closed;
+
+  // Only accessed by the flusher thread
+  private BufferedMutator mutator;
+
+  BigtableEventWriter(Connection connection, Stats stats, int maxBatchSize, int maxBufferSize,
+                      Duration flushInterval, Duration retryBaseDelay, Duration retryMaxDelay,
+                      int maxWriteAttempts, Duration closeWarningInterval) {
+    this.connection = Objects.requireNonNull(connection);
+    this.stats = Objects.requireNonNull(stats);
+    if (maxBatchSize < 1 || maxBufferSize < maxBatchSize) {
+      throw new IllegalArgumentException("invalid batch/buffer size: " + maxBatchSize + "/" + maxBufferSize);
+    }
+    this.maxBatchSize = maxBatchSize;
+    this.maxBufferSize = maxBufferSize;
+    this.flushInterval = Objects.requireNonNull(flushInterval);
+    this.retryBaseDelay = Objects.requireNonNull(retryBaseDelay);
+    this.retryMaxDelay = Objects.requireNonNull(retryMaxDelay);
+    if (maxWriteAttempts < 1) {
+      throw new IllegalArgumentException("invalid max write attempts: " + maxWriteAttempts);
+    }
+    this.maxWriteAttempts = maxWriteAttempts;
+    this.closeWarningInterval = Objects.requireNonNull(closeWarningInterval);
+    this.flusher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("bigtable-event-writer-%d")
+        .build());
+    flusher.execute(this::run);
+  }
+
+  /**
+   * Buffer events for writing, blocking while the buffer is full. A single call that exceeds the buffer size is
+   * buffered once the buffer is empty.
+   */
+  void write(List<SequenceEvent> sequenceEvents) throws IOException {
+    final int depth;
+    synchronized (lock) {
+      while (!closed && !buffer.isEmpty() && buffer.size() + sequenceEvents.size() > maxBufferSize) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for event log buffer");
+        }
+      }
+      if (closed) {
+        throw new IOException("Event writer is closed");
+      }
+      final long now = System.nanoTime();
+      for (SequenceEvent sequenceEvent : sequenceEvents) {
+        buffer.add(new BufferedEvent(sequenceEvent, now));
+        pending.computeIfAbsent(sequenceEvent.event().workflowInstance(), k -> new ArrayList<>())
+            .add(sequenceEvent);
+      }
+      lock.notifyAll();
+      depth = buffer.size();
+    }
+    stats.recordEventLogBufferDepth(depth);
+  }
+
+  /**
+   * Get the events of a workflow instance that have been buffered but not written yet, in order.
+   */
+  List<SequenceEvent> pending(WorkflowInstance workflowInstance) {
+    synchronized (lock) {
+      return List.copyOf(pending.getOrDefault(workflowInstance, List.of()));
+    }
+  }
+
+  /**
+   * Wait until all events buffered so far have been written or dropped.
+   */
+  void flush() throws InterruptedException {
+    synchronized (lock) {
+      while (!buffer.isEmpty()) {
+        lock.wait();
+      }
+    }
+  }
+
+  /**
+   * Stop accepting events and wait until all buffered events have been written.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+    flusher.shutdown();
+    try {
+      while (!flusher.awaitTermination(closeWarningInterval.toMillis(), TimeUnit.MILLISECONDS)) {
+        LOG.warn("Waiting for {} buffered events to be written to the event log", buffered());
+      }
+    } catch (InterruptedException e) {
+      flusher.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private int buffered() {
+    synchronized (lock) {
+      return buffer.size();
+    }
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        final List<SequenceEvent> batch = nextBatch();
+        if (batch.isEmpty()) {
+          // closed and drained
+          return;
+        }
+        if (!writeWithRetries(batch)) {
+          dropBuffered();
+          return;
+        }
+        written(batch.size());
+      }
+    } catch (InterruptedException e) {
+      dropBuffered();
+    } finally {
+      closeMutator();
+    }
+  }
+
+  private List<SequenceEvent> nextBatch() throws InterruptedException {
+    synchronized (lock) {
+      while (true) {
+        if (buffer.isEmpty()) {
+          if (closed) {
+            return List.of();
+          }
+          lock.wait();
+          continue;
+        }
+        if (closed || buffer.size() >= maxBatchSize) {
+          break;
+        }
+        final long waitNanos = buffer.peek().bufferedAt + flushInterval.toNanos() - System.nanoTime();
+        if (waitNanos <= 0) {
+          break;
+        }
+        TimeUnit.NANOSECONDS.timedWait(lock, waitNanos);
+      }
+      return buffer.stream()
+          .limit(maxBatchSize)
+          .map(bufferedEvent -> bufferedEvent.sequenceEvent)
+          .collect(toList());
+    }
+  }
+
+  /**
+   * Write a batch, retrying until it succeeds, fails with a non-retryable error, has been attempted
+   * {@code maxWriteAttempts} times, or the writer is forcibly closed.
+   *
+   * @return true if the batch was written or dropped, false if the writer was interrupted
+   */
+  private boolean writeWithRetries(List<SequenceEvent> batch) {
+    final List<Put> puts;
+    try {
+      puts = BigtableStorage.eventPuts(batch);
+    } catch (RuntimeException e) {
+      LOG.error("Failed to build event log writes for {} events", batch.size(), e);
+      dropBatch(batch);
+      return true;
+    }
+    for (int attempt = 1; ; attempt++) {
+      final long t0 = System.nanoTime();
+      try {
+        if (mutator == null) {
+          mutator = connection.getBufferedMutator(EVENTS_TABLE_NAME);
+        }
+        mutator.mutate(puts);
+        mutator.flush();
+        stats.recordEventLogFlushLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+        return true;
+      } catch (InterruptedIOException e) {
+        return false;
+      } catch (IOException | RuntimeException e) {
+        closeMutator();
+        if (!isRetryable(e) || attempt >= maxWriteAttempts) {
+          LOG.error("Failed to write {} events to Bigtable (attempt #{}), giving up", puts.size(), attempt, e);
+          dropBatch(batch);
+          return true;
+        }
+        LOG.warn("Failed to write {} events to Bigtable (attempt #{})", puts.size(), attempt, e);
+      }
+      try {
+        Thread.sleep(backoff(attempt).toMillis());
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+  }
+
+  private static boolean isRetryable(Exception e) {
+    if (e instanceof DoNotRetryIOException) {
+      return false;
+    }
+    if (e instanceof RetriesExhaustedWithDetailsException) {
+      final List<Throwable> causes = ((RetriesExhaustedWithDetailsException) e).getCauses();
+      return causes.isEmpty() || !causes.stream().allMatch(cause -> cause instanceof DoNotRetryIOException);
+    }
+    return true;
+  }
+
+  private Duration backoff(int attempt) {
+    final Duration delay = retryBaseDelay.multipliedBy(1L << Math.min(attempt - 1, 20));
+    final long maxMillis = (delay.compareTo(retryMaxDelay) < 0 ? delay : retryMaxDelay).toMillis();
+    // Full jitter on the upper half of the delay to spread out retries of concurrent writers
+    return Duration.ofMillis(ThreadLocalRandom.current().nextLong(maxMillis / 2, maxMillis + 1));
+  }
+
+  private void written(int count) {
+    final int depth;
+    synchronized (lock) {
+      for (int i = 0; i < count; i++) {
+        final SequenceEvent sequenceEvent = buffer.remove().sequenceEvent;
+        final WorkflowInstance workflowInstance = sequenceEvent.event().workflowInstance();
+        final List<SequenceEvent> instanceEvents = pending.get(workflowInstance);
+        instanceEvents.remove(0);
+        if (instanceEvents.isEmpty()) {
+          pending.remove(workflowInstance);
+        }
+      }
+      depth = buffer.size();
+      lock.notifyAll();
+    }
+    stats.recordEventLogBufferDepth(depth);
+  }
+
+  private void dropBatch(List<SequenceEvent> batch) {
+    batch.forEach(sequenceEvent -> LOG.error("Dropped event log write: {}", sequenceEvent));
+    stats.recordEventLogWritesDropped(batch.size());
+  }
+
+  private void dropBuffered() {
+    final List<SequenceEvent> dropped;
+    synchronized (lock) {
+      dropped = buffer.stream()
+          .map(bufferedEvent -> bufferedEvent.sequenceEvent)
+          .collect(toList());
+      buffer.clear();
+      pending.clear();
+      lock.notifyAll();
+    }
+    if (!dropped.isEmpty()) {
+      LOG.error("Event log writer interrupted, dropping {} events", dropped.size());
+      dropped.forEach(sequenceEvent -> LOG.error("Dropped event log write: {}", sequenceEvent));
+      stats.recordEventLogWritesDropped(dropped.size());
+    }
+  }
+
+  private void closeMutator() {
+    if (mutator == null) {
+      return;
+    }
+    try {
+      mutator.close();
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Failed to close buffered mutator", e);
+    }
+    mutator = null;
+  }
+
+  private static class BufferedEvent {
+
+    private final SequenceEvent sequenceEvent;
+    private final long bufferedAt;
+
+    private BufferedEvent(SequenceEvent sequenceEvent, long bufferedAt) {
+      this.sequenceEvent = sequenceEvent;
+      this.bufferedAt = bufferedAt;
+    }
+  }
+}
@@ -23,9 +23,12 @@ package com.spotify.styx.storage;
 import static com.spotify.styx.serialization.Json.deserializeEvent;
 import static com.spotify.styx.serialization.Json.serialize;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.cloud.datastore.DatastoreException;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Sets;
 import com.spotify.styx.model.Event;
 import com.spotify.styx.model.SequenceEvent;
@@ -33,33 +36,44 @@ import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.model.data.WorkflowInstanceExecutionData;
 import com.spotify.styx.util.ResourceNotFoundException;
+import java.io.Closeable;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javaslang.control.Try;
 import okio.ByteString;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
-import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A backend for {@link AggregateStorage} backed by Google Bigtable
+ * A backend for {@link AggregateStorage} backed by Google Bigtable.
+ *
+ * <p>Events are written synchronously, or, if a {@link BigtableEventWriter} is given, buffered and written
+ * asynchronously. Buffered events that have not been written yet are included when reading events.
+ *
+ * <p>Along with the events of a workflow instance, the latest counter of the instance is written to a separate
+ * row, so that it can be looked up without scanning all events of the instance. The counter is also used as the
+ * timestamp of that cell, so the latest version of the cell holds the highest counter even if events are written
+ * out of order, and rewriting a counter overwrites its version.
  */
-public class BigtableStorage {
+public class BigtableStorage implements Closeable {
 
   private static final Logger LOG = LoggerFactory.getLogger(BigtableStorage.class);
 
@@ -70,12 +84,34 @@ public class BigtableStorage {
 
   public static final int MAX_BIGTABLE_RETRIES = 100;
 
+  private static final String LATEST_COUNTER_ROW_PREFIX = "#latest#";
+  private static final int LATEST_COUNTER_CACHE_SIZE = 10_000;
+  private static final Duration LATEST_COUNTER_CACHE_EXPIRY = Duration.ofMinutes(10);
+
   private final Connection connection;
   private final Duration retryBaseDelay;
+  private final Optional<BigtableEventWriter> eventWriter;
+
+  private final Cache<WorkflowInstance, Long> latestCounters = CacheBuilder.newBuilder()
+      .maximumSize(LATEST_COUNTER_CACHE_SIZE)
+      .expireAfterAccess(LATEST_COUNTER_CACHE_EXPIRY)
+      .build();
 
   BigtableStorage(Connection connection, Duration retryBaseDelay) {
+    this(connection, retryBaseDelay, Optional.empty());
+  }
+
+  BigtableStorage(Connection connection, Duration retryBaseDelay, Optional<BigtableEventWriter> eventWriter) {
     this.connection = Objects.requireNonNull(connection);
     this.retryBaseDelay = Objects.requireNonNull(retryBaseDelay);
+    this.eventWriter = Objects.requireNonNull(eventWriter);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (eventWriter.isPresent()) {
+      eventWriter.get().close();
+    }
   }
 
   SortedSet<SequenceEvent> readEvents(WorkflowInstance workflowInstance) throws IOException {
@@ -88,64 +124,107 @@ public class BigtableStorage {
       for (Result result : eventsTable.getScanner(scan)) {
         set.add(parseEventResult(result));
       }
+      eventWriter.ifPresent(writer -> set.addAll(writer.pending(workflowInstance)));
       return set;
     }
   }
 
   void writeEvent(SequenceEvent sequenceEvent) throws IOException {
+    if (eventWriter.isPresent()) {
+      eventWriter.get().write(List.of(sequenceEvent));
+      updateLatestCounters(List.of(sequenceEvent));
+      return;
+    }
+    final List<Put> puts = eventPuts(List.of(sequenceEvent));
+    storeWithRetries(() -> {
+      try (final Table eventsTable = connection.getTable(EVENTS_TABLE_NAME)) {
+        eventsTable.put(puts);
+      }
+    });
+    updateLatestCounters(List.of(sequenceEvent));
+  }
+
+  void writeEvents(List<SequenceEvent> sequenceEvents) throws IOException {
+    if (sequenceEvents.isEmpty()) {
+      return;
+    }
+    if (eventWriter.isPresent()) {
+      eventWriter.get().write(sequenceEvents);
+      updateLatestCounters(sequenceEvents);
+      return;
+    }
+    final List<Put> puts = eventPuts(sequenceEvents);
     storeWithRetries(() -> {
       try (final Table eventsTable = connection.getTable(EVENTS_TABLE_NAME)) {
-        final String workflowInstanceKey = sequenceEvent.event().workflowInstance().toKey();
-        final String keyString = String.format("%s#%08d", workflowInstanceKey, sequenceEvent.counter());
-        final byte[] key = Bytes.toBytes(keyString);
-        final Put put = new Put(key, sequenceEvent.timestamp());
-
-        final byte[] eventBytes = serialize(sequenceEvent.event()).toByteArray();
-        put.addColumn(EVENT_CF, EVENT_QUALIFIER, eventBytes);
-        eventsTable.put(put);
+        eventsTable.put(puts);
       }
     });
+    updateLatestCounters(sequenceEvents);
+  }
+
+  /**
+   * Create the puts for writing events: one per event, and one per workflow instance for its latest counter.
+   */
+  static List<Put> eventPuts(List<SequenceEvent> sequenceEvents) {
+    final List<Put> puts = new ArrayList<>(sequenceEvents.size() + 1);
+    final Map<WorkflowInstance, SequenceEvent> latest = new HashMap<>();
+    for (SequenceEvent sequenceEvent : sequenceEvents) {
+      puts.add(eventPut(sequenceEvent));
+      latest.merge(sequenceEvent.event().workflowInstance(), sequenceEvent,
+          (a, b) -> a.counter() >= b.counter() ? a : b);
+    }
+    latest.values().forEach(sequenceEvent -> puts.add(latestCounterPut(sequenceEvent)));
+    return puts;
+  }
+
+  static Put eventPut(SequenceEvent sequenceEvent) {
+    final String workflowInstanceKey = sequenceEvent.event().workflowInstance().toKey();
+    final String keyString = String.format("%s#%08d", workflowInstanceKey, sequenceEvent.counter());
+    final byte[] key = Bytes.toBytes(keyString);
+    final Put put = new Put(key, sequenceEvent.timestamp());
+
+    final byte[] eventBytes;
+    try {
+      eventBytes = serialize(sequenceEvent.event()).toByteArray();
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException(e);
+    }
+    put.addColumn(EVENT_CF, EVENT_QUALIFIER, eventBytes);
+    return put;
+  }
+
+  private static Put latestCounterPut(SequenceEvent sequenceEvent) {
+    final WorkflowInstance workflowInstance = sequenceEvent.event().workflowInstance();
+    final Put put = new Put(latestCounterRow(workflowInstance), sequenceEvent.counter());
+    put.addColumn(EVENT_CF, EVENT_QUALIFIER, Bytes.toBytes(sequenceEvent.counter()));
+    return put;
+  }
+
+  private static byte[] latestCounterRow(WorkflowInstance workflowInstance) {
+    // Component ids are never empty, so these rows never match the prefix of a workflow or instance scan
+    return Bytes.toBytes(LATEST_COUNTER_ROW_PREFIX + workflowInstance.toKey());
   }
 
   List<WorkflowInstanceExecutionData> executionData(WorkflowId workflowId, String offset, int limit)
       throws IOException {
     try (final Table eventsTable = connection.getTable(EVENTS_TABLE_NAME)) {
       final Scan scan = new Scan()
-          .setRowPrefixFilter(Bytes.toBytes(workflowId.toKey() + '#'))
-          .setFilter(new FirstKeyOnlyFilter());
+          .setRowPrefixFilter(Bytes.toBytes(workflowId.toKey() + '#'));
 
       if (!Strings.isNullOrEmpty(offset)) {
         final WorkflowInstance offsetInstance = WorkflowInstance.create(workflowId, offset);
         scan.setStartRow(Bytes.toBytes(offsetInstance.toKey() + '#'));
       }
 
-      final Set<WorkflowInstance> workflowInstancesSet = Sets.newHashSet();
-      try (ResultScanner scanner = eventsTable.getScanner(scan)) {
-        Result result = scanner.next();
-        while (result != null) {
-          final String key = new String(result.getRow());
-          final int lastHash = key.lastIndexOf('#');
-
-          final WorkflowInstance wfi = WorkflowInstance.parseKey(key.substring(0, lastHash));
-          workflowInstancesSet.add(wfi);
-          if (workflowInstancesSet.size() == limit) {
-            break;
-          }
-
-          result = scanner.next();
-        }
-      }
-
-      return executionData(workflowInstancesSet);
+      return executionData(eventsTable, scan, limit);
     }
   }
 
-  List<WorkflowInstanceExecutionData> executionData(WorkflowId workflowId, String start, String stop)
+  List<WorkflowInstanceExecutionData> executionData(WorkflowId workflowId, String start, String stop, int limit)
       throws IOException {
     try (final Table eventsTable = connection.getTable(EVENTS_TABLE_NAME)) {
       final Scan scan = new Scan()
-          .setRowPrefixFilter(Bytes.toBytes(workflowId.toKey() + '#'))
-          .setFilter(new FirstKeyOnlyFilter());
+          .setRowPrefixFilter(Bytes.toBytes(workflowId.toKey() + '#'));
 
       final WorkflowInstance startRow = WorkflowInstance.create(workflowId, start);
       scan.setStartRow(Bytes.toBytes(startRow.toKey() + '#'));
@@ -155,32 +234,52 @@ public class BigtableStorage {
         scan.setStopRow(Bytes.toBytes(stopRow.toKey() + '#'));
       }
 
-      final Set<WorkflowInstance> workflowInstancesSet = Sets.newHashSet();
-      try (ResultScanner scanner = eventsTable.getScanner(scan)) {
-        Result result = scanner.next();
-        while (result != null) {
-          final String key = new String(result.getRow());
-          final int lastHash = key.lastIndexOf('#');
+      return executionData(eventsTable, scan, limit);
+    }
+  }
 
-          final WorkflowInstance wfi = WorkflowInstance.parseKey(key.substring(0, lastHash));
-          workflowInstancesSet.add(wfi);
+  Optional<Long> getLatestStoredCounter(WorkflowInstance workflowInstance)
+      throws IOException {
+    final Long cached = latestCounters.getIfPresent(workflowInstance);
+    if (cached != null) {
+      return Optional.of(cached);
+    }
 
-          result = scanner.next();
-        }
-      }
+    // Check buffered events first, as they might be written while the latest counter is read
+    final Optional<Long> pendingCounter = eventWriter.flatMap(writer -> writer.pending(workflowInstance).stream()
+        .map(SequenceEvent::counter)
+        .max(Long::compare));
+    final Optional<Long> storedCounter = readLatestCounter(workflowInstance);
+
+    final Optional<Long> latestCounter = Stream.of(pendingCounter, storedCounter)
+        .flatMap(Optional::stream)
+        .max(Long::compare);
+    latestCounter.ifPresent(counter -> latestCounters.asMap().merge(workflowInstance, counter, Math::max));
+    return latestCounter;
+  }
 
-      return executionData(workflowInstancesSet);
+  private Optional<Long> readLatestCounter(WorkflowInstance workflowInstance) throws IOException {
+    final Result result;
+    try (final Table eventsTable = connection.getTable(EVENTS_TABLE_NAME)) {
+      result = eventsTable.get(new Get(latestCounterRow(workflowInstance)));
     }
+
+    // Only the latest version is read, which is the highest counter as counters are used as cell timestamps
+    final byte[] counter = result.getValue(EVENT_CF, EVENT_QUALIFIER);
+    if (counter != null) {
+      return Optional.of(Bytes.toLong(counter));
+    }
+
+    // Instances that were last written before the latest counter was stored separately
+    final SortedSet<SequenceEvent> storedEvents = readEvents(workflowInstance);
+    return storedEvents.isEmpty()
+        ? Optional.empty()
+        : Optional.of(storedEvents.last().counter());
   }
 
-  Optional<Long> getLatestStoredCounter(WorkflowInstance workflowInstance)
-      throws IOException {
-    final Set<SequenceEvent> storedEvents = readEvents(workflowInstance);
-    final Optional<SequenceEvent> lastStoredEvent = storedEvents.stream().reduce((a, b) -> b);
-    if (lastStoredEvent.isPresent()) {
-      return Optional.of(lastStoredEvent.get().counter());
-    } else {
-      return Optional.empty();
+  private void updateLatestCounters(List<SequenceEvent> sequenceEvents) {
+    for (SequenceEvent sequenceEvent : sequenceEvents) {
+      latestCounters.asMap().merge(sequenceEvent.event().workflowInstance(), sequenceEvent.counter(), Math::max);
     }
   }
 
@@ -193,18 +292,50 @@ public class BigtableStorage {
     return new WFIExecutionBuilder().executionInfo(events);
   }
 
-  private List<WorkflowInstanceExecutionData> executionData(
-      Set<WorkflowInstance> workflowInstancesSet) {
-    return workflowInstancesSet.parallelStream()
-        .map(workflowInstance -> {
-          try {
-            return executionData(workflowInstance);
-          } catch (IOException e) {
-            throw Throwables.propagate(e);
+  /**
+   * Read the execution data of up to {@code limit} instances in a single scan. Rows are ordered by instance and
+   * counter, so the events of each instance are folded into its execution data as soon as the scan moves past it,
+   * and the scan is stopped as soon as the limit is reached.
+   */
+  private List<WorkflowInstanceExecutionData> executionData(Table eventsTable, Scan scan, int limit)
+      throws IOException {
+    final List<WorkflowInstanceExecutionData> executionData = new ArrayList<>();
+    try (ResultScanner scanner = eventsTable.getScanner(scan)) {
+      WorkflowInstance workflowInstance = null;
+      SortedSet<SequenceEvent> events = newSortedEventSet();
+
+      Result result = scanner.next();
+      while (result != null) {
+        final SequenceEvent sequenceEvent = parseEventResult(result);
+        final WorkflowInstance resultInstance = sequenceEvent.event().workflowInstance();
+        if (!resultInstance.equals(workflowInstance)) {
+          if (!events.isEmpty()) {
+            executionData.add(executionData(workflowInstance, events));
+            events = newSortedEventSet();
+          }
+          if (executionData.size() == limit) {
+            break;
           }
-        })
-        .sorted(WorkflowInstanceExecutionData.COMPARATOR)
-        .collect(Collectors.toList());
+          workflowInstance = resultInstance;
+        }
+        events.add(sequenceEvent);
+
+        result = scanner.next();
+      }
+
+      if (!events.isEmpty()) {
+        executionData.add(executionData(workflowInstance, events));
+      }
+    }
+
+    executionData.sort(WorkflowInstanceExecutionData.COMPARATOR);
+    return executionData;
+  }
+
+  private WorkflowInstanceExecutionData executionData(WorkflowInstance workflowInstance,
+                                                      SortedSet<SequenceEvent> events) {
+    eventWriter.ifPresent(writer -> events.addAll(writer.pending(workflowInstance)));
+    return new WFIExecutionBuilder().executionInfo(events);
   }
 
   private SequenceEvent parseEventResult(Result r) throws IOException {
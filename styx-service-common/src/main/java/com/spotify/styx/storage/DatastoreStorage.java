@@ -24,12 +24,18 @@ import static com.spotify.styx.serialization.Json.OBJECT_MAPPER;
 import static com.spotify.styx.storage.Storage.GLOBAL_RESOURCE_ID;
 import static com.spotify.styx.util.CloserUtil.register;
 import static com.spotify.styx.util.FutureUtil.gatherIO;
+import static com.spotify.styx.util.ShardedCounter.KIND_COUNTER_LEASE;
 import static com.spotify.styx.util.ShardedCounter.KIND_COUNTER_LIMIT;
 import static com.spotify.styx.util.ShardedCounter.KIND_COUNTER_SHARD;
-import static com.spotify.styx.util.ShardedCounter.NUM_SHARDS;
+import static com.spotify.styx.util.ShardedCounter.MAX_NUM_SHARDS;
 import static com.spotify.styx.util.ShardedCounter.PROPERTY_COUNTER_ID;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_LEASE_EXPIRY;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_LEASE_OWNER;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_LEASE_RESERVED;
 import static com.spotify.styx.util.ShardedCounter.PROPERTY_LIMIT;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_SHARDS;
 import static com.spotify.styx.util.ShardedCounter.PROPERTY_SHARD_INDEX;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_SHARD_SPAN;
 import static com.spotify.styx.util.ShardedCounter.PROPERTY_SHARD_VALUE;
 import static java.util.concurrent.CompletableFuture.delayedExecutor;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -40,6 +46,9 @@ import static java.util.stream.Collectors.toSet;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.BaseEntity;
+import com.google.cloud.datastore.Blob;
+import com.google.cloud.datastore.BlobValue;
 import com.google.cloud.datastore.DatastoreException;
 import com.google.cloud.datastore.DatastoreReader;
 import com.google.cloud.datastore.Entity;
@@ -69,13 +78,19 @@ import com.spotify.styx.model.Schedule;
 import com.spotify.styx.model.StyxConfig;
 import com.spotify.styx.model.TriggerParameters;
 import com.spotify.styx.model.Workflow;
+import com.spotify.styx.model.WorkflowConfiguration;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.model.WorkflowState;
+import com.spotify.styx.model.WorkflowWithState;
+import com.spotify.styx.state.BackfillProgress;
 import com.spotify.styx.state.Message;
 import com.spotify.styx.state.RunState;
 import com.spotify.styx.state.RunState.State;
 import com.spotify.styx.state.StateData;
+import com.spotify.styx.state.Trigger;
+import com.spotify.styx.util.CounterLease;
+import com.spotify.styx.util.CounterLimit;
 import com.spotify.styx.util.FnWithException;
 import com.spotify.styx.util.MDCUtil;
 import com.spotify.styx.util.ResourceNotFoundException;
@@ -88,6 +103,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -126,6 +142,7 @@ public class DatastoreStorage implements Closeable {
   public static final String KIND_ACTIVE_WORKFLOW_INSTANCE_INDEX_SHARD = "ActiveWorkflowInstanceIndexShard";
   public static final String KIND_ACTIVE_WORKFLOW_INSTANCE_INDEX_SHARD_ENTRY = "ActiveWorkflowInstanceIndexShardEntry";
   public static final String KIND_BACKFILL = "Backfill";
+  public static final String KIND_BACKFILL_PROGRESS = "BackfillProgress";
 
   public static final String PROPERTY_CONFIG_ENABLED = "enabled";
   public static final String PROPERTY_CONFIG_DOCKER_RUNNER_ID = "dockerRunnerId";
@@ -136,6 +153,8 @@ public class DatastoreStorage implements Closeable {
 
   public static final String PROPERTY_WORKFLOW_JSON = "json";
   public static final String PROPERTY_WORKFLOW_ENABLED = "enabled";
+  public static final String PROPERTY_WORKFLOW_SCHEDULE = "schedule";
+  public static final String PROPERTY_WORKFLOW_OFFSET = "offset";
   public static final String PROPERTY_NEXT_NATURAL_TRIGGER = "nextNaturalTrigger";
   public static final String PROPERTY_NEXT_NATURAL_OFFSET_TRIGGER = "nextNaturalOffsetTrigger";
   public static final String PROPERTY_COUNTER = "counter";
@@ -153,6 +172,10 @@ public class DatastoreStorage implements Closeable {
   public static final String PROPERTY_DESCRIPTION = "description";
   public static final String PROPERTY_TRIGGER_PARAMETERS = "triggerParameters";
   public static final String PROPERTY_SUBMISSION_RATE_LIMIT = "submissionRateLimit";
+  public static final String PROPERTY_DONE_PARTITIONS = "donePartitions";
+  public static final String PROPERTY_DONE_COUNT = "doneCount";
+  public static final String PROPERTY_ERROR_PARTITIONS = "errorPartitions";
+  public static final String PROPERTY_ERROR_COUNT = "errorCount";
 
   public static final String PROPERTY_STATE = "state";
   public static final String PROPERTY_STATE_TIMESTAMP = "stateTimestamp";
@@ -168,6 +191,7 @@ public class DatastoreStorage implements Closeable {
   public static final String PROPERTY_STATE_EXECUTION_DESCRIPTION = "executionDescription";
   public static final String PROPERTY_STATE_RESOURCE_IDS = "resourceIds";
   public static final String PROPERTY_STATE_TRIGGER_PARAMETERS = "triggerParameters";
+  public static final String PROPERTY_STATE_DATA = "stateData";
 
   public static final String KEY_GLOBAL_CONFIG = "styxGlobal";
 
@@ -243,13 +267,16 @@ public class DatastoreStorage implements Closeable {
   }
 
   Set<WorkflowId> enabled() throws IOException {
-    var queryWorkflows = EntityQuery.newEntityQueryBuilder().setKind(KIND_WORKFLOW).build();
+    // Only read the keys of the enabled workflows from the index, their configuration is not needed
+    var queryWorkflows = Query.newKeyQueryBuilder()
+        .setKind(KIND_WORKFLOW)
+        .setFilter(PropertyFilter.eq(PROPERTY_WORKFLOW_ENABLED, true))
+        .build();
     var enabledWorkflows = new HashSet<WorkflowId>();
-    workflowQuery(queryWorkflows, entity -> {
-      var enabled = entity.contains(PROPERTY_WORKFLOW_ENABLED)
-                    && entity.getBoolean(PROPERTY_WORKFLOW_ENABLED);
-      if (enabled) {
-        enabledWorkflows.add(parseWorkflowId(entity));
+    datastore.query(queryWorkflows, key -> {
+      // Exclude all workflow entities that are new-style as we currently only read from old keys.
+      if (!isNewWorkflow(key)) {
+        enabledWorkflows.add(parseWorkflowId(key));
       }
     });
 
@@ -259,8 +286,8 @@ public class DatastoreStorage implements Closeable {
   /**
    * Is this workflow entity written to the new or old key?
    */
-  private boolean isNewWorkflow(Entity entity) {
-    return entity.getKey().getAncestors().isEmpty();
+  private static boolean isNewWorkflow(Key key) {
+    return key.getAncestors().isEmpty();
   }
 
   static Optional<Entity> getWorkflowOpt(final CheckedDatastoreTransaction tx,
@@ -312,26 +339,150 @@ public class DatastoreStorage implements Closeable {
         return;
       }
 
-      if (entity.contains(PROPERTY_NEXT_NATURAL_TRIGGER)) {
-        Instant instant = timestampToInstant(entity.getTimestamp(PROPERTY_NEXT_NATURAL_TRIGGER));
-        final Instant triggerInstant;
-
-        // todo: this check is only needed during a transition period
-        if (!entity.contains(PROPERTY_NEXT_NATURAL_OFFSET_TRIGGER)) {
-          // instant has to be moved one schedule interval back
-          final Schedule schedule = workflow.configuration().schedule();
-          if (TimeUtil.isAligned(instant, schedule)) {
-            instant = TimeUtil.previousInstant(instant, schedule);
-          }
-          triggerInstant = workflow.configuration().addOffset(instant);
-        } else {
-          triggerInstant = timestampToInstant(entity.getTimestamp(PROPERTY_NEXT_NATURAL_OFFSET_TRIGGER));
+      nextNaturalTrigger(entity, workflow.configuration())
+          .ifPresent(spec -> map.put(workflow, spec));
+    });
+    return map;
+  }
+
+  /**
+   * Get the {@link WorkflowScheduleView}s of all workflows, without reading and deserializing their configuration.
+   *
+   * <p>Each property is read in parallel with a projection query on its built-in single property index, so no
+   * composite index is needed, and the projections are joined on the workflow key. Workflows that were stored
+   * before their schedule was written as a property are read in full. So are workflows whose next natural trigger
+   * does not match its offset instant, as they were triggered between the projections of the two properties.
+   */
+  public Map<WorkflowId, WorkflowScheduleView> workflowScheduleViews() throws IOException {
+    var timeout = CompletableFuture.runAsync(() -> {}, delayedExecutor(30, SECONDS));
+
+    // Every workflow entity has an indexed component, so projecting it lists all workflows
+    var properties = List.of(PROPERTY_COMPONENT, PROPERTY_WORKFLOW_SCHEDULE, PROPERTY_WORKFLOW_OFFSET,
+        PROPERTY_WORKFLOW_ENABLED, PROPERTY_NEXT_NATURAL_TRIGGER, PROPERTY_NEXT_NATURAL_OFFSET_TRIGGER);
+    var projections = gatherIO(properties.stream()
+        .map(property -> asyncIO(() -> datastore.query(Query.newProjectionEntityQueryBuilder()
+            .setKind(KIND_WORKFLOW)
+            .setProjection(property)
+            .build())))
+        .collect(toList()), timeout);
+
+    timeout.cancel(true);
+
+    var entities = new HashMap<Key, Entity.Builder>();
+    for (int i = 0; i < properties.size(); i++) {
+      var property = properties.get(i);
+      for (var projection : projections.get(i)) {
+        if (isNewWorkflow(projection.getKey())) {
+          continue;
         }
+        final Value<?> value = projection.getValue(property);
+        entities.computeIfAbsent(projection.getKey(), Entity::newBuilder).set(property, value);
+      }
+    }
 
-        map.put(workflow, TriggerInstantSpec.create(instant, triggerInstant));
+    var views = new HashMap<WorkflowId, WorkflowScheduleView>();
+    var legacyEntities = new HashMap<WorkflowId, BaseEntity<Key>>();
+    var tornKeys = new ArrayList<Key>();
+    for (var builder : entities.values()) {
+      var entity = builder.build();
+      if (isLegacyWorkflow(entity)) {
+        legacyEntities.put(parseWorkflowId(entity.getKey()), entity);
+        continue;
       }
+      var view = workflowScheduleView(entity);
+      if (!isConsistent(view)) {
+        tornKeys.add(entity.getKey());
+        continue;
+      }
+      views.put(view.workflowId(), view);
+    }
+
+    if (!tornKeys.isEmpty()) {
+      datastore.get(tornKeys, entity -> {
+        if (isLegacyWorkflow(entity)) {
+          legacyEntities.put(parseWorkflowId(entity.getKey()), entity);
+        } else {
+          views.put(parseWorkflowId(entity.getKey()), workflowScheduleView(entity));
+        }
+      });
+    }
+
+    // TODO: only needed until all workflows have been stored with their schedule as a property
+    workflows(legacyEntities.keySet()).forEach((workflowId, workflow) -> {
+      var entity = legacyEntities.get(workflowId);
+      views.put(workflowId, WorkflowScheduleView.create(
+          workflowId,
+          workflow.configuration().schedule(),
+          workflow.configuration().offset(),
+          isEnabled(entity),
+          nextNaturalTrigger(entity, workflow.configuration())));
     });
-    return map;
+
+    return views;
+  }
+
+  private static boolean isLegacyWorkflow(BaseEntity<Key> entity) {
+    return !entity.contains(PROPERTY_WORKFLOW_SCHEDULE)
+           || (entity.contains(PROPERTY_NEXT_NATURAL_TRIGGER)
+               && !entity.contains(PROPERTY_NEXT_NATURAL_OFFSET_TRIGGER));
+  }
+
+  private static WorkflowScheduleView workflowScheduleView(BaseEntity<Key> entity) {
+    var nextNaturalTrigger = entity.contains(PROPERTY_NEXT_NATURAL_TRIGGER)
+        ? Optional.of(TriggerInstantSpec.create(
+            timestampToInstant(entity.getTimestamp(PROPERTY_NEXT_NATURAL_TRIGGER)),
+            timestampToInstant(entity.getTimestamp(PROPERTY_NEXT_NATURAL_OFFSET_TRIGGER))))
+        : Optional.<TriggerInstantSpec>empty();
+    return WorkflowScheduleView.create(
+        parseWorkflowId(entity.getKey()),
+        Schedule.parse(entity.getString(PROPERTY_WORKFLOW_SCHEDULE)),
+        entity.contains(PROPERTY_WORKFLOW_OFFSET)
+            ? Optional.of(entity.getString(PROPERTY_WORKFLOW_OFFSET))
+            : Optional.empty(),
+        isEnabled(entity),
+        nextNaturalTrigger);
+  }
+
+  /**
+   * Tests if the offset instant of the next natural trigger of a view is the one given by its schedule and offset.
+   */
+  private static boolean isConsistent(WorkflowScheduleView view) {
+    if (view.nextNaturalTrigger().isEmpty()) {
+      return true;
+    }
+    final TriggerInstantSpec spec = view.nextNaturalTrigger().get();
+    final String offset = view.offset()
+        .orElseGet(() -> WorkflowConfiguration.defaultOffsetOf(view.schedule().wellKnown()));
+    return TimeUtil.addOffset(spec.instant().atZone(ZoneOffset.UTC), offset).toInstant()
+        .equals(spec.offsetInstant());
+  }
+
+  private static boolean isEnabled(BaseEntity<Key> entity) {
+    return entity.contains(PROPERTY_WORKFLOW_ENABLED) && entity.getBoolean(PROPERTY_WORKFLOW_ENABLED);
+  }
+
+  private static Optional<TriggerInstantSpec> nextNaturalTrigger(BaseEntity<Key> entity,
+                                                                 WorkflowConfiguration configuration) {
+    if (!entity.contains(PROPERTY_NEXT_NATURAL_TRIGGER)) {
+      return Optional.empty();
+    }
+
+    Instant instant = timestampToInstant(entity.getTimestamp(PROPERTY_NEXT_NATURAL_TRIGGER));
+    final Instant triggerInstant;
+
+    // todo: this check is only needed during a transition period
+    if (!entity.contains(PROPERTY_NEXT_NATURAL_OFFSET_TRIGGER)) {
+      // instant has to be moved one schedule interval back
+      final Schedule schedule = configuration.schedule();
+      if (TimeUtil.isAligned(instant, schedule)) {
+        instant = TimeUtil.previousInstant(instant, schedule);
+      }
+      triggerInstant = configuration.addOffset(instant);
+    } else {
+      triggerInstant = timestampToInstant(entity.getTimestamp(PROPERTY_NEXT_NATURAL_OFFSET_TRIGGER));
+    }
+
+    return Optional.of(TriggerInstantSpec.create(instant, triggerInstant));
   }
 
   public Map<WorkflowId, Workflow> workflows() throws IOException {
@@ -499,12 +650,25 @@ public class DatastoreStorage implements Closeable {
     final long counter = entity.getLong(PROPERTY_COUNTER);
     final State state = State.valueOf(entity.getString(PROPERTY_STATE));
     final long timestamp = entity.getLong(PROPERTY_STATE_TIMESTAMP);
-    final StateData data = StateData.newBuilder()
+    final Optional<Trigger> trigger = DatastoreStorage.<String>readOpt(entity, PROPERTY_STATE_TRIGGER_TYPE)
+        .map(type -> TriggerUtil.trigger(type, entity.getString(PROPERTY_STATE_TRIGGER_ID)));
+    final StateData data;
+    if (entity.contains(PROPERTY_STATE_DATA)) {
+      data = StateDataCodec.decode(entity.getBlob(PROPERTY_STATE_DATA).toByteArray())
+          .trigger(trigger)
+          .build();
+    } else {
+      data = jsonEntityToStateData(entity, trigger);
+    }
+    return RunState.create(instance, state, data, Instant.ofEpochMilli(timestamp), counter);
+  }
+
+  private static StateData jsonEntityToStateData(Entity entity, Optional<Trigger> trigger) throws IOException {
+    return StateData.newBuilder()
         .tries((int) entity.getLong(PROPERTY_STATE_TRIES))
         .consecutiveFailures((int) entity.getLong(PROPERTY_STATE_CONSECUTIVE_FAILURES))
         .retryCost(entity.getDouble(PROPERTY_STATE_RETRY_COST))
-        .trigger(DatastoreStorage.<String>readOpt(entity, PROPERTY_STATE_TRIGGER_TYPE).map(type ->
-            TriggerUtil.trigger(type, entity.getString(PROPERTY_STATE_TRIGGER_ID))))
+        .trigger(trigger)
         .messages(OBJECT_MAPPER.<List<Message>>readValue(entity.getString(PROPERTY_STATE_MESSAGES),
             new TypeReference<List<Message>>() { }))
         .retryDelayMillis(readOpt(entity, PROPERTY_STATE_RETRY_DELAY_MILLIS))
@@ -516,7 +680,6 @@ public class DatastoreStorage implements Closeable {
             new TypeReference<Set<String>>() { }))
         .triggerParameters(readOptJson(entity, PROPERTY_STATE_TRIGGER_PARAMETERS, TriggerParameters.class))
         .build();
-    return RunState.create(instance, state, data, Instant.ofEpochMilli(timestamp), counter);
   }
 
   WorkflowInstance writeActiveState(WorkflowInstance workflowInstance, RunState state)
@@ -554,7 +717,18 @@ public class DatastoreStorage implements Closeable {
   }
 
   static Entity runStateToEntity(KeyFactory keyFactory, WorkflowInstance wfi, RunState state)
-      throws JsonProcessingException {
+      throws IOException {
+    return runStateToEntity(keyFactory, wfi, state, false);
+  }
+
+  /**
+   * Map an active state to an entity.
+   *
+   * @param binary Whether to store the state data as a single blob encoded by {@link StateDataCodec} instead of
+   *               as separate properties. Either is read by {@link #entityToRunState(Entity, WorkflowInstance)}.
+   */
+  static Entity runStateToEntity(KeyFactory keyFactory, WorkflowInstance wfi, RunState state, boolean binary)
+      throws IOException {
     final Key key = activeWorkflowInstanceKey(keyFactory, wfi);
     final Entity.Builder entity = Entity.newBuilder(key)
         .set(PROPERTY_COMPONENT, wfi.workflowId().componentId())
@@ -564,7 +738,22 @@ public class DatastoreStorage implements Closeable {
 
     entity
         .set(PROPERTY_STATE, state.state().toString())
-        .set(PROPERTY_STATE_TIMESTAMP, state.timestamp())
+        .set(PROPERTY_STATE_TIMESTAMP, state.timestamp());
+
+    // The trigger is kept in properties in both encodings, as active states are queried by trigger id
+    state.data().trigger().ifPresent(trigger -> {
+      entity.set(PROPERTY_STATE_TRIGGER_TYPE, TriggerUtil.triggerType(trigger));
+      entity.set(PROPERTY_STATE_TRIGGER_ID, TriggerUtil.triggerId(trigger));
+    });
+
+    if (binary) {
+      entity.set(PROPERTY_STATE_DATA, BlobValue.newBuilder(Blob.copyFrom(StateDataCodec.encode(state.data())))
+          .setExcludeFromIndexes(true)
+          .build());
+      return entity.build();
+    }
+
+    entity
         .set(PROPERTY_STATE_TRIES, state.data().tries())
         .set(PROPERTY_STATE_CONSECUTIVE_FAILURES, state.data().consecutiveFailures())
         .set(PROPERTY_STATE_RETRY_COST, state.data().retryCost())
@@ -573,10 +762,6 @@ public class DatastoreStorage implements Closeable {
 
     state.data().retryDelayMillis().ifPresent(v -> entity.set(PROPERTY_STATE_RETRY_DELAY_MILLIS, v));
     state.data().lastExit().ifPresent(v -> entity.set(PROPERTY_STATE_LAST_EXIT, v));
-    state.data().trigger().ifPresent(trigger -> {
-      entity.set(PROPERTY_STATE_TRIGGER_TYPE, TriggerUtil.triggerType(trigger));
-      entity.set(PROPERTY_STATE_TRIGGER_ID, TriggerUtil.triggerId(trigger));
-    });
     state.data().executionId().ifPresent(v -> entity.set(PROPERTY_STATE_EXECUTION_ID, v));
     if (state.data().triggerParameters().isPresent()) {
       entity.set(PROPERTY_STATE_TRIGGER_PARAMETERS, jsonValue(state.data().triggerParameters().get()));
@@ -599,7 +784,13 @@ public class DatastoreStorage implements Closeable {
 
     var builder = asBuilderOrNew(existing, key)
         .set(PROPERTY_COMPONENT, workflow.componentId())
-        .set(PROPERTY_WORKFLOW_JSON, StringValue.newBuilder(json).setExcludeFromIndexes(true).build());
+        .set(PROPERTY_WORKFLOW_JSON, StringValue.newBuilder(json).setExcludeFromIndexes(true).build())
+        .set(PROPERTY_WORKFLOW_SCHEDULE, workflow.configuration().schedule().toString());
+
+    // Indexed next to the json so that the schedule of all workflows can be read with projection queries
+    workflow.configuration().offset().ifPresentOrElse(
+        offset -> builder.set(PROPERTY_WORKFLOW_OFFSET, offset),
+        () -> builder.remove(PROPERTY_WORKFLOW_OFFSET));
 
     state.enabled()
         .ifPresent(x -> builder.set(PROPERTY_WORKFLOW_ENABLED, x));
@@ -620,9 +811,21 @@ public class DatastoreStorage implements Closeable {
   }
 
   public WorkflowState workflowState(WorkflowId workflowId) throws IOException {
-    final WorkflowState.Builder builder = WorkflowState.builder();
+    return parseWorkflowState(getWorkflowOpt(datastore, datastore::newKeyFactory, workflowId));
+  }
 
-    var workflowEntity = getWorkflowOpt(datastore, datastore::newKeyFactory, workflowId);
+  Optional<WorkflowWithState> workflowWithState(WorkflowId workflowId) throws IOException {
+    final Optional<Entity> entityOptional = getWorkflowOpt(datastore, datastore::newKeyFactory, workflowId);
+    if (entityOptional.isPresent()) {
+      return Optional.of(WorkflowWithState.of(
+          parseWorkflowJson(entityOptional.get(), workflowId), parseWorkflowState(entityOptional)));
+    } else {
+      return Optional.empty();
+    }
+  }
+
+  private static WorkflowState parseWorkflowState(Optional<Entity> workflowEntity) {
+    final WorkflowState.Builder builder = WorkflowState.builder();
 
     builder.enabled(workflowEntity.filter(w -> w.contains(PROPERTY_WORKFLOW_ENABLED))
                         .map(workflow -> workflow.getBoolean(PROPERTY_WORKFLOW_ENABLED))
@@ -669,7 +872,7 @@ public class DatastoreStorage implements Closeable {
     datastore.query(query, entity -> {
       // Exclude all workflow entities that are new-style as we currently only read from old keys.
       // TODO: change when changing to read from new keys.
-      if (isNewWorkflow(entity)) {
+      if (isNewWorkflow(entity.getKey())) {
         return;
       }
       consumer.accept(entity);
@@ -699,9 +902,9 @@ public class DatastoreStorage implements Closeable {
     return WorkflowInstance.create(WorkflowId.create(componentId, workflowId), parameter);
   }
 
-  private WorkflowId parseWorkflowId(Entity workflow) {
-    final String componentId = workflow.getKey().getAncestors().get(0).getName();
-    final String id = workflow.getKey().getName();
+  private static WorkflowId parseWorkflowId(Key workflowKey) {
+    final String componentId = workflowKey.getAncestors().get(0).getName();
+    final String id = workflowKey.getName();
 
     return WorkflowId.create(componentId, id);
   }
@@ -771,6 +974,10 @@ public class DatastoreStorage implements Closeable {
     return keyFactory.setKind(KIND_BACKFILL).newKey(backfillId);
   }
 
+  static Key backfillProgressKey(KeyFactory keyFactory, String backfillId) {
+    return keyFactory.setKind(KIND_BACKFILL_PROGRESS).newKey(backfillId);
+  }
+
   static Key globalConfigKey(KeyFactory keyFactory) {
     return keyFactory.setKind(KIND_STYX_CONFIG).newKey(KEY_GLOBAL_CONFIG);
   }
@@ -783,7 +990,7 @@ public class DatastoreStorage implements Closeable {
     return Timestamp.of(Date.from(instant));
   }
 
-  private static Instant timestampToInstant(Timestamp ts) {
+  static Instant timestampToInstant(Timestamp ts) {
     return Instant.ofEpochSecond(ts.getSeconds(), ts.getNanos());
   }
 
@@ -940,6 +1147,32 @@ public class DatastoreStorage implements Closeable {
     storeWithRetries(() -> runInTransaction(tx -> tx.store(backfill)));
   }
 
+  Optional<BackfillProgress> getBackfillProgress(String id) throws IOException {
+    final Entity entity = datastore.get(backfillProgressKey(datastore.newKeyFactory(), id));
+    if (entity == null) {
+      return Optional.empty();
+    }
+    return Optional.of(entityToBackfillProgress(entity));
+  }
+
+  static BackfillProgress entityToBackfillProgress(Entity entity) {
+    return BackfillProgress.create(entity.getKey().getName(),
+        entity.getBlob(PROPERTY_DONE_PARTITIONS).toByteArray(),
+        entity.getBlob(PROPERTY_ERROR_PARTITIONS).toByteArray());
+  }
+
+  static Entity backfillProgressToEntity(KeyFactory keyFactory, BackfillProgress progress) {
+    // The counts are stored along with the bitmaps to make them available to queries
+    return Entity.newBuilder(backfillProgressKey(keyFactory, progress.backfillId()))
+        .set(PROPERTY_DONE_PARTITIONS, BlobValue.newBuilder(Blob.copyFrom(progress.toByteArray(State.DONE)))
+            .setExcludeFromIndexes(true).build())
+        .set(PROPERTY_DONE_COUNT, progress.count(State.DONE))
+        .set(PROPERTY_ERROR_PARTITIONS, BlobValue.newBuilder(Blob.copyFrom(progress.toByteArray(State.ERROR)))
+            .setExcludeFromIndexes(true).build())
+        .set(PROPERTY_ERROR_COUNT, progress.count(State.ERROR))
+        .build();
+  }
+
   private <T> Stream<T> readStream(Entity entity, String property) {
     return read(entity, property, Collections.<Value<T>>emptyList()).stream()
         .map(Value::get);
@@ -1004,7 +1237,11 @@ public class DatastoreStorage implements Closeable {
   }
 
   Map<Integer, Long> shardsForCounter(String counterId) throws IOException {
-    final List<Key> shardKeys = IntStream.range(0, NUM_SHARDS).mapToObj(
+    return shardsForCounter(counterId, MAX_NUM_SHARDS);
+  }
+
+  Map<Integer, Long> shardsForCounter(String counterId, int shardSpan) throws IOException {
+    final List<Key> shardKeys = IntStream.range(0, shardSpan).mapToObj(
         index -> datastore.newKeyFactory().setKind(KIND_COUNTER_SHARD).newKey(
             String.format("%s-%d", counterId, index)))
         .collect(toList());
@@ -1017,9 +1254,14 @@ public class DatastoreStorage implements Closeable {
   }
 
   long getLimitForCounter(String counterId) throws IOException {
+    return counterLimit(counterId).limit();
+  }
+
+  CounterLimit counterLimit(String counterId) throws IOException {
     if (GLOBAL_RESOURCE_ID.equals(counterId)) {
       // missing global resource means free to go
-      return config().globalConcurrency().orElse(Long.MAX_VALUE);
+      final long limit = config().globalConcurrency().orElse(Long.MAX_VALUE);
+      return CounterLimit.create(counterId, limit, MAX_NUM_SHARDS, MAX_NUM_SHARDS);
     }
 
     final Key limitKey = datastore.newKeyFactory().setKind(KIND_COUNTER_LIMIT).newKey(counterId);
@@ -1027,10 +1269,51 @@ public class DatastoreStorage implements Closeable {
     if (limitEntity == null) {
       throw new IllegalArgumentException("No limit found in Datastore for " + counterId);
     } else {
-      return limitEntity.getLong(PROPERTY_LIMIT);
+      return entityToCounterLimit(limitEntity);
     }
   }
 
+  /**
+   * Limits stored before the shard count was stored along with them are spread over
+   * {@code MAX_NUM_SHARDS} shards.
+   */
+  static CounterLimit entityToCounterLimit(Entity entity) {
+    final int shards = entity.contains(PROPERTY_SHARDS)
+        ? (int) entity.getLong(PROPERTY_SHARDS)
+        : MAX_NUM_SHARDS;
+    final int shardSpan = entity.contains(PROPERTY_SHARD_SPAN)
+        ? (int) entity.getLong(PROPERTY_SHARD_SPAN)
+        : shards;
+    return CounterLimit.create(entity.getKey().getName(), entity.getLong(PROPERTY_LIMIT), shards, shardSpan);
+  }
+
+  static Entity counterLimitToEntity(KeyFactory keyFactory, CounterLimit counterLimit) {
+    return Entity.newBuilder(keyFactory.setKind(KIND_COUNTER_LIMIT).newKey(counterLimit.counterId()))
+        .set(PROPERTY_LIMIT, counterLimit.limit())
+        .set(PROPERTY_SHARDS, counterLimit.shards())
+        .set(PROPERTY_SHARD_SPAN, counterLimit.shardSpan())
+        .build();
+  }
+
+  List<CounterLease> counterLeases() throws IOException {
+    final EntityQuery query = Query.newEntityQueryBuilder().setKind(KIND_COUNTER_LEASE).build();
+    final List<CounterLease> leases = Lists.newArrayList();
+    datastore.query(query, entity -> leases.add(entityToCounterLease(entity)));
+    return leases;
+  }
+
+  static CounterLease entityToCounterLease(Entity entity) {
+    return CounterLease.create(
+        entity.getString(PROPERTY_COUNTER_ID),
+        entity.getString(PROPERTY_LEASE_OWNER),
+        entity.getLong(PROPERTY_LEASE_RESERVED),
+        timestampToInstant(entity.getTimestamp(PROPERTY_LEASE_EXPIRY)));
+  }
+
+  static Key counterLeaseKey(KeyFactory keyFactory, String counterId, String owner) {
+    return keyFactory.setKind(KIND_COUNTER_LEASE).newKey(counterId + "#" + owner);
+  }
+
   private <T> CompletableFuture<T> asyncIO(IOOperation<T> f) {
     return f.executeAsync(executor);
   }
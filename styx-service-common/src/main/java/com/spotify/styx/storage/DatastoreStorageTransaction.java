@@ -35,7 +35,11 @@ import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_TRIGGER_PARAMET
 import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_WORKFLOW;
 import static com.spotify.styx.storage.DatastoreStorage.activeWorkflowInstanceIndexShardEntryKey;
 import static com.spotify.styx.storage.DatastoreStorage.activeWorkflowInstanceKey;
+import static com.spotify.styx.storage.DatastoreStorage.counterLeaseKey;
+import static com.spotify.styx.storage.DatastoreStorage.counterLimitToEntity;
+import static com.spotify.styx.storage.DatastoreStorage.backfillProgressToEntity;
 import static com.spotify.styx.storage.DatastoreStorage.entityToBackfill;
+import static com.spotify.styx.storage.DatastoreStorage.entityToBackfillProgress;
 import static com.spotify.styx.storage.DatastoreStorage.entityToRunState;
 import static com.spotify.styx.storage.DatastoreStorage.getWorkflowOpt;
 import static com.spotify.styx.storage.DatastoreStorage.instantToTimestamp;
@@ -46,7 +50,9 @@ import static com.spotify.styx.storage.DatastoreStorage.workflowKeyNew;
 import static com.spotify.styx.util.ShardedCounter.KIND_COUNTER_LIMIT;
 import static com.spotify.styx.util.ShardedCounter.KIND_COUNTER_SHARD;
 import static com.spotify.styx.util.ShardedCounter.PROPERTY_COUNTER_ID;
-import static com.spotify.styx.util.ShardedCounter.PROPERTY_LIMIT;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_LEASE_EXPIRY;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_LEASE_OWNER;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_LEASE_RESERVED;
 import static com.spotify.styx.util.ShardedCounter.PROPERTY_SHARD_INDEX;
 import static com.spotify.styx.util.ShardedCounter.PROPERTY_SHARD_VALUE;
 
@@ -60,12 +66,19 @@ import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.model.WorkflowState;
+import com.spotify.styx.state.BackfillProgress;
 import com.spotify.styx.state.RunState;
+import com.spotify.styx.util.CounterLease;
+import com.spotify.styx.util.CounterLimit;
 import com.spotify.styx.util.ResourceNotFoundException;
 import com.spotify.styx.util.Shard;
 import com.spotify.styx.util.ShardedCounter;
 import com.spotify.styx.util.TriggerInstantSpec;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Supplier;
@@ -75,7 +88,16 @@ public class DatastoreStorageTransaction implements StorageTransaction {
   // TODO: remove after migration
   private final boolean workflowStoreNew = Boolean.parseBoolean(System.getenv("STYX_WORKFLOW_STORE_NEW"));
 
+  // TODO: remove after migration, once all active states are written in the binary encoding
+  private final boolean stateDataBinary = Boolean.parseBoolean(System.getenv("STYX_STATE_DATA_BINARY"));
+
   private final CheckedDatastoreTransaction tx;
+  private final List<Runnable> commitActions = new ArrayList<>();
+  private final List<Runnable> rollbackActions = new ArrayList<>();
+
+  // Reads in a transaction do not see its own writes, so the counter shards written so far are kept here. Several
+  // updates of the same counter in one transaction, e.g. a batch of dequeues, then add up instead of overwriting.
+  private final Map<String, Shard> shardWrites = new HashMap<>();
 
   public DatastoreStorageTransaction(CheckedDatastoreTransaction transaction) {
     this.tx = Objects.requireNonNull(transaction);
@@ -86,12 +108,18 @@ public class DatastoreStorageTransaction implements StorageTransaction {
     try {
       tx.commit();
     } catch (DatastoreIOException e) {
+      runActions(rollbackActions);
       throw new TransactionException(e.getCause());
+    } catch (RuntimeException e) {
+      runActions(rollbackActions);
+      throw e;
     }
+    runActions(commitActions);
   }
 
   @Override
   public void rollback() throws TransactionException {
+    runActions(rollbackActions);
     try {
       tx.rollback();
     } catch (DatastoreIOException e) {
@@ -99,6 +127,24 @@ public class DatastoreStorageTransaction implements StorageTransaction {
     }
   }
 
+  @Override
+  public void onCommit(Runnable action) {
+    commitActions.add(Objects.requireNonNull(action));
+  }
+
+  @Override
+  public void onRollback(Runnable action) {
+    rollbackActions.add(Objects.requireNonNull(action));
+  }
+
+  private void runActions(List<Runnable> actions) {
+    // Run each action at most once, even if both a failed commit and a rollback happen
+    final List<Runnable> pending = new ArrayList<>(actions);
+    commitActions.clear();
+    rollbackActions.clear();
+    pending.forEach(Runnable::run);
+  }
+
   @Override
   public boolean isActive() {
     return tx.isActive();
@@ -112,20 +158,24 @@ public class DatastoreStorageTransaction implements StorageTransaction {
   @Override
   public Optional<Shard> shard(String counterId, int shardIndex) throws IOException {
     // TODO there's no need for this to be transactional
-    final Key shardKey = tx.getDatastore().newKeyFactory().setKind(KIND_COUNTER_SHARD)
-        .newKey(counterId + "-" + shardIndex);
+    final String shardName = counterId + "-" + shardIndex;
+    final Shard written = shardWrites.get(shardName);
+    if (written != null) {
+      return Optional.of(written);
+    }
+    final Key shardKey = tx.getDatastore().newKeyFactory().setKind(KIND_COUNTER_SHARD).newKey(shardName);
     Entity shardEntity = tx.get(shardKey);
     if (shardEntity == null) {
       return Optional.empty();
     }
-    return Optional.of(Shard.create(counterId, shardIndex,
-                                    (int) tx.get(shardKey).getLong(PROPERTY_SHARD_VALUE)));
+    return Optional.of(Shard.create(counterId, shardIndex, (int) shardEntity.getLong(PROPERTY_SHARD_VALUE)));
   }
 
   @Override
   public void store(Shard shard) throws IOException {
-    tx.put(Entity.newBuilder(tx.getDatastore().newKeyFactory().setKind(KIND_COUNTER_SHARD)
-                                 .newKey(shard.counterId() + "-" + shard.index()))
+    final String shardName = shard.counterId() + "-" + shard.index();
+    shardWrites.put(shardName, shard);
+    tx.put(Entity.newBuilder(tx.getDatastore().newKeyFactory().setKind(KIND_COUNTER_SHARD).newKey(shardName))
                         .set(PROPERTY_COUNTER_ID, shard.counterId())
                         .set(PROPERTY_SHARD_INDEX, shard.index())
                         .set(PROPERTY_SHARD_VALUE, shard.value())
@@ -134,13 +184,56 @@ public class DatastoreStorageTransaction implements StorageTransaction {
 
   @Override
   public void updateLimitForCounter(String counterId, long limit) throws IOException {
+    store(reshard(counterId, limit));
+  }
+
+  @Override
+  public Optional<CounterLimit> counterLimit(String counterId) throws IOException {
     final Key limitKey = tx.getDatastore().newKeyFactory().setKind(KIND_COUNTER_LIMIT).newKey(counterId);
-    tx.put(Entity.newBuilder(limitKey).set(PROPERTY_LIMIT, limit).build());
+    return Optional.ofNullable(tx.get(limitKey)).map(DatastoreStorage::entityToCounterLimit);
+  }
+
+  @Override
+  public void store(CounterLimit counterLimit) throws IOException {
+    tx.put(counterLimitToEntity(tx.getDatastore().newKeyFactory(), counterLimit));
   }
 
   @Override
   public void store(Resource resource) throws IOException {
-    tx.put(resourceToEntity(tx.getDatastore(), resource));
+    store(reshard(resource.id(), resource.concurrency()));
+  }
+
+  /**
+   * Spread a new limit over the number of shards it calls for. Shards that are no longer in use keep being read
+   * until they have been drained, see {@link CounterLimit#shardSpan()}.
+   */
+  private CounterLimit reshard(String counterId, long limit) throws IOException {
+    final int shards = ShardedCounter.shardCount(limit);
+    final int shardSpan = counterLimit(counterId)
+        .map(previous -> Math.max(previous.shardSpan(), shards))
+        .orElse(shards);
+    return CounterLimit.create(counterId, limit, shards, shardSpan);
+  }
+
+  @Override
+  public Optional<CounterLease> counterLease(String counterId, String owner) throws IOException {
+    final Entity entity = tx.get(counterLeaseKey(tx.getDatastore().newKeyFactory(), counterId, owner));
+    return Optional.ofNullable(entity).map(DatastoreStorage::entityToCounterLease);
+  }
+
+  @Override
+  public void store(CounterLease lease) throws IOException {
+    tx.put(Entity.newBuilder(counterLeaseKey(tx.getDatastore().newKeyFactory(), lease.counterId(), lease.owner()))
+        .set(PROPERTY_COUNTER_ID, lease.counterId())
+        .set(PROPERTY_LEASE_OWNER, lease.owner())
+        .set(PROPERTY_LEASE_RESERVED, lease.reserved())
+        .set(PROPERTY_LEASE_EXPIRY, instantToTimestamp(lease.expiry()))
+        .build());
+  }
+
+  @Override
+  public void deleteCounterLease(String counterId, String owner) throws IOException {
+    tx.delete(counterLeaseKey(tx.getDatastore().newKeyFactory(), counterId, owner));
   }
 
   @Override
@@ -149,13 +242,6 @@ public class DatastoreStorageTransaction implements StorageTransaction {
     tx.delete(workflowKeyNew(tx.getDatastore()::newKeyFactory, workflowId));
   }
 
-  private Entity resourceToEntity(CheckedDatastore datastore, Resource resource) {
-    final Key key = datastore.newKeyFactory().setKind(KIND_COUNTER_LIMIT).newKey(resource.id());
-    return Entity.newBuilder(key)
-        .set(PROPERTY_LIMIT, resource.concurrency())
-        .build();
-  }
-
   @Override
   public WorkflowId store(Workflow workflow) throws IOException {
     var existing = getWorkflowOpt(tx, workflow.id());
@@ -235,14 +321,14 @@ public class DatastoreStorageTransaction implements StorageTransaction {
     final Key indexEntryKey = activeWorkflowInstanceIndexShardEntryKey(tx.getDatastore().newKeyFactory(), instance);
     final Entity indexEntry = Entity.newBuilder(indexEntryKey).build();
     tx.add(indexEntry);
-    tx.add(runStateToEntity(tx.getDatastore().newKeyFactory(), instance, state));
+    tx.add(runStateToEntity(tx.getDatastore().newKeyFactory(), instance, state, stateDataBinary));
     return instance;
   }
 
   @Override
   public WorkflowInstance updateActiveState(WorkflowInstance instance, RunState state)
       throws IOException {
-    tx.update(runStateToEntity(tx.getDatastore().newKeyFactory(), instance, state));
+    tx.update(runStateToEntity(tx.getDatastore().newKeyFactory(), instance, state, stateDataBinary));
     return instance;
   }
 
@@ -291,4 +377,20 @@ public class DatastoreStorageTransaction implements StorageTransaction {
     }
     return Optional.of(entityToBackfill(entity));
   }
+
+  @Override
+  public BackfillProgress store(BackfillProgress progress) throws IOException {
+    tx.put(backfillProgressToEntity(tx.getDatastore().newKeyFactory(), progress));
+    return progress;
+  }
+
+  @Override
+  public Optional<BackfillProgress> backfillProgress(String id) throws IOException {
+    final Key key = DatastoreStorage.backfillProgressKey(tx.getDatastore().newKeyFactory(), id);
+    final Entity entity = tx.get(key);
+    if (entity == null) {
+      return Optional.empty();
+    }
+    return Optional.of(entityToBackfillProgress(entity));
+  }
 }
@@ -32,8 +32,12 @@ import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.model.WorkflowState;
+import com.spotify.styx.model.WorkflowWithState;
 import com.spotify.styx.model.data.WorkflowInstanceExecutionData;
+import com.spotify.styx.state.BackfillProgress;
 import com.spotify.styx.state.RunState;
+import com.spotify.styx.util.CounterLease;
+import com.spotify.styx.util.CounterLimit;
 import com.spotify.styx.util.ResourceNotFoundException;
 import com.spotify.styx.util.TriggerInstantSpec;
 import com.spotify.styx.util.TriggerUtil;
@@ -125,6 +129,11 @@ public class InMemStorage implements Storage {
     throw new UnsupportedOperationException("Unsupported Operation!");
   }
 
+  @Override
+  public Map<WorkflowId, WorkflowScheduleView> workflowScheduleViews() throws IOException {
+    throw new UnsupportedOperationException("Unsupported Operation!");
+  }
+
   @Override
   public Map<WorkflowId, Workflow> workflows() throws IOException {
     throw new UnsupportedOperationException("Unsupported Operation!");
@@ -150,7 +159,8 @@ public class InMemStorage implements Storage {
   @Override
   public List<WorkflowInstanceExecutionData> executionData(WorkflowId workflowId,
                                                            String startParameter,
-                                                           String stopParameter)
+                                                           String stopParameter,
+                                                           int limit)
       throws IOException {
     throw new UnsupportedOperationException("Unsupported Operation!");
   }
@@ -192,6 +202,12 @@ public class InMemStorage implements Storage {
     return workflowStatePerWorkflowId.get(workflowId);
   }
 
+  @Override
+  public Optional<WorkflowWithState> workflowWithState(WorkflowId workflowId) throws IOException {
+    return workflow(workflowId).map(workflow -> WorkflowWithState.of(workflow,
+        workflowStatePerWorkflowId.getOrDefault(workflowId, WorkflowState.empty())));
+  }
+
   @Override
   public Optional<Resource> resource(String id) throws IOException {
     return Optional.ofNullable(resourceStore.get(id));
@@ -276,16 +292,36 @@ public class InMemStorage implements Storage {
     backfillStore.put(backfill.id(), backfill);
   }
 
+  @Override
+  public Optional<BackfillProgress> backfillProgress(String id) {
+    return Optional.empty();
+  }
+
   @Override
   public Map<Integer, Long> shardsForCounter(String counterId) {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public Map<Integer, Long> shardsForCounter(String counterId, int shardSpan) {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public long getLimitForCounter(String counterId) {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public CounterLimit counterLimit(String counterId) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public List<CounterLease> counterLeases() {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public <T, E extends Exception> T runInTransaction(TransactionFunction<T, E> f)
       throws IOException, E {
@@ -307,6 +343,11 @@ public class InMemStorage implements Storage {
     writtenEvents.add(sequenceEvent);
   }
 
+  @Override
+  public void writeEvents(List<SequenceEvent> sequenceEvents) {
+    writtenEvents.addAll(sequenceEvents);
+  }
+
   @Override
   public Optional<Long> getLatestStoredCounter(WorkflowInstance workflowInstance)
       throws IOException {
@@ -0,0 +1,379 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.storage;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import com.spotify.styx.model.ExecutionDescription;
+import com.spotify.styx.model.ExecutionDescriptionBuilder;
+import com.spotify.styx.model.TriggerParameters;
+import com.spotify.styx.model.WorkflowConfiguration;
+import com.spotify.styx.state.Message;
+import com.spotify.styx.state.StateData;
+import com.spotify.styx.state.StateDataBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact binary encoding of {@link StateData}, stored as a single blob property of active state entities.
+ *
+ * <p>The encoding is a format version followed by fields in the protobuf wire format, so fields can be added
+ * without bumping the version: readers skip fields they do not know. Field numbers must never be reused.
+ *
+ * <p>The trigger is not encoded, as it is kept in indexed properties of the entity.
+ */
+final class StateDataCodec {
+
+  static final int VERSION = 1;
+
+  // StateData
+  private static final int TRIES = 1;
+  private static final int CONSECUTIVE_FAILURES = 2;
+  private static final int RETRY_COST = 3;
+  private static final int RETRY_DELAY_MILLIS = 4;
+  private static final int LAST_EXIT = 5;
+  private static final int EXECUTION_ID = 6;
+  private static final int EXECUTION_DESCRIPTION = 7;
+  private static final int RESOURCE_IDS = 8;
+  private static final int TRIGGER_PARAMETERS = 9;
+  private static final int MESSAGE = 10;
+
+  // ExecutionDescription
+  private static final int DOCKER_IMAGE = 1;
+  private static final int DOCKER_ARG = 2;
+  private static final int DOCKER_TERMINATION_LOGGING = 3;
+  private static final int SECRET = 4;
+  private static final int SERVICE_ACCOUNT = 5;
+  private static final int COMMIT_SHA = 6;
+  private static final int ENV = 7;
+
+  // Secret
+  private static final int SECRET_NAME = 1;
+  private static final int SECRET_MOUNT_PATH = 2;
+
+  // Resource ids
+  private static final int RESOURCE_ID = 1;
+
+  // TriggerParameters
+  private static final int TRIGGER_PARAMETERS_ENV = 1;
+
+  // Map entries
+  private static final int KEY = 1;
+  private static final int VALUE = 2;
+
+  // Message
+  private static final int MESSAGE_LEVEL = 1;
+  private static final int MESSAGE_LINE = 2;
+
+  private StateDataCodec() {
+    throw new UnsupportedOperationException();
+  }
+
+  static byte[] encode(StateData data) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeUInt32NoTag(VERSION);
+    if (data.tries() != 0) {
+      out.writeInt32(TRIES, data.tries());
+    }
+    if (data.consecutiveFailures() != 0) {
+      out.writeInt32(CONSECUTIVE_FAILURES, data.consecutiveFailures());
+    }
+    if (data.retryCost() != 0) {
+      out.writeDouble(RETRY_COST, data.retryCost());
+    }
+    if (data.retryDelayMillis().isPresent()) {
+      out.writeInt64(RETRY_DELAY_MILLIS, data.retryDelayMillis().get());
+    }
+    if (data.lastExit().isPresent()) {
+      out.writeSInt32(LAST_EXIT, data.lastExit().get());
+    }
+    if (data.executionId().isPresent()) {
+      out.writeString(EXECUTION_ID, data.executionId().get());
+    }
+    if (data.executionDescription().isPresent()) {
+      out.writeByteArray(EXECUTION_DESCRIPTION, encode(data.executionDescription().get()));
+    }
+    if (data.resourceIds().isPresent()) {
+      out.writeByteArray(RESOURCE_IDS, encode(data.resourceIds().get()));
+    }
+    if (data.triggerParameters().isPresent()) {
+      out.writeByteArray(TRIGGER_PARAMETERS, encode(data.triggerParameters().get()));
+    }
+    for (Message message : data.messages()) {
+      out.writeByteArray(MESSAGE, encode(message));
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decode the state data, leaving the trigger to be set by the caller.
+   */
+  static StateDataBuilder decode(byte[] bytes) throws IOException {
+    final CodedInputStream in = CodedInputStream.newInstance(bytes);
+    final int version = in.readUInt32();
+    if (version != VERSION) {
+      throw new IOException("Unsupported state data version: " + version);
+    }
+    final StateDataBuilder builder = StateData.newBuilder();
+    final List<Message> messages = new ArrayList<>();
+    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case TRIES:
+          builder.tries(in.readInt32());
+          break;
+        case CONSECUTIVE_FAILURES:
+          builder.consecutiveFailures(in.readInt32());
+          break;
+        case RETRY_COST:
+          builder.retryCost(in.readDouble());
+          break;
+        case RETRY_DELAY_MILLIS:
+          builder.retryDelayMillis(in.readInt64());
+          break;
+        case LAST_EXIT:
+          builder.lastExit(in.readSInt32());
+          break;
+        case EXECUTION_ID:
+          builder.executionId(in.readString());
+          break;
+        case EXECUTION_DESCRIPTION:
+          builder.executionDescription(decodeExecutionDescription(in));
+          break;
+        case RESOURCE_IDS:
+          builder.resourceIds(decodeResourceIds(in));
+          break;
+        case TRIGGER_PARAMETERS:
+          builder.triggerParameters(decodeTriggerParameters(in));
+          break;
+        case MESSAGE:
+          messages.add(decodeMessage(in));
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+    return builder.messages(messages);
+  }
+
+  private static byte[] encode(ExecutionDescription executionDescription) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeString(DOCKER_IMAGE, executionDescription.dockerImage());
+    for (String arg : executionDescription.dockerArgs()) {
+      out.writeString(DOCKER_ARG, arg);
+    }
+    if (executionDescription.dockerTerminationLogging()) {
+      out.writeBool(DOCKER_TERMINATION_LOGGING, true);
+    }
+    if (executionDescription.secret().isPresent()) {
+      out.writeByteArray(SECRET, encode(executionDescription.secret().get()));
+    }
+    if (executionDescription.serviceAccount().isPresent()) {
+      out.writeString(SERVICE_ACCOUNT, executionDescription.serviceAccount().get());
+    }
+    if (executionDescription.commitSha().isPresent()) {
+      out.writeString(COMMIT_SHA, executionDescription.commitSha().get());
+    }
+    writeEntries(out, ENV, executionDescription.env());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static ExecutionDescription decodeExecutionDescription(CodedInputStream in) throws IOException {
+    final int limit = in.pushLimit(in.readRawVarint32());
+    final ExecutionDescriptionBuilder builder = ExecutionDescription.builder();
+    final List<String> args = new ArrayList<>();
+    final Map<String, String> env = new HashMap<>();
+    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case DOCKER_IMAGE:
+          builder.dockerImage(in.readString());
+          break;
+        case DOCKER_ARG:
+          args.add(in.readString());
+          break;
+        case DOCKER_TERMINATION_LOGGING:
+          builder.dockerTerminationLogging(in.readBool());
+          break;
+        case SECRET:
+          builder.secret(decodeSecret(in));
+          break;
+        case SERVICE_ACCOUNT:
+          builder.serviceAccount(in.readString());
+          break;
+        case COMMIT_SHA:
+          builder.commitSha(in.readString());
+          break;
+        case ENV:
+          readEntry(in, env);
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+    in.popLimit(limit);
+    return builder.dockerArgs(args).env(env).build();
+  }
+
+  private static byte[] encode(WorkflowConfiguration.Secret secret) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeString(SECRET_NAME, secret.name());
+    out.writeString(SECRET_MOUNT_PATH, secret.mountPath());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static WorkflowConfiguration.Secret decodeSecret(CodedInputStream in) throws IOException {
+    final int limit = in.pushLimit(in.readRawVarint32());
+    String name = null;
+    String mountPath = null;
+    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case SECRET_NAME:
+          name = in.readString();
+          break;
+        case SECRET_MOUNT_PATH:
+          mountPath = in.readString();
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+    in.popLimit(limit);
+    return WorkflowConfiguration.Secret.create(name, mountPath);
+  }
+
+  private static byte[] encode(Set<String> resourceIds) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    for (String resourceId : resourceIds) {
+      out.writeString(RESOURCE_ID, resourceId);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static Set<String> decodeResourceIds(CodedInputStream in) throws IOException {
+    final int limit = in.pushLimit(in.readRawVarint32());
+    final Set<String> resourceIds = new HashSet<>();
+    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+      if (WireFormat.getTagFieldNumber(tag) == RESOURCE_ID) {
+        resourceIds.add(in.readString());
+      } else {
+        in.skipField(tag);
+      }
+    }
+    in.popLimit(limit);
+    return resourceIds;
+  }
+
+  private static byte[] encode(TriggerParameters triggerParameters) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    writeEntries(out, TRIGGER_PARAMETERS_ENV, triggerParameters.env());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static TriggerParameters decodeTriggerParameters(CodedInputStream in) throws IOException {
+    final int limit = in.pushLimit(in.readRawVarint32());
+    final Map<String, String> env = new HashMap<>();
+    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+      if (WireFormat.getTagFieldNumber(tag) == TRIGGER_PARAMETERS_ENV) {
+        readEntry(in, env);
+      } else {
+        in.skipField(tag);
+      }
+    }
+    in.popLimit(limit);
+    return TriggerParameters.builder().env(env).build();
+  }
+
+  private static byte[] encode(Message message) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeString(MESSAGE_LEVEL, message.level().name());
+    out.writeString(MESSAGE_LINE, message.line());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static Message decodeMessage(CodedInputStream in) throws IOException {
+    final int limit = in.pushLimit(in.readRawVarint32());
+    Message.MessageLevel level = Message.MessageLevel.UNKNOWN;
+    String line = "";
+    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case MESSAGE_LEVEL:
+          level = Message.MessageLevel.forValue(in.readString());
+          break;
+        case MESSAGE_LINE:
+          line = in.readString();
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+    in.popLimit(limit);
+    return Message.create(level, line);
+  }
+
+  private static void writeEntries(CodedOutputStream out, int field, Map<String, String> entries)
+      throws IOException {
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      out.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      out.writeUInt32NoTag(CodedOutputStream.computeStringSize(KEY, entry.getKey())
+                           + CodedOutputStream.computeStringSize(VALUE, entry.getValue()));
+      out.writeString(KEY, entry.getKey());
+      out.writeString(VALUE, entry.getValue());
+    }
+  }
+
+  private static void readEntry(CodedInputStream in, Map<String, String> entries) throws IOException {
+    final int limit = in.pushLimit(in.readRawVarint32());
+    String key = null;
+    String value = null;
+    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case KEY:
+          key = in.readString();
+          break;
+        case VALUE:
+          value = in.readString();
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+    in.popLimit(limit);
+    entries.put(key, value);
+  }
+}
@@ -28,8 +28,12 @@ import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.model.WorkflowState;
+import com.spotify.styx.model.WorkflowWithState;
 import com.spotify.styx.model.data.WorkflowInstanceExecutionData;
+import com.spotify.styx.state.BackfillProgress;
 import com.spotify.styx.state.RunState;
+import com.spotify.styx.util.CounterLease;
+import com.spotify.styx.util.CounterLimit;
 import com.spotify.styx.util.TriggerInstantSpec;
 import java.io.Closeable;
 import java.io.IOException;
@@ -64,6 +68,13 @@ public interface Storage extends Closeable {
    */
   void writeEvent(SequenceEvent sequenceEvent) throws IOException;
 
+  /**
+   * Stores a batch of {@link com.spotify.styx.model.Event}s in a single write.
+   *
+   * @param sequenceEvents  The events together with their sequence numbers to be stored
+   */
+  void writeEvents(List<SequenceEvent> sequenceEvents) throws IOException;
+
   /**
    * Returns the latest counter from the events of a {@link WorkflowInstance}. The returned
    * Optional is empty if no event is found for the {@link WorkflowInstance} specified.
@@ -122,6 +133,11 @@ public interface Storage extends Closeable {
    */
   Map<Workflow, TriggerInstantSpec> workflowsWithNextNaturalTrigger() throws IOException;
 
+  /**
+   * Get the {@link WorkflowScheduleView}s of all workflows, without reading their full configuration.
+   */
+  Map<WorkflowId, WorkflowScheduleView> workflowScheduleViews() throws IOException;
+
   /**
    * Get all {@link Workflow}s.
    */
@@ -223,15 +239,16 @@ public interface Storage extends Closeable {
    * Get execution information for all the {@link WorkflowInstance} of the specified {@link WorkflowId}.
    *
    * <p>Results can be paginated based on a start {@link WorkflowInstance#parameter()} and a stop
-   * {@link WorkflowInstance#parameter()}.
+   * {@link WorkflowInstance#parameter()}, and a limit.
    *
    * @param workflowId  The workflowId to get execution information for
    * @param start       The start parameter
    * @param stop        The stop parameter
-   * @return A {@link WorkflowInstanceExecutionData} of all the instances
+   * @param limit       Maximum number of results to return
+   * @return A {@link WorkflowInstanceExecutionData} of the first instances in the range
    */
   List<WorkflowInstanceExecutionData> executionData(WorkflowId workflowId, String start,
-                                                    String stop) throws IOException;
+                                                    String stop, int limit) throws IOException;
 
   /**
    * Use workflowState instead.
@@ -268,6 +285,14 @@ public interface Storage extends Closeable {
    */
   WorkflowState workflowState(WorkflowId workflowId) throws IOException;
 
+  /**
+   * Get a {@link Workflow} definition together with its persisted workflow state, in a single read.
+   *
+   * @param workflowId The workflow to get
+   * @return Optionally the workflow and its state, if the workflow was found
+   */
+  Optional<WorkflowWithState> workflowWithState(WorkflowId workflowId) throws IOException;
+
   Optional<Resource> resource(String id) throws IOException;
 
   void storeResource(Resource resource) throws IOException;
@@ -288,10 +313,33 @@ public interface Storage extends Closeable {
 
   void storeBackfill(Backfill backfill) throws IOException;
 
+  /**
+   * Get the terminal states reached by the partitions of a backfill.
+   *
+   * @param id Id of the backfill
+   * @return Optionally the progress, if any partition of the backfill has reached a terminal state
+   */
+  Optional<BackfillProgress> backfillProgress(String id) throws IOException;
+
   Map<Integer, Long> shardsForCounter(String counterId) throws IOException;
 
+  /**
+   * Get the values of the first {@code shardSpan} shards of a counter, by shard index.
+   */
+  Map<Integer, Long> shardsForCounter(String counterId, int shardSpan) throws IOException;
+
   long getLimitForCounter(String counterId) throws IOException;
 
+  /**
+   * Get the limit of a counter along with the number of shards it is spread over.
+   */
+  CounterLimit counterLimit(String counterId) throws IOException;
+
+  /**
+   * Get all {@link CounterLease}s held on counters, by any owner.
+   */
+  List<CounterLease> counterLeases() throws IOException;
+
   /**
    * Run a function in a transaction that is committed if successful. Any exception thrown by the
    * passed in function will cause the transaction to be rolled back.
@@ -26,7 +26,10 @@ import com.spotify.styx.model.Workflow;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.model.WorkflowState;
+import com.spotify.styx.state.BackfillProgress;
 import com.spotify.styx.state.RunState;
+import com.spotify.styx.util.CounterLease;
+import com.spotify.styx.util.CounterLimit;
 import com.spotify.styx.util.Shard;
 import com.spotify.styx.util.ShardedCounter;
 import com.spotify.styx.util.TriggerInstantSpec;
@@ -79,6 +82,13 @@ public interface StorageTransaction {
    */
   Optional<Backfill> backfill(String id) throws IOException;
 
+  /**
+   * Get the {@link BackfillProgress} of a backfill.
+   * @param id Id of the backfill
+   * @return Optionally the progress, if any partition of the backfill has reached a terminal state
+   */
+  Optional<BackfillProgress> backfillProgress(String id) throws IOException;
+
   /**
    * Updates the next natural trigger for a {@link Workflow}.
    *
@@ -127,6 +137,13 @@ public interface StorageTransaction {
    */
   Backfill store(Backfill backfill) throws IOException;
 
+  /**
+   * Stores the progress of a backfill
+   *
+   * @param progress the progress to store
+   */
+  BackfillProgress store(BackfillProgress progress) throws IOException;
+
   /**
    * Commit all the storage operations previously called.
    *
@@ -146,6 +163,16 @@ public interface StorageTransaction {
    */
   boolean isActive();
 
+  /**
+   * Register an action to run after this transaction has been successfully committed.
+   */
+  void onCommit(Runnable action);
+
+  /**
+   * Register an action to run if this transaction is rolled back or fails to commit.
+   */
+  void onRollback(Runnable action);
+
   /**
    * Update counter by delta for the specified resource.
    */
@@ -162,12 +189,38 @@ public interface StorageTransaction {
   void store(Shard shard) throws IOException;
 
   /**
-   * Updates the limit for the given counter
+   * Updates the limit for the given counter, re-sharding the counter if the limit calls for a different
+   * number of shards.
    */
   void updateLimitForCounter(String counterId, long limit) throws IOException;
 
   /**
-   * Stores a resource
+   * Reads the limit of a counter along with the number of shards it is spread over
+   */
+  Optional<CounterLimit> counterLimit(String counterId) throws IOException;
+
+  /**
+   * Stores the limit of a counter along with the number of shards it is spread over
+   */
+  void store(CounterLimit counterLimit) throws IOException;
+
+  /**
+   * Stores a resource, re-sharding its counter if the limit calls for a different number of shards
    */
   void store(Resource resource) throws IOException;
+
+  /**
+   * Reads the lease held by an owner on a counter
+   */
+  Optional<CounterLease> counterLease(String counterId, String owner) throws IOException;
+
+  /**
+   * Stores a counter lease
+   */
+  void store(CounterLease lease) throws IOException;
+
+  /**
+   * Deletes the lease held by an owner on a counter
+   */
+  void deleteCounterLease(String counterId, String owner) throws IOException;
 }
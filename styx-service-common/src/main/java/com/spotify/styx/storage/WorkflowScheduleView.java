@@ -0,0 +1,49 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.storage;
+
+import com.google.auto.value.AutoValue;
+import com.spotify.styx.model.Schedule;
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.util.TriggerInstantSpec;
+import java.util.Optional;
+
+/**
+ * The scheduling properties of a workflow, read without its full configuration.
+ */
+@AutoValue
+public abstract class WorkflowScheduleView {
+
+  public abstract WorkflowId workflowId();
+
+  public abstract Schedule schedule();
+
+  public abstract Optional<String> offset();
+
+  public abstract boolean enabled();
+
+  public abstract Optional<TriggerInstantSpec> nextNaturalTrigger();
+
+  public static WorkflowScheduleView create(WorkflowId workflowId, Schedule schedule, Optional<String> offset,
+                                            boolean enabled, Optional<TriggerInstantSpec> nextNaturalTrigger) {
+    return new AutoValue_WorkflowScheduleView(workflowId, schedule, offset, enabled, nextNaturalTrigger);
+  }
+}
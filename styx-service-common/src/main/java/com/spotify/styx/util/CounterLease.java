@@ -0,0 +1,47 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.util;
+
+import com.google.auto.value.AutoValue;
+import java.time.Instant;
+
+/**
+ * A block of {@link ShardedCounter} capacity reserved by a single owner, see {@link CounterLeaseManager}.
+ */
+@AutoValue
+public abstract class CounterLease {
+
+  public abstract String counterId();
+
+  public abstract String owner();
+
+  /**
+   * The number of units that are reserved in the counter shards and were not handed out when the owner last
+   * wrote the lease.
+   */
+  public abstract long reserved();
+
+  public abstract Instant expiry();
+
+  public static CounterLease create(String counterId, String owner, long reserved, Instant expiry) {
+    return new AutoValue_CounterLease(counterId, owner, reserved, expiry);
+  }
+}
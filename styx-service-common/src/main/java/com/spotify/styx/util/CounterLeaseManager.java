@@ -0,0 +1,232 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.spotify.styx.monitoring.Stats;
+import com.spotify.styx.storage.Storage;
+import com.spotify.styx.storage.StorageTransaction;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the {@link CounterLeases} of this process stocked with a block of capacity for each counter in demand,
+ * and returns the capacity of counters that are no longer in demand. Should be ticked regularly.
+ *
+ * <p>The capacity held by a process is recorded in a {@link CounterLease}, which is written on every tick with the
+ * permits that are available at that time. Handing out a permit does not touch the lease, and a permit that is
+ * handed out is given back to the counter shards instead of the lease. Leases that are not renewed, e.g. because
+ * their owner crashed, are reclaimed by other processes once they expire. Reclaiming a lease releases the permits
+ * handed out since its last tick as well, so a crash can exceed the counter limit by at most one block of permits
+ * until the instances using them finish. A process whose lease was reclaimed drops the permits it still had.
+ */
+public class CounterLeaseManager {
+
+  private static final Logger log = LoggerFactory.getLogger(CounterLeaseManager.class);
+
+  public static final Duration DEFAULT_LEASE_TTL = Duration.ofMinutes(1);
+  public static final long DEFAULT_MAX_BLOCK_SIZE = 20;
+
+  /**
+   * The fraction of a counter limit that a single lease may hold.
+   */
+  private static final int LIMIT_FRACTION = 4;
+
+  private final Storage storage;
+  private final ShardedCounter shardedCounter;
+  private final CounterLeases leases;
+  private final Stats stats;
+  private final Time time;
+  private final String owner;
+  private final Duration leaseTtl;
+  private final long maxBlockSize;
+
+  private final Set<String> heldLeases = ConcurrentHashMap.newKeySet();
+
+  public CounterLeaseManager(Storage storage, ShardedCounter shardedCounter, CounterLeases leases, Stats stats,
+                             Time time) {
+    this(storage, shardedCounter, leases, stats, time, DEFAULT_LEASE_TTL, DEFAULT_MAX_BLOCK_SIZE);
+  }
+
+  public CounterLeaseManager(Storage storage, ShardedCounter shardedCounter, CounterLeases leases, Stats stats,
+                             Time time, Duration leaseTtl, long maxBlockSize) {
+    this.storage = Objects.requireNonNull(storage);
+    this.shardedCounter = Objects.requireNonNull(shardedCounter);
+    this.leases = Objects.requireNonNull(leases);
+    this.stats = Objects.requireNonNull(stats);
+    this.time = Objects.requireNonNull(time);
+    this.owner = leases.owner();
+    this.leaseTtl = Objects.requireNonNull(leaseTtl);
+    this.maxBlockSize = maxBlockSize;
+  }
+
+  public void tick() {
+    for (String counterId : leases.counterIds()) {
+      try {
+        tickCounter(counterId);
+      } catch (Exception e) {
+        log.warn("Failed to update lease on counter {}", counterId, e);
+      }
+    }
+
+    try {
+      reclaimExpiredLeases();
+    } catch (Exception e) {
+      log.warn("Failed to reclaim expired counter leases", e);
+    }
+  }
+
+  private void tickCounter(String counterId) throws IOException {
+    final long demand = leases.drainDemand(counterId);
+    final long target = demand > 0
+        ? blockSize(shardedCounter.getCounterSnapshot(counterId).getLimit())
+        : 0;
+    final long available = leases.available(counterId);
+
+    if (available < target) {
+      reserve(counterId, target - available);
+    } else if (available > target) {
+      giveBack(counterId, available - target);
+    } else if (available > 0 || heldLeases.contains(counterId)) {
+      renew(counterId);
+    }
+  }
+
+  @VisibleForTesting
+  long blockSize(long limit) {
+    return Math.max(1, Math.min(maxBlockSize, limit / LIMIT_FRACTION));
+  }
+
+  private void reserve(String counterId, long units) throws IOException {
+    final long reserved = storage.runInTransaction(tx -> {
+      final long available = backedPermits(tx, counterId);
+      final long n = shardedCounter.reserveCapacity(tx, counterId, units);
+      storeLease(tx, counterId, available + n);
+      tx.onCommit(() -> leases.add(counterId, n));
+      return n;
+    });
+    if (reserved > 0) {
+      log.debug("Reserved {} units of counter {}", reserved, counterId);
+      stats.recordCounterLeaseChurn(counterId, "reserve");
+    }
+  }
+
+  private void giveBack(String counterId, long units) throws IOException {
+    final long taken = leases.take(counterId, units);
+    if (taken == 0) {
+      return;
+    }
+    final long released;
+    try {
+      released = storage.runInTransaction(tx -> {
+        if (isReclaimed(tx, counterId)) {
+          // The taken permits are not backed by the lease anymore, so they must not be released again
+          return 0L;
+        }
+        final long n = shardedCounter.releaseCapacity(tx, counterId, taken);
+        storeLease(tx, counterId, leases.available(counterId) + taken - n);
+        tx.onCommit(() -> leases.add(counterId, taken - n));
+        return n;
+      });
+    } catch (Exception e) {
+      leases.add(counterId, taken);
+      throw e;
+    }
+    log.debug("Returned {} units of counter {}", released, counterId);
+    stats.recordCounterLeaseChurn(counterId, "return");
+  }
+
+  private void renew(String counterId) throws IOException {
+    storage.runInTransaction(tx -> {
+      storeLease(tx, counterId, backedPermits(tx, counterId));
+      return null;
+    });
+  }
+
+  /**
+   * Get the number of permits of this process on a counter that are backed by its lease, which is none if the
+   * lease was reclaimed.
+   */
+  private long backedPermits(StorageTransaction tx, String counterId) throws IOException {
+    return isReclaimed(tx, counterId) ? 0 : leases.available(counterId);
+  }
+
+  /**
+   * Check if a lease that this process held is gone, i.e. it was reclaimed after it expired. The permits it backed
+   * are dropped when the transaction commits.
+   */
+  private boolean isReclaimed(StorageTransaction tx, String counterId) throws IOException {
+    if (!heldLeases.contains(counterId) || tx.counterLease(counterId, owner).isPresent()) {
+      return false;
+    }
+    tx.onCommit(() -> {
+      heldLeases.remove(counterId);
+      final long dropped = leases.take(counterId, Long.MAX_VALUE);
+      log.warn("Lease on counter {} was reclaimed, dropped {} permits", counterId, dropped);
+    });
+    return true;
+  }
+
+  private void storeLease(StorageTransaction tx, String counterId, long reserved) throws IOException {
+    if (reserved > 0) {
+      tx.store(CounterLease.create(counterId, owner, reserved, time.get().plus(leaseTtl)));
+      tx.onCommit(() -> heldLeases.add(counterId));
+    } else if (heldLeases.contains(counterId)) {
+      tx.deleteCounterLease(counterId, owner);
+      tx.onCommit(() -> heldLeases.remove(counterId));
+    }
+  }
+
+  private void reclaimExpiredLeases() throws IOException {
+    final Instant now = time.get();
+    for (CounterLease lease : storage.counterLeases()) {
+      if (lease.owner().equals(owner) || lease.expiry().isAfter(now)) {
+        continue;
+      }
+      final long reclaimed = storage.runInTransaction(tx -> {
+        final Optional<CounterLease> current = tx.counterLease(lease.counterId(), lease.owner());
+        if (!current.isPresent() || current.get().expiry().isAfter(now)) {
+          return 0L;
+        }
+        final long n = shardedCounter.releaseCapacity(tx, lease.counterId(), current.get().reserved());
+        if (n < current.get().reserved()) {
+          // Keep the rest of the expired lease to reclaim it on a later tick
+          tx.store(CounterLease.create(lease.counterId(), lease.owner(), current.get().reserved() - n,
+              current.get().expiry()));
+        } else {
+          tx.deleteCounterLease(lease.counterId(), lease.owner());
+        }
+        return n;
+      });
+      log.info("Reclaimed {} units of counter {} from expired lease of {}", reclaimed, lease.counterId(),
+          lease.owner());
+      stats.recordCounterLeaseChurn(lease.counterId(), "reclaim");
+      stats.recordCounterLeaseStranded(lease.counterId(), reclaimed);
+    }
+  }
+}
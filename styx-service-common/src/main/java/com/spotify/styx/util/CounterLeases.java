@@ -0,0 +1,113 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.util;
+
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Permits for {@link ShardedCounter} capacity that this process holds a lease on. The units behind the permits are
+ * already counted in the counter shards, so handing out a permit does not touch Datastore.
+ *
+ * <p>The permits are refilled, recorded in the {@link CounterLease} of this process and returned in bulk by
+ * {@link CounterLeaseManager}.
+ */
+public class CounterLeases {
+
+  private final String owner;
+  private final ConcurrentMap<String, AtomicLong> permits = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AtomicLong> demand = new ConcurrentHashMap<>();
+
+  public CounterLeases(String owner) {
+    this.owner = Objects.requireNonNull(owner);
+  }
+
+  /**
+   * The owner of the {@link CounterLease}s that back the permits.
+   */
+  public String owner() {
+    return owner;
+  }
+
+  /**
+   * Take a permit for a counter if one is available. Records demand for the counter, whether or not a permit
+   * was available.
+   *
+   * @return true if a permit was taken.
+   */
+  public boolean tryAcquire(String counterId) {
+    demand.computeIfAbsent(counterId, k -> new AtomicLong()).incrementAndGet();
+    final AtomicLong available = permits.get(counterId);
+    return available != null && available.getAndUpdate(n -> n > 0 ? n - 1 : n) > 0;
+  }
+
+  /**
+   * Give back a permit for a counter that was acquired but not used, e.g. because the transaction that acquired
+   * it was rolled back.
+   */
+  public void release(String counterId) {
+    add(counterId, 1);
+  }
+
+  /**
+   * Get the number of permits currently available for a counter.
+   */
+  public long available(String counterId) {
+    final AtomicLong available = permits.get(counterId);
+    return available == null ? 0 : available.get();
+  }
+
+  void add(String counterId, long n) {
+    permits.computeIfAbsent(counterId, k -> new AtomicLong()).addAndGet(n);
+  }
+
+  /**
+   * Take up to {@code n} permits for a counter.
+   *
+   * @return The number of permits taken.
+   */
+  long take(String counterId, long n) {
+    final AtomicLong available = permits.get(counterId);
+    if (available == null) {
+      return 0;
+    }
+    final long before = available.getAndUpdate(v -> v - Math.min(v, n));
+    return Math.min(before, n);
+  }
+
+  /**
+   * Get and reset the number of acquisition attempts for a counter.
+   */
+  long drainDemand(String counterId) {
+    final AtomicLong attempts = demand.get(counterId);
+    return attempts == null ? 0 : attempts.getAndSet(0);
+  }
+
+  Set<String> counterIds() {
+    final Set<String> counterIds = new HashSet<>(permits.keySet());
+    counterIds.addAll(demand.keySet());
+    return counterIds;
+  }
+}
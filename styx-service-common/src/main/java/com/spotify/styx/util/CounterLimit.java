@@ -0,0 +1,53 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.util;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * The limit of a {@link ShardedCounter} and the number of shards it is spread over.
+ */
+@AutoValue
+public abstract class CounterLimit {
+
+  public abstract String counterId();
+
+  public abstract long limit();
+
+  /**
+   * The number of shards that the limit is spread over.
+   */
+  public abstract int shards();
+
+  /**
+   * The number of shards that might hold usage. Larger than {@link #shards()} after the counter has been
+   * re-sharded to fewer shards, until the shards that are no longer in use have been drained.
+   */
+  public abstract int shardSpan();
+
+  public CounterLimit withShardSpan(int shardSpan) {
+    return create(counterId(), limit(), shards(), shardSpan);
+  }
+
+  public static CounterLimit create(String counterId, long limit, int shards, int shardSpan) {
+    return new AutoValue_CounterLimit(counterId, limit, shards, shardSpan);
+  }
+}
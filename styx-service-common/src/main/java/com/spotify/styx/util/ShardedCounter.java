@@ -31,6 +31,8 @@ import com.spotify.styx.storage.Storage;
 import com.spotify.styx.storage.StorageTransaction;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -50,23 +52,41 @@ import org.slf4j.LoggerFactory;
  * <p>Note that the ShardedCounter stores state in the same Datastore database that the caller of this
  * class can access, too; guarantees don't apply if something else than ShardedCounter updates the
  * stored state.
+ *
+ * <p>If {@link CounterLeases} are provided, increments are first served from the permits leased by this
+ * process, without touching the shards. Decrements always update the shards. The leases are refilled, persisted
+ * and returned in bulk by {@link CounterLeaseManager}.
  */
 public class ShardedCounter {
 
   private static final Logger LOG = LoggerFactory.getLogger(ShardedCounter.class);
 
-  // Ought to be enough (parallelism) for everyone. We could make it dynamic with extra effort.
-  public static final int NUM_SHARDS = 128;
+  /**
+   * The maximum number of shards of a counter. Also the number of shards of counters whose limit was stored
+   * before the shard count was stored along with it.
+   */
+  public static final int MAX_NUM_SHARDS = 128;
   private static final Duration CACHE_EXPIRY_DURATION = Duration.ofMillis(1000);
+  // Bounds the number of shards read by one update, as every shard read adds an entity group to the transaction
+  private static final int MAX_SHARD_ATTEMPTS = 3;
+  // Leaves room for the counter lease that is written in the same transaction as a bulk reservation or release
+  private static final int MAX_BULK_SHARDS = ShardedCounterSnapshotFactory.TRANSACTION_GROUP_SIZE - 1;
 
   public static final String KIND_COUNTER_LIMIT = "CounterLimit";
   public static final String PROPERTY_LIMIT = "limit";
+  public static final String PROPERTY_SHARDS = "shards";
+  public static final String PROPERTY_SHARD_SPAN = "shardSpan";
 
   public static final String KIND_COUNTER_SHARD = "CounterShard";
   public static final String PROPERTY_SHARD_VALUE = "value";
   public static final String PROPERTY_SHARD_INDEX = "index";
   public static final String PROPERTY_COUNTER_ID = "counterId";
 
+  public static final String KIND_COUNTER_LEASE = "CounterLease";
+  public static final String PROPERTY_LEASE_OWNER = "owner";
+  public static final String PROPERTY_LEASE_RESERVED = "reserved";
+  public static final String PROPERTY_LEASE_EXPIRY = "expiry";
+
   private final Stats stats;
   /**
    * A weakly consistent view of the state in Datastore, refreshed by ShardedCounter on demand.
@@ -76,30 +96,37 @@ public class ShardedCounter {
       .expireAfterWrite(CACHE_EXPIRY_DURATION.toMillis(), TimeUnit.MILLISECONDS)
       .build();
   private CounterSnapshotFactory counterSnapshotFactory;
+  private final Optional<CounterLeases> leases;
 
   public static class Snapshot implements CounterSnapshot {
 
     private final String counterId;
     private final Long limit;
+    private final int shardCount;
     private final Map<Integer, Long> shards;
 
-    Snapshot(String counterId, long limit, Map<Integer, Long> shards) {
+    Snapshot(String counterId, long limit, int shardCount, Map<Integer, Long> shards) {
       this.counterId = Objects.requireNonNull(counterId);
       this.limit = limit;
+      this.shardCount = shardCount;
       this.shards = Objects.requireNonNull(shards);
     }
 
     /**
      * The shard's capacity is calculated as:
-     * 1/NUM_SHARDS part of the total count capacity
-     * plus an extra 1 unit of the remainder (whenever limit % NUM_SHARDS > 0) depending on the shardIndex
-     * The first (limit % NUM_SHARDS) shards get 1 unit extra, and the rest get 0.
+     * 1/shardCount part of the total count capacity
+     * plus an extra 1 unit of the remainder (whenever limit % shardCount > 0) depending on the shardIndex
+     * The first (limit % shardCount) shards get 1 unit extra, and the rest get 0.
+     * Shards beyond shardCount, left over from re-sharding the counter to fewer shards, get 0.
      *
-     * </p>ex. If limit=5 for a given counter and NUM_SHARDS=3,
+     * </p>ex. If limit=5 for a given counter and shardCount=3,
      * then the distribution of capacity between the 3 shards will be [2, 2, 1]
      */
     public long shardCapacity(int shardIndex) {
-      return limit / NUM_SHARDS + (shardIndex < limit % NUM_SHARDS ? 1 : 0);
+      if (shardIndex >= shardCount) {
+        return 0;
+      }
+      return limit / shardCount + (shardIndex < limit % shardCount ? 1 : 0);
     }
 
     @Override
@@ -175,8 +202,14 @@ public class ShardedCounter {
   }
 
   public ShardedCounter(Stats stats, CounterSnapshotFactory counterSnapshotFactory) {
+    this(stats, counterSnapshotFactory, Optional.empty());
+  }
+
+  public ShardedCounter(Stats stats, CounterSnapshotFactory counterSnapshotFactory,
+                        Optional<CounterLeases> leases) {
     this.stats = Objects.requireNonNull(stats);
     this.counterSnapshotFactory = Objects.requireNonNull(counterSnapshotFactory);
+    this.leases = Objects.requireNonNull(leases);
   }
 
   /**
@@ -201,6 +234,20 @@ public class ShardedCounter {
     return newSnapshot;
   }
 
+  /**
+   * Get the capacity of a resource counter that is left to hand out according to a recent snapshot, including the
+   * permits leased by this process. Can be used to plan operations that increment the counter, e.g. workflow
+   * instance dequeue. Note that {@link #updateCounter(StorageTransaction, String, long)} might still throw
+   * {@link CounterCapacityException}.
+   *
+   * @throws RuntimeException if the resource does not exist or reading from storage fails.
+   */
+  public long availableCapacity(String counterId) throws IOException {
+    final CounterSnapshot snapshot = getCounterSnapshot(counterId);
+    final long leased = leases.map(l -> l.available(counterId)).orElse(0L);
+    return Math.max(0, snapshot.getLimit() - snapshot.getTotalUsage()) + leased;
+  }
+
   /**
    * Check if a resource counter has capacity to spare. Can be used as a cheaper check before starting an expensive
    * operation, e.g. workflow instance dequeue. Note that even if this method returns true,
@@ -210,6 +257,9 @@ public class ShardedCounter {
    * @todo Throw checked exceptions for expected failures like resource not existing.
    */
   public boolean counterHasSpareCapacity(String resourceId) throws IOException {
+    if (leases.isPresent() && leases.get().available(resourceId) > 0) {
+      return true;
+    }
     try {
       final CounterSnapshot counterSnapshot = getCounterSnapshot(resourceId);
       counterSnapshot.pickShardWithSpareCapacity(1);
@@ -237,6 +287,15 @@ public class ShardedCounter {
     return storage.getLimitForCounter(counterId);
   }
 
+  /**
+   * The number of shards to spread a limit over. Every shard gets at least one unit of capacity, so small
+   * counters are cheap to read, while large counters get up to {@link #MAX_NUM_SHARDS} shards to update in
+   * parallel.
+   */
+  public static int shardCount(long limit) {
+    return (int) Math.max(1, Math.min(MAX_NUM_SHARDS, limit));
+  }
+
   /**
    * Must be called within a TransactionCallable. Augments the transaction with certain operations
    * that strongly consistently increment resp. decrement the counter referred to by counterId, and
@@ -245,9 +304,13 @@ public class ShardedCounter {
    *
    * <p>Delta should be +/-1 for graceful behavior, due to how sharding is currently implemented.
    * Updates with a larger delta are prone to spuriously fail even when the counter is not near to
-   * exceeding its limit. Failures are certain when delta >= limit / NUM_SHARDS + 1.
+   * exceeding its limit. Failures are certain when delta >= limit / shardCount + 1.
    */
   public void updateCounter(StorageTransaction transaction, String counterId, long delta) throws IOException {
+    if (leases.isPresent() && delta == 1 && acquireLeasedPermit(transaction, leases.get(), counterId)) {
+      return;
+    }
+
     CounterSnapshot snapshot = getCounterSnapshot(counterId);
 
     // If delta is negative, try to update shards with excess usage first
@@ -260,8 +323,114 @@ public class ShardedCounter {
       }
     }
 
-    int shardIndex = snapshot.pickShardWithSpareCapacity(delta);
-    updateCounterShard(transaction, counterId, delta, shardIndex, snapshot.shardCapacity(shardIndex));
+    final int shardIndex = snapshot.pickShardWithSpareCapacity(delta);
+    try {
+      updateCounterShard(transaction, counterId, delta, shardIndex, snapshot.shardCapacity(shardIndex));
+    } catch (CounterCapacityException e) {
+      if (delta < 0) {
+        throw e;
+      }
+      // The picked shard might have been used up by an earlier update of this counter in the same transaction,
+      // e.g. another dequeue in a batch, so move on to other shards that had spare capacity in the snapshot.
+      updateOtherCounterShard(transaction, snapshot, counterId, delta, shardIndex, e);
+    }
+  }
+
+  private void updateOtherCounterShard(StorageTransaction transaction, CounterSnapshot snapshot, String counterId,
+                                       long delta, int pickedShardIndex, CounterCapacityException cause)
+      throws IOException {
+    final List<Integer> candidates = snapshot.getShards().keySet().stream()
+        .filter(index -> index != pickedShardIndex)
+        .filter(index -> Range.closed(0L, snapshot.shardCapacity(index))
+            .contains(snapshot.getShards().get(index) + delta))
+        .collect(toList());
+    Collections.shuffle(candidates);
+    for (int index : candidates.subList(0, Math.min(candidates.size(), MAX_SHARD_ATTEMPTS - 1))) {
+      try {
+        updateCounterShard(transaction, counterId, delta, index, snapshot.shardCapacity(index));
+        return;
+      } catch (CounterCapacityException e) {
+        cause.addSuppressed(e);
+      }
+    }
+    throw cause;
+  }
+
+  /**
+   * Serve a unit increment from the permits leased by this process. The unit is already counted in the shards, so
+   * it only changes hands in memory and the transaction touches neither the shards nor the lease. The lease is
+   * persisted in bulk by {@link CounterLeaseManager}.
+   *
+   * @return true if a permit was acquired.
+   */
+  private boolean acquireLeasedPermit(StorageTransaction transaction, CounterLeases leases, String counterId) {
+    if (!leases.tryAcquire(counterId)) {
+      return false;
+    }
+    transaction.onRollback(() -> leases.release(counterId));
+    return true;
+  }
+
+  /**
+   * Must be called within a TransactionCallable. Augments the transaction with operations that increment the
+   * counter by up to {@code units}, spread over shards that have spare capacity according to our cached view of
+   * the state in Datastore. Touches one shard less than {@link ShardedCounterSnapshotFactory#TRANSACTION_GROUP_SIZE},
+   * leaving room for the counter lease that records the reservation.
+   *
+   * @return The number of units the counter is incremented by when the transaction commits.
+   */
+  public long reserveCapacity(StorageTransaction transaction, String counterId, long units) throws IOException {
+    final CounterSnapshot snapshot = getCounterSnapshot(counterId);
+    final List<Integer> indices = new ArrayList<>(snapshot.getShards().keySet());
+    Collections.shuffle(indices);
+
+    final long wanted = Math.max(0, Math.min(units, snapshot.getLimit() - snapshot.getTotalUsage()));
+    long remaining = wanted;
+    int touched = 0;
+    for (int index : indices) {
+      if (remaining <= 0 || touched == MAX_BULK_SHARDS) {
+        break;
+      }
+      final long capacity = snapshot.shardCapacity(index);
+      final long spare = capacity - snapshot.getShards().get(index);
+      if (spare > 0) {
+        final long delta = Math.min(spare, remaining);
+        updateCounterShard(transaction, counterId, delta, index, capacity);
+        remaining -= delta;
+        touched++;
+      }
+    }
+    return wanted - remaining;
+  }
+
+  /**
+   * Must be called within a TransactionCallable. Augments the transaction with operations that decrement the
+   * counter by up to {@code units}, taken from shards with usage according to our cached view of the state in
+   * Datastore. Touches one shard less than {@link ShardedCounterSnapshotFactory#TRANSACTION_GROUP_SIZE}, leaving
+   * room for the counter lease that records the release.
+   *
+   * @return The number of units the counter is decremented by when the transaction commits.
+   */
+  public long releaseCapacity(StorageTransaction transaction, String counterId, long units) throws IOException {
+    final CounterSnapshot snapshot = getCounterSnapshot(counterId);
+    final List<Integer> indices = new ArrayList<>(snapshot.getShards().keySet());
+    Collections.shuffle(indices);
+
+    long remaining = units;
+    int touched = 0;
+    for (int index : indices) {
+      if (remaining <= 0 || touched == MAX_BULK_SHARDS) {
+        break;
+      }
+      final long usage = snapshot.getShards().get(index);
+      if (usage > 0) {
+        final long delta = Math.min(usage, remaining);
+        updateCounterShard(transaction, counterId, -delta, index, snapshot.shardCapacity(index));
+        remaining -= delta;
+        touched++;
+      }
+    }
+    return units - remaining;
   }
 
   @VisibleForTesting
@@ -20,8 +20,6 @@
 
 package com.spotify.styx.util;
 
-import static com.spotify.styx.util.ShardedCounter.NUM_SHARDS;
-
 import com.spotify.styx.storage.Storage;
 import java.io.IOException;
 import java.util.Map;
@@ -40,7 +38,7 @@ public class ShardedCounterSnapshotFactory implements CounterSnapshotFactory {
   /**
    * Maximum number of entity groups that can be accessed in a transaction in Datastore.
    */
-  static final int TRANSACTION_GROUP_SIZE = 25;
+  public static final int TRANSACTION_GROUP_SIZE = 25;
   private final Storage storage;
 
   public ShardedCounterSnapshotFactory(Storage storage) {
@@ -48,19 +46,24 @@ public class ShardedCounterSnapshotFactory implements CounterSnapshotFactory {
   }
 
   public ShardedCounter.Snapshot create(String counterId) throws IOException {
-    return new ShardedCounter.Snapshot(counterId, ShardedCounter.getLimit(storage, counterId),
-        getShards(storage, counterId));
+    final CounterLimit counterLimit = storage.counterLimit(counterId);
+    final Map<Integer, Long> shards = getShards(storage, counterLimit);
+    if (counterLimit.shardSpan() > counterLimit.shards()) {
+      compactShardSpan(storage, counterLimit, shards);
+    }
+    return new ShardedCounter.Snapshot(counterId, counterLimit.limit(), counterLimit.shards(), shards);
   }
 
-  private static Map<Integer, Long> getShards(Storage storage, String counterId) throws IOException {
-    Map<Integer, Long> fetchedShards = storage.shardsForCounter(counterId);
-    if (fetchedShards.size() < NUM_SHARDS) {
-      // The counter probably has not been initialized (so we have empty QueryResults). Also
-      // possible that a prior initialize() crashed halfway, or we got a partial list of shards in
-      // QueryResults due to eventual consistency. In any case, repeated initialization eventually
-      // creates all NUM_SHARDS shards.
-      initialize(storage, counterId);
-      fetchedShards = storage.shardsForCounter(counterId);
+  private static Map<Integer, Long> getShards(Storage storage, CounterLimit counterLimit) throws IOException {
+    final String counterId = counterLimit.counterId();
+    Map<Integer, Long> fetchedShards = storage.shardsForCounter(counterId, counterLimit.shardSpan());
+    if (fetchedShards.size() < counterLimit.shards()) {
+      // The counter probably has not been initialized (so we have empty QueryResults), or it has
+      // been re-sharded to more shards. Also possible that a prior initialize() crashed halfway, or
+      // we got a partial list of shards in QueryResults due to eventual consistency. In any case,
+      // repeated initialization eventually creates all shards.
+      initialize(storage, counterId, counterLimit.shards());
+      fetchedShards = storage.shardsForCounter(counterId, counterLimit.shardSpan());
     }
     return fetchedShards;
   }
@@ -69,11 +72,52 @@ public class ShardedCounterSnapshotFactory implements CounterSnapshotFactory {
    * Idempotent initialization, so that we don't reset an existing shard to zero - counterId may
    * have already been initialized and incremented by another process.
    */
-  private static void initialize(Storage storage, String counterId) {
+  private static void initialize(Storage storage, String counterId, int shardCount) {
     LOG.debug("Initializing counter shards for resource {}", counterId);
-    for (int startIndex = 0; startIndex < NUM_SHARDS; startIndex += TRANSACTION_GROUP_SIZE) {
+    for (int startIndex = 0; startIndex < shardCount; startIndex += TRANSACTION_GROUP_SIZE) {
       initShardRange(storage, counterId, startIndex,
-                     Math.min(NUM_SHARDS, startIndex + TRANSACTION_GROUP_SIZE));
+                     Math.min(shardCount, startIndex + TRANSACTION_GROUP_SIZE));
+    }
+  }
+
+  /**
+   * Stop reading the shards left over from re-sharding a counter to fewer shards, once they have been
+   * drained. Those shards have no capacity, so they are only ever decremented and stay drained.
+   *
+   * <p>The snapshot only tells which shards are likely drained. The shards that are dropped from the span are read
+   * again in the transaction that narrows it, so that a decrement that lands in between either aborts the
+   * compaction or conflicts with it. To stay within the entity groups of a transaction, the span is narrowed by at
+   * most {@link #TRANSACTION_GROUP_SIZE} - 1 shards at a time.
+   */
+  private static void compactShardSpan(Storage storage, CounterLimit counterLimit, Map<Integer, Long> shards) {
+    final boolean drained = shards.entrySet().stream()
+        .noneMatch(shard -> shard.getKey() >= counterLimit.shards() && shard.getValue() > 0);
+    if (!drained) {
+      return;
+    }
+    final String counterId = counterLimit.counterId();
+    try {
+      final Optional<Integer> shardSpan = storage.runInTransaction(tx -> {
+        final Optional<CounterLimit> current = tx.counterLimit(counterId);
+        if (!current.isPresent() || current.get().shards() != counterLimit.shards()) {
+          return Optional.<Integer>empty();
+        }
+        final int span = current.get().shardSpan();
+        final int newSpan = Math.max(current.get().shards(), span - (TRANSACTION_GROUP_SIZE - 1));
+        for (int index = newSpan; index < span; index++) {
+          final Optional<Shard> shard = tx.shard(counterId, index);
+          if (shard.isPresent() && shard.get().value() > 0) {
+            LOG.info("Shard {}-{} is not drained, not compacting the shards of counter {}", counterId, index,
+                counterId);
+            return Optional.<Integer>empty();
+          }
+        }
+        tx.store(current.get().withShardSpan(newSpan));
+        return Optional.of(newSpan);
+      });
+      shardSpan.ifPresent(span -> LOG.info("Compacted the shards of counter {} to {}", counterId, span));
+    } catch (IOException e) {
+      LOG.warn("Error when trying to compact the shards of counter {}: ", counterLimit.counterId(), e);
     }
   }
 
@@ -21,17 +21,30 @@
 package com.spotify.styx.monitoring;
 
 import static com.spotify.styx.monitoring.MetricsStats.ACTIVE_STATES_PER_RUNSTATE_PER_TRIGGER;
+import static com.spotify.styx.monitoring.MetricsStats.BACKFILL_TRIGGER_RATE;
 import static com.spotify.styx.monitoring.MetricsStats.COUNTER_CACHE_RATE;
+import static com.spotify.styx.monitoring.MetricsStats.COUNTER_LEASE_CHURN_RATE;
+import static com.spotify.styx.monitoring.MetricsStats.COUNTER_LEASE_STRANDED;
 import static com.spotify.styx.monitoring.MetricsStats.DATASTORE_OPERATION_RATE;
 import static com.spotify.styx.monitoring.MetricsStats.DOCKER_DURATION;
 import static com.spotify.styx.monitoring.MetricsStats.DOCKER_ERROR_RATE;
 import static com.spotify.styx.monitoring.MetricsStats.DOCKER_RATE;
+import static com.spotify.styx.monitoring.MetricsStats.EVENT_CONSUMER_DROPPED_RATE;
 import static com.spotify.styx.monitoring.MetricsStats.EVENT_CONSUMER_ERROR_RATE;
+import static com.spotify.styx.monitoring.MetricsStats.EVENT_CONSUMER_QUEUE;
 import static com.spotify.styx.monitoring.MetricsStats.EVENT_CONSUMER_RATE;
+import static com.spotify.styx.monitoring.MetricsStats.EVENT_LOG_BUFFER_DEPTH;
+import static com.spotify.styx.monitoring.MetricsStats.EVENT_LOG_FLUSH_LATENCY;
+import static com.spotify.styx.monitoring.MetricsStats.EVENT_LOG_WRITES_DROPPED_RATE;
 import static com.spotify.styx.monitoring.MetricsStats.EXIT_CODE_MISMATCH;
 import static com.spotify.styx.monitoring.MetricsStats.EXIT_CODE_RATE;
 import static com.spotify.styx.monitoring.MetricsStats.HISTOGRAM;
 import static com.spotify.styx.monitoring.MetricsStats.NATURAL_TRIGGER_RATE;
+import static com.spotify.styx.monitoring.MetricsStats.POD_EVENT_LAG;
+import static com.spotify.styx.monitoring.MetricsStats.POD_EVENT_TRANSITION_LATENCY;
+import static com.spotify.styx.monitoring.MetricsStats.POD_STORE_RELIST_RATE;
+import static com.spotify.styx.monitoring.MetricsStats.POD_STORE_SIZE;
+import static com.spotify.styx.monitoring.MetricsStats.POD_UPDATE_QUEUE_DEPTH;
 import static com.spotify.styx.monitoring.MetricsStats.PUBLISHING_ERROR_RATE;
 import static com.spotify.styx.monitoring.MetricsStats.PUBLISHING_RATE;
 import static com.spotify.styx.monitoring.MetricsStats.PULL_IMAGE_ERROR_RATE;
@@ -54,6 +67,7 @@ import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -99,6 +113,12 @@ public class MetricsStatsTest {
     when(time.nanoTime()).then(a -> System.nanoTime());
     when(registry.getOrAdd(TRANSITIONING_DURATION, HISTOGRAM)).thenReturn(histogram);
     when(registry.meter(PULL_IMAGE_ERROR_RATE)).thenReturn(meter);
+    when(registry.getOrAdd(POD_EVENT_LAG, HISTOGRAM)).thenReturn(histogram);
+    when(registry.getOrAdd(POD_UPDATE_QUEUE_DEPTH, HISTOGRAM)).thenReturn(histogram);
+    when(registry.getOrAdd(POD_EVENT_TRANSITION_LATENCY, HISTOGRAM)).thenReturn(histogram);
+    when(registry.getOrAdd(EVENT_LOG_BUFFER_DEPTH, HISTOGRAM)).thenReturn(histogram);
+    when(registry.getOrAdd(EVENT_LOG_FLUSH_LATENCY, HISTOGRAM)).thenReturn(histogram);
+    when(registry.meter(EVENT_LOG_WRITES_DROPPED_RATE)).thenReturn(meter);
     when(registry.meter(NATURAL_TRIGGER_RATE)).thenReturn(meter);
     when(registry.meter(TERMINATION_LOG_MISSING)).thenReturn(meter);
     when(registry.meter(TERMINATION_LOG_INVALID)).thenReturn(meter);
@@ -205,12 +225,78 @@ public class MetricsStatsTest {
     verify(meter).mark();
   }
 
+  @Test
+  public void shouldRecordBackfillTrigger() {
+    when(registry.meter(BACKFILL_TRIGGER_RATE.tagged("backfill", "backfill-1"))).thenReturn(meter);
+    stats.recordBackfillTrigger("backfill-1");
+    verify(meter).mark();
+  }
+
+  @Test
+  public void shouldRemoveBackfillTriggerMetric() {
+    when(registry.meter(BACKFILL_TRIGGER_RATE.tagged("backfill", "backfill-1"))).thenReturn(meter);
+    stats.recordBackfillTrigger("backfill-1");
+    stats.removeBackfillTriggerMetric("backfill-1");
+    stats.removeBackfillTriggerMetric("backfill-2");
+    verify(registry).remove(BACKFILL_TRIGGER_RATE.tagged("backfill", "backfill-1"));
+    verify(registry, never()).remove(BACKFILL_TRIGGER_RATE.tagged("backfill", "backfill-2"));
+  }
+
   @Test
   public void shouldRecordPullImageError() {
     stats.recordPullImageError();
     verify(meter).mark();
   }
 
+  @Test
+  public void shouldRecordPodEventLag() {
+    stats.recordPodEventLag(4711L);
+    verify(histogram).update(4711L);
+  }
+
+  @Test
+  public void shouldRecordPodUpdateQueueDepth() {
+    stats.recordPodUpdateQueueDepth(17L);
+    verify(histogram).update(17L);
+  }
+
+  @Test
+  public void shouldRecordPodEventTransitionLatency() {
+    stats.recordPodEventTransitionLatency(4711L);
+    verify(histogram).update(4711L);
+  }
+
+  @Test
+  public void shouldRecordEventLogBufferDepth() {
+    stats.recordEventLogBufferDepth(17L);
+    verify(histogram).update(17L);
+  }
+
+  @Test
+  public void shouldRecordEventLogFlushLatency() {
+    stats.recordEventLogFlushLatency(4711L);
+    verify(histogram).update(4711L);
+  }
+
+  @Test
+  public void shouldRecordEventLogWritesDropped() {
+    stats.recordEventLogWritesDropped(3L);
+    verify(meter).mark(3L);
+  }
+
+  @Test
+  public void shouldRecordPodStoreRelist() {
+    when(registry.meter(POD_STORE_RELIST_RATE.tagged("reason", "gone"))).thenReturn(meter);
+    stats.recordPodStoreRelist("gone");
+    verify(meter).mark();
+  }
+
+  @Test
+  public void shouldRegisterPodStoreSizeMetric() {
+    stats.registerPodStoreSizeMetric(gauge);
+    verify(registry).register(POD_STORE_SIZE, gauge);
+  }
+
   @Test
   public void shouldRecordResourceConfigured() {
     String resource = "resource";
@@ -253,6 +339,21 @@ public class MetricsStatsTest {
     verify(meter).mark();
   }
 
+  @Test
+  public void shouldRecordEventConsumerDropped() {
+    final SequenceEvent event = SequenceEvent.create(
+        Event.triggerExecution(TestData.WORKFLOW_INSTANCE, Trigger.natural(), TriggerParameters.zero()), 0L, 0L);
+    when(registry.meter(EVENT_CONSUMER_DROPPED_RATE.tagged("event-type", "triggerExecution"))).thenReturn(meter);
+    stats.recordEventConsumerDropped(event);
+    verify(meter).mark();
+  }
+
+  @Test
+  public void shouldRegisterEventConsumerQueueMetric() {
+    stats.registerEventConsumerQueueMetric(gauge);
+    verify(registry).register(EVENT_CONSUMER_QUEUE, gauge);
+  }
+
   @Test
   public void shouldRecordWorkflowConsumer() {
     when(registry.meter(WORKFLOW_CONSUMER_RATE.tagged("action", "updated"))).thenReturn(meter);
@@ -328,6 +429,22 @@ public class MetricsStatsTest {
     verify(meter).mark();
   }
 
+  @Test
+  public void shouldRecordCounterLeaseChurn() {
+    when(registry.meter(COUNTER_LEASE_CHURN_RATE.tagged("resource", "resource", "operation", "reserve")))
+        .thenReturn(meter);
+    stats.recordCounterLeaseChurn("resource", "reserve");
+    verify(meter).mark();
+  }
+
+  @Test
+  public void shouldRecordCounterLeaseStranded() {
+    String resource = "resource";
+    when(registry.getOrAdd(COUNTER_LEASE_STRANDED.tagged("resource", resource), HISTOGRAM)).thenReturn(histogram);
+    stats.recordCounterLeaseStranded(resource, 3);
+    verify(histogram).update(3L);
+  }
+
   @Test
   public void shouldCreateHistogram() {
     final Histogram histogram = HISTOGRAM.newMetric();
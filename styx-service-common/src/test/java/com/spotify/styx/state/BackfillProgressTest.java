@@ -0,0 +1,105 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.state;
+
+import static com.spotify.styx.state.RunState.State.DONE;
+import static com.spotify.styx.state.RunState.State.ERROR;
+import static com.spotify.styx.state.RunState.State.RUNNING;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.spotify.styx.model.Backfill;
+import com.spotify.styx.model.Schedule;
+import com.spotify.styx.model.WorkflowId;
+import java.time.Instant;
+import java.util.Optional;
+import org.junit.Test;
+
+public class BackfillProgressTest {
+
+  private static final String BACKFILL_ID = "backfill-1";
+
+  @Test
+  public void shouldRecordTerminalStates() {
+    final BackfillProgress progress = BackfillProgress.create(BACKFILL_ID)
+        .withTerminalState(0, DONE)
+        .withTerminalState(2, ERROR)
+        .withTerminalState(3, DONE);
+
+    assertThat(progress.terminalState(0), is(Optional.of(DONE)));
+    assertThat(progress.terminalState(1), is(Optional.empty()));
+    assertThat(progress.terminalState(2), is(Optional.of(ERROR)));
+    assertThat(progress.count(DONE), is(2));
+    assertThat(progress.count(ERROR), is(1));
+  }
+
+  @Test
+  public void shouldReplaceTerminalState() {
+    final BackfillProgress progress = BackfillProgress.create(BACKFILL_ID)
+        .withTerminalState(1, ERROR)
+        .withTerminalState(1, DONE);
+
+    assertThat(progress.terminalState(1), is(Optional.of(DONE)));
+    assertThat(progress.count(ERROR), is(0));
+  }
+
+  @Test
+  public void shouldNotModifyOriginal() {
+    final BackfillProgress progress = BackfillProgress.create(BACKFILL_ID);
+    progress.withTerminalState(1, DONE);
+
+    assertThat(progress.terminalState(1), is(Optional.empty()));
+  }
+
+  @Test
+  public void shouldRoundTripBitmaps() {
+    final BackfillProgress progress = BackfillProgress.create(BACKFILL_ID)
+        .withTerminalState(5, DONE)
+        .withTerminalState(70, ERROR);
+
+    final BackfillProgress restored = BackfillProgress.create(BACKFILL_ID,
+        progress.toByteArray(DONE), progress.toByteArray(ERROR));
+
+    assertThat(restored, is(progress));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectNonTerminalState() {
+    BackfillProgress.create(BACKFILL_ID).withTerminalState(0, RUNNING);
+  }
+
+  @Test
+  public void shouldNumberPartitionsFromStartOfBackfill() {
+    final Backfill backfill = Backfill.newBuilder()
+        .id(BACKFILL_ID)
+        .start(Instant.parse("2019-01-01T00:00:00Z"))
+        .end(Instant.parse("2019-01-02T00:00:00Z"))
+        .workflowId(WorkflowId.create("foo", "bar"))
+        .concurrency(1)
+        .nextTrigger(Instant.parse("2019-01-01T23:00:00Z"))
+        .schedule(Schedule.HOURS)
+        .reverse(true)
+        .build();
+
+    assertThat(BackfillProgress.partition(backfill, Instant.parse("2019-01-01T00:00:00Z")), is(0));
+    assertThat(BackfillProgress.partition(backfill, Instant.parse("2019-01-01T05:00:00Z")), is(5));
+  }
+}
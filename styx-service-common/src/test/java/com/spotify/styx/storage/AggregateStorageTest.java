@@ -65,6 +65,12 @@ public class AggregateStorageTest {
     verify(datastore).close();
   }
 
+  @Test
+  public void shouldCloseBigtable() throws IOException {
+    sut.close();
+    verify(bigtable).close();
+  }
+
   @Test
   public void readActiveWorkflowInstances() throws Exception {
     final Map<WorkflowInstance, RunState> activeStates =
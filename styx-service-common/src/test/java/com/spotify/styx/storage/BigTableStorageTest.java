@@ -23,7 +23,10 @@ package com.spotify.styx.storage;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import com.spotify.styx.model.Event;
 import com.spotify.styx.model.SequenceEvent;
@@ -40,6 +43,8 @@ import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Table;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -68,10 +73,11 @@ public class BigTableStorageTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  private Connection bigtable;
   private BigtableStorage storage;
 
   public void setUp(int numFailures) throws Exception {
-    Connection bigtable = setupBigTableMockTable(numFailures);
+    bigtable = setupBigTableMockTable(numFailures);
     storage = new BigtableStorage(bigtable, Duration.ZERO);
   }
 
@@ -101,6 +107,76 @@ public class BigTableStorageTest {
         ExecStatus.create(Instant.ofEpochMilli(2L), "STARTED", Optional.empty())));
   }
 
+  @Test
+  public void shouldWriteEventsInBatch() throws Exception {
+    setUp(0);
+    storage.writeEvents(List.of(
+        SequenceEvent.create(Event.triggerExecution(WFI1, TRIGGER, TRIGGER_PARAMETERS), 0L, 0L),
+        SequenceEvent.create(Event.created(WFI1, "execId", "img"), 1L, 1L),
+        SequenceEvent.create(Event.triggerExecution(WFI2, TRIGGER, TRIGGER_PARAMETERS), 0L, 2L)));
+
+    assertThat(storage.readEvents(WFI1).size(), is(2));
+    assertThat(storage.readEvents(WFI2).size(), is(1));
+    assertThat(storage.getLatestStoredCounter(WFI1), is(Optional.of(1L)));
+  }
+
+  @Test
+  public void shouldReadLatestCounterWithoutEvents() throws Exception {
+    setUp(0);
+    storage.writeEvent(SequenceEvent.create(Event.triggerExecution(WFI1, TRIGGER, TRIGGER_PARAMETERS), 0L, 0L));
+    storage.writeEvents(List.of(
+        SequenceEvent.create(Event.created(WFI1, "execId", "img"), 1L, 1L),
+        SequenceEvent.create(Event.started(WFI1), 2L, 2L)));
+
+    final BigtableStorage restarted = new BigtableStorage(bigtable, Duration.ZERO);
+    assertThat(restarted.getLatestStoredCounter(WFI1), is(Optional.of(2L)));
+    assertThat(restarted.getLatestStoredCounter(WFI2), is(Optional.empty()));
+  }
+
+  @Test
+  public void shouldReadHighestCounterWhenWrittenOutOfOrder() throws Exception {
+    setUp(0);
+    storage.writeEvent(SequenceEvent.create(Event.started(WFI1), 2L, 1L));
+    storage.writeEvent(SequenceEvent.create(Event.created(WFI1, "execId", "img"), 1L, 2L));
+
+    final BigtableStorage restarted = new BigtableStorage(bigtable, Duration.ZERO);
+    assertThat(restarted.getLatestStoredCounter(WFI1), is(Optional.of(2L)));
+  }
+
+  @Test
+  public void shouldReadLatestCounterFromEventsWrittenWithoutIt() throws Exception {
+    setUp(0);
+    try (final Table table = bigtable.getTable(BigtableStorage.EVENTS_TABLE_NAME)) {
+      table.put(BigtableStorage.eventPut(SequenceEvent.create(Event.started(WFI1), 2L, 2L)));
+    }
+
+    assertThat(storage.getLatestStoredCounter(WFI1), is(Optional.of(2L)));
+  }
+
+  @Test
+  public void shouldCacheLatestCounter() throws Exception {
+    setUp(0);
+    storage.writeEvent(SequenceEvent.create(Event.started(WFI1), 2L, 2L));
+
+    final BigtableStorage restarted = new BigtableStorage(bigtable, Duration.ZERO);
+    assertThat(restarted.getLatestStoredCounter(WFI1), is(Optional.of(2L)));
+    assertThat(restarted.getLatestStoredCounter(WFI1), is(Optional.of(2L)));
+    verify(bigtable.getTable(BigtableStorage.EVENTS_TABLE_NAME), times(1)).get(any(Get.class));
+
+    restarted.writeEvent(SequenceEvent.create(Event.success(WFI1), 3L, 3L));
+    assertThat(restarted.getLatestStoredCounter(WFI1), is(Optional.of(3L)));
+  }
+
+  @Test
+  public void shouldReadHighestLatestCounterOfEventsWrittenOutOfOrder() throws Exception {
+    setUp(0);
+    storage.writeEvent(SequenceEvent.create(Event.started(WFI1), 3L, 2L));
+    storage.writeEvent(SequenceEvent.create(Event.submitted(WFI1, "execId"), 2L, 3L));
+
+    final BigtableStorage restarted = new BigtableStorage(bigtable, Duration.ZERO);
+    assertThat(restarted.getLatestStoredCounter(WFI1), is(Optional.of(3L)));
+  }
+
   @Test
   public void shouldReturnExecutionDataForWorkflow() throws Exception {
     setUp(0);
@@ -161,6 +237,22 @@ public class BigTableStorageTest {
     assertThat(workflowInstanceExecutionData.get(0).triggers().get(0).triggerId(), is("triggerId1"));
   }
 
+  @Test
+  public void shouldReadAllEventsOfLimitedExecutionDataForWorkflow() throws Exception {
+    setUp(0);
+    storage.writeEvent(SequenceEvent.create(Event.triggerExecution(WFI2, TRIGGER2, TRIGGER_PARAMETERS), 0L, 0L));
+    storage.writeEvent(SequenceEvent.create(Event.triggerExecution(WFI1, TRIGGER1, TRIGGER_PARAMETERS), 0L, 1L));
+    storage.writeEvent(SequenceEvent.create(Event.created(WFI1, "execId1", "img1"), 1L, 2L));
+    storage.writeEvent(SequenceEvent.create(Event.started(WFI1), 2L, 3L));
+
+    List<WorkflowInstanceExecutionData> workflowInstanceExecutionData =
+        storage.executionData(WORKFLOW_ID1, "", 1);
+
+    assertThat(workflowInstanceExecutionData.size(), is(1));
+    assertThat(workflowInstanceExecutionData.get(0).workflowInstance(), is(WFI1));
+    assertThat(workflowInstanceExecutionData.get(0).triggers().get(0).executions().get(0).statuses().size(), is(2));
+  }
+
   @Test
   public void shouldReturnRangeOfExecutionDataForWorkflow() throws Exception {
     setUp(0);
@@ -173,7 +265,7 @@ public class BigTableStorageTest {
     storage.writeEvent(SequenceEvent.create(Event.started(WFI2), 2L, 5L));
 
     List<WorkflowInstanceExecutionData> workflowInstanceExecutionData =
-        storage.executionData(WORKFLOW_ID1, WFI1.parameter(), "");
+        storage.executionData(WORKFLOW_ID1, WFI1.parameter(), "", 100);
 
     assertThat(workflowInstanceExecutionData.size(), is(2));
 
@@ -193,6 +285,19 @@ public class BigTableStorageTest {
                    .get(1), is(ExecStatus.create(Instant.ofEpochMilli(5L), "STARTED", Optional.empty())));
   }
 
+  @Test
+  public void shouldLimitRangeOfExecutionDataForWorkflow() throws Exception {
+    setUp(0);
+    storage.writeEvent(SequenceEvent.create(Event.triggerExecution(WFI1, TRIGGER1, TRIGGER_PARAMETERS), 0L, 0L));
+    storage.writeEvent(SequenceEvent.create(Event.triggerExecution(WFI2, TRIGGER2, TRIGGER_PARAMETERS), 0L, 1L));
+
+    List<WorkflowInstanceExecutionData> workflowInstanceExecutionData =
+        storage.executionData(WORKFLOW_ID1, WFI1.parameter(), "", 1);
+
+    assertThat(workflowInstanceExecutionData.size(), is(1));
+    assertThat(workflowInstanceExecutionData.get(0).workflowInstance(), is(WFI1));
+  }
+
   @Test
   public void shouldReturnExecutionDataForOneWorkflow() throws Exception {
     setUp(0);
@@ -205,7 +310,7 @@ public class BigTableStorageTest {
     storage.writeEvent(SequenceEvent.create(Event.started(WFI2), 2L, 5L));
 
     List<WorkflowInstanceExecutionData> workflowInstanceExecutionData =
-        storage.executionData(WORKFLOW_ID1, WFI1.parameter(), WFI2.parameter());
+        storage.executionData(WORKFLOW_ID1, WFI1.parameter(), WFI2.parameter(), 100);
 
     assertThat(workflowInstanceExecutionData.size(), is(1));
 
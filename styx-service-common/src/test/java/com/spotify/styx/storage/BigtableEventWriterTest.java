@@ -0,0 +1,268 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.storage;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.spotify.styx.model.Event;
+import com.spotify.styx.model.SequenceEvent;
+import com.spotify.styx.model.WorkflowId;
+import com.spotify.styx.model.WorkflowInstance;
+import com.spotify.styx.monitoring.Stats;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.junit.After;
+import org.junit.Test;
+
+public class BigtableEventWriterTest {
+
+  private static final WorkflowId WORKFLOW_ID = WorkflowId.create("component", "endpoint");
+  private static final WorkflowInstance WFI1 = WorkflowInstance.create(WORKFLOW_ID, "2016-01-01");
+  private static final WorkflowInstance WFI2 = WorkflowInstance.create(WORKFLOW_ID, "2016-01-02");
+
+  private static final SequenceEvent EVENT_1 = SequenceEvent.create(Event.started(WFI1), 0L, 0L);
+  private static final SequenceEvent EVENT_2 = SequenceEvent.create(Event.terminate(WFI1, Optional.of(0)), 1L, 1L);
+  private static final SequenceEvent EVENT_3 = SequenceEvent.create(Event.started(WFI2), 0L, 2L);
+
+  private static final Duration NO_DELAY = Duration.ZERO;
+  private static final Duration LONG_DELAY = Duration.ofHours(1);
+  private static final Duration CLOSE_WARNING_INTERVAL = Duration.ofSeconds(1);
+  private static final int MAX_WRITE_ATTEMPTS = 1000;
+
+  private final Stats stats = mock(Stats.class);
+
+  private BigtableEventWriter writer;
+
+  @After
+  public void tearDown() throws IOException {
+    if (writer != null) {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void shouldWriteBufferedEventsInOrder() throws Exception {
+    final Connection connection = mockedConnection(0);
+    writer = writer(connection, 2, 10, NO_DELAY);
+    final BigtableStorage storage = new BigtableStorage(connection, NO_DELAY, Optional.of(writer));
+
+    storage.writeEvents(List.of(EVENT_1, EVENT_2));
+    storage.writeEvent(EVENT_3);
+    writer.flush();
+
+    assertThat(writer.pending(WFI1), is(empty()));
+    assertThat(new BigtableStorage(connection, NO_DELAY).readEvents(WFI1), contains(EVENT_1, EVENT_2));
+    assertThat(new BigtableStorage(connection, NO_DELAY).readEvents(WFI2), contains(EVENT_3));
+    verify(stats, timeout(10_000).atLeastOnce()).recordEventLogBufferDepth(0);
+  }
+
+  @Test
+  public void shouldReadPendingEvents() throws Exception {
+    final Connection connection = mockedConnection(0);
+    writer = writer(connection, 10, 10, LONG_DELAY);
+    final BigtableStorage storage = new BigtableStorage(connection, NO_DELAY, Optional.of(writer));
+
+    storage.writeEvents(List.of(EVENT_1, EVENT_2));
+
+    assertThat(writer.pending(WFI1), contains(EVENT_1, EVENT_2));
+    assertThat(storage.readEvents(WFI1), contains(EVENT_1, EVENT_2));
+    assertThat(storage.getLatestStoredCounter(WFI1), is(Optional.of(1L)));
+    assertThat(storage.readEvents(WFI2), is(empty()));
+    verify(connection, never()).getBufferedMutator(BigtableStorage.EVENTS_TABLE_NAME);
+  }
+
+  @Test
+  public void shouldRetryFailedWrites() throws Exception {
+    final Connection connection = mockedConnection(2);
+    writer = writer(connection, 10, 10, NO_DELAY);
+
+    writer.write(List.of(EVENT_1, EVENT_2));
+    writer.flush();
+
+    assertThat(new BigtableStorage(connection, NO_DELAY).readEvents(WFI1), contains(EVENT_1, EVENT_2));
+    verify(stats).recordEventLogFlushLatency(anyLong());
+    verify(stats, never()).recordEventLogWritesDropped(anyLong());
+  }
+
+  @Test
+  public void shouldDropBatchAfterMaxWriteAttempts() throws Exception {
+    final Connection connection = mock(Connection.class);
+    final BufferedMutator mutator = mock(BufferedMutator.class);
+    when(connection.getBufferedMutator(BigtableStorage.EVENTS_TABLE_NAME)).thenReturn(mutator);
+    doThrow(new IOException("Bigtable is down")).doThrow(new IOException("Bigtable is down")).doNothing()
+        .when(mutator).flush();
+    writer = writer(connection, 1, 10, NO_DELAY, 2);
+
+    writer.write(List.of(EVENT_1, EVENT_3));
+    writer.flush();
+
+    verify(mutator, times(3)).flush();
+    verify(stats).recordEventLogWritesDropped(1);
+    verify(stats).recordEventLogFlushLatency(anyLong());
+    assertThat(writer.pending(WFI1), is(empty()));
+    assertThat(writer.pending(WFI2), is(empty()));
+  }
+
+  @Test
+  public void shouldNotRetryNonRetryableWrites() throws Exception {
+    final Connection connection = mock(Connection.class);
+    final BufferedMutator mutator = mock(BufferedMutator.class);
+    when(connection.getBufferedMutator(BigtableStorage.EVENTS_TABLE_NAME)).thenReturn(mutator);
+    final RetriesExhaustedWithDetailsException poison = new RetriesExhaustedWithDetailsException(
+        List.of(new DoNotRetryIOException("invalid mutation")), List.of(), List.of("localhost:1234"));
+    doThrow(poison).doNothing().when(mutator).flush();
+    writer = writer(connection, 1, 10, NO_DELAY);
+
+    writer.write(List.of(EVENT_1, EVENT_3));
+    writer.flush();
+
+    verify(mutator, times(2)).flush();
+    verify(stats).recordEventLogWritesDropped(1);
+    verify(stats).recordEventLogFlushLatency(anyLong());
+    assertThat(writer.pending(WFI1), is(empty()));
+  }
+
+  @Test
+  public void shouldBlockWritesWhenBufferIsFull() throws Exception {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Connection connection = mock(Connection.class);
+    final BufferedMutator mutator = mock(BufferedMutator.class);
+    when(connection.getBufferedMutator(BigtableStorage.EVENTS_TABLE_NAME)).then(a -> {
+      writing.countDown();
+      release.await();
+      return mutator;
+    });
+    writer = writer(connection, 1, 1, NO_DELAY);
+
+    writer.write(List.of(EVENT_1));
+    writing.await();
+    final CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+      try {
+        writer.write(List.of(EVENT_3));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    Thread.sleep(100);
+    assertThat(blocked.isDone(), is(false));
+    assertThat(writer.pending(WFI1), contains(EVENT_1));
+    assertThat(writer.pending(WFI2), is(empty()));
+
+    release.countDown();
+    blocked.get(10, TimeUnit.SECONDS);
+    writer.flush();
+    verify(mutator, times(2)).mutate(anyList());
+    verify(stats, never()).recordEventLogWritesDropped(anyLong());
+  }
+
+  @Test
+  public void shouldWriteBufferedEventsBeforeClosing() throws Exception {
+    final Connection connection = mock(Connection.class);
+    final BufferedMutator mutator = mock(BufferedMutator.class);
+    when(connection.getBufferedMutator(BigtableStorage.EVENTS_TABLE_NAME)).thenReturn(mutator);
+    doThrow(new IOException("Bigtable is down")).doThrow(new IOException("Bigtable is down")).doNothing()
+        .when(mutator).flush();
+    writer = writer(connection, 10, 10, LONG_DELAY);
+
+    writer.write(List.of(EVENT_1));
+    writer.close();
+
+    verify(mutator, times(3)).flush();
+    verify(stats, never()).recordEventLogWritesDropped(anyLong());
+    assertThat(writer.pending(WFI1), is(empty()));
+  }
+
+  @Test
+  public void shouldDropUnwrittenEventsWhenCloseIsInterrupted() throws Exception {
+    final Connection connection = mock(Connection.class);
+    final BufferedMutator mutator = mock(BufferedMutator.class);
+    when(connection.getBufferedMutator(BigtableStorage.EVENTS_TABLE_NAME)).thenReturn(mutator);
+    doThrow(new IOException("Bigtable is down")).when(mutator).flush();
+    writer = writer(connection, 10, 10, NO_DELAY);
+
+    writer.write(List.of(EVENT_1));
+    final Thread closing = new Thread(() -> {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    closing.start();
+    verify(mutator, timeout(10_000).atLeast(2)).flush();
+    closing.interrupt();
+    closing.join(10_000);
+
+    verify(stats, timeout(10_000)).recordEventLogWritesDropped(1);
+    assertThat(writer.pending(WFI1), is(empty()));
+  }
+
+  @Test(expected = IOException.class)
+  public void shouldRejectWritesWhenClosed() throws Exception {
+    writer = writer(mockedConnection(0), 10, 10, NO_DELAY);
+    writer.close();
+
+    writer.write(List.of(EVENT_1));
+  }
+
+  private BigtableEventWriter writer(Connection connection, int maxBatchSize, int maxBufferSize,
+                                     Duration flushInterval) {
+    return writer(connection, maxBatchSize, maxBufferSize, flushInterval, MAX_WRITE_ATTEMPTS);
+  }
+
+  private BigtableEventWriter writer(Connection connection, int maxBatchSize, int maxBufferSize,
+                                     Duration flushInterval, int maxWriteAttempts) {
+    return new BigtableEventWriter(connection, stats, maxBatchSize, maxBufferSize, flushInterval,
+        Duration.ofMillis(10), Duration.ofMillis(100), maxWriteAttempts, CLOSE_WARNING_INTERVAL);
+  }
+
+  private static Connection mockedConnection(int numFailures) throws IOException {
+    final Connection connection = mock(Connection.class);
+    new BigtableMocker(connection)
+        .setNumFailures(numFailures)
+        .setupTable(BigtableStorage.EVENTS_TABLE_NAME)
+        .finalizeMocking();
+    return connection;
+  }
+}
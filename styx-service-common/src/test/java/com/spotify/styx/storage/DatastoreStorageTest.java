@@ -28,10 +28,13 @@ import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_COMPONENT;
 import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_CONCURRENCY;
 import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_END;
 import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_HALTED;
+import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_NEXT_NATURAL_OFFSET_TRIGGER;
 import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_NEXT_TRIGGER;
 import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_SCHEDULE;
 import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_START;
 import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_WORKFLOW;
+import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_WORKFLOW_OFFSET;
+import static com.spotify.styx.storage.DatastoreStorage.PROPERTY_WORKFLOW_SCHEDULE;
 import static com.spotify.styx.storage.DatastoreStorage.globalConfigKey;
 import static com.spotify.styx.storage.DatastoreStorage.instantToTimestamp;
 import static com.spotify.styx.storage.DatastoreStorage.workflowKey;
@@ -57,6 +60,7 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -69,6 +73,8 @@ import com.google.cloud.datastore.DatastoreException;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.EntityQuery;
 import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.ProjectionEntity;
+import com.google.cloud.datastore.ProjectionEntityQuery;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
 import com.google.cloud.datastore.StringValue;
@@ -86,6 +92,7 @@ import com.spotify.styx.model.WorkflowConfiguration.Secret;
 import com.spotify.styx.model.WorkflowId;
 import com.spotify.styx.model.WorkflowInstance;
 import com.spotify.styx.model.WorkflowState;
+import com.spotify.styx.model.WorkflowWithState;
 import com.spotify.styx.state.Message;
 import com.spotify.styx.state.Message.MessageLevel;
 import com.spotify.styx.state.RunState;
@@ -118,6 +125,7 @@ import org.junit.Test;
 import org.junit.contrib.java.lang.system.EnvironmentVariables;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -431,6 +439,18 @@ public class DatastoreStorageTest {
     assertThat(read, is(FULLY_POPULATED_RUNSTATE));
   }
 
+  @Test
+  public void shouldReadActiveStateWrittenInBinaryEncoding() throws Exception {
+    final Datastore datastore = helper.getOptions().getService();
+    final Entity entity = DatastoreStorage.runStateToEntity(datastore.newKeyFactory(), WORKFLOW_INSTANCE,
+        FULLY_POPULATED_RUNSTATE, true);
+    datastore.put(entity);
+
+    assertThat(entity.contains(DatastoreStorage.PROPERTY_STATE_MESSAGES), is(false));
+    assertThat(storage.readActiveState(WORKFLOW_INSTANCE), is(Optional.of(FULLY_POPULATED_RUNSTATE)));
+    assertThat(storage.activeStatesByTriggerId("foobar"), is(Map.of(WORKFLOW_INSTANCE, FULLY_POPULATED_RUNSTATE)));
+  }
+
   @Test
   public void shouldDeleteActiveWorkflowInstance() throws Exception {
     storage.writeActiveState(WORKFLOW_INSTANCE1, RUN_STATE);
@@ -536,6 +556,28 @@ public class DatastoreStorageTest {
     assertThat(retrieved, is(state));
   }
 
+  @Test
+  public void shouldReturnWorkflowWithState() throws Exception {
+    storage.store(WORKFLOW);
+    Instant instant = Instant.parse("2016-03-14T14:00:00Z");
+    Instant offset = instant.plus(1, ChronoUnit.DAYS);
+    storage.updateNextNaturalTrigger(WORKFLOW.id(), TriggerInstantSpec.create(instant, offset));
+    storage.patchState(WORKFLOW.id(), WorkflowState.patchEnabled(true));
+
+    Optional<WorkflowWithState> retrieved = storage.workflowWithState(WORKFLOW.id());
+
+    assertThat(retrieved, is(Optional.of(WorkflowWithState.of(WORKFLOW, WorkflowState.builder()
+        .enabled(true)
+        .nextNaturalTrigger(instant)
+        .nextNaturalOffsetTrigger(offset)
+        .build()))));
+  }
+
+  @Test
+  public void shouldReturnEmptyWorkflowWithStateWhenWorkflowDoesNotExist() throws Exception {
+    assertThat(storage.workflowWithState(WORKFLOW_ID1), is(Optional.empty()));
+  }
+
   @Test
   public void getsGlobalDockerRunnerId() throws Exception {
     Entity config = Entity.newBuilder(DatastoreStorage.globalConfigKey(datastore.newKeyFactory()))
@@ -622,6 +664,91 @@ public class DatastoreStorageTest {
     assertThat(workflows, hasEntry(workflow3, triggerSpec3));
   }
 
+  @Test
+  public void shouldReturnScheduleViewsOfAllWorkflows() throws Exception {
+    var workflow1 = workflow(WORKFLOW_ID1);
+    var workflow2 = Workflow.create(WORKFLOW_ID2.componentId(), WorkflowConfiguration.builder()
+        .id(WORKFLOW_ID2.id())
+        .schedule(DAYS)
+        .offset("PT2H")
+        .build());
+    var workflow2new = workflow(WORKFLOW_ID2_NEW);
+    var workflow3 = workflow(WORKFLOW_ID3);
+
+    var now = Instant.parse("2019-04-03T00:00:00Z");
+    var triggerSpec1 = TriggerInstantSpec.create(now.plusSeconds(1), now.plusSeconds(11));
+    var triggerSpec2 = TriggerInstantSpec.create(now.plusSeconds(2), now.plusSeconds(22));
+    storage.runInTransaction(tx -> tx.storeWorkflowWithNextNaturalTrigger(workflow1, triggerSpec1));
+    storage.runInTransaction(tx -> tx.storeWorkflowWithNextNaturalTrigger(workflow2, triggerSpec2));
+    storage.store(workflow3);
+    storage.setEnabled(WORKFLOW_ID2, true);
+
+    // Should not be returned as we only read _old_ keys
+    storeWorkflowInNewWay(workflow2new, WorkflowState.ofTriggerSpec(triggerSpec2));
+
+    var views = storage.workflowScheduleViews();
+    assertThat(views.size(), is(3));
+    assertThat(views, hasEntry(WORKFLOW_ID1, WorkflowScheduleView.create(
+        WORKFLOW_ID1, HOURS, Optional.empty(), false, Optional.of(triggerSpec1))));
+    assertThat(views, hasEntry(WORKFLOW_ID2, WorkflowScheduleView.create(
+        WORKFLOW_ID2, DAYS, Optional.of("PT2H"), true, Optional.of(triggerSpec2))));
+    assertThat(views, hasEntry(WORKFLOW_ID3, WorkflowScheduleView.create(
+        WORKFLOW_ID3, HOURS, Optional.empty(), false, Optional.empty())));
+  }
+
+  @Test
+  public void shouldReadScheduleViewOfWorkflowStoredWithoutSchedule() throws Exception {
+    var workflow = workflow(WORKFLOW_ID1);
+    var triggerSpec = TriggerInstantSpec.create(
+        Instant.parse("2019-04-03T01:00:00Z"), Instant.parse("2019-04-03T02:00:00Z"));
+    var key = workflowKey(datastore::newKeyFactory, workflow.id());
+    var entity = workflowToEntity(workflow, WorkflowState.ofTriggerSpec(triggerSpec), Optional.empty(), key);
+    datastore.put(Entity.newBuilder(entity).remove(PROPERTY_WORKFLOW_SCHEDULE).build());
+
+    var views = storage.workflowScheduleViews();
+    assertThat(views, is(Map.of(WORKFLOW_ID1, WorkflowScheduleView.create(
+        WORKFLOW_ID1, HOURS, Optional.empty(), false, Optional.of(triggerSpec)))));
+  }
+
+  @Test
+  public void shouldRereadScheduleViewOfWorkflowTriggeredBetweenProjections() throws Exception {
+    var workflow = workflow(WORKFLOW_ID1);
+    var triggerSpec = TriggerInstantSpec.create(
+        Instant.parse("2019-04-03T01:00:00Z"), Instant.parse("2019-04-03T02:00:00Z"));
+    var nextTriggerSpec = TriggerInstantSpec.create(
+        Instant.parse("2019-04-03T02:00:00Z"), Instant.parse("2019-04-03T03:00:00Z"));
+    storage.runInTransaction(tx -> tx.storeWorkflowWithNextNaturalTrigger(workflow, triggerSpec));
+
+    // The workflow is triggered after its next natural trigger is projected, but before its offset instant is
+    doAnswer(a -> {
+      storage.runInTransaction(tx -> tx.updateNextNaturalTrigger(WORKFLOW_ID1, nextTriggerSpec));
+      return a.callRealMethod();
+    }).when(datastore).query(ArgumentMatchers.<Query<ProjectionEntity>>argThat(query ->
+        query instanceof ProjectionEntityQuery
+        && ((ProjectionEntityQuery) query).getProjection().contains(PROPERTY_NEXT_NATURAL_OFFSET_TRIGGER)));
+
+    var views = storage.workflowScheduleViews();
+    assertThat(views, is(Map.of(WORKFLOW_ID1, WorkflowScheduleView.create(
+        WORKFLOW_ID1, HOURS, Optional.empty(), false, Optional.of(nextTriggerSpec)))));
+  }
+
+  @Test
+  public void shouldStoreWorkflowScheduleAndOffsetAsProperties() throws Exception {
+    var workflow = Workflow.create(WORKFLOW_ID1.componentId(), WorkflowConfiguration.builder()
+        .id(WORKFLOW_ID1.id())
+        .schedule(DAYS)
+        .offset("PT2H")
+        .build());
+    var key = workflowKey(datastore::newKeyFactory, workflow.id());
+    var entity = workflowToEntity(workflow, WorkflowState.empty(), Optional.empty(), key);
+    assertThat(entity.getString(PROPERTY_WORKFLOW_SCHEDULE), is(DAYS.toString()));
+    assertThat(entity.getString(PROPERTY_WORKFLOW_OFFSET), is("PT2H"));
+
+    var updated = workflowToEntity(workflow(WORKFLOW_ID1), WorkflowState.empty(), Optional.of(entity), key);
+    assertThat(updated.getString(PROPERTY_WORKFLOW_SCHEDULE), is(HOURS.toString()));
+    assertThat(updated.contains(PROPERTY_WORKFLOW_OFFSET), is(false));
+  }
+
   @Test
   public void shouldFailToReadCorruptWorkflow() throws Exception {
     assertThat(storage.workflows().isEmpty(), is(true));
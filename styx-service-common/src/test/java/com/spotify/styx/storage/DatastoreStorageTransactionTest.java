@@ -248,6 +248,16 @@ public class DatastoreStorageTransactionTest {
     assertEquals(storage.shardsForCounter("res1").size(), 2);
   }
 
+  @Test
+  public void shouldReadShardsStoredInSameTransaction() throws IOException {
+    DatastoreStorageTransaction tx = new DatastoreStorageTransaction(datastore.newTransaction());
+    tx.store(Shard.create("res1", 0, 1));
+    assertThat(tx.shard("res1", 0), is(Optional.of(Shard.create("res1", 0, 1))));
+    tx.store(Shard.create("res1", 0, 2));
+    assertThat(tx.shard("res1", 0), is(Optional.of(Shard.create("res1", 0, 2))));
+    tx.commit();
+  }
+
   @Test
   public void shouldGetWorkflow() throws IOException {
     Workflow workflow = Workflow.create("test", FULL_WORKFLOW_CONFIGURATION);
@@ -0,0 +1,112 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.storage;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.CodedOutputStream;
+import com.spotify.styx.model.ExecutionDescription;
+import com.spotify.styx.model.TriggerParameters;
+import com.spotify.styx.model.WorkflowConfiguration.Secret;
+import com.spotify.styx.state.Message;
+import com.spotify.styx.state.StateData;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+public class StateDataCodecTest {
+
+  private static final StateData STATE_DATA = StateData.newBuilder()
+      .tries(17)
+      .consecutiveFailures(89)
+      .retryCost(2.0)
+      .retryDelayMillis(4711L)
+      .lastExit(-1)
+      .executionId("foo-bar-17")
+      .executionDescription(ExecutionDescription.builder()
+          .dockerImage("foo/bar:34234")
+          .dockerArgs("foo", "the", "bar", "baz")
+          .dockerTerminationLogging(true)
+          .secret(Secret.create("foobar", "/var/quux/baz"))
+          .serviceAccount("foo@bar.baz")
+          .commitSha("2d2bfa926b94508de5aab47b5f305659ead2274a")
+          .env("FOO", "foo", "BAR", "bar")
+          .build())
+      .resourceIds(ImmutableSet.of("GLOBAL_STYX_CLUSTER", "foo-resource", "bar-resource"))
+      .triggerParameters(TriggerParameters.builder()
+          .env("QUUX", "quux")
+          .build())
+      .addMessage(Message.info("foo"))
+      .addMessage(Message.warning("bar"))
+      .addMessage(Message.error("baz"))
+      .addMessage(Message.create(Message.MessageLevel.UNKNOWN, "quux"))
+      .build();
+
+  @Test
+  public void shouldRoundTripStateData() throws IOException {
+    assertThat(StateDataCodec.decode(StateDataCodec.encode(STATE_DATA)).build(), is(STATE_DATA));
+  }
+
+  @Test
+  public void shouldRoundTripEmptyStateData() throws IOException {
+    assertThat(StateDataCodec.decode(StateDataCodec.encode(StateData.zero())).build(), is(StateData.zero()));
+  }
+
+  @Test
+  public void shouldRoundTripEmptyResourceIds() throws IOException {
+    final StateData data = StateData.newBuilder().resourceIds(Set.of()).build();
+    assertThat(StateDataCodec.decode(StateDataCodec.encode(data)).build(), is(data));
+  }
+
+  @Test
+  public void shouldSkipUnknownFields() throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(StateDataCodec.encode(STATE_DATA));
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeString(1000, "from the future");
+    out.writeInt64(1001, 4711L);
+    out.flush();
+
+    assertThat(StateDataCodec.decode(bytes.toByteArray()).build(), is(STATE_DATA));
+  }
+
+  @Test(expected = IOException.class)
+  public void shouldRejectUnknownVersion() throws IOException {
+    final byte[] bytes = StateDataCodec.encode(STATE_DATA);
+    bytes[0] = (byte) (StateDataCodec.VERSION + 1);
+    StateDataCodec.decode(bytes);
+  }
+
+  @Test
+  public void shouldBeSmallerThanJson() throws IOException {
+    int json = 0;
+    for (Object value : List.of(STATE_DATA.messages(), STATE_DATA.executionDescription().get(),
+        STATE_DATA.resourceIds().get(), STATE_DATA.triggerParameters().get())) {
+      json += DatastoreStorage.jsonValue(value).get().length();
+    }
+    assertThat(StateDataCodec.encode(STATE_DATA).length, is(lessThan(json)));
+  }
+}
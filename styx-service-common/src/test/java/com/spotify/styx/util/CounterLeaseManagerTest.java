@@ -0,0 +1,143 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.styx.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.spotify.styx.monitoring.Stats;
+import com.spotify.styx.storage.Storage;
+import com.spotify.styx.storage.StorageTransaction;
+import com.spotify.styx.storage.TransactionFunction;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CounterLeaseManagerTest {
+
+  private static final String COUNTER_ID = "resource_counter";
+  private static final String OWNER = "owner";
+  private static final Instant NOW = Instant.parse("2019-01-01T00:00:00Z");
+  private static final Duration LEASE_TTL = Duration.ofMinutes(1);
+
+  @Mock private Storage storage;
+  @Mock private StorageTransaction transaction;
+  @Mock private ShardedCounter shardedCounter;
+  @Mock private CounterSnapshot snapshot;
+  @Mock private Stats stats;
+
+  private final CounterLeases leases = new CounterLeases(OWNER);
+  private CounterLeaseManager leaseManager;
+
+  @Before
+  public void setUp() throws Exception {
+    when(storage.runInTransaction(any())).thenAnswer(a -> {
+      final List<Runnable> commitActions = new ArrayList<>();
+      doAnswer(b -> commitActions.add(b.getArgument(0))).when(transaction).onCommit(any());
+      final Object result = a.<TransactionFunction<?, ?>>getArgument(0).apply(transaction);
+      commitActions.forEach(Runnable::run);
+      return result;
+    });
+    leaseManager = new CounterLeaseManager(storage, shardedCounter, leases, stats, () -> NOW, LEASE_TTL, 20);
+  }
+
+  @Test
+  public void shouldWriteLeaseWithPermitsLeftWhenRefilling() throws IOException {
+    leaseFirstBlock();
+
+    // Handing out permits does not touch the lease until the next tick
+    leases.tryAcquire(COUNTER_ID);
+    leases.tryAcquire(COUNTER_ID);
+    verify(transaction, times(1)).store(any(CounterLease.class));
+    when(transaction.counterLease(COUNTER_ID, OWNER)).thenReturn(
+        Optional.of(CounterLease.create(COUNTER_ID, OWNER, 3, NOW.plus(LEASE_TTL))));
+    when(shardedCounter.reserveCapacity(transaction, COUNTER_ID, 2)).thenReturn(1L);
+    leaseManager.tick();
+
+    verify(transaction).store(CounterLease.create(COUNTER_ID, OWNER, 2, NOW.plus(LEASE_TTL)));
+    assertEquals(2L, leases.available(COUNTER_ID));
+  }
+
+  @Test
+  public void shouldDeleteLeaseWhenAllPermitsAreHandedOut() throws IOException {
+    leaseFirstBlock();
+    when(transaction.counterLease(COUNTER_ID, OWNER)).thenReturn(
+        Optional.of(CounterLease.create(COUNTER_ID, OWNER, 3, NOW.plus(LEASE_TTL))));
+
+    leases.take(COUNTER_ID, 3);
+    leaseManager.tick();
+
+    verify(transaction).deleteCounterLease(COUNTER_ID, OWNER);
+  }
+
+  @Test
+  public void shouldDropPermitsOfReclaimedLease() throws IOException {
+    leaseFirstBlock();
+
+    // Not in demand anymore, but the lease is gone
+    leaseManager.tick();
+
+    assertEquals(0L, leases.available(COUNTER_ID));
+    verify(shardedCounter, never()).releaseCapacity(any(), any(), anyLong());
+  }
+
+  @Test
+  public void shouldKeepRestOfExpiredLeaseThatIsPartiallyReclaimed() throws IOException {
+    final CounterLease expired = CounterLease.create(COUNTER_ID, "other", 30, NOW.minusSeconds(1));
+    when(storage.counterLeases()).thenReturn(List.of(expired));
+    when(transaction.counterLease(COUNTER_ID, "other")).thenReturn(Optional.of(expired));
+    when(shardedCounter.releaseCapacity(transaction, COUNTER_ID, 30)).thenReturn(24L);
+
+    leaseManager.tick();
+
+    verify(transaction).store(CounterLease.create(COUNTER_ID, "other", 6, expired.expiry()));
+    verify(transaction, never()).deleteCounterLease(eq(COUNTER_ID), any());
+    verify(stats).recordCounterLeaseStranded(COUNTER_ID, 24);
+  }
+
+  private void leaseFirstBlock() throws IOException {
+    when(shardedCounter.getCounterSnapshot(COUNTER_ID)).thenReturn(snapshot);
+    // A block of 3 permits
+    when(snapshot.getLimit()).thenReturn(12L);
+    when(shardedCounter.reserveCapacity(transaction, COUNTER_ID, 3)).thenReturn(3L);
+    leases.tryAcquire(COUNTER_ID);
+    leaseManager.tick();
+    verify(transaction).store(CounterLease.create(COUNTER_ID, OWNER, 3, NOW.plus(LEASE_TTL)));
+    assertEquals(3L, leases.available(COUNTER_ID));
+  }
+}
@@ -0,0 +1,66 @@
+/*-
+ * -\-\-
+ * Spotify Styx Common
+ * --
+ * Copyright (C) 2019 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.styx.util;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CounterLeasesTest {
+
+  private static final String COUNTER_ID = "resource_counter";
+
+  private final CounterLeases leases = new CounterLeases("owner");
+
+  @Test
+  public void shouldAcquireAvailablePermits() {
+    leases.add(COUNTER_ID, 2);
+
+    assertTrue(leases.tryAcquire(COUNTER_ID));
+    assertTrue(leases.tryAcquire(COUNTER_ID));
+    assertFalse(leases.tryAcquire(COUNTER_ID));
+    assertEquals(0L, leases.available(COUNTER_ID));
+  }
+
+  @Test
+  public void shouldRecordDemand() {
+    assertFalse(leases.tryAcquire(COUNTER_ID));
+    assertFalse(leases.tryAcquire(COUNTER_ID));
+
+    assertEquals(2L, leases.drainDemand(COUNTER_ID));
+    assertEquals(0L, leases.drainDemand(COUNTER_ID));
+    assertThat(leases.counterIds(), containsInAnyOrder(COUNTER_ID));
+  }
+
+  @Test
+  public void shouldTakeAtMostAvailablePermits() {
+    leases.add(COUNTER_ID, 3);
+    leases.release(COUNTER_ID);
+
+    assertEquals(4L, leases.take(COUNTER_ID, 10));
+    assertEquals(0L, leases.available(COUNTER_ID));
+    assertEquals(0L, leases.take("other", 1));
+  }
+}
@@ -20,15 +20,21 @@
 
 package com.spotify.styx.util;
 
-import static com.spotify.styx.util.ShardedCounter.NUM_SHARDS;
+import static com.spotify.styx.util.ShardedCounter.KIND_COUNTER_SHARD;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_COUNTER_ID;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_SHARD_INDEX;
+import static com.spotify.styx.util.ShardedCounter.PROPERTY_SHARD_VALUE;
 import static com.spotify.styx.util.ShardedCounterSnapshotFactory.TRANSACTION_GROUP_SIZE;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.testing.LocalDatastoreHelper;
 import com.spotify.styx.model.Resource;
 import com.spotify.styx.storage.AggregateStorage;
@@ -90,19 +96,54 @@ public class ShardedCounterSnapshotFactoryTest {
 
   @After
   public void tearDown() throws IOException {
+    reset(storage);
     helper.reset();
   }
 
   @Test
   public void testCreate() throws IOException {
     counterSnapshotFactory.create(RESOURCE_ID);
-    assertEquals(128, storage.shardsForCounter(RESOURCE_ID).size());
+    assertEquals(10, storage.shardsForCounter(RESOURCE_ID).size());
   }
 
   @Test
   public void testSpeedOfCreate() throws IOException {
     counterSnapshotFactory.create(RESOURCE_ID);
-    verify(storage, times(NUM_SHARDS / TRANSACTION_GROUP_SIZE + 1)).runInTransaction(any());
-    assertEquals(128, storage.shardsForCounter(RESOURCE_ID).size());
+    verify(storage, times(ShardedCounter.shardCount(10) / TRANSACTION_GROUP_SIZE + 1)).runInTransaction(any());
+    assertEquals(10, storage.shardsForCounter(RESOURCE_ID).size());
+  }
+
+  @Test
+  public void testCreateForLegacyLimit() throws IOException {
+    storage.runInTransaction(tx -> {
+      tx.store(CounterLimit.create(RESOURCE_ID, 10L, ShardedCounter.MAX_NUM_SHARDS, ShardedCounter.MAX_NUM_SHARDS));
+      return null;
+    });
+    final ShardedCounter.Snapshot snapshot = counterSnapshotFactory.create(RESOURCE_ID);
+    assertEquals(ShardedCounter.MAX_NUM_SHARDS, snapshot.getShards().size());
+    assertEquals(1L, snapshot.shardCapacity(9));
+    assertEquals(0L, snapshot.shardCapacity(10));
+  }
+
+  @Test
+  public void shouldNotCompactShardSpanIfDroppedShardIsUpdatedAfterSnapshot() throws IOException {
+    storage.storeResource(Resource.create(RESOURCE_ID, 30L));
+    counterSnapshotFactory.create(RESOURCE_ID);
+    storage.storeResource(Resource.create(RESOURCE_ID, 5L));
+
+    // A shard that is about to be dropped is updated after it was read for the snapshot
+    doAnswer(invocation -> {
+      datastore.put(Entity.newBuilder(datastore.newKeyFactory().setKind(KIND_COUNTER_SHARD)
+          .newKey(RESOURCE_ID + "-20"))
+          .set(PROPERTY_COUNTER_ID, RESOURCE_ID)
+          .set(PROPERTY_SHARD_INDEX, 20)
+          .set(PROPERTY_SHARD_VALUE, 1)
+          .build());
+      return invocation.callRealMethod();
+    }).when(storage).runInTransaction(any());
+
+    counterSnapshotFactory.create(RESOURCE_ID);
+
+    assertEquals(30, storage.counterLimit(RESOURCE_ID).shardSpan());
   }
 }
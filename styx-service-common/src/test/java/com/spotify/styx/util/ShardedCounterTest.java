@@ -60,7 +60,9 @@ import com.spotify.styx.storage.Storage;
 import com.spotify.styx.storage.StorageTransaction;
 import java.io.IOException;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.HashMap;
+import java.util.Optional;
 import java.util.logging.Level;
 import java.util.stream.IntStream;
 import org.apache.hadoop.hbase.client.Connection;
@@ -80,6 +82,7 @@ public class ShardedCounterTest {
 
   private static final String COUNTER_ID1 = "resource_counter_1";
   private static final String COUNTER_ID2 = "resource_counter_2";
+  private static final String LEASE_OWNER = "owner";
 
   private static LocalDatastoreHelper helper;
   private static CounterSnapshotFactory counterSnapshotFactory;
@@ -134,8 +137,8 @@ public class ShardedCounterTest {
     QueryResults<Entity> results = getShardsForCounter(COUNTER_ID1);
 
     // assert all shards exist
-    assertThat(shardedCounter.getCounterSnapshot(COUNTER_ID1).getShards().size(), is(128));
-    IntStream.range(0, ShardedCounter.NUM_SHARDS).forEach(i -> {
+    assertThat(shardedCounter.getCounterSnapshot(COUNTER_ID1).getShards().size(), is(10));
+    IntStream.range(0, ShardedCounter.shardCount(10)).forEach(i -> {
       assertTrue(results.hasNext());
       results.next();
     });
@@ -294,6 +297,23 @@ public class ShardedCounterTest {
     assertEquals(1L, shardedCounter.getCounter(COUNTER_ID1));
   }
 
+  @Test
+  public void shouldCountEveryIncrementInOneTransaction() throws IOException {
+    // Two shards with a capacity of one each, so the second increment has to see the first one
+    storage.storeResource(Resource.create(COUNTER_ID1, 2L));
+    shardedCounter.inMemSnapshot.invalidate(COUNTER_ID1);
+    assertEquals(0L, shardedCounter.getCounter(COUNTER_ID1));
+
+    storage.runInTransaction(tx -> {
+      shardedCounter.updateCounter(tx, COUNTER_ID1, 1L);
+      shardedCounter.updateCounter(tx, COUNTER_ID1, 1L);
+      return null;
+    });
+
+    shardedCounter.inMemSnapshot.invalidate(COUNTER_ID1);
+    assertEquals(2L, shardedCounter.getCounter(COUNTER_ID1));
+  }
+
   @Test(expected = CounterCapacityException.class)
   public void shouldFailWhenIncreasingIfChosenShardIsFilledConcurrently() throws IOException {
     // init counter and limit
@@ -381,7 +401,7 @@ public class ShardedCounterTest {
 
   @Test(expected = ShardNotFoundException.class)
   public void shouldThrowExceptionOnUninitializedShards() throws IOException {
-    doReturn(new ShardedCounter.Snapshot(COUNTER_ID1, 100, new HashMap<>()))
+    doReturn(new ShardedCounter.Snapshot(COUNTER_ID1, 100, 100, new HashMap<>()))
         .when(counterSnapshotFactory).create(COUNTER_ID1);
     updateCounterInTransaction(COUNTER_ID1, -1L);
   }
@@ -550,6 +570,137 @@ public class ShardedCounterTest {
     inOrder.verifyNoMoreInteractions();
   }
 
+  @Test
+  public void shouldDeriveShardCountFromLimit() {
+    assertEquals(1, ShardedCounter.shardCount(0));
+    assertEquals(5, ShardedCounter.shardCount(5));
+    assertEquals(ShardedCounter.MAX_NUM_SHARDS, ShardedCounter.shardCount(10_000));
+  }
+
+  @Test
+  public void shouldReshardOnlineWhenLimitChanges() throws IOException {
+    storage.storeResource(Resource.create(COUNTER_ID1, 200L));
+    assertEquals(ShardedCounter.MAX_NUM_SHARDS, shardedCounter.getCounterSnapshot(COUNTER_ID1).getShards().size());
+    updateShard(COUNTER_ID1, 100, 1);
+
+    // Lowering the limit keeps reading the shards that are no longer in use until they are drained
+    storage.storeResource(Resource.create(COUNTER_ID1, 5L));
+    shardedCounter.inMemSnapshot.invalidate(COUNTER_ID1);
+    CounterSnapshot snapshot = shardedCounter.getCounterSnapshot(COUNTER_ID1);
+    assertEquals(1L, snapshot.getTotalUsage());
+    assertEquals(0L, snapshot.shardCapacity(100));
+    assertEquals(1L, snapshot.shardCapacity(4));
+
+    updateCounterInTransaction(COUNTER_ID1, -1L);
+
+    // Once drained, the span is narrowed a transaction group at a time until only the shards in use are read
+    for (int i = 0; i < ShardedCounter.MAX_NUM_SHARDS / ShardedCounterSnapshotFactory.TRANSACTION_GROUP_SIZE + 2; i++) {
+      shardedCounter.inMemSnapshot.invalidate(COUNTER_ID1);
+      snapshot = shardedCounter.getCounterSnapshot(COUNTER_ID1);
+    }
+    assertEquals(5, snapshot.getShards().size());
+    assertEquals(0L, snapshot.getTotalUsage());
+  }
+
+  @Test
+  public void shouldReserveAndReleaseCapacity() throws IOException {
+    assertEquals(0, shardedCounter.getCounter(COUNTER_ID1));
+
+    final long reserved = storage.runInTransaction(tx -> shardedCounter.reserveCapacity(tx, COUNTER_ID1, 15));
+    assertEquals(10L, reserved);
+
+    shardedCounter.inMemSnapshot.invalidate(COUNTER_ID1);
+    assertEquals(10L, shardedCounter.getCounter(COUNTER_ID1));
+
+    final long released = storage.runInTransaction(tx -> shardedCounter.releaseCapacity(tx, COUNTER_ID1, 4));
+    assertEquals(4L, released);
+
+    shardedCounter.inMemSnapshot.invalidate(COUNTER_ID1);
+    assertEquals(6L, shardedCounter.getCounter(COUNTER_ID1));
+  }
+
+  @Test
+  public void shouldLeaveRoomForLeaseInTransactionWhenReservingCapacity() throws IOException {
+    storage.storeResource(Resource.create(COUNTER_ID1, 200L));
+
+    final long reserved = storage.runInTransaction(tx -> shardedCounter.reserveCapacity(tx, COUNTER_ID1, 200));
+
+    shardedCounter.inMemSnapshot.invalidate(COUNTER_ID1);
+    final long touched = shardedCounter.getCounterSnapshot(COUNTER_ID1).getShards().values().stream()
+        .filter(value -> value > 0)
+        .count();
+    assertEquals(ShardedCounterSnapshotFactory.TRANSACTION_GROUP_SIZE - 1, touched);
+    assertEquals(reserved, shardedCounter.getCounter(COUNTER_ID1));
+  }
+
+  @Test
+  public void shouldUseLeasedPermitsWithoutTouchingShardsOrLease() throws IOException {
+    final CounterLeases leases = new CounterLeases(LEASE_OWNER);
+    shardedCounter = new ShardedCounter(stats, counterSnapshotFactory, Optional.of(leases));
+    storage.runInTransaction(tx -> shardedCounter.reserveCapacity(tx, COUNTER_ID1, 2));
+    storeLease(COUNTER_ID1, 2);
+    leases.add(COUNTER_ID1, 2);
+
+    storage.runInTransaction(tx -> {
+      shardedCounter.updateCounter(tx, COUNTER_ID1, 1L);
+      shardedCounter.updateCounter(tx, COUNTER_ID1, 1L);
+      return null;
+    });
+
+    assertEquals(0L, leases.available(COUNTER_ID1));
+    assertEquals(2L, leaseReserved(COUNTER_ID1));
+    shardedCounter.inMemSnapshot.invalidate(COUNTER_ID1);
+    assertEquals(2L, shardedCounter.getCounter(COUNTER_ID1));
+  }
+
+  @Test
+  public void shouldGiveBackLeasedPermitsToShards() throws IOException {
+    final CounterLeases leases = new CounterLeases(LEASE_OWNER);
+    shardedCounter = new ShardedCounter(stats, counterSnapshotFactory, Optional.of(leases));
+    storage.runInTransaction(tx -> shardedCounter.reserveCapacity(tx, COUNTER_ID1, 1));
+    storeLease(COUNTER_ID1, 1);
+    leases.add(COUNTER_ID1, 1);
+    shardedCounter.inMemSnapshot.invalidate(COUNTER_ID1);
+
+    updateCounterInTransaction(COUNTER_ID1, 1L);
+    updateCounterInTransaction(COUNTER_ID1, -1L);
+
+    assertEquals(0L, leases.available(COUNTER_ID1));
+    assertEquals(1L, leaseReserved(COUNTER_ID1));
+    shardedCounter.inMemSnapshot.invalidate(COUNTER_ID1);
+    assertEquals(0L, shardedCounter.getCounter(COUNTER_ID1));
+  }
+
+  @Test
+  public void shouldReturnLeasedPermitOnRollback() throws IOException {
+    final CounterLeases leases = new CounterLeases(LEASE_OWNER);
+    shardedCounter = new ShardedCounter(stats, counterSnapshotFactory, Optional.of(leases));
+    storeLease(COUNTER_ID1, 1);
+    leases.add(COUNTER_ID1, 1);
+
+    try {
+      storage.runInTransaction(tx -> {
+        shardedCounter.updateCounter(tx, COUNTER_ID1, 1L);
+        throw new IllegalStateException();
+      });
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+
+    assertEquals(1L, leases.available(COUNTER_ID1));
+  }
+
+  private void storeLease(String counterId, long reserved) throws IOException {
+    storage.runInTransaction(tx -> {
+      tx.store(CounterLease.create(counterId, LEASE_OWNER, reserved, Instant.parse("2019-01-01T00:00:00Z")));
+      return null;
+    });
+  }
+
+  private long leaseReserved(String counterId) throws IOException {
+    return storage.runInTransaction(tx -> tx.counterLease(counterId, LEASE_OWNER)).get().reserved();
+  }
+
   private void updateCounterInTransaction(String counterId, long delta) {
     try {
       storage.runInTransaction(tx -> {
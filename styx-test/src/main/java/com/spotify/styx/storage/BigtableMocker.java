@@ -22,6 +22,7 @@ package com.spotify.styx.storage;
 
 import static java.util.stream.Collectors.toList;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -32,10 +33,12 @@ import com.google.common.collect.Maps;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
 import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
@@ -113,17 +116,20 @@ public class BigtableMocker {
           throw new IOException("Something went wrong in performing put operation");
         }
         Put put = invocation.getArgument(0);
+        addRowsToTable(tableName, putCells(put));
+        return null;
+      }).when(table).put(any(Put.class));
+      doAnswer(invocation -> {
+        if (numFailures > 0) {
+          numFailures--;
+          throw new IOException("Something went wrong in performing put operation");
+        }
+        List<Put> puts = invocation.getArgument(0);
         List<Cell> list = Lists.newArrayList();
-
-        put.getFamilyCellMap()
-            .values()
-            .forEach((list2) -> list2.forEach((kv) -> {
-              Cell cell = getCell(kv);
-              list.add(cell);
-            }));
+        puts.forEach(put -> list.addAll(putCells(put)));
         addRowsToTable(tableName, list);
         return null;
-      }).when(table).put(any(Put.class));
+      }).when(table).put(anyListOf(Put.class));
       doAnswer(invocation -> {
         if (numFailures > 0) {
           numFailures--;
@@ -141,9 +147,45 @@ public class BigtableMocker {
         removeRowsFromTable(tableName, list);
         return null;
       }).when(table).delete(any(Delete.class));
+
+      when(bigtable.getBufferedMutator(tableName)).thenAnswer(invocation -> bufferedMutator(tableName));
     }
   }
 
+  private BufferedMutator bufferedMutator(TableName tableName) throws IOException {
+    final BufferedMutator mutator = mock(BufferedMutator.class);
+    final List<Put> buffered = Lists.newArrayList();
+    doAnswer(invocation -> {
+      List<Put> puts = invocation.getArgument(0);
+      buffered.addAll(puts);
+      return null;
+    }).when(mutator).mutate(anyListOf(Put.class));
+    doAnswer(invocation -> {
+      if (numFailures > 0) {
+        numFailures--;
+        buffered.clear();
+        throw new IOException("Something went wrong in performing flush operation");
+      }
+      List<Cell> list = Lists.newArrayList();
+      buffered.forEach(put -> list.addAll(putCells(put)));
+      buffered.clear();
+      addRowsToTable(tableName, list);
+      return null;
+    }).when(mutator).flush();
+    return mutator;
+  }
+
+  private List<Cell> putCells(Put put) {
+    List<Cell> list = Lists.newArrayList();
+    put.getFamilyCellMap()
+        .values()
+        .forEach((list2) -> list2.forEach((kv) -> {
+          Cell cell = getCell(kv);
+          list.add(cell);
+        }));
+    return list;
+  }
+
   private Cell getCell(Cell kv) {
     final byte[] rowArray;
     final byte[] familyArray;
@@ -174,11 +216,14 @@ public class BigtableMocker {
   private Result resultOfGet(List<Cell> cells, Get get) {
     final byte[] row = get.getRow();
 
-    return cells.stream()
+    // like Bigtable, return all versions of the row, latest first
+    final Cell[] rowCells = cells.stream()
         .filter(cell -> Bytes.equals(cell.getRowArray(), row))
-        .findFirst()
-        .map(cell -> Result.create(new Cell[] {cell}))
-        .orElseGet(() -> Result.create(Collections.emptyList()));
+        .sorted(Comparator.comparingLong(Cell::getTimestamp).reversed())
+        .toArray(Cell[]::new);
+    return rowCells.length > 0
+        ? Result.create(rowCells)
+        : Result.create(Collections.emptyList());
   }
 
   private ResultScanner resultOfScan(List<Cell> cells, Scan scan) throws IOException {
@@ -188,6 +233,8 @@ public class BigtableMocker {
     List<Result> inRangeResults = cells.stream().filter(
         cell -> Bytes.compareTo(startRow, cell.getRowArray()) <= 0
                 && Bytes.compareTo(stopRow, cell.getRowArray()) > 0)
+        // like Bigtable, return rows in key order
+        .sorted((a, b) -> Bytes.compareTo(a.getRowArray(), b.getRowArray()))
         .map(cell -> Result.create(new Cell[] {cell}))
         .collect(toList());
 